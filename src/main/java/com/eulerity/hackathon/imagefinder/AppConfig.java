@@ -0,0 +1,47 @@
+package com.eulerity.hackathon.imagefinder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Settings read from config.properties. A JVM system property with the same name overrides the file,
+ * e.g. {@code -DPAGE_CACHE_DIR=/var/cache/imagefinder}.
+ */
+public final class AppConfig {
+    private static final Properties config = new Properties();
+
+    static {
+        try (InputStream input = AppConfig.class.getClassLoader().getResourceAsStream("config.properties")) {
+            if (input != null) {
+                config.load(input);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Error loading the properties file", e);
+        }
+    }
+
+    private AppConfig() {
+    }
+
+    public static String getString(String key, String defaultValue) {
+        String value = System.getProperty(key, config.getProperty(key));
+        return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+    }
+
+    public static long getLong(String key, long defaultValue) {
+        try {
+            return Long.parseLong(getString(key, String.valueOf(defaultValue)));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public static int getInt(String key, int defaultValue) {
+        return (int) getLong(key, defaultValue);
+    }
+
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        return Boolean.parseBoolean(getString(key, String.valueOf(defaultValue)));
+    }
+}
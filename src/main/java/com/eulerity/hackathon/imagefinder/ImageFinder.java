@@ -2,8 +2,17 @@ package com.eulerity.hackathon.imagefinder;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.net.MalformedURLException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.servlet.ServletOutputStream;
 import javax.servlet.annotation.WebServlet;
@@ -12,16 +21,29 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import com.eulerity.hackathon.imagefinder.crawler.CrawlerPageResult;
+import com.eulerity.hackathon.imagefinder.crawler.AiResultCache;
+import com.eulerity.hackathon.imagefinder.crawler.ImageCache;
+import com.eulerity.hackathon.imagefinder.crawler.ImageHttpClient;
+import com.eulerity.hackathon.imagefinder.crawler.PageCache;
+import com.eulerity.hackathon.imagefinder.crawler.UrlCanonicalizer;
 import com.eulerity.hackathon.imagefinder.crawler.WebCrawler;
+import com.eulerity.hackathon.imagefinder.executor.FairShareExecutor;
+import com.eulerity.hackathon.imagefinder.executor.SharedExecutors;
+import com.eulerity.hackathon.imagefinder.job.CrawlJob;
+import com.eulerity.hackathon.imagefinder.job.JobManager;
 import com.eulerity.hackathon.imagefinder.objectDetector.AnnotateRequest;
 import com.eulerity.hackathon.imagefinder.objectDetector.ImageAnnotator;
+import com.eulerity.hackathon.imagefinder.objectDetector.NativeMats;
+import com.eulerity.hackathon.imagefinder.objectDetector.ObjectDetector;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import org.opencv.core.Mat;
 
-@WebServlet(name = "ImageFinder", urlPatterns = {"/main", "/annotate"})
+@WebServlet(name = "ImageFinder", urlPatterns = {"/main", "/annotate", "/stats", "/cache/evict", "/jobs", "/jobs/*"})
 public class ImageFinder extends HttpServlet {
     private static final long serialVersionUID = 1L;
+    // The crawl's memory no longer grows with maxImages, see CrawlFrontier, so larger crawls only need a higher limit
+    public static final int MAX_IMAGES_LIMIT = 100;
 
     protected static final Gson GSON = new GsonBuilder().create();
 
@@ -32,6 +54,69 @@ public class ImageFinder extends HttpServlet {
         nu.pattern.OpenCV.loadShared();
     }
 
+    // Thread pools shared by all requests, created with the servlet and shut down with it
+    private transient SharedExecutors executors;
+    // Background crawls submitted through /jobs, running on the shared pools
+    private transient JobManager jobs;
+    // Dispatch threads of streaming crawls; they only wait, the work runs on the shared pools
+    private transient ExecutorService streamThreads;
+
+    @Override
+    public void init() {
+        getExecutors();
+    }
+
+    @Override
+    public void destroy() {
+        synchronized (this) {
+            if (jobs != null) {
+                jobs.shutdown();
+                jobs = null;
+            }
+            if (streamThreads != null) {
+                streamThreads.shutdownNow();
+                streamThreads = null;
+            }
+            if (executors != null) {
+                executors.shutdown();
+                executors = null;
+            }
+        }
+    }
+
+    private synchronized SharedExecutors getExecutors() {
+        if (executors == null) {
+            executors = new SharedExecutors();
+        }
+        return executors;
+    }
+
+    private synchronized ExecutorService getStreamThreads() {
+        if (streamThreads == null) {
+            streamThreads = Executors.newCachedThreadPool(FairShareExecutor.namedDaemonThreads("stream"));
+        }
+        return streamThreads;
+    }
+
+    private synchronized JobManager getJobs() {
+        if (jobs == null) {
+            jobs = new JobManager(getExecutors());
+        }
+        return jobs;
+    }
+
+    @Override
+    protected final void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        String path = req.getServletPath();
+        if ("/stats".equals(path)) {
+            getStats(resp);
+        } else if ("/jobs".equals(path)) {
+            getJob(req, resp);
+        } else {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND, "Page not found");
+        }
+    }
+
     @Override
     protected final void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
         String path = req.getServletPath();
@@ -42,38 +127,70 @@ public class ImageFinder extends HttpServlet {
             case "/annotate":
                 annotateImage(req, resp);
                 break;
+            case "/cache/evict":
+                evictPageCache(req, resp);
+                break;
+            case "/jobs":
+                if (jobPath(req).length == 2 && "resume".equals(jobPath(req)[1])) {
+                    resumeJob(req, resp);
+                } else {
+                    submitJob(req, resp);
+                }
+                break;
             default:
                 resp.sendError(HttpServletResponse.SC_NOT_FOUND, "Page not found");
                 break;
         }
     }
 
-    private static void findImages(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    @Override
+    protected final void doDelete(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        if ("/jobs".equals(req.getServletPath())) {
+            cancelJob(req, resp);
+        } else {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND, "Page not found");
+        }
+    }
+
+    private void findImages(HttpServletRequest req, HttpServletResponse resp) throws IOException {
         // Processing params
         resp.setContentType("text/html");
         String url = req.getParameter("url");
-        String maxImagesParam = req.getParameter("maxImages");
-        String useAIParam = req.getParameter("useAI");
-        int maxImages;
+        int maxImages = getMaxImages(req);
+        boolean useAI = "true".equals(req.getParameter("useAI"));
+        int inputSize;
         try {
-            maxImages = Integer.parseInt(maxImagesParam);
-        } catch (NumberFormatException e) {
-            maxImages = 10;
+            inputSize = getInputSize(req);
+        } catch (IllegalArgumentException e) {
+            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            resp.getWriter().print("inputSize must be one of " + ObjectDetector.INPUT_SIZES + ".");
+            return;
         }
-        maxImages = Math.min(maxImages, 100);
-        boolean useAI = useAIParam != null && useAIParam.equals("true");
+        // Stream results as they are ready when asked to via the stream parameter or an SSE Accept header
+        String accept = req.getHeader("Accept");
+        boolean serverSentEvents = accept != null && accept.contains(ResultStreamWriter.SSE_CONTENT_TYPE);
+        boolean stream = "true".equals(req.getParameter("stream")) || serverSentEvents;
 
-        if (url != null && !url.isEmpty()) {
+        if (url != null && !url.isEmpty() && stream) {
+            streamImages(url, maxImages, useAI, inputSize, serverSentEvents, resp);
+        } else if (url != null && !url.isEmpty()) {
             try {
                 // Create a new WebCrawler instance with a specified maximum number of images.
-                WebCrawler crawler = new WebCrawler(maxImages);
+                WebCrawler crawler = new WebCrawler(maxImages, getExecutors());
+                crawler.getImageDeduplicator().setInputSize(inputSize);
                 // Crawl the provided URL and retrieve page results containing image URLs.
                 List<CrawlerPageResult> results = crawler.crawl(url);
-                // If useAI flag is true, apply AI processing to each result.
+                // If useAI flag is true, apply AI processing to each result on this request's share of the AI pool.
                 if (useAI) {
-                    for (CrawlerPageResult result : results) {
-                        result.useAI();
+                    try (FairShareExecutor.Tenant aiWorkers = getExecutors().getAiExecutor().newTenant(url)) {
+                        for (CrawlerPageResult result : results) {
+                            result.useAI(aiWorkers);
+                        }
                     }
+                    Map<String, Object> dedupe = crawler.getImageDeduplicator().getStats();
+                    System.out.println("Image dedupe for " + url + ": " + dedupe);
+                    resp.setHeader("X-Image-Dedupe-Ratio", String.valueOf(dedupe.get("dedupeRatio")));
+                    resp.setHeader("X-Image-Bytes-Saved", String.valueOf(dedupe.get("bytesSaved")));
                 }
                 // Convert the results to JSON format for response output.
                 String jsonResponse = GSON.toJson(results);
@@ -97,6 +214,317 @@ public class ImageFinder extends HttpServlet {
 
     }
 
+    /**
+     * Crawls the URL and writes every page result to the response as soon as it has been crawled, followed by
+     * the AI-enriched version of each page once its images are done if AI processing is enabled. The crawl runs
+     * on a stream thread and queues its events, while this request thread writes them to the client, see
+     * {@link ResultStreamWriter}. If the client goes away the crawl is cancelled.
+     */
+    private void streamImages(String url, int maxImages, boolean useAI, int inputSize, boolean serverSentEvents,
+                              HttpServletResponse resp) throws IOException {
+        if (UrlCanonicalizer.canonicalize(url) == null) {
+            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            resp.getWriter().print("URL is malformed.");
+            return;
+        }
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setContentType(serverSentEvents ? ResultStreamWriter.SSE_CONTENT_TYPE : ResultStreamWriter.NDJSON_CONTENT_TYPE);
+        resp.setCharacterEncoding("UTF-8");
+        resp.setHeader("Cache-Control", "no-cache");
+        ResultStreamWriter writer = new ResultStreamWriter(
+                new OutputStreamWriter(resp.getOutputStream(), StandardCharsets.UTF_8), GSON, serverSentEvents);
+
+        WebCrawler crawler = new WebCrawler(maxImages, getExecutors());
+        crawler.getImageDeduplicator().setInputSize(inputSize);
+        try {
+            getStreamThreads().execute(() -> crawlAndEnrich(url, useAI, crawler, writer));
+        } catch (RejectedExecutionException e) {
+            writer.writeError("Something went wrong, please try again later.");
+        }
+        try {
+            writer.drain();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (writer.hasFailed() || Thread.currentThread().isInterrupted()) {
+                crawler.cancel();  // The client is gone, don't spend crawl and AI time on it
+            }
+        }
+    }
+
+    /**
+     * Runs the crawl of a streaming request and queues its events. AI processing of a page starts as soon as the
+     * page has been crawled, on this request's share of the AI pool, and doesn't hold up the crawl thread that
+     * found the page. "done" is queued once the crawl is over and every page is enriched, or after the AI timeout.
+     */
+    private void crawlAndEnrich(String url, boolean useAI, WebCrawler crawler, ResultStreamWriter writer) {
+        // Guarded by enrichments; each page's AI processing, and the queueing of its "ai" event that follows it
+        List<CompletableFuture<Void>> enrichments = new ArrayList<>();
+        List<CompletableFuture<Void>> enrichedEvents = new ArrayList<>();
+        try (FairShareExecutor.Tenant aiWorkers = useAI ? getExecutors().getAiExecutor().newTenant(url) : null) {
+            crawler.crawl(url, page -> {
+                writer.writePage(page);  // Serialized before AI processing changes the page
+                if (useAI && !writer.hasFailed()) {
+                    CompletableFuture<Void> enriched = page.useAIAsync(aiWorkers);
+                    synchronized (enrichments) {
+                        enrichments.add(enriched);
+                        enrichedEvents.add(enriched.thenRun(() -> writer.writeEnrichedPage(page)));
+                    }
+                }
+            });
+            if (useAI) {
+                CompletableFuture<?>[] pending;
+                synchronized (enrichments) {
+                    pending = enrichedEvents.toArray(new CompletableFuture<?>[0]);
+                }
+                try {
+                    CompletableFuture.allOf(pending).get(CrawlerPageResult.ASYNC_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    synchronized (enrichments) {
+                        for (CompletableFuture<Void> enriched : enrichments) {
+                            enriched.cancel(true);
+                        }
+                    }
+                } catch (ExecutionException e) {
+                    // Neither AI processing nor queueing an event completes exceptionally
+                }
+                writer.writeDone(crawler.getImageDeduplicator().getStats());
+            } else {
+                writer.writeDone();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            writer.writeError("Something went wrong, please try again later.");  // Dropped if "done" was queued
+        }
+    }
+
+    /**
+     * @return the maxImages parameter, 10 if it is missing and at most MAX_IMAGES_LIMIT, 100 by default.
+     */
+    private static int getMaxImages(HttpServletRequest req) {
+        int maxImages;
+        try {
+            maxImages = Integer.parseInt(req.getParameter("maxImages"));
+        } catch (NumberFormatException e) {
+            maxImages = 10;
+        }
+        return Math.min(maxImages, AppConfig.getInt("MAX_IMAGES_LIMIT", MAX_IMAGES_LIMIT));
+    }
+
+    /**
+     * @return the inputSize parameter, the network input size for AI processing, or DETECTOR_INPUT_SIZE if it is
+     * missing.
+     * @throws IllegalArgumentException if it isn't one of ObjectDetector.INPUT_SIZES.
+     */
+    private static int getInputSize(HttpServletRequest req) {
+        String inputSize = req.getParameter("inputSize");
+        if (inputSize == null || inputSize.isEmpty()) {
+            return ObjectDetector.defaultInputSize();
+        }
+        int size = Integer.parseInt(inputSize);
+        if (!ObjectDetector.INPUT_SIZES.contains(size)) {
+            throw new IllegalArgumentException("Unsupported input size: " + size);
+        }
+        return size;
+    }
+
+    /**
+     * Queues a crawl in the background and answers right away with the job's ID, or with 503 Service Unavailable
+     * if the job queue is full.
+     */
+    private void submitJob(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        String url = req.getParameter("url");
+        if (url == null || url.isEmpty()) {
+            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            resp.getWriter().print("URL parameter is missing or empty.");
+            return;
+        }
+        try {
+            CrawlJob job = getJobs().submit(url, getMaxImages(req), "true".equals(req.getParameter("useAI")));
+            resp.setStatus(HttpServletResponse.SC_ACCEPTED);
+            resp.setHeader("Location", "/jobs/" + job.getId());
+            resp.setContentType("application/json");
+            resp.getWriter().print(GSON.toJson(job.describe(-1)));
+        } catch (MalformedURLException e) {
+            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            resp.getWriter().print("URL is malformed.");
+        } catch (RejectedExecutionException e) {
+            resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            resp.setHeader("Retry-After", "30");
+            resp.getWriter().print("Too many crawls are running, please try again later.");
+        }
+    }
+
+    /**
+     * POST /jobs/{id}/resume picks up a job that didn't finish, e.g. because the server was restarted, from its
+     * checkpoint. Answers 202 Accepted like a new job, or 404 if there is nothing to resume.
+     */
+    private void resumeJob(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        try {
+            CrawlJob job = getJobs().resume(jobPath(req)[0]);
+            if (job == null) {
+                resp.sendError(HttpServletResponse.SC_NOT_FOUND, "No checkpoint for this job");
+                return;
+            }
+            resp.setStatus(HttpServletResponse.SC_ACCEPTED);
+            resp.setHeader("Location", "/jobs/" + job.getId());
+            resp.setContentType("application/json");
+            resp.getWriter().print(GSON.toJson(job.describe(-1)));
+        } catch (RejectedExecutionException e) {
+            resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            resp.setHeader("Retry-After", "30");
+            resp.getWriter().print("Too many crawls are running, please try again later.");
+        }
+    }
+
+    /**
+     * GET /jobs/{id}?from=N returns the job's status and the page results from index N on, so a poller only
+     * fetches what is new. GET /jobs/{id}/events streams the results like /main?stream=true does.
+     */
+    private void getJob(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        String[] path = jobPath(req);
+        CrawlJob job = path.length > 0 ? getJobs().get(path[0]) : null;
+        if (job == null) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND, "Job not found");
+            return;
+        }
+        if (path.length > 1 && "events".equals(path[1])) {
+            streamJob(job, req, resp);
+            return;
+        }
+        int from;
+        try {
+            from = req.getParameter("from") == null ? 0 : Math.max(0, Integer.parseInt(req.getParameter("from")));
+        } catch (NumberFormatException e) {
+            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            resp.getWriter().print("from must be a number.");
+            return;
+        }
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setContentType("application/json");
+        resp.getWriter().print(GSON.toJson(job.describe(from)));
+    }
+
+    /**
+     * Writes the job's pages as they are crawled and enriched, until the job is over or the client goes away.
+     * Subscribing to a running or finished job replays what it has found so far.
+     */
+    private static void streamJob(CrawlJob job, HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        String accept = req.getHeader("Accept");
+        boolean serverSentEvents = accept != null && accept.contains(ResultStreamWriter.SSE_CONTENT_TYPE);
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setContentType(serverSentEvents ? ResultStreamWriter.SSE_CONTENT_TYPE : ResultStreamWriter.NDJSON_CONTENT_TYPE);
+        resp.setCharacterEncoding("UTF-8");
+        resp.setHeader("Cache-Control", "no-cache");
+        ResultStreamWriter writer = new ResultStreamWriter(
+                new OutputStreamWriter(resp.getOutputStream(), StandardCharsets.UTF_8), GSON, serverSentEvents);
+
+        int sentPages = 0;
+        int sentEnriched = 0;
+        try {
+            while (!writer.hasFailed()) {
+                // Read the status first, so pages added before the job finished are never missed
+                boolean finished = job.getStatus().isFinished();
+                List<CrawlerPageResult> pages = job.getPages(0);
+                int enriched = job.getEnrichedPages();
+                // This thread is also the one writing, so it can't wait for room in the queue
+                for (; sentPages < pages.size(); sentPages++) {
+                    writer.writePage(pages.get(sentPages));
+                    writer.writeQueued();
+                }
+                for (; sentEnriched < enriched; sentEnriched++) {
+                    writer.writeEnrichedPage(pages.get(sentEnriched));
+                    writer.writeQueued();
+                }
+                if (finished) break;
+                job.awaitChange(sentPages, sentEnriched, 15_000);
+            }
+            if (job.getStatus() == CrawlJob.Status.FAILED) {
+                writer.writeError(job.getError());
+            } else if (job.getStatus() == CrawlJob.Status.CANCELLED) {
+                writer.writeError("The job was cancelled.");
+            } else if (job.getDedupe() != null) {
+                writer.writeDone(job.getDedupe());
+            } else {
+                writer.writeDone();
+            }
+            writer.writeQueued();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * DELETE /jobs/{id} cancels a job and returns its status. Results found before the cancellation are kept.
+     */
+    private void cancelJob(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        String[] path = jobPath(req);
+        CrawlJob job = path.length == 1 ? getJobs().cancel(path[0]) : null;
+        if (job == null) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND, "Job not found");
+            return;
+        }
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setContentType("application/json");
+        resp.getWriter().print(GSON.toJson(job.describe(-1)));
+    }
+
+    /**
+     * @return the segments after /jobs, e.g. {id, "events"} for /jobs/{id}/events.
+     */
+    private static String[] jobPath(HttpServletRequest req) {
+        String pathInfo = req.getPathInfo();
+        if (pathInfo == null || pathInfo.length() <= 1) {
+            return new String[0];
+        }
+        return pathInfo.substring(1).split("/");
+    }
+
+    private void getStats(HttpServletResponse resp) throws IOException {
+        Map<String, Object> stats = new LinkedHashMap<>(getExecutors().getStats());
+        stats.put("jobs", getJobs().getStats());
+        stats.put("imageHttp", ImageHttpClient.getInstance().getStats());
+        stats.put("imageCache", ImageCache.getInstance().getStats());
+        stats.put("aiCache", AiResultCache.getInstance().getStats());
+        stats.put("nativeMats", NativeMats.getStats());
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setContentType("application/json");
+        resp.getWriter().print(GSON.toJson(stats));
+    }
+
+    /**
+     * Evicts cached pages older than maxAgeHours and/or shrinks the page cache to maxBytes.
+     */
+    private void evictPageCache(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        PageCache cache = getExecutors().getPageCache();
+        if (cache == null) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND, "Page cache is disabled");
+            return;
+        }
+        int evicted = 0;
+        try {
+            String maxAgeHours = req.getParameter("maxAgeHours");
+            String maxBytes = req.getParameter("maxBytes");
+            if (maxAgeHours != null) {
+                evicted += cache.evictOlderThan((long) (Double.parseDouble(maxAgeHours) * 3_600_000));
+            }
+            if (maxBytes != null) {
+                evicted += cache.evictToSize(Long.parseLong(maxBytes));
+            }
+        } catch (NumberFormatException e) {
+            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            resp.getWriter().print("maxAgeHours and maxBytes must be numbers.");
+            return;
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("evicted", evicted);
+        result.put("pageCache", cache.getStats());
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setContentType("application/json");
+        resp.getWriter().print(GSON.toJson(result));
+    }
+
     private static void annotateImage(HttpServletRequest req, HttpServletResponse resp) throws IOException {
         try {
             BufferedReader reader = req.getReader();
@@ -107,11 +535,15 @@ public class ImageFinder extends HttpServlet {
 
             // Validate the presence of the required URL field in the request.
             Mat image = ImageAnnotator.urlToImage(annotateRequest.getUrl());
-            if (image.empty()) {
-                throw new IllegalArgumentException("Image url could not be loaded.");
+            byte[] imageData;
+            try {
+                if (image.empty()) {
+                    throw new IllegalArgumentException("Image url could not be loaded.");
+                }
+                imageData = ImageAnnotator.matToBytes(ImageAnnotator.annotateImage(image, annotateRequest.getDetections()));
+            } finally {
+                NativeMats.release(image);
             }
-            Mat annotatedImage = ImageAnnotator.annotateImage(image, annotateRequest.getDetections());
-            byte[] imageData = ImageAnnotator.matToBytes(annotatedImage);
 
             resp.setStatus(HttpServletResponse.SC_OK);
             resp.setContentType("image/jpeg");
@@ -0,0 +1,199 @@
+package com.eulerity.hackathon.imagefinder;
+
+import com.eulerity.hackathon.imagefinder.crawler.CrawlerPageResult;
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes crawl results to a response one event at a time, either as newline-delimited JSON or as
+ * Server-Sent Events. Every event is a JSON object with an "event" field:
+ * "page" carries a page result as soon as it has been crawled, "ai" carries the same page again once AI
+ * processing has enriched it, "error" carries a message and "done" ends the stream, with the image dedupe
+ * stats of the crawl in its "dedupe" field if AI processing ran.
+ * <p>
+ * An event is serialized by the thread that produces it, so a page goes out as it was at that moment, and then
+ * queued. Only the request thread writes to the client, in {@link #drain()} or {@link #writeQueued()}, so a
+ * client that reads a little slowly doesn't hold up crawl or AI threads. The queue holds at most
+ * STREAM_QUEUE_EVENTS events: when it is full, producers wait for the client, and if the client doesn't make room
+ * within STREAM_CLIENT_TIMEOUT_MILLIS the stream fails like a client that went away, which cancels the crawl.
+ * Events after "done" or "error", and all events once writing failed, are dropped.
+ * The write methods are thread-safe; drain and writeQueued must only be called by the request thread.
+ */
+public class ResultStreamWriter {
+    public static final String NDJSON_CONTENT_TYPE = "application/x-ndjson";
+    public static final String SSE_CONTENT_TYPE = "text/event-stream";
+    // Queued after the last event; compared by identity
+    private static final String END = new String("end");
+    public static final int QUEUE_EVENTS = 256;
+    public static final long CLIENT_TIMEOUT_MILLIS = 30_000;
+
+    private final Writer out;
+    private final Gson gson;
+    private final boolean serverSentEvents;
+    private final BlockingQueue<String> events;
+    private final long clientTimeoutMillis;
+    // Guarded by this, set once "done" or "error" is queued
+    private boolean ended;
+    private volatile boolean failed;
+
+    /**
+     * @param out              the response writer.
+     * @param gson             the Gson instance used to serialize results.
+     * @param serverSentEvents true to frame events as SSE "data:" lines, false for NDJSON.
+     */
+    public ResultStreamWriter(Writer out, Gson gson, boolean serverSentEvents) {
+        this(out, gson, serverSentEvents, AppConfig.getInt("STREAM_QUEUE_EVENTS", QUEUE_EVENTS),
+                AppConfig.getLong("STREAM_CLIENT_TIMEOUT_MILLIS", CLIENT_TIMEOUT_MILLIS));
+    }
+
+    /**
+     * @param queueEvents         how many events may wait for the client.
+     * @param clientTimeoutMillis how long a producer waits for room in a full queue before the stream fails.
+     */
+    ResultStreamWriter(Writer out, Gson gson, boolean serverSentEvents, int queueEvents, long clientTimeoutMillis) {
+        this.out = out;
+        this.gson = gson;
+        this.serverSentEvents = serverSentEvents;
+        this.events = new ArrayBlockingQueue<>(queueEvents);
+        this.clientTimeoutMillis = clientTimeoutMillis;
+    }
+
+    public void writePage(CrawlerPageResult page) {
+        queuePageEvent("page", page);
+    }
+
+    public void writeEnrichedPage(CrawlerPageResult page) {
+        queuePageEvent("ai", page);
+    }
+
+    public void writeError(String message) {
+        try {
+            StringWriter line = new StringWriter();
+            JsonWriter json = new JsonWriter(line);
+            json.beginObject().name("event").value("error").name("message").value(message).endObject();
+            json.flush();
+            queue(line.toString(), true);
+        } catch (IOException e) {
+            failed = true;
+        }
+    }
+
+    public void writeDone() {
+        queue("{\"event\":\"done\"}", true);
+    }
+
+    /**
+     * @param dedupe the image dedupe stats of the crawl, see ImageDeduplicator#getStats().
+     */
+    public void writeDone(Map<String, Object> dedupe) {
+        try {
+            StringWriter line = new StringWriter();
+            JsonWriter json = new JsonWriter(line);
+            json.beginObject().name("event").value("done").name("dedupe");
+            gson.toJson(dedupe, Map.class, json);
+            json.endObject();
+            json.flush();
+            queue(line.toString(), true);
+        } catch (IOException e) {
+            failed = true;
+        }
+    }
+
+    /**
+     * @return true if writing failed, usually because the client went away or fell too far behind.
+     */
+    public boolean hasFailed() {
+        return failed;
+    }
+
+    /**
+     * Writes queued events to the client, waiting for more, until "done" or "error" has been written or writing
+     * failed.
+     *
+     * @throws InterruptedException if the request thread is interrupted while waiting for an event.
+     */
+    public void drain() throws InterruptedException {
+        try {
+            while (!failed) {
+                String event = events.take();
+                if (event == END) return;
+                write(event);
+            }
+        } catch (InterruptedException e) {
+            fail();  // Unblocks the producers
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the events queued so far to the client without waiting for more.
+     */
+    public void writeQueued() {
+        String event;
+        while (!failed && (event = events.poll()) != null && event != END) {
+            write(event);
+        }
+    }
+
+    private void queuePageEvent(String event, CrawlerPageResult page) {
+        if (failed) return;
+        try {
+            StringWriter line = new StringWriter();
+            JsonWriter json = new JsonWriter(line);
+            json.beginObject().name("event").value(event).name("page");
+            gson.toJson(page, CrawlerPageResult.class, json);
+            json.endObject();
+            json.flush();
+            queue(line.toString(), false);
+        } catch (IOException | RuntimeException e) {
+            failed = true;
+        }
+    }
+
+    private synchronized void queue(String json, boolean last) {
+        if (ended || failed) return;
+        if (offer(json) && last) {
+            ended = true;
+            offer(END);
+        }
+    }
+
+    /**
+     * Waits for room in the queue, and fails the stream if the client doesn't make room in time.
+     */
+    private boolean offer(String event) {
+        try {
+            if (events.offer(event, clientTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+            System.out.println("Stream client fell " + events.size() + " events behind, dropping it");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        fail();
+        return false;
+    }
+
+    private void write(String json) {
+        try {
+            out.write(serverSentEvents ? "data: " + json + "\n\n" : json + "\n");
+            out.flush();
+        } catch (IOException e) {
+            fail();
+        }
+    }
+
+    private void fail() {
+        failed = true;
+        events.clear();  // Nobody will read them
+        events.offer(END);  // Wakes up drain
+    }
+}
@@ -0,0 +1,470 @@
+package com.eulerity.hackathon.imagefinder.crawler;
+
+import com.eulerity.hackathon.imagefinder.AppConfig;
+import com.eulerity.hackathon.imagefinder.objectDetector.Detection;
+import org.opencv.core.Rect2d;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A persistent cache of object detection and OCR results, so an image or logo already processed, on another page
+ * or in an earlier crawl, doesn't go through the model or the OCR service again.
+ * Results are keyed by the hash of the image bytes (or SVG text) and by the version of the model or engine that
+ * produced them, so a new model file or OCR endpoint never sees stale results; once a kind of result is used with
+ * a new version, the entries of older versions are dropped, and the file is compacted when next opened.
+ * Results are appended to a binary log on disk and the most recently used are also kept in memory.
+ * Configured with AI_CACHE_ENABLED, AI_CACHE_FILE and AI_CACHE_MEMORY_ENTRIES. Thread-safe.
+ */
+public class AiResultCache implements AutoCloseable {
+    public static final int MEMORY_ENTRIES = 10_000;
+    private static final int FORMAT_VERSION = 1;
+    private static final byte DETECTIONS = 0;
+    private static final byte TEXT = 1;
+
+    private static AiResultCache instance;
+
+    // Null when results are only kept in memory
+    private final Path file;
+    private final int maxMemoryEntries;
+    // Keyed by kind, version and content hash. Guarded by itself
+    private final LinkedHashMap<String, Object> memory = new LinkedHashMap<>(16, 0.75f, true);
+    // Offsets of the records in the file, by the same key
+    private final Map<String, Long> disk = new ConcurrentHashMap<>();
+    // The version last used for each kind
+    private final Map<Byte, String> currentVersions = new ConcurrentHashMap<>();
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong stores = new AtomicLong();
+    private final AtomicLong invalidated = new AtomicLong();
+    private FileChannel channel;
+
+    /**
+     * Opens the cache, indexing and compacting the results already in the file.
+     *
+     * @param file             the file holding the results, created if missing, or null to keep them in memory only.
+     * @param maxMemoryEntries the number of results kept in memory; 0 keeps none.
+     * @throws IOException if the file can't be read or written.
+     */
+    public AiResultCache(Path file, int maxMemoryEntries) throws IOException {
+        this.file = file;
+        this.maxMemoryEntries = maxMemoryEntries;
+        if (file != null) {
+            if (file.getParent() != null) {
+                Files.createDirectories(file.getParent());
+            }
+            compact();
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            load();
+        }
+    }
+
+    /**
+     * @return the process-wide cache, configured from {@link AppConfig} when first used. If the file can't be
+     * opened, results are only kept in memory.
+     */
+    public static synchronized AiResultCache getInstance() {
+        if (instance == null) {
+            int maxMemoryEntries = AppConfig.getInt("AI_CACHE_MEMORY_ENTRIES", MEMORY_ENTRIES);
+            try {
+                if (!AppConfig.getBoolean("AI_CACHE_ENABLED", true)) {
+                    instance = new AiResultCache(null, 0);
+                } else {
+                    instance = new AiResultCache(Paths.get(AppConfig.getString("AI_CACHE_FILE",
+                            Paths.get(System.getProperty("java.io.tmpdir"), "imagefinder", "ai-results.bin").toString())),
+                            maxMemoryEntries);
+                }
+            } catch (IOException e) {
+                System.out.println("AI result cache file unavailable, keeping results in memory only: " + e.getMessage());
+                try {
+                    instance = new AiResultCache(null, maxMemoryEntries);
+                } catch (IOException impossible) {
+                    throw new IllegalStateException(impossible);  // Nothing is read without a file
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Replaces the process-wide cache, e.g. with one on a temporary file in tests. The previous cache isn't closed.
+     *
+     * @param cache the cache to use from now on, or null to open the configured one when next used.
+     */
+    public static synchronized void setInstance(AiResultCache cache) {
+        instance = cache;
+    }
+
+    /**
+     * @param contentHash  the hash of the image bytes, see {@link ImageCache#contentHash(byte[])}.
+     * @param modelVersion the version of the detection model.
+     * @return the detections found in the image by this model, or null if it hasn't been run on it.
+     */
+    @SuppressWarnings("unchecked")
+    public List<Detection> getDetections(String contentHash, String modelVersion) {
+        List<Detection> detections = (List<Detection>) get(DETECTIONS, contentHash, modelVersion);
+        return detections == null ? null : new ArrayList<>(detections);
+    }
+
+    /**
+     * @param contentHash  the hash of the image bytes.
+     * @param modelVersion the version of the detection model.
+     * @param detections   the detections found in the image.
+     */
+    public void putDetections(String contentHash, String modelVersion, List<Detection> detections) {
+        put(DETECTIONS, contentHash, modelVersion, Collections.unmodifiableList(new ArrayList<>(detections)));
+    }
+
+    /**
+     * @param contentHash   the hash of the image bytes or SVG text.
+     * @param engineVersion the version of the OCR engine.
+     * @return the text found in the image by this engine, or null if it hasn't been run on it.
+     */
+    public String getText(String contentHash, String engineVersion) {
+        return (String) get(TEXT, contentHash, engineVersion);
+    }
+
+    /**
+     * @param contentHash   the hash of the image bytes or SVG text.
+     * @param engineVersion the version of the OCR engine.
+     * @param text          the text found in the image, empty if there is none.
+     */
+    public void putText(String contentHash, String engineVersion, String text) {
+        put(TEXT, contentHash, engineVersion, text);
+    }
+
+    /**
+     * @return hit counters for memory and disk, the hit ratio, the number of results in memory and on disk, the
+     * file size and the number of results dropped because their model or engine changed.
+     */
+    public Map<String, Object> getStats() {
+        long hits = memoryHits.get() + diskHits.get();
+        long lookups = hits + misses.get();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        synchronized (memory) {
+            stats.put("memoryEntries", memory.size());
+        }
+        stats.put("diskEntries", disk.size());
+        try {
+            stats.put("fileBytes", channel != null ? channel.size() : 0L);
+        } catch (IOException e) {
+            stats.put("fileBytes", -1L);
+        }
+        stats.put("memoryHits", memoryHits.get());
+        stats.put("diskHits", diskHits.get());
+        stats.put("misses", misses.get());
+        stats.put("hitRatio", lookups == 0 ? 0.0 : (double) hits / lookups);
+        stats.put("stores", stores.get());
+        stats.put("invalidated", invalidated.get());
+        return stats;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.out.println("Couldn't close AI result cache: " + e.getMessage());
+            }
+            channel = null;
+        }
+    }
+
+    private Object get(byte kind, String contentHash, String version) {
+        useVersion(kind, version);
+        String key = key(kind, version, contentHash);
+        synchronized (memory) {
+            Object value = memory.get(key);
+            if (value != null) {
+                memoryHits.incrementAndGet();
+                return value;
+            }
+        }
+        Long offset = disk.get(key);
+        if (offset != null) {
+            try {
+                Object value = readRecord(offset).value;
+                diskHits.incrementAndGet();
+                remember(key, value);
+                return value;
+            } catch (IOException e) {
+                disk.remove(key, offset);
+                System.out.println("Couldn't read cached AI result: " + e.getMessage());
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    private void put(byte kind, String contentHash, String version, Object value) {
+        useVersion(kind, version);
+        String key = key(kind, version, contentHash);
+        remember(key, value);
+        stores.incrementAndGet();
+        if (channel == null || disk.containsKey(key)) {
+            return;
+        }
+        try {
+            byte[] record = encode(kind, version, contentHash, value);
+            synchronized (this) {
+                if (channel == null) return;
+                long offset = channel.size();
+                ByteBuffer buffer = ByteBuffer.wrap(record);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, offset + buffer.position());
+                }
+                disk.put(key, offset);
+            }
+        } catch (IOException e) {
+            System.out.println("Couldn't store AI result: " + e.getMessage());
+        }
+    }
+
+    private void remember(String key, Object value) {
+        if (maxMemoryEntries <= 0) {
+            return;
+        }
+        synchronized (memory) {
+            memory.put(key, value);
+            if (memory.size() > maxMemoryEntries) {
+                memory.remove(memory.keySet().iterator().next());
+            }
+        }
+    }
+
+    /**
+     * Drops the results of other versions of a kind the first time a version is used.
+     */
+    private void useVersion(byte kind, String version) {
+        String previous = currentVersions.put(kind, version);
+        if (previous == null || previous.equals(version)) {
+            return;
+        }
+        String kindPrefix = kind + ":";
+        String versionPrefix = key(kind, version, "");
+        int dropped = 0;
+        for (String key : disk.keySet()) {
+            if (key.startsWith(kindPrefix) && !key.startsWith(versionPrefix) && disk.remove(key) != null) {
+                dropped++;
+            }
+        }
+        synchronized (memory) {
+            memory.keySet().removeIf(key -> key.startsWith(kindPrefix) && !key.startsWith(versionPrefix));
+        }
+        invalidated.addAndGet(dropped);
+    }
+
+    private static String key(byte kind, String version, String contentHash) {
+        return kind + ":" + version + ":" + contentHash;
+    }
+
+    /**
+     * Indexes the records of the file.
+     */
+    private void load() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            long offset = 0;
+            while (true) {
+                Record record;
+                try {
+                    record = Record.read(in, false);
+                } catch (EOFException e) {
+                    break;
+                }
+                disk.put(key(record.kind, record.version, record.contentHash), offset);
+                offset += record.length;
+            }
+        }
+    }
+
+    /**
+     * Rewrites the file with one record per key, keeping for each kind only the version it was last stored with,
+     * and without a record torn by a crash.
+     */
+    private void compact() throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+        // Read the headers to find each kind's last version
+        Map<Byte, String> lastVersions = new HashMap<>();
+        int records = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            while (true) {
+                try {
+                    Record record = Record.read(in, false);
+                    lastVersions.put(record.kind, record.version);
+                    records++;
+                } catch (EOFException e) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Discarding unreadable AI result cache " + file + ": " + e.getMessage());
+            Files.delete(file);
+            return;
+        }
+
+        Map<String, byte[]> live = new LinkedHashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            for (int i = 0; i < records; i++) {
+                Record record = Record.read(in, true);
+                if (record.version.equals(lastVersions.get(record.kind))) {
+                    live.put(key(record.kind, record.version, record.contentHash), record.bytes);
+                }
+            }
+        }
+        if (live.size() == records && Files.size(file) == live.values().stream().mapToLong(bytes -> bytes.length).sum()) {
+            return;  // Nothing to drop
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp))) {
+            for (byte[] bytes : live.values()) {
+                out.write(bytes);
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Record readRecord(long offset) throws IOException {
+        FileChannel channel = this.channel;
+        if (channel == null) {
+            throw new IOException("Closed");
+        }
+        ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+        readFully(channel, length, offset);
+        ByteBuffer record = ByteBuffer.allocate(Integer.BYTES + length.getInt(0));
+        readFully(channel, record, offset);
+        return Record.read(new DataInputStream(new ByteArrayInputStream(record.array())), true);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException("Truncated record at " + offset);
+            }
+        }
+    }
+
+    /**
+     * Encodes a record: its length, the format, kind and version, the 32 bytes of the SHA-256 and the result.
+     * Detections are a count followed by the box as four floats, the score and the class name of each.
+     */
+    private static byte[] encode(byte kind, String version, String contentHash, Object value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);  // Length, filled in below
+        out.writeByte(FORMAT_VERSION);
+        out.writeByte(kind);
+        out.writeUTF(version);
+        for (int i = 0; i < 64; i += 2) {
+            out.writeByte(Integer.parseInt(contentHash.substring(i, i + 2), 16));
+        }
+        if (kind == DETECTIONS) {
+            @SuppressWarnings("unchecked")
+            List<Detection> detections = (List<Detection>) value;
+            out.writeShort(detections.size());
+            for (Detection detection : detections) {
+                Rect2d box = detection.getBbox();
+                out.writeFloat((float) box.x);
+                out.writeFloat((float) box.y);
+                out.writeFloat((float) box.width);
+                out.writeFloat((float) box.height);
+                out.writeFloat(detection.getScore());
+                out.writeUTF(detection.getClassName());
+            }
+        } else {
+            byte[] text = ((String) value).getBytes(StandardCharsets.UTF_8);
+            out.writeInt(text.length);
+            out.write(text);
+        }
+        out.flush();
+        byte[] record = bytes.toByteArray();
+        ByteBuffer.wrap(record).putInt(0, record.length - Integer.BYTES);
+        return record;
+    }
+
+    private static class Record {
+        private final int length;
+        private final byte kind;
+        private final String version;
+        private final String contentHash;
+        // Set when the whole record was read
+        private final Object value;
+        private final byte[] bytes;
+
+        private Record(int length, byte kind, String version, String contentHash, Object value, byte[] bytes) {
+            this.length = length;
+            this.kind = kind;
+            this.version = version;
+            this.contentHash = contentHash;
+            this.value = value;
+            this.bytes = bytes;
+        }
+
+        /**
+         * @param full whether to decode the result too, or only the header.
+         * @throws EOFException if the stream ends before a full record, e.g. the last one was torn by a crash.
+         */
+        static Record read(DataInputStream in, boolean full) throws IOException {
+            int bodyLength = in.readInt();
+            byte[] body = new byte[bodyLength];
+            in.readFully(body);
+            DataInputStream record = new DataInputStream(new ByteArrayInputStream(body));
+            if (record.readByte() != FORMAT_VERSION) {
+                throw new IOException("Unknown AI result format");
+            }
+            byte kind = record.readByte();
+            String version = record.readUTF();
+            StringBuilder hash = new StringBuilder(64);
+            for (int i = 0; i < 32; i++) {
+                int b = record.readUnsignedByte();
+                hash.append(Character.forDigit(b >> 4, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            if (!full) {
+                return new Record(Integer.BYTES + bodyLength, kind, version, hash.toString(), null, null);
+            }
+            Object value;
+            if (kind == DETECTIONS) {
+                int count = record.readUnsignedShort();
+                List<Detection> detections = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    Rect2d box = new Rect2d(record.readFloat(), record.readFloat(), record.readFloat(), record.readFloat());
+                    detections.add(new Detection(box, record.readFloat(), record.readUTF()));
+                }
+                value = Collections.unmodifiableList(detections);
+            } else {
+                byte[] text = new byte[record.readInt()];
+                record.readFully(text);
+                value = new String(text, StandardCharsets.UTF_8);
+            }
+            ByteBuffer bytes = ByteBuffer.allocate(Integer.BYTES + bodyLength);
+            bytes.putInt(bodyLength).put(body);
+            return new Record(Integer.BYTES + bodyLength, kind, version, hash.toString(), value, bytes.array());
+        }
+    }
+}
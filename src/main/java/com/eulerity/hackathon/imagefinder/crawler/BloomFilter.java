@@ -0,0 +1,48 @@
+package com.eulerity.hackathon.imagefinder.crawler;
+
+/**
+ * A Bloom filter over 64-bit fingerprints. It answers "definitely not seen" without touching the much
+ * larger {@link FingerprintSet}, at about 10 bits per entry for a 1% false positive rate.
+ * All methods are thread-safe.
+ */
+public class BloomFilter {
+    private final long[] bits;
+    private final long bitCount;
+    private final int hashCount;
+
+    /**
+     * @param expectedInsertions   the number of entries the filter is sized for.
+     * @param falsePositiveRate    the desired false positive rate at that size, e.g. 0.01.
+     */
+    public BloomFilter(int expectedInsertions, double falsePositiveRate) {
+        long optimalBits = (long) Math.ceil(-Math.max(1, expectedInsertions) * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        this.bits = new long[(int) Math.max(1, (optimalBits + 63) / 64)];
+        this.bitCount = (long) bits.length * 64;
+        this.hashCount = Math.max(1, (int) Math.round((double) bitCount / Math.max(1, expectedInsertions) * Math.log(2)));
+    }
+
+    public synchronized void put(long fingerprint) {
+        long hash1 = fingerprint;
+        long hash2 = UrlCanonicalizer.mix(fingerprint) | 1;  // Odd, so the probe sequence covers every bit
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Long.remainderUnsigned(hash1 + i * hash2, bitCount);
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    public synchronized boolean mightContain(long fingerprint) {
+        long hash1 = fingerprint;
+        long hash2 = UrlCanonicalizer.mix(fingerprint) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Long.remainderUnsigned(hash1 + i * hash2, bitCount);
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long memoryBytes() {
+        return (long) bits.length * Long.BYTES;
+    }
+}
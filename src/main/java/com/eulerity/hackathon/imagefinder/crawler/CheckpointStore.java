@@ -0,0 +1,134 @@
+package com.eulerity.hackathon.imagefinder.crawler;
+
+import com.eulerity.hackathon.imagefinder.executor.FairShareExecutor;
+import lombok.Getter;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * The directory holding the {@link CrawlCheckpoint} logs of crawls, one file per crawl ID. A single background
+ * thread writes the records buffered by all open checkpoints at a fixed interval, one batch per checkpoint, so
+ * crawl threads never wait for the disk and a busy crawl costs one write, and optionally one fsync, per interval.
+ */
+public class CheckpointStore {
+    private static final String FILE_SUFFIX = ".checkpoint";
+    // IDs become file names
+    private static final Pattern VALID_ID = Pattern.compile("[A-Za-z0-9_-]{1,100}");
+
+    private final Path directory;
+    @Getter
+    private final boolean fsync;
+    private final Map<String, CrawlCheckpoint> open = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(FairShareExecutor.namedDaemonThreads("checkpoint-flush"));
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    /**
+     * @param directory           the directory holding the logs; created when the first one is opened.
+     * @param flushIntervalMillis how often buffered records are written.
+     * @param fsync               whether every written batch is forced to the disk.
+     */
+    public CheckpointStore(Path directory, long flushIntervalMillis, boolean fsync) {
+        this.directory = directory;
+        this.fsync = fsync;
+        flusher.scheduleWithFixedDelay(this::flushAll, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Opens the checkpoint of a crawl, creating it if it doesn't exist yet.
+     *
+     * @param id the crawl ID, letters, digits, '-' and '_' only.
+     * @return the checkpoint; close it when the crawl ends.
+     * @throws IOException              if the log can't be read or created, or is already open.
+     * @throws IllegalArgumentException if the ID isn't valid.
+     */
+    public CrawlCheckpoint open(String id) throws IOException {
+        Path file = fileOf(id);
+        Files.createDirectories(directory);
+        synchronized (open) {
+            if (open.containsKey(id)) {
+                throw new IOException("The checkpoint of crawl " + id + " is already open");
+            }
+            CrawlCheckpoint checkpoint = new CrawlCheckpoint(this, id, file);
+            open.put(id, checkpoint);
+            return checkpoint;
+        }
+    }
+
+    /**
+     * @param id the crawl ID.
+     * @return the header of the crawl's checkpoint, or null if there is no checkpoint or it has no header.
+     */
+    public CrawlCheckpoint.Header readHeader(String id) {
+        if (!VALID_ID.matcher(id).matches()) return null;
+        Path file = fileOf(id);
+        try {
+            return Files.exists(file) ? CrawlCheckpoint.readHeader(file) : null;
+        } catch (IOException e) {
+            System.out.println("Couldn't read checkpoint " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return the number of open checkpoints, and the records, batches and bytes written.
+     */
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("open", (long) open.size());
+        stats.put("records", records.get());
+        stats.put("batches", batches.get());
+        stats.put("bytesWritten", bytesWritten.get());
+        return stats;
+    }
+
+    /**
+     * Stops the flush thread and closes every open checkpoint, writing what they still buffer.
+     */
+    public void shutdown() {
+        flusher.shutdownNow();
+        for (CrawlCheckpoint checkpoint : new ArrayList<>(open.values())) {
+            checkpoint.close();
+        }
+    }
+
+    void batchWritten(int recordCount, int byteCount) {
+        records.addAndGet(recordCount);
+        batches.incrementAndGet();
+        bytesWritten.addAndGet(byteCount);
+    }
+
+    void closed(CrawlCheckpoint checkpoint) {
+        open.remove(checkpoint.getId(), checkpoint);
+    }
+
+    private void flushAll() {
+        for (CrawlCheckpoint checkpoint : open.values()) {
+            try {
+                checkpoint.flush();
+            } catch (RuntimeException e) {
+                // Keep the schedule alive, an exception would cancel it
+                System.out.println("Couldn't flush checkpoint " + checkpoint.getId() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private Path fileOf(String id) {
+        if (!VALID_ID.matcher(id).matches()) {
+            throw new IllegalArgumentException("Not a valid crawl ID: " + id);
+        }
+        return directory.resolve(id + FILE_SUFFIX);
+    }
+}
@@ -0,0 +1,362 @@
+package com.eulerity.hackathon.imagefinder.crawler;
+
+import com.eulerity.hackathon.imagefinder.objectDetector.ImageDeduplicator;
+import lombok.Getter;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * The append-only log of one crawl's progress, from which the crawl can be resumed after the process died.
+ * It records every URL added to the frontier and every page that was crawled, with the images found on it;
+ * replaying it rebuilds the frontier, the dedupe sets and the results. Appends only encode the record into a
+ * buffer, so they never wait for the disk: the {@link CheckpointStore} writes the buffered records in batches,
+ * and fsyncs them if configured to. Records that were not written yet when the process died are lost, so a
+ * resumed crawl may fetch the pages crawled in the last moments again, but never ones that were checkpointed.
+ * <p>
+ * Every record is framed with its length and a CRC32, so a record torn by a crash is detected and cut off
+ * when the log is opened again. All methods are thread-safe.
+ */
+public class CrawlCheckpoint implements CrawlObserver, AutoCloseable {
+    private static final byte HEADER = 'H';
+    private static final byte LINK = 'L';
+    private static final byte PAGE = 'P';
+    private static final byte IMAGE_RESULT = 'I';
+    private static final byte LOGO_RESULT = 'G';
+    // Larger records can only come from a corrupt length
+    private static final int MAX_RECORD_BYTES = 64 * 1024 * 1024;
+
+    private final CheckpointStore store;
+    @Getter
+    private final String id;
+    private final Path file;
+    @Getter
+    private final Header header;
+    private final FileChannel channel;
+    // Guards the buffer; workers append to it
+    private final Object bufferLock = new Object();
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private int pendingRecords;
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+    private final CRC32 crc = new CRC32();
+    private boolean closed;
+    private volatile boolean failed;
+
+    /**
+     * Opens the log, cutting off a torn record at its end. Use {@link CheckpointStore#open(String)}.
+     */
+    CrawlCheckpoint(CheckpointStore store, String id, Path file) throws IOException {
+        this.store = store;
+        this.id = id;
+        this.file = file;
+        Header[] firstHeader = new Header[1];
+        long validBytes = Files.exists(file) ? read(file, (type, in) -> {
+            if (type == HEADER && firstHeader[0] == null) {
+                firstHeader[0] = new Header(readString(in), in.readInt(), in.readBoolean());
+            }
+        }) : 0;
+        this.header = firstHeader[0];
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.truncate(validBytes);
+        channel.position(validBytes);
+    }
+
+    /**
+     * Records what the crawl was started with, so it can be resumed by ID alone.
+     *
+     * @param url       the start URL.
+     * @param maxImages the maximum number of images to collect.
+     * @param useAI     whether AI processing was asked for.
+     */
+    public void writeHeader(String url, int maxImages, boolean useAI) {
+        append(out -> {
+            out.writeByte(HEADER);
+            writeString(out, url);
+            out.writeInt(maxImages);
+            out.writeBoolean(useAI);
+        });
+    }
+
+    /**
+     * Records a URL that was added to the frontier.
+     */
+    @Override
+    public void linkAdded(String url, int depth, double priority) {
+        append(out -> {
+            out.writeByte(LINK);
+            writeString(out, url);
+            out.writeInt(depth);
+            out.writeDouble(priority);
+        });
+    }
+
+    /**
+     * Records a page that was crawled, so it isn't fetched again when the crawl resumes.
+     */
+    @Override
+    public void pageDone(String url, List<CrawlerResult> results) {
+        append(out -> {
+            out.writeByte(PAGE);
+            writeString(out, url);
+            out.writeInt(results.size());
+            for (CrawlerResult result : results) {
+                if (result instanceof CrawlerImgResult) {
+                    CrawlerImgResult image = (CrawlerImgResult) result;
+                    out.writeByte(IMAGE_RESULT);
+                    writeString(out, image.getImgUrl());
+                    out.writeBoolean(image.getDetectionUrl() != null);
+                    if (image.getDetectionUrl() != null) writeString(out, image.getDetectionUrl());
+                } else {
+                    CrawlerLogoResult logo = (CrawlerLogoResult) result;
+                    out.writeByte(LOGO_RESULT);
+                    writeString(out, logo.getImageData());
+                    out.writeBoolean(logo.isSvg());
+                }
+            }
+        });
+    }
+
+    /**
+     * Replays the log. Records still waiting to be written are included.
+     *
+     * @param deduplicator the deduplicator the recovered images are grouped with.
+     * @return the recovered state of the crawl.
+     * @throws IOException if the log can't be read.
+     */
+    public Recovered recover(ImageDeduplicator deduplicator) throws IOException {
+        flush();
+        Map<String, CrawlTask> offered = new LinkedHashMap<>();
+        Set<String> donePages = new LinkedHashSet<>();
+        List<CrawlerPageResult> pages = new ArrayList<>();
+        long[] sequence = {0};
+        read(file, (type, in) -> {
+            if (type == LINK) {
+                String url = readString(in);
+                offered.put(url, new CrawlTask(url, in.readInt(), in.readDouble(), sequence[0]++));
+            } else if (type == PAGE) {
+                String url = readString(in);
+                List<CrawlerResult> results = new ArrayList<>();
+                for (int i = in.readInt(); i > 0; i--) {
+                    if (in.readByte() == IMAGE_RESULT) {
+                        String imgUrl = readString(in);
+                        results.add(new CrawlerImgResult(imgUrl, in.readBoolean() ? readString(in) : null, deduplicator));
+                    } else {
+                        results.add(new CrawlerLogoResult(readString(in), in.readBoolean()));
+                    }
+                }
+                if (donePages.add(url) && !results.isEmpty()) {
+                    pages.add(new CrawlerPageResult(url, results));
+                }
+            }
+        });
+        List<CrawlTask> pendingTasks = new ArrayList<>();
+        for (CrawlTask task : offered.values()) {
+            String canonicalUrl = UrlCanonicalizer.canonicalize(task.getUrl());
+            if (canonicalUrl != null && !donePages.contains(canonicalUrl)) {
+                pendingTasks.add(task);
+            }
+        }
+        return new Recovered(pendingTasks, donePages, pages);
+    }
+
+    /**
+     * Writes the buffered records to the file, and fsyncs it if the store is configured to. Called by the
+     * store's flush thread; a failure is logged and turns checkpointing off for this crawl.
+     */
+    void flush() {
+        byte[] batch;
+        int records;
+        synchronized (bufferLock) {
+            if (pendingRecords == 0 || failed) return;
+            batch = pending.toByteArray();
+            records = pendingRecords;
+            pending = new ByteArrayOutputStream();
+            pendingRecords = 0;
+        }
+        // Only one batch is written at a time, so batches land in the order they were taken
+        synchronized (channel) {
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(batch);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                if (store.isFsync()) {
+                    channel.force(false);
+                }
+                store.batchWritten(records, batch.length);
+            } catch (IOException e) {
+                failed = true;
+                System.out.println("Checkpointing of crawl " + id + " stopped, " + file + " can't be written: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Writes what is buffered and closes the file. The log stays on disk so the crawl can be resumed.
+     */
+    @Override
+    public void close() {
+        synchronized (bufferLock) {
+            if (closed) return;
+            closed = true;
+        }
+        flush();
+        store.closed(this);
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("Couldn't close " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Closes the log and deletes it, e.g. once the crawl has finished.
+     */
+    public void delete() {
+        close();
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            System.out.println("Couldn't delete " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads only the header of a log, without opening it for writing.
+     *
+     * @return the header, or null if the log has none.
+     */
+    static Header readHeader(Path file) throws IOException {
+        Header[] header = new Header[1];
+        read(file, (type, in) -> {
+            if (type == HEADER && header[0] == null) {
+                header[0] = new Header(readString(in), in.readInt(), in.readBoolean());
+            }
+        });
+        return header[0];
+    }
+
+    private void append(RecordWriter writer) {
+        synchronized (bufferLock) {
+            if (closed || failed) return;
+            record.reset();
+            try {
+                writer.write(recordOut);
+                byte[] payload = record.toByteArray();
+                crc.reset();
+                crc.update(payload, 0, payload.length);
+                DataOutputStream out = new DataOutputStream(pending);
+                out.writeInt(payload.length);
+                out.write(payload);
+                out.writeInt((int) crc.getValue());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);  // Byte array streams don't throw
+            }
+            pendingRecords++;
+        }
+    }
+
+    /**
+     * Calls the reader with every intact record, stopping at the first torn or corrupt one.
+     *
+     * @return the length of the intact part of the file.
+     */
+    private static long read(Path file, RecordReader reader) throws IOException {
+        long validBytes = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 64 * 1024))) {
+            while (true) {
+                int length;
+                byte[] payload;
+                try {
+                    length = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD_BYTES) break;
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    int expected = in.readInt();
+                    CRC32 crc = new CRC32();
+                    crc.update(payload, 0, length);
+                    if ((int) crc.getValue() != expected) break;
+                } catch (EOFException e) {
+                    break;
+                }
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                reader.read(record.readByte(), record);
+                validBytes += 4 + length + 4;
+            }
+        }
+        return validBytes;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        // Not writeUTF, SVG markup can be longer than 64 KB
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private interface RecordWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private interface RecordReader {
+        void read(byte type, DataInputStream in) throws IOException;
+    }
+
+    @Getter
+    public static class Header {
+        private final String url;
+        private final int maxImages;
+        private final boolean useAI;
+
+        Header(String url, int maxImages, boolean useAI) {
+            this.url = url;
+            this.maxImages = maxImages;
+            this.useAI = useAI;
+        }
+    }
+
+    /**
+     * The state of a crawl rebuilt from its log.
+     */
+    @Getter
+    public static class Recovered {
+        // URLs added to the frontier but not crawled yet, in the order they were added
+        private final List<CrawlTask> pendingTasks;
+        // Canonical URLs of the pages already crawled
+        private final Set<String> donePages;
+        // The results of the crawled pages on which images were found
+        private final List<CrawlerPageResult> pages;
+
+        Recovered(List<CrawlTask> pendingTasks, Set<String> donePages, List<CrawlerPageResult> pages) {
+            this.pendingTasks = pendingTasks;
+            this.donePages = donePages;
+            this.pages = pages;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package com.eulerity.hackathon.imagefinder.crawler;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * The set of URLs that are waiting to be crawled, in one of two orders:
+ * <ul>
+ *     <li>BFS: shallowest depth first and, within a depth, highest priority first and then in discovery order, so
+ *     the crawl keeps a BFS-like order without having to wait for a whole layer to finish before starting the
+ *     next one.</li>
+ *     <li>Best-first: highest priority first, whatever the depth, then shallowest and then in discovery order.
+ *     Links that promise more images are followed first, the maximum depth still bounds the crawl.</li>
+ * </ul>
+ * URLs are canonicalized and deduplicated when they are offered, so a link that appears on many pages is
+ * queued only once. All methods are thread-safe.
+ * <p>
+ * The heap a frontier takes is bounded: once more than a given number of tasks are waiting, the half that will be
+ * crawled last is written to a sorted {@link FrontierSegment} file and read back through a memory mapping.
+ * Tasks are handed out from the in-memory queue and the segments by merging, so spilling never changes the
+ * order. Segments are merged into one when there are too many of them, which keeps the per-segment heap bounded
+ * too. Only the dedupe set, 8 to 16 bytes per URL, still grows with the crawl. Segment files are deleted by
+ * {@link #close()}.
+ */
+public class CrawlFrontier implements AutoCloseable {
+    // Segments are merged into one beyond this many
+    private static final int MAX_SEGMENTS = 32;
+
+    private final int maxDepth;
+    private final SeenUrls seen;
+    private static final Comparator<CrawlTask> BFS = Comparator.comparingInt(CrawlTask::getDepth)
+            .thenComparing(Comparator.comparingDouble(CrawlTask::getPriority).reversed())
+            .thenComparingLong(CrawlTask::getSequence);
+    private static final Comparator<CrawlTask> BEST_FIRST = Comparator.comparingDouble(CrawlTask::getPriority).reversed()
+            .thenComparingInt(CrawlTask::getDepth)
+            .thenComparingLong(CrawlTask::getSequence);
+
+    private final Comparator<CrawlTask> order;
+    private final PriorityQueue<CrawlTask> queue;
+    private long nextSequence;
+    private final int maxInMemory;
+    // Null once spilling failed or if it is off
+    private Path spillParent;
+    private Path spillDirectory;
+    // Ordered by their next task
+    private final PriorityQueue<FrontierSegment> segments;
+    private long spilledTasks;
+    private int nextSegment;
+
+    /**
+     * Creates a frontier in BFS order.
+     *
+     * @param maxDepth     the deepest BFS layer that is crawled.
+     * @param expectedUrls the number of distinct URLs the dedupe set is sized for.
+     */
+    public CrawlFrontier(int maxDepth, int expectedUrls) {
+        this(maxDepth, expectedUrls, false);
+    }
+
+    /**
+     * @param maxDepth     the deepest BFS layer that is crawled.
+     * @param expectedUrls the number of distinct URLs the dedupe set is sized for.
+     * @param bestFirst    true to hand out the highest priority first regardless of depth.
+     */
+    public CrawlFrontier(int maxDepth, int expectedUrls, boolean bestFirst) {
+        this(maxDepth, expectedUrls, bestFirst, Integer.MAX_VALUE, null);
+    }
+
+    /**
+     * @param maxDepth       the deepest BFS layer that is crawled.
+     * @param expectedUrls   the number of distinct URLs the dedupe set is sized for.
+     * @param bestFirst      true to hand out the highest priority first regardless of depth.
+     * @param maxInMemory    the number of tasks kept on the heap before half of them are spilled to disk.
+     * @param spillDirectory the directory segment files are written to, in a subdirectory of their own; created
+     *                       if missing. Null never spills.
+     */
+    public CrawlFrontier(int maxDepth, int expectedUrls, boolean bestFirst, int maxInMemory, Path spillDirectory) {
+        this.maxDepth = maxDepth;
+        // No Bloom filter: every lookup here is an add, which probes the table anyway, so it would only cost time
+        this.seen = new SeenUrls(expectedUrls, false);
+        this.order = bestFirst ? BEST_FIRST : BFS;
+        this.queue = new PriorityQueue<>(order);
+        this.maxInMemory = Math.max(2, maxInMemory);
+        this.spillParent = spillDirectory;
+        this.segments = new PriorityQueue<>((a, b) -> order.compare(a.peek(), b.peek()));
+    }
+
+    /**
+     * Adds a URL to the frontier unless it is deeper than the maximum crawl depth, isn't an http(s) URL,
+     * or its canonical form has been offered before.
+     *
+     * @param url   the absolute URL to crawl.
+     * @param depth the BFS depth the URL was discovered at.
+     * @return true if the URL was added.
+     */
+    public boolean offer(String url, int depth) {
+        return offer(url, depth, 0);
+    }
+
+    /**
+     * Adds a URL like {@link #offer(String, int)}, ahead of the URLs with a lower priority.
+     *
+     * @param url      the absolute URL to crawl.
+     * @param depth    the BFS depth the URL was discovered at.
+     * @param priority the priority, higher is crawled earlier.
+     * @return true if the URL was added.
+     */
+    public synchronized boolean offer(String url, int depth, double priority) {
+        if (depth > maxDepth) {
+            return false;
+        }
+        String canonicalUrl = UrlCanonicalizer.canonicalize(url);
+        if (canonicalUrl == null || !seen.add(canonicalUrl)) {
+            return false;
+        }
+        queue.offer(new CrawlTask(canonicalUrl, depth, priority, nextSequence++));
+        if (queue.size() > maxInMemory && spillParent != null) {
+            spill();
+        }
+        return true;
+    }
+
+    /**
+     * Marks a URL as crawled without queueing it, so later offers of it are dropped, e.g. when a crawl is resumed.
+     *
+     * @param url the absolute URL.
+     */
+    public synchronized void markSeen(String url) {
+        String canonicalUrl = UrlCanonicalizer.canonicalize(url);
+        if (canonicalUrl != null) {
+            seen.add(canonicalUrl);
+        }
+    }
+
+    /**
+     * @return the next task to crawl, or null if the frontier is empty.
+     */
+    public synchronized CrawlTask poll() {
+        FrontierSegment segment = segments.peek();
+        if (segment == null || (!queue.isEmpty() && order.compare(queue.peek(), segment.peek()) < 0)) {
+            return queue.poll();
+        }
+        segments.poll();
+        CrawlTask task = segment.poll();
+        spilledTasks--;
+        if (segment.peek() != null) {
+            segments.add(segment);  // Re-sorted by its new head
+        } else {
+            segment.delete();
+        }
+        return task;
+    }
+
+    public synchronized boolean isEmpty() {
+        return queue.isEmpty() && segments.isEmpty();
+    }
+
+    public synchronized int size() {
+        return (int) Math.min(Integer.MAX_VALUE, queue.size() + spilledTasks);
+    }
+
+    /**
+     * @return the number of tasks waiting on disk.
+     */
+    public synchronized long spilledSize() {
+        return spilledTasks;
+    }
+
+    /**
+     * @return the number of tasks waiting on the heap, at most the configured maximum.
+     */
+    public synchronized int inMemorySize() {
+        return queue.size();
+    }
+
+    /**
+     * Deletes the segment files. Tasks still waiting on disk are dropped.
+     */
+    @Override
+    public synchronized void close() {
+        for (FrontierSegment segment : segments) {
+            segment.delete();
+        }
+        segments.clear();
+        spilledTasks = 0;
+        if (spillDirectory != null) {
+            try {
+                Files.deleteIfExists(spillDirectory);
+            } catch (IOException e) {
+                System.out.println("Couldn't delete " + spillDirectory + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Writes the half of the in-memory tasks that will be crawled last to a new segment. If the segment can't be
+     * written spilling is turned off and the tasks stay in memory.
+     */
+    private void spill() {
+        List<CrawlTask> tasks = new ArrayList<>(queue);
+        tasks.sort(order);
+        List<CrawlTask> spilled = tasks.subList(maxInMemory / 2, tasks.size());
+        try {
+            FrontierSegment segment = FrontierSegment.write(nextSegmentFile(), spilled.iterator());
+            queue.clear();
+            queue.addAll(tasks.subList(0, maxInMemory / 2));
+            segments.add(segment);
+            spilledTasks += spilled.size();
+        } catch (IOException e) {
+            System.out.println("Frontier spilling disabled, " + spillParent + " is not usable: " + e.getMessage());
+            spillParent = null;
+            return;
+        }
+        if (segments.size() > MAX_SEGMENTS) {
+            compact();
+        }
+    }
+
+    /**
+     * Merges all segments into one. The old segments are only dropped once the merged one has been written.
+     */
+    private void compact() {
+        PriorityQueue<FrontierSegment> readers = new PriorityQueue<>(segments.comparator());
+        for (FrontierSegment segment : segments) {
+            readers.add(segment.copy());
+        }
+        Iterator<CrawlTask> merged = new Iterator<CrawlTask>() {
+            @Override
+            public boolean hasNext() {
+                return !readers.isEmpty();
+            }
+
+            @Override
+            public CrawlTask next() {
+                FrontierSegment reader = readers.poll();
+                if (reader == null) throw new NoSuchElementException();
+                CrawlTask task = reader.poll();
+                if (reader.peek() != null) readers.add(reader);
+                return task;
+            }
+        };
+        try {
+            FrontierSegment segment = FrontierSegment.write(nextSegmentFile(), merged);
+            for (FrontierSegment old : segments) {
+                old.delete();
+            }
+            segments.clear();
+            segments.add(segment);
+        } catch (IOException e) {
+            System.out.println("Couldn't merge frontier segments in " + spillDirectory + ": " + e.getMessage());
+        }
+    }
+
+    private Path nextSegmentFile() throws IOException {
+        if (spillDirectory == null) {
+            Files.createDirectories(spillParent);
+            spillDirectory = Files.createTempDirectory(spillParent, "frontier");
+        }
+        return spillDirectory.resolve("segment-" + nextSegment++ + ".bin");
+    }
+
+    /**
+     * @return the number of distinct URLs ever offered to the frontier.
+     */
+    public int seenCount() {
+        return seen.size();
+    }
+
+    /**
+     * @return the approximate heap size of the dedupe set in bytes.
+     */
+    public long seenMemoryBytes() {
+        return seen.memoryBytes();
+    }
+}
@@ -0,0 +1,36 @@
+package com.eulerity.hackathon.imagefinder.crawler;
+
+import java.util.List;
+
+/**
+ * Follows the progress of a {@link WebCrawler}, e.g. to checkpoint it or to report it to a shard coordinator.
+ * Methods are called from crawl pool threads, possibly concurrently, and must return quickly.
+ */
+public interface CrawlObserver {
+    /**
+     * A URL was added to the crawl's frontier.
+     *
+     * @param url      the URL.
+     * @param depth    its depth.
+     * @param priority its priority in the frontier.
+     */
+    void linkAdded(String url, int depth, double priority);
+
+    /**
+     * A page was crawled, successfully or not.
+     *
+     * @param url     the canonical URL of the page.
+     * @param results the images and logos collected on the page, empty if there were none or the fetch failed.
+     */
+    void pageDone(String url, List<CrawlerResult> results);
+
+    /**
+     * A link to another host was found. The crawl itself doesn't follow it.
+     *
+     * @param url      the canonical URL.
+     * @param depth    the depth it would have in this crawl.
+     * @param priority its score, see {@link LinkScorer}.
+     */
+    default void foreignLinkFound(String url, int depth, double priority) {
+    }
+}
@@ -0,0 +1,36 @@
+package com.eulerity.hackathon.imagefinder.crawler;
+
+import lombok.Getter;
+
+/**
+ * A URL waiting in the crawl frontier, tagged with the BFS depth it was discovered at and its priority, see
+ * {@link CrawlFrontier} for how the two are ordered.
+ */
+@Getter
+public class CrawlTask {
+    private final String url;
+    private final int depth;
+    // Higher is crawled earlier, e.g. the score of a link from LinkScorer
+    private final double priority;
+    private final long sequence;
+
+    public CrawlTask(String url, int depth, long sequence) {
+        this(url, depth, 0, sequence);
+    }
+
+    public CrawlTask(String url, int depth, double priority, long sequence) {
+        this.url = url;
+        this.depth = depth;
+        this.priority = priority;
+        this.sequence = sequence;
+    }
+
+    @Override
+    public String toString() {
+        return "CrawlTask{" +
+                "url='" + url + '\'' +
+                ", depth=" + depth +
+                ", priority=" + priority +
+                '}';
+    }
+}
@@ -1,7 +1,8 @@
 package com.eulerity.hackathon.imagefinder.crawler;
 
 import com.eulerity.hackathon.imagefinder.objectDetector.Detection;
-import com.eulerity.hackathon.imagefinder.objectDetector.ObjectDetector;
+import com.eulerity.hackathon.imagefinder.objectDetector.ImageDeduplicator;
+import lombok.AccessLevel;
 import lombok.Getter;
 
 import java.net.MalformedURLException;
@@ -13,16 +14,35 @@ import java.util.Set;
 @Getter
 public class CrawlerImgResult extends CrawlerResult {
     private final String imgUrl;
+    // A smaller srcset candidate that detection runs on; detections are in its coordinates. Null if it is imgUrl.
+    private final String detectionUrl;
     private Set<String> classes;
     private List<Detection> detections;
+    // Not serialized, the deduplicator is shared by every image of the crawl
+    @Getter(AccessLevel.NONE)
+    private final transient ImageDeduplicator deduplicator;
 
     public CrawlerImgResult(String imgUrl) {
+        this(imgUrl, null, new ImageDeduplicator());
+    }
+
+    /**
+     * @param imgUrl       the URL of the image, shown to the user.
+     * @param detectionUrl the URL of a smaller rendition of the image to run object detection on, or null to
+     *                     use imgUrl.
+     * @param deduplicator groups this image with near-duplicates found elsewhere in the crawl so object
+     *                     detection runs once per group.
+     */
+    public CrawlerImgResult(String imgUrl, String detectionUrl, ImageDeduplicator deduplicator) {
         this.resultType = ResultType.IMAGE_RESULT;
         this.imgUrl = imgUrl;
+        this.detectionUrl = detectionUrl;
+        this.deduplicator = deduplicator;
     }
+    // The detector runs as many images in parallel as it has nets
     @Override
     public boolean canRunAsynchronously() {
-        return false;
+        return true;
     }
 
     @Override
@@ -31,14 +51,15 @@ public class CrawlerImgResult extends CrawlerResult {
     }
 
     private void useObjectDetection() {
-        ObjectDetector objectDetector = ObjectDetector.getInstance();
         URL url;
+        URL downloadUrl;
         try {
             url = new URL(imgUrl);
+            downloadUrl = detectionUrl != null ? new URL(detectionUrl) : url;
         } catch (MalformedURLException e) {
             return;
         }
-        detections = objectDetector.detect(url);
+        detections = deduplicator.detect(downloadUrl, url);
         classes = new HashSet<>();
         for (Detection detection : detections) {
             classes.add(detection.getClassName());
@@ -49,6 +70,7 @@ public class CrawlerImgResult extends CrawlerResult {
     public String toString() {
         return "CrawlerImgResult{" +
                 "imgUrl='" + imgUrl + '\'' +
+                ", detectionUrl='" + detectionUrl + '\'' +
                 ", classes=" + classes +
                 ", detections=" + detections +
                 '}';
@@ -33,7 +33,9 @@ public class CrawlerLogoResult extends CrawlerResult{
             } else {
                 ocrResult = OCRApi.performOCROnImageUrl(imageData);
             }
-        } catch (IOException | TranscoderException ignored) {
+        } catch (IOException | TranscoderException e) {
+            // Left null rather than empty, the logo may have text
+            System.out.println("OCR failed: " + e.getMessage());
         }
     }
 }
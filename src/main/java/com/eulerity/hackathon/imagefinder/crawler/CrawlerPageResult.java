@@ -4,12 +4,18 @@ import lombok.Getter;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 @Getter
 public class CrawlerPageResult extends CrawlerResult {
+    public static final long ASYNC_TIMEOUT_MILLIS = 15_000;
     private final String pageUrl;
     private final List<CrawlerResult> crawlerResults;
 
@@ -25,30 +31,97 @@ public class CrawlerPageResult extends CrawlerResult {
     }
 
     /**
-     * Processes AI tasks using a mix of asynchronous and synchronous execution.
+     * Processes AI tasks one after another on the calling thread.
      */
     @Override
     public void useAI() {
-        ExecutorService executor = Executors.newCachedThreadPool();
+        useAI(Runnable::run);
+    }
+
+    /**
+     * Processes AI tasks using a mix of asynchronous and synchronous execution.
+     * Tasks that can run asynchronously are handed to the given executor, the rest run on the calling thread.
+     * Asynchronous tasks that haven't finished 15 seconds after the synchronous ones are cancelled.
+     *
+     * @param executor the executor for the asynchronous tasks, usually the shared AI pool.
+     */
+    public void useAI(Executor executor) {
+        List<FutureTask<Void>> asyncTasks = new ArrayList<>();
         List<CrawlerResult> syncResults = new ArrayList<>();
 
         for (CrawlerResult crawlerResult : crawlerResults) {
             if (crawlerResult.canRunAsynchronously()) {
-                executor.submit(crawlerResult::useAI);
+                FutureTask<Void> task = new FutureTask<>(crawlerResult::useAI, null);
+                try {
+                    executor.execute(task);
+                    asyncTasks.add(task);
+                } catch (RejectedExecutionException e) {
+                    System.out.println("AI task rejected for " + pageUrl + ": " + e.getMessage());
+                }
             } else {
                 syncResults.add(crawlerResult);
             }
         }
-        executor.shutdown();
         for (CrawlerResult syncResult : syncResults) {
             syncResult.useAI();
         }
-        try {
-            if (!executor.awaitTermination(15, TimeUnit.SECONDS)) {
-                executor.shutdownNow();
+        long deadline = System.currentTimeMillis() + ASYNC_TIMEOUT_MILLIS;
+        for (FutureTask<Void> task : asyncTasks) {
+            try {
+                task.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                task.cancel(true);
+            } catch (InterruptedException e) {
+                task.cancel(true);
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Starts AI processing of every result on the given executor without waiting for it, so it can be called from
+     * a thread that must not block, e.g. a crawl pool thread.
+     *
+     * @param executor the executor for the tasks, usually this crawl's share of the AI pool.
+     * @return a future that completes once every task has finished or failed. Cancelling it cancels the tasks that
+     * haven't finished; a task the executor drops unrun keeps it from completing, so callers wait with a timeout.
+     */
+    public CompletableFuture<Void> useAIAsync(Executor executor) {
+        List<FutureTask<Void>> tasks = new ArrayList<>();
+        List<CompletableFuture<Void>> done = new ArrayList<>();
+        for (CrawlerResult crawlerResult : crawlerResults) {
+            CompletableFuture<Void> taskDone = new CompletableFuture<>();
+            FutureTask<Void> task = new FutureTask<Void>(crawlerResult::useAI, null) {
+                @Override
+                protected void done() {
+                    try {
+                        get();
+                    } catch (ExecutionException e) {
+                        e.getCause().printStackTrace();
+                    } catch (CancellationException | InterruptedException e) {
+                        // Cancelled, nothing to report
+                    }
+                    taskDone.complete(null);
+                }
+            };
+            try {
+                executor.execute(task);
+                tasks.add(task);
+                done.add(taskDone);
+            } catch (RejectedExecutionException e) {
+                System.out.println("AI task rejected for " + pageUrl + ": " + e.getMessage());
             }
-        } catch (InterruptedException e) {
-            executor.shutdownNow();
         }
+        CompletableFuture<Void> all = CompletableFuture.allOf(done.toArray(new CompletableFuture<?>[0]));
+        all.whenComplete((ignored, error) -> {
+            if (all.isCancelled()) {
+                for (FutureTask<Void> task : tasks) {
+                    task.cancel(true);
+                }
+            }
+        });
+        return all;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,80 @@
+package com.eulerity.hackathon.imagefinder.crawler;
+
+import org.jsoup.Jsoup;
+import org.jsoup.internal.StringUtil;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Extracts favicons, logos, images and links by parsing the page into a Jsoup DOM and running a CSS selector
+ * for each kind. This is the reference for {@link StreamingPageExtractor}.
+ */
+public class DomPageExtractor implements PageExtractor {
+    // CSS selector string to find elements that might contain logos
+    private static final String LOGO_SELECTOR = "img[class*='logo'], img[id*='logo'], img[data-testid*='logo'], img[aria-label*='logo'], img[data-link-name*='logo'], " + "a[class*='logo'], a[id*='logo'], a[data-testid*='logo'], a[aria-label*='logo'], a[data-link-name*='logo'], " + "div[class*='logo'], div[id*='logo'], div[data-testid*='logo'], div[aria-label*='logo'], div[data-link-name*='logo']";
+
+    @Override
+    public void extract(FetchedPage page, int inputSize, ExtractionListener listener) throws IOException {
+        Document document = Jsoup.parse(new ByteArrayInputStream(page.getBody()), page.getCharset(), page.getUrl());
+
+        // Select all link elements that define a favicon
+        for (Element link : document.select("link[rel='icon'], link[rel='shortcut icon']")) {
+            listener.onFavicon(link.absUrl("href"));
+        }
+        for (Element logoElement : document.select(LOGO_SELECTOR)) {
+            // Get the outer HTML of every SVG within the logo element, then the images
+            for (Element svg : logoElement.select("svg")) {
+                listener.onLogo(svg.outerHtml(), true);
+            }
+            for (Element img : logoElement.select("img")) {
+                listener.onLogo(imageSource(img), false);
+            }
+        }
+        for (Element img : document.select("img[src], img[data-src]")) {
+            String src = imageSource(img);
+            listener.onImage(src, detectionSource(img, src, inputSize));
+        }
+        for (Element link : document.select("a[href]")) {
+            String[] context = new String[LinkContext.ATTRIBUTES.length];
+            for (int k = 0; k < context.length; k++) {
+                context[k] = attrOrNull(link, LinkContext.ATTRIBUTES[k]);
+            }
+            listener.onLink(link.absUrl("href"), LinkContext.join(context));
+        }
+    }
+
+    /**
+     * @return the srcset or picture source to run object detection on, or null to use the src.
+     */
+    private static String detectionSource(Element img, String src, int inputSize) {
+        List<String[]> sources = new ArrayList<>();
+        Element parent = img.parent();
+        if (parent != null && parent.tagName().equals("picture")) {
+            // Only the sources before the image belong to it
+            for (Element source : parent.children()) {
+                if (source == img) break;
+                if (source.tagName().equals("source") && source.hasAttr("srcset")) {
+                    sources.add(new String[]{source.attr("srcset"), source.hasAttr("type") ? source.attr("type") : null});
+                }
+            }
+        }
+        return ImageSourceSelector.select(src, attrOrNull(img, "width"), attrOrNull(img, "sizes"), attrOrNull(img, "srcset"),
+                sources, url -> StringUtil.resolve(img.baseUri(), url), inputSize);
+    }
+
+    private static String attrOrNull(Element element, String name) {
+        return element.hasAttr(name) ? element.attr(name) : null;
+    }
+
+    /**
+     * @return the absolute URL of the image, choosing "data-src" if "src" is empty.
+     */
+    private static String imageSource(Element img) {
+        return img.attr("abs:src").isEmpty() ? img.attr("abs:data-src") : img.attr("abs:src");
+    }
+}
@@ -0,0 +1,122 @@
+package com.eulerity.hackathon.imagefinder.crawler;
+
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Collects everything a {@link PageExtractor} finds on a page, one list per kind.
+ */
+@Getter
+public class ExtractedPage implements ExtractionListener {
+    private final List<String> favicons = new ArrayList<>();
+    private final List<Logo> logos = new ArrayList<>();
+    private final List<Image> images = new ArrayList<>();
+    private final List<Link> links = new ArrayList<>();
+
+    @Override
+    public void onFavicon(String url) {
+        favicons.add(url);
+    }
+
+    @Override
+    public void onLogo(String data, boolean isSvg) {
+        logos.add(new Logo(data, isSvg));
+    }
+
+    @Override
+    public void onImage(String url, String detectionUrl) {
+        images.add(new Image(url, detectionUrl));
+    }
+
+    @Override
+    public void onLink(String url, String context) {
+        links.add(new Link(url, context));
+    }
+
+    @Getter
+    public static class Link {
+        private final String url;
+        private final String context;
+
+        private Link(String url, String context) {
+            this.url = url;
+            this.context = context;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Link)) return false;
+            Link link = (Link) other;
+            return url.equals(link.url) && context.equals(link.context);
+        }
+
+        @Override
+        public int hashCode() {
+            return url.hashCode() * 31 + context.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return context.isEmpty() ? url : url + " [" + context + "]";
+        }
+    }
+
+    @Getter
+    public static class Image {
+        private final String url;
+        private final String detectionUrl;
+
+        private Image(String url, String detectionUrl) {
+            this.url = url;
+            this.detectionUrl = detectionUrl;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Image)) return false;
+            Image image = (Image) other;
+            return url.equals(image.url) && Objects.equals(detectionUrl, image.detectionUrl);
+        }
+
+        @Override
+        public int hashCode() {
+            return url.hashCode() * 31 + Objects.hashCode(detectionUrl);
+        }
+
+        @Override
+        public String toString() {
+            return detectionUrl == null ? url : url + " (detect on " + detectionUrl + ")";
+        }
+    }
+
+    @Getter
+    public static class Logo {
+        private final String data;
+        private final boolean svg;
+
+        private Logo(String data, boolean svg) {
+            this.data = data;
+            this.svg = svg;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Logo)) return false;
+            Logo logo = (Logo) other;
+            return svg == logo.svg && data.equals(logo.data);
+        }
+
+        @Override
+        public int hashCode() {
+            return data.hashCode() * 31 + (svg ? 1 : 0);
+        }
+
+        @Override
+        public String toString() {
+            return (svg ? "svg:" : "img:") + data;
+        }
+    }
+}
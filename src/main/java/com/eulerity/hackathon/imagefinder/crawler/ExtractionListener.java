@@ -0,0 +1,35 @@
+package com.eulerity.hackathon.imagefinder.crawler;
+
+/**
+ * Receives what a {@link PageExtractor} finds on a page. URLs are absolute, resolved against the page URL or the
+ * page's base element the same way Jsoup's {@code absUrl} does, and may be empty if the attribute was missing.
+ */
+public interface ExtractionListener {
+    /**
+     * @param url the href of a {@code link} element with rel "icon" or "shortcut icon".
+     */
+    void onFavicon(String url);
+
+    /**
+     * Called for every SVG and image inside an element whose class, id, data-testid, aria-label or
+     * data-link-name contains "logo". An image may be reported more than once if logo elements are nested.
+     *
+     * @param data  the outer markup of the SVG, or the source URL of the image.
+     * @param isSvg whether data is SVG markup.
+     */
+    void onLogo(String data, boolean isSvg);
+
+    /**
+     * @param url          the src of an {@code img} element, or its data-src if src is empty.
+     * @param detectionUrl the smallest srcset or picture source that is still large enough for object detection,
+     *                     or null to detect on url, see {@link ImageSourceSelector}.
+     */
+    void onImage(String url, String detectionUrl);
+
+    /**
+     * @param url     the href of an {@code a} element.
+     * @param context the link's rel, title, class, id, aria-label and data-link-name attributes, see
+     *                {@link LinkContext}, for guessing what the link leads to.
+     */
+    void onLink(String url, String context);
+}
@@ -0,0 +1,63 @@
+package com.eulerity.hackathon.imagefinder.crawler;
+
+import lombok.Getter;
+
+/**
+ * The raw response of a page fetch, before it is parsed.
+ */
+@Getter
+public class FetchedPage {
+    private final String url;
+    private final int statusCode;
+    private final String mimeType;
+    private final String charset;
+    private final byte[] body;
+    private final boolean truncated;
+    private final String etag;
+    private final String lastModified;
+    private final boolean fromCache;
+
+    /**
+     * @param url        the URL the body was served from, after following redirects.
+     * @param statusCode the HTTP status code.
+     * @param mimeType   the MIME type from the Content-Type header, or null if there was none.
+     * @param charset    the charset from the Content-Type header, or null to detect it from the document.
+     * @param body       the response body.
+     * @param truncated  whether the body was cut off at the maximum response size.
+     */
+    public FetchedPage(String url, int statusCode, String mimeType, String charset, byte[] body, boolean truncated) {
+        this(url, statusCode, mimeType, charset, body, truncated, null, null, false);
+    }
+
+    /**
+     * @param url          the URL the body was served from, after following redirects.
+     * @param statusCode   the HTTP status code.
+     * @param mimeType     the MIME type from the Content-Type header, or null if there was none.
+     * @param charset      the charset from the Content-Type header, or null to detect it from the document.
+     * @param body         the response body.
+     * @param truncated    whether the body was cut off at the maximum response size.
+     * @param etag         the ETag header, or null if there was none.
+     * @param lastModified the Last-Modified header, or null if there was none.
+     * @param fromCache    whether the body was read from the page cache after the server answered 304.
+     */
+    public FetchedPage(String url, int statusCode, String mimeType, String charset, byte[] body, boolean truncated,
+                       String etag, String lastModified, boolean fromCache) {
+        this.url = url;
+        this.statusCode = statusCode;
+        this.mimeType = mimeType;
+        this.charset = charset;
+        this.body = body;
+        this.truncated = truncated;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.fromCache = fromCache;
+    }
+
+    /**
+     * @return true if the response is an HTML or XML document that can be parsed for images and links.
+     */
+    public boolean isParseable() {
+        return mimeType == null || mimeType.startsWith("text/") || mimeType.equals("application/xhtml+xml")
+                || mimeType.equals("application/xml") || mimeType.endsWith("+xml");
+    }
+}
@@ -0,0 +1,89 @@
+package com.eulerity.hackathon.imagefinder.crawler;
+
+/**
+ * A set of 64-bit fingerprints stored in a primitive open-addressing hash table.
+ * Each entry costs 8 bytes plus the table's slack, instead of the ~100+ bytes of a URL string in a
+ * {@code ConcurrentHashMap}, so millions of URLs fit in a few tens of MB.
+ * All methods are thread-safe.
+ */
+public class FingerprintSet {
+    private static final float MAX_LOAD = 0.6f;
+    // 0 marks an empty slot, so a real fingerprint of 0 is stored as this value instead
+    private static final long ZERO_REPLACEMENT = 0x9e3779b97f4a7c15L;
+
+    private long[] table;
+    private int size;
+    private int resizeThreshold;
+
+    /**
+     * @param expectedSize the number of fingerprints the set should hold without resizing.
+     */
+    public FingerprintSet(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedSize / MAX_LOAD)) - 1) << 1;
+        allocate(capacity);
+    }
+
+    /**
+     * @param fingerprint the fingerprint to add.
+     * @return true if the fingerprint wasn't in the set yet.
+     */
+    public synchronized boolean add(long fingerprint) {
+        long key = fingerprint == 0 ? ZERO_REPLACEMENT : fingerprint;
+        int mask = table.length - 1;
+        int slot = (int) UrlCanonicalizer.mix(key) & mask;
+        while (table[slot] != 0) {
+            if (table[slot] == key) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = key;
+        if (++size > resizeThreshold) {
+            rehash(table.length << 1);
+        }
+        return true;
+    }
+
+    public synchronized boolean contains(long fingerprint) {
+        long key = fingerprint == 0 ? ZERO_REPLACEMENT : fingerprint;
+        int mask = table.length - 1;
+        int slot = (int) UrlCanonicalizer.mix(key) & mask;
+        while (table[slot] != 0) {
+            if (table[slot] == key) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return the approximate heap size of the table in bytes.
+     */
+    public synchronized long memoryBytes() {
+        return (long) table.length * Long.BYTES;
+    }
+
+    private void allocate(int capacity) {
+        table = new long[capacity];
+        resizeThreshold = (int) (capacity * MAX_LOAD);
+    }
+
+    private void rehash(int capacity) {
+        long[] old = table;
+        allocate(capacity);
+        int mask = capacity - 1;
+        for (long key : old) {
+            if (key == 0) continue;
+            int slot = (int) UrlCanonicalizer.mix(key) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = key;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.eulerity.hackathon.imagefinder.crawler;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+
+/**
+ * A sorted run of crawl tasks spilled from the {@link CrawlFrontier} to a file, read back through a
+ * memory-mapped buffer so the tasks take no heap until they are handed out. Only the next task of the run is
+ * decoded. Not thread-safe, the frontier guards it.
+ */
+class FrontierSegment {
+    private final Path file;
+    private ByteBuffer buffer;
+    private int remaining;
+    private CrawlTask head;
+    // Where the head task starts in the buffer
+    private int headPosition;
+
+    private FrontierSegment(Path file, ByteBuffer buffer, int remaining) {
+        this.file = file;
+        this.buffer = buffer;
+        this.remaining = remaining;
+        advance();
+    }
+
+    /**
+     * Writes tasks to a new segment file.
+     *
+     * @param file  the file to create.
+     * @param tasks the tasks, already in frontier order.
+     * @return the segment, positioned at its first task.
+     * @throws IOException if the file can't be written or mapped; a partly written file is deleted.
+     */
+    static FrontierSegment write(Path file, Iterator<CrawlTask> tasks) throws IOException {
+        try {
+            return writeAndMap(file, tasks);
+        } catch (IOException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+    }
+
+    private static FrontierSegment writeAndMap(Path file, Iterator<CrawlTask> tasks) throws IOException {
+        int count = 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), 64 * 1024))) {
+            while (tasks.hasNext()) {
+                CrawlTask task = tasks.next();
+                byte[] url = task.getUrl().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(task.getDepth());
+                out.writeDouble(task.getPriority());
+                out.writeLong(task.getSequence());
+                out.writeInt(url.length);
+                out.write(url);
+                count++;
+            }
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed
+            return new FrontierSegment(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), count);
+        }
+    }
+
+    /**
+     * @return an independent reader of the tasks this segment has not handed out yet, sharing its mapping.
+     */
+    FrontierSegment copy() {
+        ByteBuffer view = buffer.duplicate();
+        view.position(headPosition);
+        return new FrontierSegment(file, view, remaining);
+    }
+
+    /**
+     * @return the next task of the run without removing it, or null if the run is exhausted.
+     */
+    CrawlTask peek() {
+        return head;
+    }
+
+    /**
+     * @return the next task of the run, or null if the run is exhausted.
+     */
+    CrawlTask poll() {
+        CrawlTask task = head;
+        if (task != null) {
+            remaining--;
+            advance();
+        }
+        return task;
+    }
+
+    int size() {
+        return remaining;
+    }
+
+    /**
+     * Deletes the file. The mapping is released by the garbage collector, Java 8 has no way to unmap it.
+     */
+    void delete() {
+        buffer = null;
+        head = null;
+        remaining = 0;
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            System.out.println("Couldn't delete frontier segment " + file + ": " + e.getMessage());
+        }
+    }
+
+    private void advance() {
+        if (remaining == 0) {
+            head = null;
+            return;
+        }
+        headPosition = buffer.position();
+        int depth = buffer.getInt();
+        double priority = buffer.getDouble();
+        long sequence = buffer.getLong();
+        byte[] url = new byte[buffer.getInt()];
+        buffer.get(url);
+        head = new CrawlTask(new String(url, StandardCharsets.UTF_8), depth, priority, sequence);
+    }
+}
@@ -0,0 +1,284 @@
+package com.eulerity.hackathon.imagefinder.crawler;
+
+import com.eulerity.hackathon.imagefinder.executor.FairShareExecutor;
+import org.apache.hc.client5.http.fluent.Request;
+import org.apache.hc.core5.http.HttpEntity;
+import org.apache.hc.core5.util.Timeout;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Fetches and caches the robots.txt rules and sitemaps of the hosts being crawled, shared by all crawls.
+ * Robots rules are small and kept in memory. Sitemaps can be many megabytes, so they are downloaded straight to
+ * files and read back with {@link SitemapParser}; only the best pages found are kept in memory. Both are reused
+ * until they are older than the maximum age. Fetches block, so crawls make them through the async variants, which
+ * run them on this cache's own threads instead of a crawl thread.
+ */
+public class HostMetadataCache {
+    private static final Timeout CONNECT_TIMEOUT = Timeout.ofSeconds(10);
+    private static final Timeout READ_TIMEOUT = Timeout.ofSeconds(15);
+    // Limits from the robots.txt RFC and the sitemap protocol
+    private static final int MAX_ROBOTS_BYTES = 500 * 1024;
+    private static final long MAX_SITEMAP_BYTES = 50L * 1024 * 1024;
+    // Sitemaps read per host: the ones listed in robots.txt and, if they are indexes, their newest children
+    private static final int MAX_SITEMAPS = 5;
+    // Sitemaps listing more images rank higher, then more recently modified ones
+    private static final Comparator<SitemapParser.Entry> BEST_FIRST = Comparator
+            .comparingInt(SitemapParser.Entry::getImages).reversed()
+            .thenComparing(SitemapParser.Entry::getLastModified, Comparator.nullsLast(Comparator.reverseOrder()));
+
+    private final Path directory;
+    private final long maxAgeMillis;
+    private final Map<String, CachedRobots> robots = new ConcurrentHashMap<>();
+    // Sitemap URLs that couldn't be downloaded, with the time of the attempt
+    private final Map<String, Long> missingSitemaps = new ConcurrentHashMap<>();
+    private final AtomicLong robotsFetches = new AtomicLong();
+    private final AtomicLong sitemapDownloads = new AtomicLong();
+    private final AtomicLong sitemapCacheHits = new AtomicLong();
+    // Blocking fetches for the async variants; one per crawl starting at a time
+    private final ExecutorService fetchThreads = Executors.newCachedThreadPool(FairShareExecutor.namedDaemonThreads("host-metadata"));
+
+    /**
+     * @param directory    the directory sitemaps are downloaded to; created if missing.
+     * @param maxAgeMillis how long fetched robots rules and sitemaps are reused.
+     */
+    public HostMetadataCache(Path directory, long maxAgeMillis) {
+        this.directory = directory;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Returns the robots rules of a host, fetching robots.txt if it isn't cached. A missing or unreadable
+     * robots.txt allows everything.
+     *
+     * @param origin the scheme, host and port, e.g. "https://www.example.com".
+     * @return the rules for this crawler.
+     */
+    public RobotsRules getRobots(String origin) {
+        CachedRobots cached = robots.get(origin);
+        if (cached != null && System.currentTimeMillis() - cached.fetchedMillis < maxAgeMillis) {
+            return cached.rules;
+        }
+        RobotsRules rules = fetchRobots(origin + "/robots.txt");
+        robots.put(origin, new CachedRobots(rules, System.currentTimeMillis()));
+        return rules;
+    }
+
+    /**
+     * Same as {@link #getRobots(String)}, on a thread of this cache.
+     *
+     * @param origin the scheme, host and port, e.g. "https://www.example.com".
+     * @return a future completing with the rules for this crawler.
+     */
+    public CompletableFuture<RobotsRules> getRobotsAsync(String origin) {
+        return CompletableFuture.supplyAsync(() -> getRobots(origin), fetchThreads);
+    }
+
+    /**
+     * Reads the sitemaps of a host and returns the pages worth crawling first: the ones listing the most images,
+     * then the most recently modified ones. Sitemaps are taken from robots.txt, or /sitemap.xml if it lists none.
+     *
+     * @param origin   the scheme, host and port, e.g. "https://www.example.com".
+     * @param rules    the robots rules of the host.
+     * @param maxPages the maximum number of pages to return.
+     * @param accept   decides which page URLs may be returned, e.g. only those on the crawled host.
+     * @return the pages, best first.
+     */
+    public List<SitemapParser.Entry> getSeedPages(String origin, RobotsRules rules, int maxPages, Predicate<String> accept) {
+        List<String> sitemaps = rules.getSitemaps().isEmpty()
+                ? Collections.singletonList(origin + "/sitemap.xml") : rules.getSitemaps();
+        // Worst entry on top, so the heap can drop it once it is full
+        PriorityQueue<SitemapParser.Entry> pages = new PriorityQueue<>(BEST_FIRST.reversed());
+        PriorityQueue<SitemapParser.Entry> children = new PriorityQueue<>(BEST_FIRST.reversed());
+        int read = 0;
+        for (String sitemap : sitemaps) {
+            if (read++ >= MAX_SITEMAPS) break;
+            readSitemap(sitemap, entry -> {
+                if (entry.isSitemap()) {
+                    keepBest(children, entry, MAX_SITEMAPS);
+                } else if (accept.test(entry.getLoc()) && rules.isAllowed(entry.getLoc())) {
+                    keepBest(pages, entry, maxPages);
+                }
+            });
+        }
+        // Sitemap indexes are only followed one level deep
+        for (SitemapParser.Entry child : drainBestFirst(children)) {
+            readSitemap(child.getLoc(), entry -> {
+                if (!entry.isSitemap() && accept.test(entry.getLoc()) && rules.isAllowed(entry.getLoc())) {
+                    keepBest(pages, entry, maxPages);
+                }
+            });
+        }
+        return drainBestFirst(pages);
+    }
+
+    /**
+     * Same as {@link #getSeedPages(String, RobotsRules, int, Predicate)}, on a thread of this cache.
+     *
+     * @return a future completing with the pages, best first.
+     */
+    public CompletableFuture<List<SitemapParser.Entry>> getSeedPagesAsync(String origin, RobotsRules rules, int maxPages,
+                                                                          Predicate<String> accept) {
+        return CompletableFuture.supplyAsync(() -> getSeedPages(origin, rules, maxPages, accept), fetchThreads);
+    }
+
+    /**
+     * @return the number of robots.txt fetches, sitemap downloads and sitemaps read from disk.
+     */
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("hosts", (long) robots.size());
+        stats.put("robotsFetches", robotsFetches.get());
+        stats.put("sitemapDownloads", sitemapDownloads.get());
+        stats.put("sitemapCacheHits", sitemapCacheHits.get());
+        return stats;
+    }
+
+    /**
+     * Stops the fetch threads. Fetches in progress are interrupted.
+     */
+    public void shutdown() {
+        fetchThreads.shutdownNow();
+    }
+
+    private RobotsRules fetchRobots(String url) {
+        robotsFetches.incrementAndGet();
+        try {
+            String body = Request.get(url).userAgent(PageFetcher.USER_AGENT)
+                    .connectTimeout(CONNECT_TIMEOUT).responseTimeout(READ_TIMEOUT)
+                    .execute().handleResponse(response -> {
+                        if (response.getCode() != 200 || response.getEntity() == null) {
+                            return null;  // 4xx means there are no rules; we are lenient about 5xx too
+                        }
+                        ByteArrayOutputStream out = new ByteArrayOutputStream();
+                        try (InputStream in = response.getEntity().getContent()) {
+                            copy(in, out, MAX_ROBOTS_BYTES);
+                        }
+                        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+                    });
+            return body == null ? RobotsRules.ALLOW_ALL : RobotsRules.parse(body);
+        } catch (IOException e) {
+            System.out.println("Couldn't fetch " + url + ": " + e.getMessage());
+            return RobotsRules.ALLOW_ALL;
+        }
+    }
+
+    /**
+     * Streams a sitemap from its cached file, downloading it first if needed. Failures are logged and skipped.
+     */
+    private void readSitemap(String url, Consumer<SitemapParser.Entry> onEntry) {
+        Path file = download(url);
+        if (file == null) return;
+        try (InputStream in = Files.newInputStream(file)) {
+            SitemapParser.parse(in, onEntry);
+        } catch (IOException e) {
+            System.out.println("Couldn't read sitemap " + url + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the file holding the sitemap, or null if it couldn't be downloaded.
+     */
+    private Path download(String url) {
+        long now = System.currentTimeMillis();
+        Long missingSince = missingSitemaps.get(url);
+        if (missingSince != null && now - missingSince < maxAgeMillis) {
+            return null;
+        }
+        Path file = directory.resolve(Long.toHexString(UrlCanonicalizer.fingerprint(url)) + ".sitemap");
+        try {
+            if (Files.exists(file) && now - Files.getLastModifiedTime(file).toMillis() < maxAgeMillis) {
+                sitemapCacheHits.incrementAndGet();
+                return file;
+            }
+            Files.createDirectories(directory);
+            Path temp = Files.createTempFile(directory, "download", ".tmp");
+            try {
+                sitemapDownloads.incrementAndGet();
+                boolean downloaded = Request.get(url).userAgent(PageFetcher.USER_AGENT)
+                        .connectTimeout(CONNECT_TIMEOUT).responseTimeout(READ_TIMEOUT)
+                        .execute().handleResponse(response -> {
+                            HttpEntity entity = response.getEntity();
+                            if (response.getCode() != 200 || entity == null) {
+                                return false;
+                            }
+                            try (InputStream in = entity.getContent(); OutputStream out = Files.newOutputStream(temp)) {
+                                copy(in, out, MAX_SITEMAP_BYTES);
+                            }
+                            return true;
+                        });
+                if (!downloaded) {
+                    missingSitemaps.put(url, now);
+                    return null;
+                }
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                missingSitemaps.remove(url);
+                return file;
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            System.out.println("Couldn't download sitemap " + url + ": " + e.getMessage());
+            missingSitemaps.put(url, now);
+            return null;
+        }
+    }
+
+    /**
+     * Copies at most maxBytes; anything beyond is dropped, so an oversized sitemap ends up malformed and only its
+     * entries before the cut are read.
+     */
+    private static void copy(InputStream in, OutputStream out, long maxBytes) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long copied = 0;
+        for (int read; copied < maxBytes && (read = in.read(buffer, 0, (int) Math.min(buffer.length, maxBytes - copied))) > 0; ) {
+            out.write(buffer, 0, read);
+            copied += read;
+        }
+    }
+
+    private static void keepBest(PriorityQueue<SitemapParser.Entry> best, SitemapParser.Entry entry, int limit) {
+        if (limit <= 0) return;
+        best.add(entry);
+        if (best.size() > limit) {
+            best.poll();
+        }
+    }
+
+    private static List<SitemapParser.Entry> drainBestFirst(PriorityQueue<SitemapParser.Entry> best) {
+        List<SitemapParser.Entry> entries = new ArrayList<>(best);
+        entries.sort(BEST_FIRST);
+        return entries;
+    }
+
+    private static class CachedRobots {
+        private final RobotsRules rules;
+        private final long fetchedMillis;
+
+        private CachedRobots(RobotsRules rules, long fetchedMillis) {
+            this.rules = rules;
+            this.fetchedMillis = fetchedMillis;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.eulerity.hackathon.imagefinder.crawler;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Schedules page fetches so that every host is crawled politely without parking worker threads.
+ * Each host has a fixed number of fetch slots. A fetch takes a slot, waits a random politeness delay on a
+ * timer and only then is started; the slot is released once the future returned by the fetch completes.
+ * Nothing blocks while waiting, so throughput grows with the number of distinct hosts instead of the
+ * number of worker threads, while a single host sees the same request pattern as before.
+ */
+public class HostPolitenessScheduler {
+    private final ScheduledExecutorService timer;
+    private final int slotsPerHost;
+    private final int minDelayMillis;
+    private final int maxDelayMillis;
+    private final Map<String, HostState> hosts = new HashMap<>();
+
+    /**
+     * @param slotsPerHost   the maximum number of fetches that can be pending or running per host.
+     * @param minDelayMillis the minimum politeness delay before a fetch, inclusive.
+     * @param maxDelayMillis the maximum politeness delay before a fetch, inclusive.
+     */
+    public HostPolitenessScheduler(int slotsPerHost, int minDelayMillis, int maxDelayMillis) {
+        this.slotsPerHost = slotsPerHost;
+        this.minDelayMillis = minDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        ScheduledThreadPoolExecutor scheduledExecutor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "politeness-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduledExecutor.setRemoveOnCancelPolicy(true);
+        this.timer = scheduledExecutor;
+    }
+
+    /**
+     * Queues a fetch for the given host. It is started on the timer thread once one of the host's slots is
+     * free and the politeness delay for that slot has passed, so starting it must not block.
+     *
+     * @param host  the host the fetch goes to.
+     * @param fetch starts the fetch and returns a future that completes when the host's slot can be reused.
+     */
+    public void submit(String host, Supplier<CompletableFuture<?>> fetch) {
+        synchronized (hosts) {
+            hosts.computeIfAbsent(host, key -> new HostState()).pending.add(fetch);
+            startEligible(host);
+        }
+    }
+
+    /**
+     * @return the number of fetches queued behind busy host slots.
+     */
+    public int getPendingCount() {
+        synchronized (hosts) {
+            int pending = 0;
+            for (HostState state : hosts.values()) {
+                pending += state.pending.size();
+            }
+            return pending;
+        }
+    }
+
+    /**
+     * Stops the timer. Fetches whose delay has not passed yet are dropped.
+     */
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+
+    /**
+     * Hands pending fetches of a host to the timer while it has free slots. Must hold the hosts lock.
+     */
+    private void startEligible(String host) {
+        HostState state = hosts.get(host);
+        while (state.activeSlots < slotsPerHost && !state.pending.isEmpty()) {
+            Supplier<CompletableFuture<?>> fetch = state.pending.poll();
+            state.activeSlots++;
+            int delay = ThreadLocalRandom.current().nextInt(minDelayMillis, maxDelayMillis + 1);
+            System.out.println("Wait for " + delay + " ms before fetching from " + host + "...");
+            timer.schedule(() -> {
+                CompletableFuture<?> done;
+                try {
+                    done = fetch.get();
+                } catch (RuntimeException e) {
+                    release(host);
+                    throw e;
+                }
+                done.whenComplete((result, error) -> release(host));
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        if (state.activeSlots == 0 && state.pending.isEmpty()) {
+            hosts.remove(host);
+        }
+    }
+
+    private void release(String host) {
+        synchronized (hosts) {
+            HostState state = hosts.get(host);
+            if (state == null) return;
+            state.activeSlots--;
+            startEligible(host);
+        }
+    }
+
+    private static class HostState {
+        private final Queue<Supplier<CompletableFuture<?>>> pending = new ArrayDeque<>();
+        private int activeSlots;
+    }
+}
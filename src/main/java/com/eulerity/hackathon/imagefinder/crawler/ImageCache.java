@@ -0,0 +1,474 @@
+package com.eulerity.hackathon.imagefinder.crawler;
+
+import com.eulerity.hackathon.imagefinder.AppConfig;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A read-through cache of downloaded images shared by object detection, annotation and OCR, so an image is
+ * downloaded once however many times it is looked at and across repeated crawls.
+ * Bodies are stored once per content hash, whatever the number of URLs serving them. The most recently used
+ * bodies are held off-heap in direct buffers; every body is also written to disk, where the least recently used
+ * are evicted once the directory grows beyond its size limit. The URL to hash index is kept in memory and
+ * appended to a log on disk, and a URL is downloaded again once its entry is older than the URL TTL.
+ * Configured with IMAGE_CACHE_ENABLED, IMAGE_CACHE_DIR, IMAGE_CACHE_MEMORY_BYTES, IMAGE_CACHE_DISK_BYTES and
+ * IMAGE_CACHE_URL_TTL_HOURS. Thread-safe.
+ */
+public class ImageCache implements AutoCloseable {
+    public static final long MEMORY_BYTES = 64L * 1024 * 1024;
+    public static final long DISK_BYTES = 1024L * 1024 * 1024;
+    public static final long URL_TTL_HOURS = 24;
+    private static final String FILE_SUFFIX = ".img";
+    private static final String INDEX_FILE = "urls.log";
+
+    private static ImageCache instance;
+
+    private final ImageHttpClient client;
+    // Null when only the memory tier is used
+    private final Path directory;
+    private final long maxMemoryBytes;
+    private final long maxDiskBytes;
+    private final long urlTtlMillis;
+    private final Map<String, UrlEntry> urls = new ConcurrentHashMap<>();
+    // Content hash to body, in access order. Guarded by itself
+    private final LinkedHashMap<String, ByteBuffer> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes;
+    private final Map<String, DiskEntry> disk = new ConcurrentHashMap<>();
+    private final AtomicLong diskBytes = new AtomicLong();
+    // Downloads in progress, so concurrent misses on one URL share a single request
+    private final Map<String, CompletableFuture<ImageHttpClient.Download>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    // Lookups that waited for another thread's download of the same URL
+    private final AtomicLong inFlightJoins = new AtomicLong();
+    private final AtomicLong sharedContent = new AtomicLong();
+    private final AtomicLong memoryEvictions = new AtomicLong();
+    private final AtomicLong diskEvictions = new AtomicLong();
+    private Writer indexLog;
+
+    /**
+     * Opens the cache, indexing the images and URLs already on disk.
+     *
+     * @param client         the client that downloads missing images.
+     * @param directory      the directory holding the disk tier, created if missing, or null for no disk tier.
+     * @param maxMemoryBytes the total size of the bodies held off-heap; 0 disables the memory tier.
+     * @param maxDiskBytes   the total size of the bodies on disk after which old ones are evicted.
+     * @param urlTtlMillis   how long a URL is assumed to serve the same image.
+     * @throws IOException if the directory can't be created or read.
+     */
+    public ImageCache(ImageHttpClient client, Path directory, long maxMemoryBytes, long maxDiskBytes, long urlTtlMillis)
+            throws IOException {
+        this.client = client;
+        this.directory = directory;
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.maxDiskBytes = maxDiskBytes;
+        this.urlTtlMillis = urlTtlMillis;
+        if (directory != null) {
+            Files.createDirectories(directory);
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + FILE_SUFFIX)) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    DiskEntry entry = new DiskEntry(file, Files.size(file), Files.getLastModifiedTime(file).toMillis());
+                    disk.put(name.substring(0, name.length() - FILE_SUFFIX.length()), entry);
+                    diskBytes.addAndGet(entry.sizeBytes);
+                }
+            }
+            loadIndex();
+        }
+    }
+
+    /**
+     * @return the process-wide cache, configured from {@link AppConfig} when first used. If the disk tier can't
+     * be opened, only the memory tier is used.
+     */
+    public static synchronized ImageCache getInstance() {
+        if (instance == null) {
+            ImageHttpClient client = ImageHttpClient.getInstance();
+            if (!AppConfig.getBoolean("IMAGE_CACHE_ENABLED", true)) {
+                instance = memoryOnly(client, 0);
+                return instance;
+            }
+            long maxMemoryBytes = AppConfig.getLong("IMAGE_CACHE_MEMORY_BYTES", MEMORY_BYTES);
+            String directory = AppConfig.getString("IMAGE_CACHE_DIR",
+                    Paths.get(System.getProperty("java.io.tmpdir"), "imagefinder", "images").toString());
+            try {
+                instance = new ImageCache(client, Paths.get(directory), maxMemoryBytes,
+                        AppConfig.getLong("IMAGE_CACHE_DISK_BYTES", DISK_BYTES),
+                        TimeUnit.HOURS.toMillis(AppConfig.getLong("IMAGE_CACHE_URL_TTL_HOURS", URL_TTL_HOURS)));
+            } catch (IOException e) {
+                System.out.println("Image cache directory unavailable, keeping images in memory only: " + e.getMessage());
+                instance = memoryOnly(client, maxMemoryBytes);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Replaces the process-wide cache, e.g. with one on a temporary directory in tests. The previous cache isn't
+     * closed.
+     *
+     * @param cache the cache to use from now on, or null to open the configured one when next used.
+     */
+    public static synchronized void setInstance(ImageCache cache) {
+        instance = cache;
+    }
+
+    private static ImageCache memoryOnly(ImageHttpClient client, long maxMemoryBytes) {
+        try {
+            return new ImageCache(client, null, maxMemoryBytes, 0, TimeUnit.HOURS.toMillis(URL_TTL_HOURS));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);  // Nothing is read without a directory
+        }
+    }
+
+    /**
+     * Returns an image from the cache, downloading and storing it on a miss.
+     *
+     * @param url the URL of the image.
+     * @return the body and the media type the server declared for it.
+     * @throws IOException if the image isn't cached and can't be downloaded.
+     */
+    public ImageHttpClient.Download get(String url) throws IOException {
+        UrlEntry entry = urls.get(url);
+        if (entry != null && entry.storedAt > System.currentTimeMillis() - urlTtlMillis) {
+            byte[] body = readMemory(entry.hash);
+            if (body != null) {
+                memoryHits.incrementAndGet();
+                return new ImageHttpClient.Download(body, entry.mimeType, entry.charset);
+            }
+            body = readDisk(entry.hash);
+            if (body != null) {
+                diskHits.incrementAndGet();
+                writeMemory(entry.hash, body);
+                return new ImageHttpClient.Download(body, entry.mimeType, entry.charset);
+            }
+        }
+
+        CompletableFuture<ImageHttpClient.Download> download = new CompletableFuture<>();
+        CompletableFuture<ImageHttpClient.Download> running = inFlight.putIfAbsent(url, download);
+        if (running != null) {
+            inFlightJoins.incrementAndGet();
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            }
+        }
+        misses.incrementAndGet();
+        try {
+            ImageHttpClient.Download result = client.get(url);
+            store(url, result);
+            download.complete(result);
+            return result;
+        } catch (IOException | RuntimeException e) {
+            download.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(url, download);
+        }
+    }
+
+    /**
+     * Looks up an image by the hash of its bytes, without downloading anything.
+     *
+     * @param hash the content hash, as returned by {@link #contentHash(byte[])}.
+     * @return the image bytes, or null if no cached image has this hash.
+     */
+    public byte[] getByHash(String hash) {
+        byte[] body = readMemory(hash);
+        return body != null ? body : readDisk(hash);
+    }
+
+    /**
+     * Tells the size of an image downloaded before, without downloading or reading it. The size is kept even after
+     * the body is evicted.
+     *
+     * @param url the URL of the image.
+     * @return the size of the body last downloaded from the URL, or -1 if it wasn't downloaded or its entry expired.
+     */
+    public long cachedSize(String url) {
+        UrlEntry entry = urls.get(url);
+        return entry != null && entry.storedAt > System.currentTimeMillis() - urlTtlMillis ? entry.sizeBytes : -1;
+    }
+
+    /**
+     * @param body image bytes.
+     * @return the SHA-256 of the bytes in hex, which names the image in the cache.
+     */
+    public static String contentHash(byte[] body) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(body);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);  // Every JVM has SHA-256
+        }
+    }
+
+    /**
+     * @return hit counters per tier, the lookups that joined a download already in progress, the hit ratio, which
+     * counts those joins as hits since they download nothing, resident bytes and entries per tier and eviction
+     * counters.
+     */
+    public Map<String, Object> getStats() {
+        long hits = memoryHits.get() + diskHits.get() + inFlightJoins.get();
+        long lookups = hits + misses.get();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("urls", urls.size());
+        synchronized (memory) {
+            stats.put("memoryEntries", memory.size());
+            stats.put("memoryBytes", memoryBytes);
+        }
+        stats.put("maxMemoryBytes", maxMemoryBytes);
+        stats.put("diskEntries", disk.size());
+        stats.put("diskBytes", diskBytes.get());
+        stats.put("maxDiskBytes", maxDiskBytes);
+        stats.put("memoryHits", memoryHits.get());
+        stats.put("diskHits", diskHits.get());
+        stats.put("inFlightJoins", inFlightJoins.get());
+        stats.put("misses", misses.get());
+        stats.put("hitRatio", lookups == 0 ? 0.0 : (double) hits / lookups);
+        stats.put("memoryHitRatio", lookups == 0 ? 0.0 : (double) memoryHits.get() / lookups);
+        stats.put("diskHitRatio", lookups == 0 ? 0.0 : (double) diskHits.get() / lookups);
+        stats.put("sharedContent", sharedContent.get());
+        stats.put("memoryEvictions", memoryEvictions.get());
+        stats.put("diskEvictions", diskEvictions.get());
+        return stats;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (indexLog != null) {
+            try {
+                indexLog.close();
+            } catch (IOException e) {
+                System.out.println("Couldn't close image cache index: " + e.getMessage());
+            }
+            indexLog = null;
+        }
+    }
+
+    private void store(String url, ImageHttpClient.Download download) {
+        String hash = contentHash(download.getBody());
+        boolean known = disk.containsKey(hash);
+        synchronized (memory) {
+            known |= memory.containsKey(hash);
+        }
+        if (known) {
+            sharedContent.incrementAndGet();
+        }
+        writeMemory(hash, download.getBody());
+        UrlEntry entry = new UrlEntry(hash, download.getMimeType(), download.getCharset(), download.getBody().length,
+                System.currentTimeMillis());
+        urls.put(url, entry);
+        if (directory != null) {
+            writeDisk(hash, download.getBody());
+            appendIndex(url, entry);
+        }
+    }
+
+    private byte[] readMemory(String hash) {
+        synchronized (memory) {
+            ByteBuffer buffer = memory.get(hash);
+            if (buffer == null) {
+                return null;
+            }
+            byte[] body = new byte[buffer.remaining()];
+            buffer.duplicate().get(body);
+            return body;
+        }
+    }
+
+    private void writeMemory(String hash, byte[] body) {
+        if (body.length > maxMemoryBytes) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(body.length);
+        buffer.put(body).flip();
+        synchronized (memory) {
+            ByteBuffer previous = memory.put(hash, buffer);
+            if (previous != null) {
+                memoryBytes -= previous.capacity();
+            }
+            memoryBytes += body.length;
+            Iterator<ByteBuffer> oldest = memory.values().iterator();
+            while (memoryBytes > maxMemoryBytes && oldest.hasNext()) {
+                memoryBytes -= oldest.next().capacity();
+                oldest.remove();
+                memoryEvictions.incrementAndGet();
+            }
+        }
+    }
+
+    private byte[] readDisk(String hash) {
+        DiskEntry entry = disk.get(hash);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            byte[] body = Files.readAllBytes(entry.file);
+            entry.lastAccess = System.currentTimeMillis();
+            return body;
+        } catch (IOException e) {
+            removeDisk(hash, entry);
+            return null;
+        }
+    }
+
+    private void writeDisk(String hash, byte[] body) {
+        if (disk.containsKey(hash) || body.length > maxDiskBytes / 4) {
+            return;
+        }
+        Path file = directory.resolve(hash + FILE_SUFFIX);
+        Path temp = directory.resolve(hash + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            Files.write(temp, body);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Couldn't cache image " + hash + ": " + e.getMessage());
+            return;
+        }
+        if (disk.putIfAbsent(hash, new DiskEntry(file, body.length, System.currentTimeMillis())) == null) {
+            diskBytes.addAndGet(body.length);
+        }
+        if (diskBytes.get() > maxDiskBytes) {
+            evictDisk(maxDiskBytes * 9 / 10);  // Leave some headroom so we don't evict on every store
+        }
+    }
+
+    private synchronized void evictDisk(long targetBytes) {
+        List<Map.Entry<String, DiskEntry>> entries = new ArrayList<>(disk.entrySet());
+        entries.sort(Comparator.comparingLong(entry -> entry.getValue().lastAccess));
+        for (Map.Entry<String, DiskEntry> entry : entries) {
+            if (diskBytes.get() <= targetBytes) break;
+            removeDisk(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void removeDisk(String hash, DiskEntry entry) {
+        if (disk.remove(hash, entry)) {
+            diskBytes.addAndGet(-entry.sizeBytes);
+            diskEvictions.incrementAndGet();
+        }
+        try {
+            Files.deleteIfExists(entry.file);
+        } catch (IOException e) {
+            System.out.println("Couldn't delete cached image " + entry.file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the URL log, keeping the latest live entry of every URL whose image is still on disk, and rewrites it
+     * without the rest.
+     */
+    private void loadIndex() throws IOException {
+        Path log = directory.resolve(INDEX_FILE);
+        long cutoff = System.currentTimeMillis() - urlTtlMillis;
+        if (Files.exists(log)) {
+            try (BufferedReader in = Files.newBufferedReader(log, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] fields = line.split("\t", 5);
+                    if (fields.length != 5) continue;  // Torn write
+                    try {
+                        DiskEntry body = disk.get(fields[1]);
+                        UrlEntry entry = new UrlEntry(fields[1], emptyToNull(fields[2]), emptyToNull(fields[3]),
+                                body != null ? body.sizeBytes : -1, Long.parseLong(fields[0]));
+                        if (entry.storedAt > cutoff && body != null) {
+                            urls.put(fields[4], entry);
+                        } else {
+                            urls.remove(fields[4]);
+                        }
+                    } catch (NumberFormatException e) {
+                        // Torn write
+                    }
+                }
+            }
+        }
+        Path temp = directory.resolve(INDEX_FILE + ".tmp");
+        try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, UrlEntry> entry : urls.entrySet()) {
+                out.write(indexLine(entry.getKey(), entry.getValue()));
+            }
+        }
+        Files.move(temp, log, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private synchronized void appendIndex(String url, UrlEntry entry) {
+        try {
+            if (indexLog == null) {
+                indexLog = Files.newBufferedWriter(directory.resolve(INDEX_FILE), StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            indexLog.write(indexLine(url, entry));
+            indexLog.flush();
+        } catch (IOException e) {
+            System.out.println("Couldn't index cached image " + url + ": " + e.getMessage());
+        }
+    }
+
+    private static String indexLine(String url, UrlEntry entry) {
+        // URLs never hold raw tabs or line breaks, the media type and charset are header tokens
+        return entry.storedAt + "\t" + entry.hash + "\t" + (entry.mimeType != null ? entry.mimeType : "") + "\t"
+                + (entry.charset != null ? entry.charset : "") + "\t" + url + "\n";
+    }
+
+    private static String emptyToNull(String value) {
+        return value.isEmpty() ? null : value;
+    }
+
+    private static class UrlEntry {
+        private final String hash;
+        private final String mimeType;
+        private final String charset;
+        private final long sizeBytes;
+        private final long storedAt;
+
+        UrlEntry(String hash, String mimeType, String charset, long sizeBytes, long storedAt) {
+            this.hash = hash;
+            this.mimeType = mimeType;
+            this.charset = charset;
+            this.sizeBytes = sizeBytes;
+            this.storedAt = storedAt;
+        }
+    }
+
+    private static class DiskEntry {
+        private final Path file;
+        private final long sizeBytes;
+        private volatile long lastAccess;
+
+        DiskEntry(Path file, long sizeBytes, long lastAccess) {
+            this.file = file;
+            this.sizeBytes = sizeBytes;
+            this.lastAccess = lastAccess;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package com.eulerity.hackathon.imagefinder.crawler;
+
+import com.eulerity.hackathon.imagefinder.AppConfig;
+import lombok.Getter;
+import org.apache.hc.client5.http.DnsResolver;
+import org.apache.hc.client5.http.SystemDefaultDnsResolver;
+import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.client5.http.classic.methods.HttpPost;
+import org.apache.hc.client5.http.classic.methods.HttpUriRequestBase;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.entity.UrlEncodedFormEntity;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.core5.http.ClassicHttpResponse;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.HttpEntity;
+import org.apache.hc.core5.http.NameValuePair;
+import org.apache.hc.core5.pool.PoolStats;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The blocking HTTP client shared by every image download outside the crawl itself: object detection, dedupe
+ * probes and OCR. Connections are pooled and kept alive, with a limit per host, DNS lookups are cached, and
+ * every request has bounded connect, read and pool wait timeouts. Response bodies larger than the maximum are
+ * refused instead of read into memory. Configured with IMAGE_HTTP_MAX_CONNECTIONS, IMAGE_HTTP_MAX_PER_HOST,
+ * IMAGE_HTTP_CONNECT_TIMEOUT_MILLIS, IMAGE_HTTP_READ_TIMEOUT_MILLIS, IMAGE_HTTP_MAX_BODY_BYTES and
+ * IMAGE_HTTP_DNS_TTL_SECONDS. Thread-safe.
+ */
+public class ImageHttpClient implements AutoCloseable {
+    public static final String USER_AGENT = "Mozilla/5.0";
+    public static final int MAX_CONNECTIONS = 64;
+    public static final int MAX_CONNECTIONS_PER_HOST = 8;
+    public static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    public static final int READ_TIMEOUT_MILLIS = 15000;
+    public static final int MAX_BODY_BYTES = 20 * 1024 * 1024;
+    public static final int DNS_TTL_SECONDS = 300;
+    private static final TimeValue KEEP_ALIVE = TimeValue.ofSeconds(30);
+
+    private static ImageHttpClient instance;
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient client;
+    private final CachingDnsResolver dnsResolver;
+    private final int maxBodyBytes;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong bytesDownloaded = new AtomicLong();
+    private final AtomicLong tooLarge = new AtomicLong();
+
+    /**
+     * @param maxConnections        the maximum number of pooled connections.
+     * @param maxConnectionsPerHost the maximum number of connections to one host.
+     * @param connectTimeoutMillis  how long connecting, and waiting for a pooled connection, may take.
+     * @param readTimeoutMillis     how long the server may go silent while answering.
+     * @param maxBodyBytes          the largest response body that is read.
+     * @param dnsTtlSeconds         how long resolved addresses are reused.
+     */
+    public ImageHttpClient(int maxConnections, int maxConnectionsPerHost, int connectTimeoutMillis, int readTimeoutMillis,
+                           int maxBodyBytes, int dnsTtlSeconds) {
+        this.maxBodyBytes = maxBodyBytes;
+        this.dnsResolver = new CachingDnsResolver(TimeUnit.SECONDS.toMillis(dnsTtlSeconds));
+        Timeout connectTimeout = Timeout.ofMilliseconds(connectTimeoutMillis);
+        Timeout readTimeout = Timeout.ofMilliseconds(readTimeoutMillis);
+        this.connectionManager = PoolingHttpClientConnectionManagerBuilder.create()
+                .setMaxConnTotal(maxConnections)
+                .setMaxConnPerRoute(maxConnectionsPerHost)
+                .setDnsResolver(dnsResolver)
+                .setDefaultConnectionConfig(ConnectionConfig.custom()
+                        .setConnectTimeout(connectTimeout)
+                        .setSocketTimeout(readTimeout)
+                        .setTimeToLive(TimeValue.ofMinutes(5))
+                        .build())
+                .build();
+        this.client = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectionRequestTimeout(connectTimeout)
+                        .setResponseTimeout(readTimeout)
+                        .setConnectionKeepAlive(KEEP_ALIVE)
+                        .build())
+                .setUserAgent(USER_AGENT)
+                .disableCookieManagement()
+                .evictIdleConnections(KEEP_ALIVE)
+                .build();
+    }
+
+    /**
+     * @return the process-wide client, configured from {@link AppConfig} when first used.
+     */
+    public static synchronized ImageHttpClient getInstance() {
+        if (instance == null) {
+            instance = new ImageHttpClient(
+                    AppConfig.getInt("IMAGE_HTTP_MAX_CONNECTIONS", MAX_CONNECTIONS),
+                    AppConfig.getInt("IMAGE_HTTP_MAX_PER_HOST", MAX_CONNECTIONS_PER_HOST),
+                    AppConfig.getInt("IMAGE_HTTP_CONNECT_TIMEOUT_MILLIS", CONNECT_TIMEOUT_MILLIS),
+                    AppConfig.getInt("IMAGE_HTTP_READ_TIMEOUT_MILLIS", READ_TIMEOUT_MILLIS),
+                    AppConfig.getInt("IMAGE_HTTP_MAX_BODY_BYTES", MAX_BODY_BYTES),
+                    AppConfig.getInt("IMAGE_HTTP_DNS_TTL_SECONDS", DNS_TTL_SECONDS));
+        }
+        return instance;
+    }
+
+    /**
+     * Downloads a resource. Redirects are followed.
+     *
+     * @param url the URL.
+     * @return the body and its declared media type.
+     * @throws IOException if the request fails, the status isn't 200 or the body is larger than the maximum.
+     */
+    public Download get(String url) throws IOException {
+        return execute(new HttpGet(url));
+    }
+
+    /**
+     * Posts a form.
+     *
+     * @param url        the URL.
+     * @param parameters the form fields.
+     * @return the response body.
+     * @throws IOException if the request fails, the status isn't 200 or the body is larger than the maximum.
+     */
+    public String postForm(String url, List<NameValuePair> parameters) throws IOException {
+        HttpPost post = new HttpPost(url);
+        post.setEntity(new UrlEncodedFormEntity(parameters, StandardCharsets.UTF_8));
+        Download response = execute(post);
+        return new String(response.getBody(), response.getCharset() != null ? response.getCharset() : "UTF-8");
+    }
+
+    /**
+     * @return pool usage, request counters and DNS cache counters.
+     */
+    public Map<String, Object> getStats() {
+        PoolStats pool = connectionManager.getTotalStats();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("leasedConnections", pool.getLeased());
+        stats.put("availableConnections", pool.getAvailable());
+        stats.put("pendingConnections", pool.getPending());
+        stats.put("maxConnections", pool.getMax());
+        stats.put("requests", requests.get());
+        stats.put("failures", failures.get());
+        stats.put("tooLarge", tooLarge.get());
+        stats.put("bytesDownloaded", bytesDownloaded.get());
+        stats.put("dnsCacheHits", dnsResolver.hits.get());
+        stats.put("dnsLookups", dnsResolver.lookups.get());
+        return stats;
+    }
+
+    @Override
+    public void close() {
+        try {
+            client.close();
+        } catch (IOException e) {
+            System.out.println("Couldn't close image HTTP client: " + e.getMessage());
+        }
+    }
+
+    private Download execute(HttpUriRequestBase request) throws IOException {
+        requests.incrementAndGet();
+        try {
+            return client.execute(request, response -> read(request, response));
+        } catch (IOException | RuntimeException e) {
+            failures.incrementAndGet();
+            if (e instanceof IOException) throw (IOException) e;
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    private Download read(HttpUriRequestBase request, ClassicHttpResponse response) throws IOException {
+        HttpEntity entity = response.getEntity();
+        if (response.getCode() != 200) {
+            throw new IOException("HTTP " + response.getCode());
+        }
+        if (entity == null) {
+            return new Download(new byte[0], null, null);
+        }
+        if (entity.getContentLength() > maxBodyBytes) {
+            tooLarge.incrementAndGet();
+            throw new IOException("Body of " + entity.getContentLength() + " bytes is larger than " + maxBodyBytes);
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream(entity.getContentLength() > 0 ? (int) entity.getContentLength() : 8192);
+        byte[] buffer = new byte[8192];
+        try (InputStream in = entity.getContent()) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (body.size() + read > maxBodyBytes) {
+                    tooLarge.incrementAndGet();
+                    request.cancel();  // Drops the connection, closing the stream would read the rest of the body
+                    throw new IOException("Body is larger than " + maxBodyBytes + " bytes");
+                }
+                body.write(buffer, 0, read);
+            }
+        }
+        bytesDownloaded.addAndGet(body.size());
+        ContentType contentType = ContentType.parseLenient(entity.getContentType());
+        return new Download(body.toByteArray(), contentType != null ? contentType.getMimeType() : null,
+                contentType != null && contentType.getCharset() != null ? contentType.getCharset().name() : null);
+    }
+
+    /**
+     * A downloaded body with the media type the server declared.
+     */
+    @Getter
+    public static class Download {
+        private final byte[] body;
+        // Null if the server didn't declare one
+        private final String mimeType;
+        private final String charset;
+
+        Download(byte[] body, String mimeType, String charset) {
+            this.body = body;
+            this.mimeType = mimeType;
+            this.charset = charset;
+        }
+    }
+
+    /**
+     * Reuses resolved addresses for a fixed time, so repeated downloads from the same hosts skip the lookup.
+     */
+    private static class CachingDnsResolver implements DnsResolver {
+        private static final int MAX_HOSTS = 10_000;
+
+        private final long ttlMillis;
+        private final Map<String, CachedAddresses> cache = new ConcurrentHashMap<>();
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong lookups = new AtomicLong();
+
+        CachingDnsResolver(long ttlMillis) {
+            this.ttlMillis = ttlMillis;
+        }
+
+        @Override
+        public InetAddress[] resolve(String host) throws UnknownHostException {
+            CachedAddresses cached = cache.get(host);
+            long now = System.currentTimeMillis();
+            if (cached != null && cached.expiresAt > now) {
+                hits.incrementAndGet();
+                return cached.addresses.clone();
+            }
+            lookups.incrementAndGet();
+            InetAddress[] addresses = SystemDefaultDnsResolver.INSTANCE.resolve(host);
+            if (cache.size() >= MAX_HOSTS) {
+                cache.clear();  // Crude, but hosts are rarely this many and a lookup is cheap to repeat
+            }
+            cache.put(host, new CachedAddresses(addresses, now + ttlMillis));
+            return addresses.clone();
+        }
+
+        @Override
+        public String resolveCanonicalHostname(String host) throws UnknownHostException {
+            return SystemDefaultDnsResolver.INSTANCE.resolveCanonicalHostname(host);
+        }
+    }
+
+    private static class CachedAddresses {
+        private final InetAddress[] addresses;
+        private final long expiresAt;
+
+        CachedAddresses(InetAddress[] addresses, long expiresAt) {
+            this.addresses = addresses;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.eulerity.hackathon.imagefinder.crawler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+
+/**
+ * Picks the image source to run object detection on from an image's src, srcset, sizes and the sources of an
+ * enclosing picture element.
+ * The detector squashes every image to the crawl's input size, so downloading anything wider is wasted bandwidth.
+ * Among the candidates whose width is known, the narrowest one at least the input size wide and narrower than the src
+ * is chosen.
+ * The width of the src comes from its own srcset entry, or else from the width attribute or sizes; if it is unknown,
+ * or no candidate qualifies, the src is used as before, so detection never downloads more than the displayed image.
+ * The src itself stays the URL shown to the user.
+ */
+public final class ImageSourceSelector {
+    // Formats OpenCV can decode; sources of other types are skipped
+    private static final Set<String> DECODABLE_TYPES = new HashSet<>(Arrays.asList(
+            "image/jpeg", "image/jpg", "image/pjpeg", "image/png", "image/webp", "image/bmp", "image/tiff"));
+
+    private ImageSourceSelector() {
+    }
+
+    /**
+     * @param src       the absolute src of the image.
+     * @param width     the width attribute of the image, or null.
+     * @param sizes     the sizes attribute of the image, or null.
+     * @param srcset    the srcset attribute of the image, or null.
+     * @param sources   the srcset and type attributes of each source element of an enclosing picture element.
+     * @param resolve   turns a URL from a srcset into an absolute URL.
+     * @param inputSize the detector input size of the crawl.
+     * @return the URL to download for object detection, or null if it is the src.
+     */
+    public static String select(String src, String width, String sizes, String srcset, List<String[]> sources,
+                                UnaryOperator<String> resolve, int inputSize) {
+        int displayWidth = parsePixels(width);
+        if (displayWidth < 0) {
+            displayWidth = defaultSize(sizes);
+        }
+
+        List<String> srcsets = new ArrayList<>();
+        for (String[] source : sources) {
+            String type = source[1];
+            if (type == null || type.trim().isEmpty() || DECODABLE_TYPES.contains(type.trim().toLowerCase(Locale.ROOT))) {
+                srcsets.add(source[0]);
+            }
+        }
+        if (srcset != null) {
+            srcsets.add(srcset);
+        }
+        List<String> urls = new ArrayList<>();
+        List<Integer> widths = new ArrayList<>();
+        int srcWidth = displayWidth;
+        for (String candidates : srcsets) {
+            for (Candidate candidate : parseSrcset(candidates)) {
+                int candidateWidth = candidate.width;
+                if (candidateWidth < 0 && candidate.density > 0 && displayWidth > 0) {
+                    candidateWidth = (int) Math.round(candidate.density * displayWidth);
+                }
+                String url = resolve.apply(candidate.url);
+                if (url.equals(src) && candidateWidth > 0) {
+                    srcWidth = candidateWidth;  // The srcset tells the width of the src file itself
+                } else if (candidateWidth > 0 && !url.isEmpty()) {
+                    urls.add(url);
+                    widths.add(candidateWidth);
+                }
+            }
+        }
+        if (srcWidth < inputSize) {
+            return null;  // Every wide enough candidate would be larger than the src, or the src size is unknown
+        }
+
+        String best = null;
+        int bestWidth = srcWidth;
+        for (int i = 0; i < urls.size(); i++) {
+            if (widths.get(i) >= inputSize && widths.get(i) < bestWidth) {
+                best = urls.get(i);
+                bestWidth = widths.get(i);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Splits a srcset into candidates following the HTML parsing rules, so URLs containing commas survive.
+     */
+    static List<Candidate> parseSrcset(String srcset) {
+        List<Candidate> candidates = new ArrayList<>();
+        int length = srcset.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && (Character.isWhitespace(srcset.charAt(i)) || srcset.charAt(i) == ',')) i++;
+            if (i >= length) break;
+            int urlStart = i;
+            while (i < length && !Character.isWhitespace(srcset.charAt(i))) i++;
+            String url = srcset.substring(urlStart, i);
+            String descriptors = "";
+            if (url.endsWith(",")) {
+                // No descriptors, the comma ends the candidate
+                while (url.endsWith(",")) url = url.substring(0, url.length() - 1);
+            } else {
+                int descriptorStart = i;
+                int depth = 0;
+                while (i < length && (srcset.charAt(i) != ',' || depth > 0)) {
+                    if (srcset.charAt(i) == '(') depth++;
+                    if (srcset.charAt(i) == ')') depth = Math.max(0, depth - 1);
+                    i++;
+                }
+                descriptors = srcset.substring(descriptorStart, i).trim();
+            }
+            if (!url.isEmpty()) {
+                candidates.add(new Candidate(url, descriptors));
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * @return the width of a "445" or "445px" value, or -1.
+     */
+    private static int parsePixels(String value) {
+        if (value == null) return -1;
+        String trimmed = value.trim().toLowerCase(Locale.ROOT);
+        if (trimmed.endsWith("px")) trimmed = trimmed.substring(0, trimmed.length() - 2).trim();
+        try {
+            double pixels = Double.parseDouble(trimmed);
+            return pixels > 0 ? (int) Math.round(pixels) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the width of the last, unconditional entry of a sizes attribute if it is in pixels, or -1.
+     */
+    private static int defaultSize(String sizes) {
+        if (sizes == null) return -1;
+        int comma = sizes.lastIndexOf(',');
+        String last = sizes.substring(comma + 1).trim();
+        return last.endsWith("px") ? parsePixels(last) : -1;
+    }
+
+    static class Candidate {
+        final String url;
+        // From a "640w" descriptor, or -1
+        final int width;
+        // From a "2x" descriptor, or 1 if there is no descriptor, or -1
+        final double density;
+
+        Candidate(String url, String descriptors) {
+            this.url = url;
+            int parsedWidth = -1;
+            double parsedDensity = descriptors.isEmpty() ? 1 : -1;
+            for (String descriptor : descriptors.split("\\s+")) {
+                if (descriptor.length() < 2) continue;
+                char unit = Character.toLowerCase(descriptor.charAt(descriptor.length() - 1));
+                String number = descriptor.substring(0, descriptor.length() - 1);
+                try {
+                    if (unit == 'w') parsedWidth = Integer.parseInt(number);
+                    if (unit == 'x') parsedDensity = Double.parseDouble(number);
+                } catch (NumberFormatException e) {
+                    // Invalid descriptor, the candidate's size stays unknown
+                }
+            }
+            this.width = parsedWidth;
+            this.density = parsedDensity;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.eulerity.hackathon.imagefinder.crawler;
+
+import java.util.Locale;
+
+/**
+ * Builds the context of a link from its attributes, the same way for every {@link PageExtractor}.
+ * Anchor text would only be known once the link is closed, so the attributes available on the start tag are used.
+ */
+final class LinkContext {
+    static final String[] ATTRIBUTES = {"rel", "title", "class", "id", "aria-label", "data-link-name"};
+
+    private LinkContext() {
+    }
+
+    /**
+     * @param values the values of {@link #ATTRIBUTES}, null where an attribute is absent.
+     * @return the non-empty values, trimmed, separated by spaces and lower-cased.
+     */
+    static String join(String[] values) {
+        StringBuilder context = new StringBuilder();
+        for (String value : values) {
+            if (value == null) continue;
+            String trimmed = value.trim();
+            if (trimmed.isEmpty()) continue;
+            if (context.length() > 0) context.append(' ');
+            context.append(trimmed);
+        }
+        return context.toString().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,144 @@
+package com.eulerity.hackathon.imagefinder.crawler;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Guesses how many images a link will yield from cheap signals, so a best-first crawl fills its image budget with
+ * as few page fetches as possible. A score adds up:
+ * <ul>
+ *     <li>words in the URL path, e.g. "gallery" or a date for, "login" or ".pdf" against,</li>
+ *     <li>the same kind of words in the link's context, i.e. its class, title and similar attributes,</li>
+ *     <li>the image density of the page the link was found on,</li>
+ *     <li>the number of images actually found so far on pages of the same host and section, learned while
+ *     crawling and shared by all crawls of the process.</li>
+ * </ul>
+ * Scores are only compared with each other; higher means crawl earlier. All methods are thread-safe.
+ */
+public class LinkScorer {
+    // Words hinting at image-heavy pages; the first group more strongly than the second
+    private static final Pattern VISUAL = Pattern.compile("galler(y|ies)|photo|slideshow|album|picture|portfolio|lookbook|\\bpics?\\b");
+    private static final Pattern CONTENT = Pattern.compile("article|story|stories|news|blog|post|product|item|recipe|review|feature");
+    // Pages that rarely have images worth finding
+    private static final Pattern UTILITY = Pattern.compile("log-?in|sign-?(in|up|out)|register|account|cart|checkout|basket|privacy|terms"
+            + "|cookie|contact|about|help|faq|careers|jobs|subscri|newsletter|feedback|search|\\btags?\\b|author|profile|password");
+    private static final Pattern NOT_HTML = Pattern.compile("\\.(pdf|zip|gz|xml|rss|json|txt|csv|docx?|xlsx?|pptx?|mp3|mp4|mov|avi|exe|dmg)$");
+    // A date in the path, e.g. /2020/09/05/ or /2020/sep/05/, usually marks an article
+    private static final Pattern DATED = Pattern.compile("/(19|20)\\d\\d/(\\d\\d?|[a-z]{3})/");
+    private static final int MAX_SECTIONS = 10_000;
+    // How many pages' worth of weight the prior yield has against what was learned
+    private static final double PRIOR_PAGES = 2;
+    private static final double PRIOR_YIELD = 1;
+
+    // Learned yield per host and first path segment, least recently used dropped first
+    private final Map<String, Yield> yields = new LinkedHashMap<String, Yield>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Yield> eldest) {
+            return size() > MAX_SECTIONS;
+        }
+    };
+
+    /**
+     * @param url          the absolute, canonical URL of the link.
+     * @param context      the link's context, see {@link LinkContext}.
+     * @param parentImages the number of images on the page the link was found on.
+     * @return the score, higher is more promising.
+     */
+    public double score(String url, String context, int parentImages) {
+        URL parsed;
+        try {
+            parsed = new URL(url);
+        } catch (MalformedURLException e) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        String path = parsed.getPath().toLowerCase(Locale.ROOT);
+        double score = 0;
+
+        if (NOT_HTML.matcher(path).find()) score -= 4;
+        score += words(path);
+        if (DATED.matcher(path).find()) score += 1;
+        String lastSegment = path.substring(path.lastIndexOf('/') + 1);
+        if (lastSegment.split("-").length >= 4) score += 0.5;  // A long slug is usually an article
+        if (parsed.getQuery() != null) score -= 0.25 * parsed.getQuery().split("&").length;
+
+        if (context != null && !context.isEmpty()) {
+            score += words(context);
+            if (context.contains("nofollow")) score -= 1;
+        }
+
+        score += 0.5 * log2(1 + parentImages);
+        score += log2(1 + learnedYield(parsed));
+        return score;
+    }
+
+    /**
+     * Learns from a crawled page how many images its section yields.
+     *
+     * @param url    the URL of the page.
+     * @param images the number of new images the page contributed.
+     */
+    public void recordYield(String url, int images) {
+        String key = sectionKey(url);
+        if (key == null) return;
+        synchronized (yields) {
+            Yield yield = yields.get(key);
+            if (yield == null) {
+                yield = new Yield();
+                yields.put(key, yield);
+            }
+            yield.pages++;
+            yield.images += images;
+        }
+    }
+
+    /**
+     * @return the average number of images per page crawled in the URL's section, pulled towards a prior while
+     * only few pages are known.
+     */
+    private double learnedYield(URL url) {
+        synchronized (yields) {
+            Yield yield = yields.get(sectionKey(url));
+            if (yield == null) return PRIOR_YIELD;
+            return (yield.images + PRIOR_YIELD * PRIOR_PAGES) / (yield.pages + PRIOR_PAGES);
+        }
+    }
+
+    private static double words(String text) {
+        double score = 0;
+        if (VISUAL.matcher(text).find()) score += 2;
+        if (CONTENT.matcher(text).find()) score += 1;
+        if (UTILITY.matcher(text).find()) score -= 2;
+        return score;
+    }
+
+    private static String sectionKey(String url) {
+        try {
+            return sectionKey(new URL(url));
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the host and the first path segment, e.g. "www.example.com/lifeandstyle".
+     */
+    private static String sectionKey(URL url) {
+        String path = url.getPath();
+        int end = path.indexOf('/', 1);
+        String section = end < 0 ? (path.lastIndexOf('.') > 0 ? "" : path) : path.substring(0, end);
+        return url.getHost() + section.toLowerCase(Locale.ROOT);
+    }
+
+    private static double log2(double value) {
+        return Math.log(value) / Math.log(2);
+    }
+
+    private static class Yield {
+        private int pages;
+        private long images;
+    }
+}
@@ -0,0 +1,318 @@
+package com.eulerity.hackathon.imagefinder.crawler;
+
+import com.eulerity.hackathon.imagefinder.AppConfig;
+import com.eulerity.hackathon.imagefinder.executor.FairShareExecutor;
+import lombok.Getter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A persistent, size-bounded cache of fetched pages that lets repeated crawls revalidate pages with
+ * conditional GETs instead of downloading them again.
+ * Only responses carrying an ETag or Last-Modified header are stored. The validators of every entry are kept
+ * in memory; bodies stay on disk and are read back, off the I/O reactor, only when the server answers 304.
+ * Once the cache grows beyond its size limit the least recently used entries are evicted.
+ * The index and the files change together under the cache's monitor, so a store, a failed load and an eviction
+ * never undo each other. Crawls share the process-wide instance from {@link #getInstance()}; two instances on one
+ * directory would each count and evict the same files.
+ */
+public class PageCache {
+    public static final long MAX_BYTES = 256L * 1024 * 1024;
+    private static final int FORMAT_VERSION = 1;
+    private static final String FILE_SUFFIX = ".page";
+    private static PageCache instance;
+    private static boolean opened;
+
+    private final Path directory;
+    private final long maxBytes;
+    private final Map<String, Entry> index = new ConcurrentHashMap<>();
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong stores = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    // Disk reads and writes run here so they never block the HTTP client's I/O threads
+    private final ExecutorService io = Executors.newSingleThreadExecutor(FairShareExecutor.namedDaemonThreads("page-cache-io"));
+
+    /**
+     * Opens the cache, indexing the entries already on disk.
+     *
+     * @param directory the directory holding the cache files; created if missing.
+     * @param maxBytes  the total size of cached bodies after which old entries are evicted.
+     * @throws IOException if the directory can't be created or listed.
+     */
+    public PageCache(Path directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + FILE_SUFFIX)) {
+            for (Path file : files) {
+                try {
+                    Entry entry = readHeader(file);
+                    index.put(entry.requestUrl, entry);
+                    totalBytes.addAndGet(entry.sizeBytes);
+                } catch (IOException e) {
+                    Files.deleteIfExists(file);  // Corrupt or from an older format
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the process-wide cache configured with PAGE_CACHE_ENABLED, PAGE_CACHE_DIR and PAGE_CACHE_MAX_BYTES,
+     * or null if it is disabled or its directory can't be used.
+     */
+    public static synchronized PageCache getInstance() {
+        if (!opened) {
+            opened = true;
+            if (!AppConfig.getBoolean("PAGE_CACHE_ENABLED", true)) {
+                return null;
+            }
+            String directory = AppConfig.getString("PAGE_CACHE_DIR",
+                    Paths.get(System.getProperty("java.io.tmpdir"), "imagefinder", "page-cache").toString());
+            try {
+                instance = new PageCache(Paths.get(directory), AppConfig.getLong("PAGE_CACHE_MAX_BYTES", MAX_BYTES));
+            } catch (IOException e) {
+                System.out.println("Page cache disabled, " + directory + " is not usable: " + e.getMessage());
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Looks up the validators for a URL and counts the lookup as a miss or a revalidation.
+     *
+     * @param url the request URL.
+     * @return the cache entry, or null if the URL isn't cached.
+     */
+    public Entry lookup(String url) {
+        Entry entry = index.get(url);
+        if (entry == null) {
+            misses.incrementAndGet();
+        } else {
+            revalidations.incrementAndGet();
+        }
+        return entry;
+    }
+
+    /**
+     * Builds the page for a 304 response from the cached copy.
+     *
+     * @param entry the entry that was revalidated.
+     * @return a future completing with the cached page, or failing if the cached body can't be read.
+     */
+    public CompletableFuture<FetchedPage> load(Entry entry) {
+        return CompletableFuture.supplyAsync(() -> {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(entry.file)))) {
+                Entry header = readHeader(in, entry.file);
+                byte[] body = new byte[in.readInt()];
+                in.readFully(body);
+                entry.lastAccess = System.currentTimeMillis();
+                hits.incrementAndGet();
+                return new FetchedPage(header.finalUrl, 200, header.mimeType, header.charset, body, false,
+                        header.etag, header.lastModified, true);
+            } catch (IOException e) {
+                remove(entry);
+                throw new UncheckedIOException(e);
+            }
+        }, io);
+    }
+
+    /**
+     * Stores a successful response in the background if it carries a validator.
+     *
+     * @param url  the request URL.
+     * @param page the fetched page.
+     */
+    public void store(String url, FetchedPage page) {
+        if (page.getEtag() == null && page.getLastModified() == null) {
+            return;
+        }
+        io.execute(() -> {
+            Path file = directory.resolve(Long.toHexString(UrlCanonicalizer.fingerprint(url)) + FILE_SUFFIX);
+            Path temp = directory.resolve(file.getFileName() + ".tmp");
+            try {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                    out.writeInt(FORMAT_VERSION);
+                    out.writeUTF(url);
+                    out.writeUTF(page.getUrl());
+                    writeNullable(out, page.getEtag());
+                    writeNullable(out, page.getLastModified());
+                    writeNullable(out, page.getMimeType());
+                    writeNullable(out, page.getCharset());
+                    out.writeLong(System.currentTimeMillis());
+                    out.writeInt(page.getBody().length);
+                    out.write(page.getBody());
+                }
+                synchronized (this) {
+                    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    Entry entry = readHeader(file);
+                    Entry previous = index.put(url, entry);
+                    if (previous != null) {
+                        totalBytes.addAndGet(-previous.sizeBytes);
+                    }
+                    totalBytes.addAndGet(entry.sizeBytes);
+                    stores.incrementAndGet();
+                    if (totalBytes.get() > maxBytes) {
+                        evictToSize(maxBytes * 9 / 10);  // Leave some headroom so we don't evict on every store
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Couldn't cache " + url + ": " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Evicts the least recently used entries until the cache is at most the given size.
+     *
+     * @param targetBytes the size to shrink the cache to.
+     * @return the number of evicted entries.
+     */
+    public synchronized int evictToSize(long targetBytes) {
+        List<Entry> entries = new ArrayList<>(index.values());
+        entries.sort(Comparator.comparingLong(entry -> entry.lastAccess));
+        int evicted = 0;
+        for (Entry entry : entries) {
+            if (totalBytes.get() <= targetBytes) break;
+            remove(entry);
+            evicted++;
+        }
+        return evicted;
+    }
+
+    /**
+     * Evicts every entry stored longer ago than the given age.
+     *
+     * @param maxAgeMillis the maximum age of an entry in milliseconds.
+     * @return the number of evicted entries.
+     */
+    public synchronized int evictOlderThan(long maxAgeMillis) {
+        long cutoff = System.currentTimeMillis() - maxAgeMillis;
+        int evicted = 0;
+        for (Entry entry : new ArrayList<>(index.values())) {
+            if (entry.storedAt < cutoff) {
+                remove(entry);
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * @return hit, miss, revalidation, store and eviction counters plus the cache size.
+     */
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("entries", (long) index.size());
+        stats.put("bytes", totalBytes.get());
+        stats.put("maxBytes", maxBytes);
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        stats.put("revalidations", revalidations.get());
+        stats.put("stores", stores.get());
+        stats.put("evictions", evictions.get());
+        return stats;
+    }
+
+    public void close() {
+        io.shutdown();
+    }
+
+    /**
+     * Drops an entry and its file, unless it was replaced already: the file then holds the newer entry.
+     */
+    private synchronized void remove(Entry entry) {
+        if (!index.remove(entry.requestUrl, entry)) {
+            return;
+        }
+        totalBytes.addAndGet(-entry.sizeBytes);
+        evictions.incrementAndGet();
+        try {
+            Files.deleteIfExists(entry.file);
+        } catch (IOException e) {
+            System.out.println("Couldn't delete cached page " + entry.file + ": " + e.getMessage());
+        }
+    }
+
+    private static Entry readHeader(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            return readHeader(in, file);
+        }
+    }
+
+    private static Entry readHeader(DataInputStream in, Path file) throws IOException {
+        if (in.readInt() != FORMAT_VERSION) {
+            throw new IOException("Unknown cache format in " + file);
+        }
+        String requestUrl = in.readUTF();
+        String finalUrl = in.readUTF();
+        String etag = readNullable(in);
+        String lastModified = readNullable(in);
+        String mimeType = readNullable(in);
+        String charset = readNullable(in);
+        long storedAt = in.readLong();
+        return new Entry(file, requestUrl, finalUrl, etag, lastModified, mimeType, charset, storedAt, Files.size(file));
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) out.writeUTF(value);
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * The in-memory part of a cached page: where it lives and the validators to revalidate it with.
+     */
+    @Getter
+    public static class Entry {
+        private final Path file;
+        private final String requestUrl;
+        private final String finalUrl;
+        private final String etag;
+        private final String lastModified;
+        private final String mimeType;
+        private final String charset;
+        private final long storedAt;
+        private final long sizeBytes;
+        private volatile long lastAccess;
+
+        private Entry(Path file, String requestUrl, String finalUrl, String etag, String lastModified,
+                      String mimeType, String charset, long storedAt, long sizeBytes) {
+            this.file = file;
+            this.requestUrl = requestUrl;
+            this.finalUrl = finalUrl;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.mimeType = mimeType;
+            this.charset = charset;
+            this.storedAt = storedAt;
+            this.sizeBytes = sizeBytes;
+            this.lastAccess = storedAt;
+        }
+    }
+}
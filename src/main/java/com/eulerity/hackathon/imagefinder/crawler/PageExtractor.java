@@ -0,0 +1,17 @@
+package com.eulerity.hackathon.imagefinder.crawler;
+
+import java.io.IOException;
+
+/**
+ * Finds the favicons, logos, images and links of a fetched page.
+ * Within each kind, results are reported in document order; logos are reported per logo element, SVGs first.
+ */
+public interface PageExtractor {
+    /**
+     * @param page      the fetched page.
+     * @param inputSize the detector input size of the crawl, which decides the image sources chosen for detection.
+     * @param listener  receives everything found on the page.
+     * @throws IOException if the page can't be read.
+     */
+    void extract(FetchedPage page, int inputSize, ExtractionListener listener) throws IOException;
+}
@@ -0,0 +1,293 @@
+package com.eulerity.hackathon.imagefinder.crawler;
+
+import org.apache.hc.client5.http.async.methods.SimpleRequestBuilder;
+import org.apache.hc.client5.http.async.methods.SimpleRequestProducer;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.DefaultHttpRequestRetryStrategy;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManager;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.protocol.HttpClientContext;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.EntityDetails;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpHeaders;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.HttpStatus;
+import org.apache.hc.core5.http.nio.AsyncResponseConsumer;
+import org.apache.hc.core5.http.nio.CapacityChannel;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.pool.PoolStats;
+import org.apache.hc.core5.reactor.IOReactorConfig;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fetches pages with a pooled, non-blocking HTTP client.
+ * A handful of I/O threads drive every request, so hundreds of fetches can be in flight without holding a
+ * thread each. Connections are kept alive and reused per host, and every request is bounded by connect and
+ * read timeouts and a maximum response size.
+ */
+public class PageFetcher implements AutoCloseable {
+    public static final String USER_AGENT = "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0 Safari/537.36";
+    private static final int IO_THREADS = 2;
+    private static final int MAX_CONNECTIONS = 200;
+    private static final int MAX_CONNECTIONS_PER_HOST = 10;
+    private static final Timeout CONNECT_TIMEOUT = Timeout.ofSeconds(10);
+    private static final Timeout READ_TIMEOUT = Timeout.ofSeconds(15);
+    private static final TimeValue KEEP_ALIVE = TimeValue.ofSeconds(30);
+    // Same as Jsoup's default body limit, larger pages are cut off rather than failed
+    public static final int MAX_BODY_BYTES = 2 * 1024 * 1024;
+
+    private final PoolingAsyncClientConnectionManager connectionManager;
+    private final CloseableHttpAsyncClient client;
+    private final int maxBodyBytes;
+    private final PageCache cache;
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    public PageFetcher() {
+        this(MAX_BODY_BYTES, null);
+    }
+
+    /**
+     * @param maxBodyBytes the number of body bytes after which a response is cut off.
+     * @param cache        the cache to revalidate pages against, or null to always download pages in full.
+     */
+    public PageFetcher(int maxBodyBytes, PageCache cache) {
+        this.maxBodyBytes = maxBodyBytes;
+        this.cache = cache;
+        this.connectionManager = PoolingAsyncClientConnectionManagerBuilder.create()
+                .setMaxConnTotal(MAX_CONNECTIONS)
+                .setMaxConnPerRoute(MAX_CONNECTIONS_PER_HOST)
+                .setDefaultConnectionConfig(ConnectionConfig.custom()
+                        .setConnectTimeout(CONNECT_TIMEOUT)
+                        .setSocketTimeout(READ_TIMEOUT)
+                        .setTimeToLive(TimeValue.ofMinutes(5))
+                        .build())
+                .build();
+        this.client = HttpAsyncClients.custom()
+                .setConnectionManager(connectionManager)
+                .setIOReactorConfig(IOReactorConfig.custom()
+                        .setIoThreadCount(IO_THREADS)
+                        .setSoTimeout(READ_TIMEOUT)
+                        .build())
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setResponseTimeout(READ_TIMEOUT)
+                        .setConnectionKeepAlive(KEEP_ALIVE)
+                        .build())
+                .setUserAgent(USER_AGENT)
+                .setRetryStrategy(new DefaultHttpRequestRetryStrategy() {
+                    @Override
+                    public boolean retryRequest(HttpRequest request, IOException exception, int execCount, HttpContext context) {
+                        // A cut-off body already completed the fetch, don't download the page again
+                        return !(exception instanceof ResponseTooLargeException) && super.retryRequest(request, exception, execCount, context);
+                    }
+                })
+                .disableCookieManagement()
+                .evictIdleConnections(KEEP_ALIVE)
+                .build();
+        this.client.start();
+    }
+
+    /**
+     * Starts fetching a page. Redirects are followed.
+     * If the page is cached, the request is made conditional and a 304 response is answered with the cached copy.
+     * Successful responses carrying an ETag or Last-Modified header are added to the cache.
+     *
+     * @param url the URL of the page.
+     * @return a future that completes with the response once the whole body has arrived.
+     */
+    public CompletableFuture<FetchedPage> fetch(String url) {
+        if (cache == null) {
+            return execute(url, null);
+        }
+        PageCache.Entry cached = cache.lookup(url);
+        return execute(url, cached).thenCompose(page -> {
+            if (cached != null && page.getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+                // If the cached copy vanished or is corrupt, download the page again
+                return cache.load(cached).handle((cachedPage, error) -> cachedPage)
+                        .thenCompose(cachedPage -> cachedPage != null ? CompletableFuture.completedFuture(cachedPage) : execute(url, null));
+            }
+            if (page.getStatusCode() / 100 == 2 && !page.isTruncated()) {
+                cache.store(url, page);
+            }
+            return CompletableFuture.completedFuture(page);
+        });
+    }
+
+    private CompletableFuture<FetchedPage> execute(String url, PageCache.Entry cached) {
+        CompletableFuture<FetchedPage> future = new CompletableFuture<>();
+        HttpClientContext context = HttpClientContext.create();
+        SimpleRequestBuilder request = SimpleRequestBuilder.get(url);
+        if (cached != null && cached.getEtag() != null) {
+            request.addHeader(HttpHeaders.IF_NONE_MATCH, cached.getEtag());
+        }
+        if (cached != null && cached.getLastModified() != null) {
+            request.addHeader(HttpHeaders.IF_MODIFIED_SINCE, cached.getLastModified());
+        }
+        inFlight.incrementAndGet();
+        try {
+            client.execute(SimpleRequestProducer.create(request.build()),
+                    new PageConsumer(url, context, maxBodyBytes), null, context, new FutureCallback<FetchedPage>() {
+                        @Override
+                        public void completed(FetchedPage page) {
+                            inFlight.decrementAndGet();
+                            future.complete(page);
+                        }
+
+                        @Override
+                        public void failed(Exception e) {
+                            inFlight.decrementAndGet();
+                            future.completeExceptionally(e);
+                        }
+
+                        @Override
+                        public void cancelled() {
+                            inFlight.decrementAndGet();
+                            future.cancel(false);
+                        }
+                    });
+        } catch (RuntimeException e) {
+            inFlight.decrementAndGet();
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * @return the number of fetches in flight and the state of the connection pool.
+     */
+    public Map<String, Integer> getStats() {
+        PoolStats pool = connectionManager.getTotalStats();
+        Map<String, Integer> stats = new LinkedHashMap<>();
+        stats.put("inFlight", inFlight.get());
+        stats.put("leasedConnections", pool.getLeased());
+        stats.put("availableConnections", pool.getAvailable());
+        stats.put("pendingConnections", pool.getPending());
+        stats.put("maxConnections", pool.getMax());
+        return stats;
+    }
+
+    @Override
+    public void close() {
+        client.close(CloseMode.GRACEFUL);
+    }
+
+    /**
+     * Buffers a response body up to the size limit. Once the limit is hit, the page is completed with what has
+     * arrived so far and the connection is aborted so the rest is never downloaded.
+     */
+    private static class PageConsumer implements AsyncResponseConsumer<FetchedPage> {
+        private final String requestUrl;
+        private final HttpClientContext context;
+        private final int maxBodyBytes;
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private FutureCallback<FetchedPage> resultCallback;
+        private int statusCode;
+        private String mimeType;
+        private String charset;
+        private String etag;
+        private String lastModified;
+
+        private PageConsumer(String requestUrl, HttpClientContext context, int maxBodyBytes) {
+            this.requestUrl = requestUrl;
+            this.context = context;
+            this.maxBodyBytes = maxBodyBytes;
+        }
+
+        @Override
+        public void consumeResponse(HttpResponse response, EntityDetails entityDetails, HttpContext httpContext,
+                                    FutureCallback<FetchedPage> resultCallback) {
+            this.resultCallback = resultCallback;
+            this.statusCode = response.getCode();
+            Header contentTypeHeader = response.getFirstHeader("Content-Type");
+            if (contentTypeHeader != null) {
+                try {
+                    ContentType contentType = ContentType.parse(contentTypeHeader.getValue());
+                    Charset parsedCharset = contentType.getCharset();
+                    this.mimeType = contentType.getMimeType();
+                    this.charset = parsedCharset != null ? parsedCharset.name() : null;
+                } catch (RuntimeException e) {
+                    // Unparseable Content-Type, let the parser sniff the document instead
+                }
+            }
+            Header etagHeader = response.getFirstHeader(HttpHeaders.ETAG);
+            Header lastModifiedHeader = response.getFirstHeader(HttpHeaders.LAST_MODIFIED);
+            this.etag = etagHeader != null ? etagHeader.getValue() : null;
+            this.lastModified = lastModifiedHeader != null ? lastModifiedHeader.getValue() : null;
+            if (entityDetails == null) {
+                resultCallback.completed(buildPage(false));
+            }
+        }
+
+        @Override
+        public void informationResponse(HttpResponse response, HttpContext httpContext) {
+        }
+
+        @Override
+        public void updateCapacity(CapacityChannel capacityChannel) throws IOException {
+            capacityChannel.update(Integer.MAX_VALUE);
+        }
+
+        @Override
+        public void consume(ByteBuffer src) throws IOException {
+            int room = maxBodyBytes - body.size();
+            byte[] chunk = new byte[Math.min(room, src.remaining())];
+            src.get(chunk);
+            body.write(chunk, 0, chunk.length);
+            if (src.hasRemaining()) {
+                resultCallback.completed(buildPage(true));
+                throw new ResponseTooLargeException("Response from " + requestUrl + " exceeds " + maxBodyBytes + " bytes");
+            }
+        }
+
+        @Override
+        public void streamEnd(List<? extends Header> trailers) {
+            resultCallback.completed(buildPage(false));
+        }
+
+        @Override
+        public void failed(Exception cause) {
+        }
+
+        @Override
+        public void releaseResources() {
+        }
+
+        private FetchedPage buildPage(boolean truncated) {
+            String finalUrl = requestUrl;
+            if (context.getRedirectLocations() != null) {
+                List<URI> redirects = context.getRedirectLocations().getAll();
+                if (!redirects.isEmpty()) {
+                    finalUrl = redirects.get(redirects.size() - 1).toString();
+                }
+            }
+            return new FetchedPage(finalUrl, statusCode, mimeType, charset, body.toByteArray(), truncated,
+                    etag, lastModified, false);
+        }
+    }
+
+    private static class ResponseTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private ResponseTooLargeException(String message) {
+            super(message);
+        }
+    }
+}
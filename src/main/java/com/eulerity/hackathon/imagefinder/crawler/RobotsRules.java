@@ -0,0 +1,160 @@
+package com.eulerity.hackathon.imagefinder.crawler;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The rules of a robots.txt file that apply to this crawler, following RFC 9309.
+ * The group naming the crawler's product token is used if there is one, otherwise the "*" group; a user-agent line
+ * names the crawler if its value is the whole token, in any case. The longest matching Allow or Disallow rule
+ * decides, Allow winning a tie; "*" matches any characters and a trailing "$" anchors a rule to the end of the path.
+ * Matching a rule takes time proportional to the path length times the rule length at worst, so a rule with many
+ * wildcards can't stall the crawl.
+ */
+public class RobotsRules {
+    public static final String USER_AGENT_TOKEN = "imagefinder";
+    public static final RobotsRules ALLOW_ALL = new RobotsRules(Collections.<Rule>emptyList(), Collections.<String>emptyList());
+
+    private final List<Rule> rules;
+    private final List<String> sitemaps;
+
+    private RobotsRules(List<Rule> rules, List<String> sitemaps) {
+        this.rules = rules;
+        this.sitemaps = sitemaps;
+    }
+
+    /**
+     * @param robotsTxt the content of a robots.txt file.
+     * @return the rules for this crawler and the sitemaps listed in the file.
+     */
+    public static RobotsRules parse(String robotsTxt) {
+        List<Rule> ownRules = new ArrayList<>();
+        List<Rule> wildcardRules = new ArrayList<>();
+        List<String> sitemaps = new ArrayList<>();
+        boolean ownGroupFound = false;
+        // The user agents of the group being read; consecutive user-agent lines share one group
+        boolean inOwnGroup = false;
+        boolean inWildcardGroup = false;
+        boolean readingAgents = false;
+
+        for (String line : robotsTxt.split("\r\n|\r|\n")) {
+            int comment = line.indexOf('#');
+            if (comment >= 0) line = line.substring(0, comment);
+            int colon = line.indexOf(':');
+            if (colon < 0) continue;
+            String key = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            String value = line.substring(colon + 1).trim();
+
+            switch (key) {
+                case "user-agent":
+                    if (!readingAgents) {
+                        inOwnGroup = false;
+                        inWildcardGroup = false;
+                        readingAgents = true;
+                    }
+                    String agent = value.toLowerCase(Locale.ROOT);
+                    if (agent.equals("*")) {
+                        inWildcardGroup = true;
+                    } else if (USER_AGENT_TOKEN.equals(agent.split("/")[0].trim())) {
+                        inOwnGroup = true;
+                        ownGroupFound = true;
+                    }
+                    break;
+                case "allow":
+                case "disallow":
+                    readingAgents = false;
+                    if (value.isEmpty()) break;  // An empty Disallow allows everything
+                    Rule rule = new Rule(value, key.equals("allow"));
+                    if (inOwnGroup) ownRules.add(rule);
+                    if (inWildcardGroup) wildcardRules.add(rule);
+                    break;
+                case "sitemap":
+                    if (!value.isEmpty()) sitemaps.add(value);
+                    break;
+                default:
+                    readingAgents = false;
+                    break;
+            }
+        }
+        return new RobotsRules(ownGroupFound ? ownRules : wildcardRules, sitemaps);
+    }
+
+    /**
+     * @param url an absolute URL on the host the rules were fetched from.
+     * @return true if the crawler may fetch the URL.
+     */
+    public boolean isAllowed(String url) {
+        if (rules.isEmpty()) return true;
+        String path;
+        try {
+            URL parsed = new URL(url);
+            path = parsed.getFile().isEmpty() ? "/" : parsed.getFile();
+        } catch (MalformedURLException e) {
+            return false;
+        }
+        if (path.equals("/robots.txt")) return true;
+        Rule decisive = null;
+        for (Rule rule : rules) {
+            if (rule.matches(path) && (decisive == null || rule.length > decisive.length
+                    || (rule.length == decisive.length && rule.allow))) {
+                decisive = rule;
+            }
+        }
+        return decisive == null || decisive.allow;
+    }
+
+    /**
+     * @return the sitemap URLs listed in the file, in file order.
+     */
+    public List<String> getSitemaps() {
+        return sitemaps;
+    }
+
+    private static class Rule {
+        private final String pattern;
+        private final boolean allow;
+        private final int length;
+        private final boolean anchored;
+
+        private Rule(String pattern, boolean allow) {
+            this.anchored = pattern.endsWith("$");
+            this.pattern = anchored ? pattern.substring(0, pattern.length() - 1) : pattern;
+            this.allow = allow;
+            this.length = pattern.length();
+        }
+
+        /**
+         * Matches the path greedily, backtracking only to the most recent "*": any earlier "*" could only take
+         * over characters the later one can take as well.
+         */
+        private boolean matches(String path) {
+            int pathIndex = 0;
+            int patternIndex = 0;
+            // Position of the last "*" seen and of the path character it was tried to match up to
+            int star = -1;
+            int starPathIndex = 0;
+            while (pathIndex < path.length()) {
+                if (patternIndex < pattern.length() && pattern.charAt(patternIndex) == '*') {
+                    star = patternIndex++;
+                    starPathIndex = pathIndex;
+                } else if (patternIndex < pattern.length() && pattern.charAt(patternIndex) == path.charAt(pathIndex)) {
+                    patternIndex++;
+                    pathIndex++;
+                } else if (patternIndex == pattern.length() && !anchored) {
+                    return true;  // Rules match path prefixes
+                } else if (star >= 0) {
+                    patternIndex = star + 1;
+                    pathIndex = ++starPathIndex;
+                } else {
+                    return false;
+                }
+            }
+            while (patternIndex < pattern.length() && pattern.charAt(patternIndex) == '*') patternIndex++;
+            return patternIndex == pattern.length();
+        }
+    }
+}
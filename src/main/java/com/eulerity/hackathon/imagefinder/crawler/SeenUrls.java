@@ -0,0 +1,53 @@
+package com.eulerity.hackathon.imagefinder.crawler;
+
+/**
+ * Remembers every canonical URL a crawl has already enqueued or fetched, by 64-bit fingerprint.
+ * An optional Bloom filter in front of the fingerprint table answers most {@link #contains} lookups for
+ * new URLs without probing the table.
+ */
+public class SeenUrls {
+    private final FingerprintSet fingerprints;
+    private final BloomFilter bloomFilter;
+
+    /**
+     * @param expectedUrls   the number of URLs to size the structures for; the table grows beyond it if needed.
+     * @param useBloomFilter whether to put a Bloom filter in front of the fingerprint table.
+     */
+    public SeenUrls(int expectedUrls, boolean useBloomFilter) {
+        this.fingerprints = new FingerprintSet(expectedUrls);
+        this.bloomFilter = useBloomFilter ? new BloomFilter(expectedUrls, 0.01) : null;
+    }
+
+    /**
+     * Marks a canonical URL as seen.
+     *
+     * @param canonicalUrl the canonical URL, see {@link UrlCanonicalizer#canonicalize(String)}.
+     * @return true if the URL hadn't been seen before.
+     */
+    public synchronized boolean add(String canonicalUrl) {
+        long fingerprint = UrlCanonicalizer.fingerprint(canonicalUrl);
+        if (bloomFilter != null) {
+            bloomFilter.put(fingerprint);
+        }
+        return fingerprints.add(fingerprint);
+    }
+
+    public synchronized boolean contains(String canonicalUrl) {
+        long fingerprint = UrlCanonicalizer.fingerprint(canonicalUrl);
+        if (bloomFilter != null && !bloomFilter.mightContain(fingerprint)) {
+            return false;
+        }
+        return fingerprints.contains(fingerprint);
+    }
+
+    public synchronized int size() {
+        return fingerprints.size();
+    }
+
+    /**
+     * @return the approximate heap size of the fingerprint table and Bloom filter in bytes.
+     */
+    public long memoryBytes() {
+        return fingerprints.memoryBytes() + (bloomFilter != null ? bloomFilter.memoryBytes() : 0);
+    }
+}
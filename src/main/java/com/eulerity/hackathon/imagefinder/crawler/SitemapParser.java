@@ -0,0 +1,117 @@
+package com.eulerity.hackathon.imagefinder.crawler;
+
+import lombok.Getter;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads sitemaps and sitemap indexes with a StAX pull parser, handing out one entry at a time so a sitemap of
+ * many megabytes never has to be held in memory. Gzipped sitemaps are recognized by their magic bytes.
+ * Image sitemap extensions are counted per page, namespaces are otherwise ignored.
+ */
+public final class SitemapParser {
+    private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+
+    static {
+        // Sitemaps come from the web, never resolve DTDs or external entities
+        FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+    }
+
+    private SitemapParser() {
+    }
+
+    /**
+     * @param input   the sitemap, plain or gzipped. It is not closed.
+     * @param onEntry called with every page of a sitemap or every sitemap of a sitemap index, in document order.
+     * @throws IOException if the input can't be read or isn't well-formed XML.
+     */
+    public static void parse(InputStream input, Consumer<Entry> onEntry) throws IOException {
+        InputStream in = new BufferedInputStream(input);
+        in.mark(2);
+        boolean gzipped = in.read() == 0x1f && in.read() == 0x8b;
+        in.reset();
+        if (gzipped) {
+            in = new GZIPInputStream(in);
+        }
+        XMLStreamReader reader = null;
+        try {
+            reader = FACTORY.createXMLStreamReader(in);
+            String loc = null;
+            String lastModified = null;
+            int images = 0;
+            boolean inImage = false;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if (name.equals("url") || name.equals("sitemap")) {
+                        loc = null;
+                        lastModified = null;
+                        images = 0;
+                    } else if (name.equals("image")) {
+                        inImage = true;
+                        images++;
+                    } else if (name.equals("loc") && !inImage) {
+                        loc = reader.getElementText().trim();
+                    } else if (name.equals("lastmod")) {
+                        lastModified = reader.getElementText().trim();
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if (name.equals("image")) {
+                        inImage = false;
+                    } else if ((name.equals("url") || name.equals("sitemap")) && loc != null && !loc.isEmpty()) {
+                        onEntry.accept(new Entry(loc, lastModified, images, name.equals("sitemap")));
+                    }
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Malformed sitemap: " + e.getMessage(), e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    // Nothing left to read
+                }
+            }
+        }
+    }
+
+    @Getter
+    public static class Entry {
+        private final String loc;
+        // W3C datetime, e.g. "2020-09-05" or "2020-09-05T10:00:00+00:00", or null
+        private final String lastModified;
+        private final int images;
+        // True for an entry of a sitemap index, which points to another sitemap
+        private final boolean sitemap;
+
+        public Entry(String loc, String lastModified, int images, boolean sitemap) {
+            this.loc = loc;
+            this.lastModified = lastModified;
+            this.images = images;
+            this.sitemap = sitemap;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry{" +
+                    "loc='" + loc + '\'' +
+                    ", lastModified='" + lastModified + '\'' +
+                    ", images=" + images +
+                    ", sitemap=" + sitemap +
+                    '}';
+        }
+    }
+}
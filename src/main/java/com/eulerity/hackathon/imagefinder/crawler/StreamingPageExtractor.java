@@ -0,0 +1,1040 @@
+package com.eulerity.hackathon.imagefinder.crawler;
+
+import org.jsoup.Jsoup;
+import org.jsoup.internal.StringUtil;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.parser.Parser;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Extracts favicons, logos, images and links in a single pass over the page's tags, without building a DOM.
+ * The scanner keeps only the stack of open elements, which tells whether a tag sits inside a logo element or an
+ * SVG, and reads attributes only from the handful of tags the extraction rules look at. Logos are complete once
+ * the outermost logo element is closed.
+ * <p>
+ * The rules and resolved URLs are the same as {@link DomPageExtractor}'s, and so is the markup of logo SVGs,
+ * which is the one place a (small) tree is built. To put every tag under the same parent as Jsoup does, the
+ * scanner follows Jsoup's tree construction rules for the body: implied end tags (a new li, dd, dt, option or
+ * button closing the open one, a block closing an open p), scoped end tags, select elements, which ignore
+ * everything but their options, and the list of active formatting elements. Where those rules move or copy
+ * elements instead of just closing them (tables, which move misplaced content out of the table, a formatting end
+ * tag with a block inside the element, which the adoption agency algorithm splits, a link reopened after it was
+ * closed implicitly, framesets and isindex), the page is extracted with {@link DomPageExtractor} instead. Results
+ * are therefore held back until the scan completes.
+ */
+public class StreamingPageExtractor implements PageExtractor {
+    private static final Set<String> VOID_TAGS = new HashSet<>(Arrays.asList(
+            "area", "base", "basefont", "bgsound", "br", "col", "command", "device", "embed", "frame", "hr", "img",
+            "input", "keygen", "link", "menuitem", "meta", "param", "source", "track", "wbr"));
+    // Elements whose content is text up to their end tag, so "<img" inside them is not a tag
+    private static final Set<String> RAW_TEXT_TAGS = new HashSet<>(Arrays.asList(
+            "script", "style", "textarea", "title", "xmp", "iframe", "noembed", "noframes"));
+    // Start tags that don't end the head; anything else, or text, implicitly starts the body
+    private static final Set<String> HEAD_TAGS = new HashSet<>(Arrays.asList(
+            "html", "head", "base", "basefont", "bgsound", "command", "link", "meta", "title", "noframes", "style",
+            "script", "noscript"));
+    // Inside a <noscript> in the head, every other tag is just text
+    private static final Set<String> HEAD_NOSCRIPT_TAGS = new HashSet<>(Arrays.asList(
+            "basefont", "bgsound", "link", "meta", "noframes", "style"));
+    // The tree construction sets of Jsoup's HtmlTreeBuilder and HtmlTreeBuilderState, for tags in the body
+    private static final Set<String> SPECIAL_TAGS = tags(
+            "address", "applet", "area", "article", "aside", "base", "basefont", "bgsound", "blockquote", "body", "br",
+            "button", "caption", "center", "col", "colgroup", "command", "dd", "details", "dir", "div", "dl", "dt",
+            "embed", "fieldset", "figcaption", "figure", "footer", "form", "frame", "frameset", "h1", "h2", "h3", "h4",
+            "h5", "h6", "head", "header", "hgroup", "hr", "html", "iframe", "img", "input", "isindex", "li", "link",
+            "listing", "marquee", "menu", "meta", "nav", "noembed", "noframes", "noscript", "object", "ol", "p", "param",
+            "plaintext", "pre", "script", "section", "select", "style", "summary", "table", "tbody", "td", "textarea",
+            "tfoot", "th", "thead", "title", "tr", "ul", "wbr", "xmp");
+    private static final Set<String> SCOPE_TAGS = tags("applet", "caption", "html", "marquee", "object", "table", "td", "th");
+    private static final Set<String> LIST_SCOPE_TAGS = tags("ol", "ul");
+    private static final Set<String> BUTTON_SCOPE_TAGS = tags("button");
+    // Start tags that close an open p first
+    private static final Set<String> P_CLOSERS = tags(
+            "address", "article", "aside", "blockquote", "center", "details", "dir", "div", "dl", "fieldset",
+            "figcaption", "figure", "footer", "header", "hgroup", "hr", "listing", "menu", "nav", "ol", "p", "pre",
+            "section", "summary", "ul");
+    // Special elements a new li, dd or dt may be nested in without closing the open one
+    private static final Set<String> LIST_ITEM_BREAKERS = tags("address", "div", "p");
+    private static final Set<String> HEADINGS = tags("h1", "h2", "h3", "h4", "h5", "h6");
+    private static final Set<String> FORMATTING_TAGS = tags(
+            "a", "b", "big", "code", "em", "font", "i", "nobr", "s", "small", "strike", "strong", "tt", "u");
+    // Elements that stop reopening formatting elements opened outside them
+    private static final Set<String> MARKER_TAGS = tags("applet", "marquee", "object");
+    // Table parts and the head are dropped in the body, head elements handled as if they were in the head
+    private static final Set<String> IGNORED_BODY_TAGS = tags(
+            "caption", "col", "colgroup", "frame", "head", "tbody", "td", "tfoot", "th", "thead", "tr",
+            "basefont", "bgsound", "command", "meta");
+    private static final Set<String> BLOCK_END_TAGS = tags(
+            "address", "article", "aside", "blockquote", "button", "center", "details", "dir", "div", "dl", "fieldset",
+            "figcaption", "figure", "footer", "header", "hgroup", "listing", "menu", "nav", "ol", "pre", "section",
+            "summary", "ul");
+    // Like Jsoup, scope searches give up this many elements below the current one
+    private static final int MAX_SCOPE_DEPTH = 100;
+    private static final String[] ATTRIBUTE_NAMES = {
+            "src", "data-src", "href", "rel", "srcset", "sizes", "width", "type", "title",
+            "class", "id", "data-testid", "aria-label", "data-link-name"};
+    private static final int SRC = 0;
+    private static final int DATA_SRC = 1;
+    private static final int HREF = 2;
+    private static final int REL = 3;
+    private static final int SRCSET = 4;
+    private static final int SIZES = 5;
+    private static final int WIDTH = 6;
+    private static final int TYPE = 7;
+    private static final int TITLE = 8;
+    private static final int FIRST_LOGO_ATTRIBUTE = 9;
+    // The attributes describing a link, in the order of LinkContext.ATTRIBUTES
+    private static final int[] LINK_CONTEXT_ATTRIBUTES = {REL, TITLE, FIRST_LOGO_ATTRIBUTE, FIRST_LOGO_ATTRIBUTE + 1,
+            FIRST_LOGO_ATTRIBUTE + 3, FIRST_LOGO_ATTRIBUTE + 4};
+    private static final int CHARSET_SNIFF_BYTES = 4096;
+    private static final Pattern META_CHARSET = Pattern.compile("<meta[^>]+charset\\s*=\\s*[\"']?\\s*([\\w.:-]+)", Pattern.CASE_INSENSITIVE);
+
+    private final DomPageExtractor domExtractor = new DomPageExtractor();
+
+    @Override
+    public void extract(FetchedPage page, int inputSize, ExtractionListener listener) {
+        byte[] body = page.getBody();
+        int bomLength = 0;
+        Charset charset;
+        if (body.length >= 3 && (body[0] & 0xff) == 0xef && (body[1] & 0xff) == 0xbb && (body[2] & 0xff) == 0xbf) {
+            charset = StandardCharsets.UTF_8;
+            bomLength = 3;
+        } else if (body.length >= 2 && (body[0] & 0xff) == 0xfe && (body[1] & 0xff) == 0xff) {
+            charset = StandardCharsets.UTF_16BE;
+            bomLength = 2;
+        } else if (body.length >= 2 && (body[0] & 0xff) == 0xff && (body[1] & 0xff) == 0xfe) {
+            charset = StandardCharsets.UTF_16LE;
+            bomLength = 2;
+        } else {
+            charset = detectCharset(body, page.getCharset());
+        }
+        String html = new String(body, bomLength, body.length - bomLength, charset);
+        BufferedListener results = new BufferedListener();
+        if (new Scanner(html, page.getUrl(), charset, inputSize, results).scan()) {
+            results.replay(listener);
+            return;
+        }
+        try {
+            domExtractor.extract(page, inputSize, listener);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);  // Byte array streams don't throw
+        }
+    }
+
+    private static Set<String> tags(String... names) {
+        return new HashSet<>(Arrays.asList(names));
+    }
+
+    /**
+     * Uses the charset of the Content-Type header, else the one declared by a meta tag near the top of the page,
+     * else UTF-8, like Jsoup does.
+     */
+    private static Charset detectCharset(byte[] body, String declared) {
+        if (declared != null && isSupported(declared)) {
+            return Charset.forName(declared);
+        }
+        String head = new String(body, 0, Math.min(body.length, CHARSET_SNIFF_BYTES), StandardCharsets.ISO_8859_1);
+        Matcher matcher = META_CHARSET.matcher(head);
+        if (matcher.find() && isSupported(matcher.group(1))) {
+            return Charset.forName(matcher.group(1));
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    private static boolean isSupported(String charset) {
+        try {
+            return Charset.isSupported(charset);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * The state of one pass over a page.
+     */
+    private static class Scanner {
+        private final String html;
+        private final int length;
+        private final Charset charset;
+        private final int inputSize;
+        private final ExtractionListener listener;
+        private String baseUri;
+        private URL base;
+        private boolean baseSet;
+        private boolean resolvedUrls;
+        // The open elements of the body, without the html and body elements themselves
+        private final List<OpenElement> stack = new ArrayList<>();
+        // Jsoup's list of active formatting elements, null for the marker an applet, marquee or object opens
+        private final List<OpenElement> formatting = new ArrayList<>();
+        // The form element pointer, set until the form's end tag even if the form was closed implicitly
+        private OpenElement form;
+        private OpenElement select;
+        // Set when the page needs a DOM to be extracted like DomPageExtractor does
+        private boolean needsDom;
+        // Logo elements in document order, waiting for the outermost one to close
+        private final List<Logo> logos = new ArrayList<>();
+        private int openLogos;
+        private int openSvgs;
+        private boolean inHead = true;
+        private boolean inHeadNoscript;
+        // Values of ATTRIBUTE_NAMES on the current tag, null if absent
+        private final String[] attributes = new String[ATTRIBUTE_NAMES.length];
+
+        private Scanner(String html, String baseUri, Charset charset, int inputSize, ExtractionListener listener) {
+            this.html = html;
+            this.length = html.length();
+            this.baseUri = baseUri;
+            this.charset = charset;
+            this.inputSize = inputSize;
+            this.listener = listener;
+        }
+
+        /**
+         * @return false if the page needs a DOM, and nothing was reported.
+         */
+        private boolean scan() {
+            int pos = 0;
+            while (pos < length && !needsDom) {
+                int lt = html.indexOf('<', pos);
+                int textEnd = lt < 0 ? length : lt;
+                if (inHead && !inHeadNoscript && hasText(pos, textEnd)) {
+                    inHead = false;
+                }
+                if (textEnd > pos && !inHead) {
+                    text(pos);
+                }
+                if (lt < 0 || lt + 1 >= length) break;
+                char next = html.charAt(lt + 1);
+                if (next == '!') {
+                    pos = skipMarkupDeclaration(lt);
+                } else if (next == '?') {
+                    pos = skipPast('>', lt);
+                } else if (next == '/' && lt + 2 < length && isAsciiLetter(html.charAt(lt + 2))) {
+                    pos = endTag(lt);
+                } else if (next == '/') {
+                    pos = skipPast('>', lt);  // "</>" or a bogus comment
+                } else if (isAsciiLetter(next)) {
+                    pos = startTag(lt);
+                } else {
+                    pos = lt + 1;  // A lone '<' in text
+                    if (!inHead) text(lt);
+                }
+            }
+            if (needsDom) {
+                return false;
+            }
+            if (!stack.isEmpty()) {
+                close(0, length, length);
+            }
+            flushLogos();
+            return true;
+        }
+
+        /**
+         * Text in the body reopens the formatting elements that were closed implicitly, like any inline tag.
+         */
+        private void text(int start) {
+            if (select == null) {
+                reconstructFormatting(start);
+            }
+        }
+
+        private int skipMarkupDeclaration(int lt) {
+            if (html.startsWith("<!--", lt)) {
+                if (html.startsWith("<!-->", lt)) return lt + 5;
+                if (html.startsWith("<!--->", lt)) return lt + 6;
+                int end = html.indexOf("-->", lt + 4);
+                return end < 0 ? length : end + 3;
+            }
+            return skipPast('>', lt);  // Doctype, CDATA or a bogus comment
+        }
+
+        private int skipPast(char c, int from) {
+            int index = html.indexOf(c, from);
+            return index < 0 ? length : index + 1;
+        }
+
+        private int startTag(int lt) {
+            int i = lt + 1;
+            while (i < length && !isTagNameEnd(html.charAt(i))) i++;
+            String name = html.substring(lt + 1, i).toLowerCase(Locale.ROOT);
+            if (name.equals("image") && openSvgs == 0) {
+                name = "img";  // Like browsers, Jsoup treats <image> outside SVG as <img>
+            }
+            boolean ignored = inHeadNoscript && !HEAD_NOSCRIPT_TAGS.contains(name);
+            boolean capture = !ignored && (name.equals("img") || name.equals("a") || name.equals("div") || name.equals("link")
+                    || name.equals("base") || name.equals("source"));
+            Arrays.fill(attributes, null);
+
+            boolean selfClosing = false;
+            boolean closed = false;
+            while (i < length) {
+                char c = html.charAt(i);
+                if (c == '>') {
+                    i++;
+                    closed = true;
+                    break;
+                }
+                if (c == '/') {
+                    if (i + 1 < length && html.charAt(i + 1) == '>') {
+                        selfClosing = true;
+                        closed = true;
+                        i += 2;
+                        break;
+                    }
+                    i++;
+                    continue;
+                }
+                if (isWhitespace(c)) {
+                    i++;
+                    continue;
+                }
+                int nameStart = i++;
+                while (i < length && !isAttributeNameEnd(html.charAt(i))) i++;
+                int nameEnd = i;
+                while (i < length && isWhitespace(html.charAt(i))) i++;
+                int valueStart = -1;
+                int valueEnd = -1;
+                if (i < length && html.charAt(i) == '=') {
+                    i++;
+                    while (i < length && isWhitespace(html.charAt(i))) i++;
+                    if (i < length) {
+                        char quote = html.charAt(i);
+                        if (quote == '"' || quote == '\'') {
+                            int close = html.indexOf(quote, i + 1);
+                            valueStart = i + 1;
+                            valueEnd = close < 0 ? length : close;
+                            i = close < 0 ? length : close + 1;
+                        } else {
+                            valueStart = i;
+                            while (i < length && !isWhitespace(html.charAt(i)) && html.charAt(i) != '>') i++;
+                            valueEnd = i;
+                        }
+                    }
+                }
+                if (capture) {
+                    captureAttribute(nameStart, nameEnd, valueStart, valueEnd);
+                }
+            }
+            if (!closed) {
+                return length;  // A tag cut off by the end of the page is dropped
+            }
+            if (ignored) {
+                return i;
+            }
+            if (select != null) {
+                // A select only holds options: other tags are dropped, and a few close the select first
+                if (name.equals("select") || name.equals("input") || name.equals("keygen") || name.equals("textarea")) {
+                    close(stack.lastIndexOf(select), lt, lt);
+                }
+                if (name.equals("script")) {
+                    return selfClosing ? i : skipRawText(name, i);
+                }
+                if (select != null || name.equals("select")) {
+                    return i;
+                }
+            }
+            if (inHead && !HEAD_TAGS.contains(name)) {
+                inHead = false;
+            }
+            if (inHead && name.equals("noscript")) {
+                inHeadNoscript = true;
+                return i;
+            }
+
+            if (RAW_TEXT_TAGS.contains(name)) {
+                if (name.equals("xmp")) {
+                    closeParagraph(lt);
+                    reconstructFormatting(lt);
+                }
+                return selfClosing ? i : skipRawText(name, i);
+            }
+            if (name.equals("plaintext")) {
+                // The rest of the page is text in the plaintext element
+                closeParagraph(lt);
+                if (i < length) text(i);
+                return length;
+            }
+            handleStartTag(name, selfClosing, lt, i);
+            return i;
+        }
+
+        private void handleStartTag(String name, boolean selfClosing, int tagStart, int tagEnd) {
+            switch (name) {
+                case "base":
+                    // The first base element with an href changes the base URI of the whole document
+                    if (!baseSet && attributes[HREF] != null) {
+                        String href = StringUtil.resolve(baseUri, attributes[HREF]);
+                        if (!href.isEmpty() && resolvedUrls) {
+                            needsDom = true;  // Jsoup resolves the URLs of elements before the base with it too
+                        } else if (!href.isEmpty()) {
+                            baseUri = href;
+                            base = null;
+                            baseSet = true;
+                        }
+                    }
+                    return;
+                case "link":
+                    if (attributes[REL] != null) {
+                        String rel = attributes[REL].trim();
+                        if (rel.equalsIgnoreCase("icon") || rel.equalsIgnoreCase("shortcut icon")) {
+                            listener.onFavicon(absUrl(HREF));
+                        }
+                    }
+                    return;
+                case "img":
+                    reconstructFormatting(tagStart);
+                    if (needsDom) return;
+                    String src = absUrl(SRC).isEmpty() ? absUrl(DATA_SRC) : absUrl(SRC);
+                    for (OpenElement element : stack) {
+                        if (element.logo != null) element.logo.images.add(src);
+                    }
+                    if (isLogo()) {
+                        Logo logo = new Logo();
+                        logo.images.add(src);  // A logo image is its own logo
+                        logos.add(logo);
+                        if (openLogos == 0) flushLogos();
+                    }
+                    if (attributes[SRC] != null || attributes[DATA_SRC] != null) {
+                        OpenElement parent = stack.isEmpty() ? null : stack.get(stack.size() - 1);
+                        List<String[]> sources = parent != null && parent.sources != null ? parent.sources : Collections.<String[]>emptyList();
+                        listener.onImage(src, ImageSourceSelector.select(src, attributes[WIDTH], attributes[SIZES], attributes[SRCSET],
+                                sources, this::resolve, inputSize));
+                    }
+                    return;
+                case "source":
+                    OpenElement picture = stack.isEmpty() ? null : stack.get(stack.size() - 1);
+                    if (attributes[SRCSET] != null && picture != null && picture.name.equals("picture")) {
+                        if (picture.sources == null) picture.sources = new ArrayList<>();
+                        picture.sources.add(new String[]{attributes[SRCSET], attributes[TYPE]});
+                    }
+                    return;
+                case "a":
+                    // A link can't contain another link, the open one is closed first, or dropped if it can't be
+                    OpenElement open = activeFormatting("a");
+                    if (open != null) {
+                        endFormatting("a", tagStart, tagStart);
+                        if (open.open && !needsDom) remove(stack.lastIndexOf(open));
+                        formatting.remove(open);
+                    }
+                    reconstructFormatting(tagStart);
+                    if (needsDom) return;
+                    if (attributes[HREF] != null) {
+                        listener.onLink(absUrl(HREF), linkContext());
+                    }
+                    break;
+                case "svg":
+                    reconstructFormatting(tagStart);
+                    if (selfClosing) {
+                        addSvg(stack.size(), tagStart, html.substring(tagStart, tagEnd));
+                        return;
+                    }
+                    break;
+                case "li":
+                case "dd":
+                case "dt":
+                    closeListItem(name, tagStart);
+                    closeParagraph(tagStart);
+                    break;
+                case "button":
+                    int button = inScope("button", BUTTON_SCOPE_TAGS);
+                    if (button >= 0) close(button, tagStart, tagStart);
+                    reconstructFormatting(tagStart);
+                    break;
+                case "form":
+                    if (form != null) return;  // Forms don't nest
+                    closeParagraph(tagStart);
+                    break;
+                case "h1":
+                case "h2":
+                case "h3":
+                case "h4":
+                case "h5":
+                case "h6":
+                    closeParagraph(tagStart);
+                    if (!stack.isEmpty() && HEADINGS.contains(stack.get(stack.size() - 1).name)) {
+                        close(stack.size() - 1, tagStart, tagStart);
+                    }
+                    break;
+                case "option":
+                case "optgroup":
+                    if (!stack.isEmpty() && stack.get(stack.size() - 1).name.equals("option")) {
+                        close(stack.size() - 1, tagStart, tagStart);
+                    }
+                    reconstructFormatting(tagStart);
+                    break;
+                case "rp":
+                case "rt":
+                    int ruby = inScope("ruby", null);
+                    if (ruby < 0) return;  // Dropped outside a ruby
+                    if (ruby < stack.size() - 1) close(ruby + 1, tagStart, tagStart);
+                    break;
+                case "nobr":
+                    reconstructFormatting(tagStart);
+                    if (inScope("nobr", null) >= 0) {
+                        endFormatting("nobr", tagStart, tagStart);
+                        reconstructFormatting(tagStart);
+                    }
+                    break;
+                case "html":
+                case "body":
+                    return;
+                case "table":
+                case "frameset":
+                case "isindex":
+                    // Misplaced table content is moved before the table, a frameset replaces the body, and isindex
+                    // stands for a whole form
+                    needsDom = true;
+                    return;
+                default:
+                    if (P_CLOSERS.contains(name)) {
+                        closeParagraph(tagStart);
+                    } else if (IGNORED_BODY_TAGS.contains(name)) {
+                        return;
+                    } else if (!name.equals("param") && !name.equals("track")) {
+                        reconstructFormatting(tagStart);
+                    }
+                    break;
+            }
+            if (needsDom || selfClosing || VOID_TAGS.contains(name)) {
+                return;
+            }
+
+            OpenElement element = new OpenElement(name, tagStart);
+            if ((name.equals("a") || name.equals("div")) && isLogo()) {
+                element.logo = new Logo();
+                logos.add(element.logo);
+                openLogos++;
+            }
+            if (name.equals("svg")) {
+                openSvgs++;
+            }
+            stack.add(element);
+            if (FORMATTING_TAGS.contains(name)) {
+                formatting.add(element);
+            } else if (MARKER_TAGS.contains(name)) {
+                formatting.add(null);
+            } else if (name.equals("form")) {
+                form = element;
+            } else if (name.equals("select")) {
+                select = element;
+            }
+        }
+
+        private int endTag(int lt) {
+            int i = lt + 2;
+            while (i < length && !isTagNameEnd(html.charAt(i))) i++;
+            String name = html.substring(lt + 2, i).toLowerCase(Locale.ROOT);
+            int end = skipPast('>', i);
+            if (inHeadNoscript) {
+                inHeadNoscript = !name.equals("noscript");
+                return end;
+            }
+            if (inHead) {
+                // The head ignores end tags other than its own and the ones that start the body
+                inHead = !name.equals("head") && !name.equals("body") && !name.equals("html") && !name.equals("br");
+                if (inHead || name.equals("head")) return end;
+            }
+            if (select != null) {
+                if (name.equals("select")) close(stack.lastIndexOf(select), end, lt);
+                return end;
+            }
+            switch (name) {
+                case "html":
+                case "body":
+                    break;  // Anything after them still goes into the body
+                case "p":
+                    closeInScope(inScope(name, BUTTON_SCOPE_TAGS), end, lt);
+                    break;
+                case "li":
+                    closeInScope(inScope(name, LIST_SCOPE_TAGS), end, lt);
+                    break;
+                case "dd":
+                case "dt":
+                    closeInScope(inScope(name, null), end, lt);
+                    break;
+                case "form":
+                    // Only the form itself is closed, elements opened in it stay open
+                    OpenElement open = form;
+                    form = null;
+                    if (open != null && open.open && inScope(name, null) >= 0) {
+                        remove(stack.lastIndexOf(open));
+                    }
+                    break;
+                case "h1":
+                case "h2":
+                case "h3":
+                case "h4":
+                case "h5":
+                case "h6":
+                    closeInScope(inScope(null, null), end, lt);
+                    break;
+                case "br":
+                    reconstructFormatting(lt);  // Read as a br start tag
+                    break;
+                default:
+                    if (FORMATTING_TAGS.contains(name)) {
+                        endFormatting(name, end, lt);
+                    } else if (BLOCK_END_TAGS.contains(name)) {
+                        closeInScope(inScope(name, null), end, lt);
+                    } else if (MARKER_TAGS.contains(name)) {
+                        int index = inScope(name, null);
+                        if (index >= 0) {
+                            close(index, end, lt);
+                            clearFormattingToMarker();
+                        }
+                    } else {
+                        closeUpToSpecial(name, end, lt);
+                    }
+                    break;
+            }
+            return end;
+        }
+
+        /**
+         * Closes the nearest element with the given name, unless a special element like a div is opened after it.
+         */
+        private void closeUpToSpecial(String name, int end, int lt) {
+            for (int index = stack.size() - 1; index >= 0; index--) {
+                String open = stack.get(index).name;
+                if (open.equals(name)) {
+                    close(index, end, lt);
+                    return;
+                }
+                if (SPECIAL_TAGS.contains(open)) {
+                    return;
+                }
+            }
+        }
+
+        private void closeInScope(int index, int end, int lt) {
+            if (index >= 0) {
+                close(index, end, lt);
+            }
+        }
+
+        /**
+         * Finds the nearest open element with the given name, stopping at the elements that limit the scope.
+         *
+         * @param name  the element's name, or null for any heading.
+         * @param extra the elements that limit the scope besides {@link #SCOPE_TAGS}, or null.
+         * @return the element's stack index, or -1 if it isn't in scope.
+         */
+        private int inScope(String name, Set<String> extra) {
+            int floor = Math.max(0, stack.size() - 1 - MAX_SCOPE_DEPTH);
+            for (int index = stack.size() - 1; index >= floor; index--) {
+                String open = stack.get(index).name;
+                if (name == null ? HEADINGS.contains(open) : open.equals(name)) {
+                    return index;
+                }
+                if (SCOPE_TAGS.contains(open) || (extra != null && extra.contains(open))) {
+                    return -1;
+                }
+            }
+            return -1;
+        }
+
+        private void closeParagraph(int at) {
+            closeInScope(inScope("p", BUTTON_SCOPE_TAGS), at, at);
+        }
+
+        /**
+         * Closes the list item a new li, or the definition a new dd or dt, ends.
+         */
+        private void closeListItem(String name, int at) {
+            boolean definition = !name.equals("li");
+            for (int index = stack.size() - 1; index >= 0; index--) {
+                String open = stack.get(index).name;
+                if (definition ? open.equals("dd") || open.equals("dt") : open.equals("li")) {
+                    closeInScope(inScope(open, definition ? null : LIST_SCOPE_TAGS), at, at);
+                    return;
+                }
+                if (SPECIAL_TAGS.contains(open) && !LIST_ITEM_BREAKERS.contains(open)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return the last active formatting element with the given name after the last marker, or null.
+         */
+        private OpenElement activeFormatting(String name) {
+            for (int i = formatting.size() - 1; i >= 0; i--) {
+                OpenElement element = formatting.get(i);
+                if (element == null) return null;
+                if (element.name.equals(name)) return element;
+            }
+            return null;
+        }
+
+        /**
+         * Handles the end tag of a formatting element. The simple case of the adoption agency algorithm closes the
+         * element; if a special element was opened inside it, the algorithm splits the element around it, which
+         * needs a DOM.
+         */
+        private void endFormatting(String name, int end, int lt) {
+            OpenElement element = activeFormatting(name);
+            if (element == null) {
+                closeUpToSpecial(name, end, lt);
+                return;
+            }
+            if (!element.open) {
+                formatting.remove(element);
+                return;
+            }
+            int index = inScope(name, null);
+            if (index < 0) {
+                return;
+            }
+            for (int above = stack.lastIndexOf(element) + 1; above < stack.size(); above++) {
+                if (SPECIAL_TAGS.contains(stack.get(above).name)) {
+                    needsDom = true;
+                    return;
+                }
+            }
+            close(index, end, lt);
+            formatting.remove(element);
+        }
+
+        /**
+         * Reopens the active formatting elements that were closed implicitly, like Jsoup does before inserting
+         * text and most elements. Reopening a link copies it, which needs a DOM.
+         */
+        private void reconstructFormatting(int at) {
+            int last = formatting.size() - 1;
+            if (last < 0 || formatting.get(last) == null || formatting.get(last).open) {
+                return;
+            }
+            int first = last;
+            while (first > 0 && formatting.get(first - 1) != null && !formatting.get(first - 1).open) {
+                first--;
+            }
+            for (int i = first; i <= last; i++) {
+                OpenElement closed = formatting.get(i);
+                if (closed.name.equals("a")) {
+                    needsDom = true;
+                    return;
+                }
+                OpenElement reopened = new OpenElement(closed.name, at);
+                stack.add(reopened);
+                formatting.set(i, reopened);
+            }
+        }
+
+        private void clearFormattingToMarker() {
+            while (!formatting.isEmpty()) {
+                if (formatting.remove(formatting.size() - 1) == null) return;
+            }
+        }
+
+        /**
+         * Removes an element from the middle of the stack, leaving the elements opened in it open.
+         */
+        private void remove(int index) {
+            OpenElement element = stack.remove(index);
+            element.open = false;
+            if (element.logo != null && --openLogos == 0) {
+                flushLogos();
+            }
+        }
+
+        /**
+         * Pops the element at the given stack index and everything opened after it.
+         *
+         * @param index       the stack index of the element being closed.
+         * @param ownEnd      where the element's markup ends.
+         * @param implicitEnd where the markup ends for elements above it that were left open.
+         */
+        private void close(int index, int ownEnd, int implicitEnd) {
+            for (int top = stack.size() - 1; top >= index; top--) {
+                OpenElement element = stack.remove(top);
+                element.open = false;
+                if (element == select) {
+                    select = null;
+                }
+                if (element.name.equals("svg")) {
+                    openSvgs--;
+                    addSvg(top, element.start, html.substring(element.start, top == index ? ownEnd : implicitEnd));
+                }
+                if (element.logo != null) {
+                    openLogos--;
+                }
+            }
+            if (openLogos == 0) {
+                flushLogos();
+            }
+        }
+
+        /**
+         * Adds an SVG to every logo element enclosing it.
+         *
+         * @param depth  the number of open elements enclosing the SVG.
+         * @param start  where the SVG's markup starts, used to report SVGs in document order.
+         * @param markup the source of the SVG element.
+         */
+        private void addSvg(int depth, int start, String markup) {
+            String outerHtml = null;
+            for (int i = 0; i < depth; i++) {
+                Logo logo = stack.get(i).logo;
+                if (logo == null) continue;
+                if (outerHtml == null) outerHtml = outerHtml(markup);
+                logo.svgs.add(new Svg(start, outerHtml));
+            }
+        }
+
+        /**
+         * Serializes the SVG exactly like Jsoup's outerHtml by parsing just its own markup.
+         */
+        private String outerHtml(String markup) {
+            Document fragment = Jsoup.parseBodyFragment(markup, baseUri);
+            fragment.outputSettings().charset(charset);
+            Element svg = fragment.body().selectFirst("svg");
+            return svg == null ? markup : svg.outerHtml();
+        }
+
+        private void flushLogos() {
+            for (Logo logo : logos) {
+                logo.svgs.sort(Comparator.comparingInt(svg -> svg.start));
+                for (Svg svg : logo.svgs) {
+                    listener.onLogo(svg.markup, true);
+                }
+                for (String src : logo.images) {
+                    listener.onLogo(src, false);
+                }
+            }
+            logos.clear();
+        }
+
+        private boolean hasText(int from, int to) {
+            for (int i = from; i < to; i++) {
+                if (!isWhitespace(html.charAt(i))) return true;
+            }
+            return false;
+        }
+
+        private int skipRawText(String name, int from) {
+            int i = from;
+            int lastEndTag = from - 1;
+            while (true) {
+                int lt = html.indexOf("</", i);
+                if (lt < 0) break;
+                int nameEnd = lt + 2 + name.length();
+                if (html.regionMatches(true, lt + 2, name, 0, name.length())) {
+                    if (nameEnd >= length || isTagNameEnd(html.charAt(nameEnd))) {
+                        return skipPast('>', nameEnd);
+                    }
+                    lastEndTag = lt;
+                }
+                i = lt + 2;
+            }
+            if (name.equals("textarea") || name.equals("title")) {
+                // Without an end tag, Jsoup ends a textarea or title at the first tag after the last "</textarea"
+                for (int lt = html.indexOf('<', lastEndTag + 1); lt >= 0 && lt + 1 < length; lt = html.indexOf('<', lt + 1)) {
+                    if (isAsciiLetter(html.charAt(lt + 1))) return lt;
+                }
+            }
+            return length;
+        }
+
+        private void captureAttribute(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+            int nameLength = nameEnd - nameStart;
+            for (int k = 0; k < ATTRIBUTE_NAMES.length; k++) {
+                String attributeName = ATTRIBUTE_NAMES[k];
+                if (attributeName.length() == nameLength && html.regionMatches(true, nameStart, attributeName, 0, nameLength)) {
+                    if (attributes[k] == null) {  // The first of duplicate attributes wins
+                        String value = valueStart < 0 ? "" : html.substring(valueStart, valueEnd);
+                        attributes[k] = value.indexOf('&') < 0 ? value : unescape(value);
+                    }
+                    return;
+                }
+            }
+        }
+
+        private String linkContext() {
+            String[] values = new String[LINK_CONTEXT_ATTRIBUTES.length];
+            for (int k = 0; k < values.length; k++) {
+                values[k] = attributes[LINK_CONTEXT_ATTRIBUTES[k]];
+            }
+            return LinkContext.join(values);
+        }
+
+        private boolean isLogo() {
+            for (int k = FIRST_LOGO_ATTRIBUTE; k < ATTRIBUTE_NAMES.length; k++) {
+                if (attributes[k] != null && attributes[k].toLowerCase(Locale.ROOT).contains("logo")) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Resolves an attribute like Jsoup's absUrl, parsing the base URI only once per page.
+         */
+        private String absUrl(int attribute) {
+            String value = attributes[attribute];
+            return value == null ? "" : resolve(value);
+        }
+
+        private String resolve(String value) {
+            resolvedUrls = true;
+            if (base == null) {
+                try {
+                    base = new URL(baseUri);
+                } catch (MalformedURLException e) {
+                    return StringUtil.resolve(baseUri, value);
+                }
+            }
+            try {
+                return StringUtil.resolve(base, value).toExternalForm();
+            } catch (MalformedURLException e) {
+                return "";
+            }
+        }
+    }
+
+    /**
+     * Decodes the character references of an attribute value. The common ones in URLs, like {@code &amp;} and
+     * numeric references, are decoded here; anything else goes to Jsoup, which allocates a reader per call.
+     */
+    static String unescape(String value) {
+        StringBuilder decoded = new StringBuilder(value.length());
+        int i = 0;
+        while (i < value.length()) {
+            char c = value.charAt(i);
+            if (c != '&') {
+                decoded.append(c);
+                i++;
+                continue;
+            }
+            int semicolon = value.indexOf(';', i + 1);
+            if (semicolon < 0) {
+                return Parser.unescapeEntities(value, true);
+            }
+            String reference = value.substring(i + 1, semicolon);
+            int codePoint = -1;
+            switch (reference) {
+                case "amp": codePoint = '&'; break;
+                case "lt": codePoint = '<'; break;
+                case "gt": codePoint = '>'; break;
+                case "quot": codePoint = '"'; break;
+                case "apos": codePoint = '\''; break;
+                default:
+                    if (reference.length() > 1 && reference.charAt(0) == '#') {
+                        try {
+                            boolean hex = reference.charAt(1) == 'x' || reference.charAt(1) == 'X';
+                            codePoint = Integer.parseInt(reference.substring(hex ? 2 : 1), hex ? 16 : 10);
+                        } catch (NumberFormatException e) {
+                            codePoint = -1;
+                        }
+                        // Jsoup maps C1 controls, surrogates and invalid code points specially
+                        if (codePoint < 0x20 || (codePoint >= 0x7f && codePoint < 0xa0)
+                                || (codePoint >= 0xd800 && codePoint < 0xe000) || codePoint > 0x10ffff) {
+                            codePoint = -1;
+                        }
+                    }
+            }
+            if (codePoint < 0) {
+                return Parser.unescapeEntities(value, true);
+            }
+            decoded.appendCodePoint(codePoint);
+            i = semicolon + 1;
+        }
+        return decoded.toString();
+    }
+
+    private static boolean isAsciiLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+
+    private static boolean isTagNameEnd(char c) {
+        return isWhitespace(c) || c == '/' || c == '>';
+    }
+
+    private static boolean isAttributeNameEnd(char c) {
+        return isWhitespace(c) || c == '/' || c == '>' || c == '=';
+    }
+
+    private static class OpenElement {
+        private final String name;
+        private final int start;
+        private boolean open = true;
+        private Logo logo;
+        // The srcset and type of the source elements of a picture element
+        private List<String[]> sources;
+
+        private OpenElement(String name, int start) {
+            this.name = name;
+            this.start = start;
+        }
+    }
+
+    /**
+     * Holds the results of a scan until it's known that the page doesn't need a DOM.
+     */
+    private static class BufferedListener implements ExtractionListener {
+        private final List<Consumer<ExtractionListener>> events = new ArrayList<>();
+
+        @Override
+        public void onFavicon(String url) {
+            events.add(listener -> listener.onFavicon(url));
+        }
+
+        @Override
+        public void onLogo(String data, boolean isSvg) {
+            events.add(listener -> listener.onLogo(data, isSvg));
+        }
+
+        @Override
+        public void onImage(String url, String detectionUrl) {
+            events.add(listener -> listener.onImage(url, detectionUrl));
+        }
+
+        @Override
+        public void onLink(String url, String context) {
+            events.add(listener -> listener.onLink(url, context));
+        }
+
+        private void replay(ExtractionListener listener) {
+            for (Consumer<ExtractionListener> event : events) {
+                event.accept(listener);
+            }
+        }
+    }
+
+    private static class Logo {
+        private final List<Svg> svgs = new ArrayList<>();
+        private final List<String> images = new ArrayList<>();
+    }
+
+    private static class Svg {
+        private final int start;
+        private final String markup;
+
+        private Svg(int start, String markup) {
+            this.start = start;
+            this.markup = markup;
+        }
+    }
+}
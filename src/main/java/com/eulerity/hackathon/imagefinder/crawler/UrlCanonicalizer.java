@@ -0,0 +1,134 @@
+package com.eulerity.hackathon.imagefinder.crawler;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Brings URLs into a canonical form so that different spellings of the same page are crawled only once,
+ * and computes compact 64-bit fingerprints of canonical URLs.
+ */
+public final class UrlCanonicalizer {
+    private UrlCanonicalizer() {
+    }
+
+    /**
+     * Canonicalizes an absolute http(s) URL:
+     * the scheme and host are lower-cased, default ports are dropped, an empty path becomes "/",
+     * "." and ".." path segments are resolved, the fragment is removed and query parameters are sorted by key.
+     *
+     * @param url the absolute URL.
+     * @return the canonical URL, or null if the URL can't be parsed or is not an http(s) URL.
+     */
+    public static String canonicalize(String url) {
+        if (url == null || url.isEmpty()) {
+            return null;
+        }
+        URL parsed;
+        try {
+            parsed = new URL(url.trim());
+        } catch (MalformedURLException e) {
+            return null;
+        }
+        String scheme = parsed.getProtocol().toLowerCase(Locale.ROOT);
+        if (!scheme.equals("http") && !scheme.equals("https")) {
+            return null;
+        }
+        String host = parsed.getHost().toLowerCase(Locale.ROOT);
+        if (host.isEmpty()) {
+            return null;
+        }
+        if (host.endsWith(".")) {
+            host = host.substring(0, host.length() - 1);
+        }
+
+        StringBuilder canonical = new StringBuilder(url.length());
+        canonical.append(scheme).append("://");
+        if (parsed.getUserInfo() != null) {
+            canonical.append(parsed.getUserInfo()).append('@');
+        }
+        canonical.append(host);
+        int port = parsed.getPort();
+        if (port != -1 && port != parsed.getDefaultPort()) {
+            canonical.append(':').append(port);
+        }
+        canonical.append(normalizePath(parsed.getPath()));
+
+        String query = parsed.getQuery();
+        if (query != null && !query.isEmpty()) {
+            List<String> params = new ArrayList<>(Arrays.asList(query.split("&")));
+            params.removeIf(String::isEmpty);
+            // By key only, and stable, so repeated keys keep their relative order: ?a=2&a=1 is not ?a=1&a=2
+            params.sort(Comparator.comparing(UrlCanonicalizer::queryKey));
+            if (!params.isEmpty()) {
+                canonical.append('?').append(String.join("&", params));
+            }
+        }
+        return canonical.toString();
+    }
+
+    /**
+     * Computes a 64-bit fingerprint of a canonical URL. Two different URLs collide with a probability of
+     * about n^2 / 2^65, i.e. practically never for crawls of a few million URLs.
+     *
+     * @param canonicalUrl the canonical URL.
+     * @return the fingerprint.
+     */
+    public static long fingerprint(String canonicalUrl) {
+        // FNV-1a over the UTF-16 code units, followed by a MurmurHash3 finalizer to spread the bits
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < canonicalUrl.length(); i++) {
+            hash ^= canonicalUrl.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * The MurmurHash3 64-bit finalizer.
+     *
+     * @param value the value to mix.
+     * @return the mixed value.
+     */
+    static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    private static String queryKey(String param) {
+        int equals = param.indexOf('=');
+        return equals < 0 ? param : param.substring(0, equals);
+    }
+
+    private static String normalizePath(String path) {
+        if (path == null || path.isEmpty()) {
+            return "/";
+        }
+        if (!path.contains("/.")) {
+            return path;
+        }
+        String[] segments = path.split("/", -1);
+        List<String> output = new ArrayList<>();
+        for (int i = 1; i < segments.length; i++) {
+            String segment = segments[i];
+            boolean last = i == segments.length - 1;
+            if (segment.equals(".")) {
+                if (last) output.add("");
+            } else if (segment.equals("..")) {
+                if (!output.isEmpty()) output.remove(output.size() - 1);
+                if (last) output.add("");
+            } else {
+                output.add(segment);
+            }
+        }
+        return "/" + String.join("/", output);
+    }
+}
@@ -1,35 +1,189 @@
 package com.eulerity.hackathon.imagefinder.crawler;
 
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
+import com.eulerity.hackathon.imagefinder.AppConfig;
+import com.eulerity.hackathon.imagefinder.executor.FairShareExecutor;
+import com.eulerity.hackathon.imagefinder.executor.SharedExecutors;
+import com.eulerity.hackathon.imagefinder.objectDetector.ImageDeduplicator;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Queue;
-import java.util.Set;
-import java.util.concurrent.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 public class WebCrawler {
     private static final int MAX_DEPTH = 5;
-    private final ExecutorService executor = Executors.newFixedThreadPool(10);
-    private final Set<String> visited = ConcurrentHashMap.newKeySet();
-    private final Set<String> collectImages = ConcurrentHashMap.newKeySet();
+    private static final int EXPECTED_URLS = 1024;
+    // Frontier tasks kept on the heap; beyond that they are spilled to FRONTIER_SPILL_DIR
+    private static final int FRONTIER_MAX_IN_MEMORY = 10_000;
+    // Sitemap pages seeded into the frontier; SITEMAP_MAX_SEEDS=0 turns sitemaps off
+    private static final int SITEMAP_MAX_SEEDS = 200;
+    // How long dispatch waits for robots.txt before crawling as if the host had none
+    private static final long ROBOTS_WAIT_MILLIS = 10_000;
+    // How long a crawl whose frontier ran empty waits for the sitemap seeds
+    private static final long SITEMAP_WAIT_MILLIS = 30_000;
+    // Pages of this crawl dispatched and not yet done. A crawl stays on its start host, so filling that host's
+    // politeness slots is enough, more would only queue in the scheduler
+    private static final int MAX_PAGES_IN_FLIGHT = SharedExecutors.SLOTS_PER_HOST;
+    private final SharedExecutors executors;
+    private final boolean ownsExecutors;
+    // Image URLs and SVG markup collected so far, by fingerprint so a crawl of 100k images stays small. Only ever
+    // added to, so a Bloom filter wouldn't save a table probe
+    private final SeenUrls collectImages = new SeenUrls(EXPECTED_URLS, false);
     private final int maxImages;
     private String startUrl;
     private String originHost;
+    // Guards inFlight; the crawl thread waits on it until a worker finishes a page
+    private final Object dispatchLock = new Object();
+    private int inFlight;
+    private final AtomicInteger pagesVisited = new AtomicInteger();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private volatile long elapsedNanos;
+    private volatile boolean cancelled;
+    // Until robots.txt has been read only the start page is in the frontier, and it isn't checked anyway
+    private volatile RobotsRules robots = RobotsRules.ALLOW_ALL;
+    private final AtomicInteger robotsSkipped = new AtomicInteger();
+    private int sitemapSeeds;
+    // Set while the sitemap seeds are read, guarded by dispatchLock; an empty frontier doesn't end the crawl before
+    // the deadline
+    private boolean sitemapsPending;
+    private long sitemapDeadlineNanos;
+    // Shared by all images of this crawl so near-duplicates only go through object detection once
+    private final ImageDeduplicator imageDeduplicator = new ImageDeduplicator();
+    // HTML_EXTRACTOR=dom switches back to building a Jsoup DOM for every page
+    private final PageExtractor pageExtractor = "dom".equals(AppConfig.getString("HTML_EXTRACTOR", "streaming"))
+            ? new DomPageExtractor() : new StreamingPageExtractor();
+    // CRAWL_ORDER=bfs switches back to crawling layer by layer instead of following the most promising links first
+    private final boolean bestFirst = !"bfs".equals(AppConfig.getString("CRAWL_ORDER", "best-first"));
+    // Where progress is logged so the crawl can be resumed, or null
+    private CrawlCheckpoint checkpoint;
+    private int resumedPages;
+    private final List<CrawlObserver> observers = new CopyOnWriteArrayList<>();
+    private final CrawlFrontier frontier = new CrawlFrontier(AppConfig.getInt("CRAWL_MAX_DEPTH", MAX_DEPTH), EXPECTED_URLS, bestFirst,
+            AppConfig.getInt("FRONTIER_MAX_IN_MEMORY", FRONTIER_MAX_IN_MEMORY), Paths.get(AppConfig.getString("FRONTIER_SPILL_DIR",
+            Paths.get(System.getProperty("java.io.tmpdir"), "imagefinder", "frontier").toString())));
+    // With keep-alive on, an empty frontier doesn't end the crawl, more URLs may still be offered
+    private volatile boolean keepAlive;
+    // Set once the crawl is dispatching from the frontier, guarded by dispatchLock
+    private boolean dispatching;
+    private volatile boolean finished;
 
+    /**
+     * Creates a standalone crawler with its own thread pools, which are shut down when the crawl ends.
+     *
+     * @param maxImages the maximum number of images to collect.
+     */
     public WebCrawler(int maxImages) {
+        this(maxImages, new SharedExecutors(), true);
+    }
+
+    /**
+     * Creates a crawler that runs on the process-wide thread pools, sharing them fairly with other crawls.
+     *
+     * @param maxImages the maximum number of images to collect.
+     * @param executors the shared thread pools.
+     */
+    public WebCrawler(int maxImages, SharedExecutors executors) {
+        this(maxImages, executors, false);
+    }
+
+    private WebCrawler(int maxImages, SharedExecutors executors, boolean ownsExecutors) {
         this.maxImages = maxImages;
+        this.executors = executors;
+        this.ownsExecutors = ownsExecutors;
+    }
+
+    /**
+     * Logs the crawl's progress to a checkpoint. If the checkpoint holds progress of an earlier run of the same
+     * crawl, the crawl resumes from there: pages crawled before aren't fetched again, their results are handed
+     * to the listener first, and the URLs that were waiting in the frontier are queued again. Must be called
+     * before {@link #crawl(String, Consumer)}; the caller closes the checkpoint.
+     *
+     * @param checkpoint the checkpoint of this crawl.
+     */
+    public void setCheckpoint(CrawlCheckpoint checkpoint) {
+        this.checkpoint = checkpoint;
+        if (checkpoint != null) {
+            addObserver(checkpoint);
+        }
+    }
+
+    /**
+     * @param observer notified of every URL added to the frontier, every page crawled and every link to another
+     *                 host found.
+     */
+    public void addObserver(CrawlObserver observer) {
+        observers.add(observer);
+    }
+
+    /**
+     * @param keepAlive true to keep the crawl going when the frontier runs empty, waiting for URLs from
+     *                  {@link #offer(String, int, double)} until the crawl is cancelled or the image budget is spent.
+     */
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Adds a URL to the frontier, e.g. one that another shard found. Can be called before or during the crawl.
+     *
+     * @param url      the absolute URL.
+     * @param depth    its depth.
+     * @param priority its priority in the frontier.
+     * @return true if the URL was new.
+     */
+    public boolean offer(String url, int depth, double priority) {
+        boolean added = enqueue(frontier, url, depth, priority);
+        synchronized (dispatchLock) {
+            dispatchLock.notifyAll();
+        }
+        return added;
+    }
+
+    /**
+     * Marks a URL as crawled without fetching it, e.g. because another shard already did. Call it before the URL
+     * is offered.
+     *
+     * @param url the absolute URL.
+     */
+    public void skip(String url) {
+        frontier.markSeen(url);
     }
 
     /**
-     * Performs a BFS crawl starting from the specified URL.
+     * @return true if no page is being crawled and none is waiting, or the crawl is over.
+     */
+    public boolean isIdle() {
+        if (finished) return true;
+        synchronized (dispatchLock) {
+            return dispatching && inFlight == 0 && frontier.isEmpty();
+        }
+    }
+
+    /**
+     * Performs a best-first crawl starting from the specified URL.
      * This method processes web pages up to a defined depth, collecting logos and images.
-     * Each layer of the BFS is processed in parallel using multi-threading.
+     * Every link is scored by the shared {@link LinkScorer} when it is found, and the frontier hands out the
+     * most promising link first, so the image budget is spent on as few pages as possible; with CRAWL_ORDER=bfs
+     * the crawl goes layer by layer instead. Either way a new page is started as soon as a slot frees up
+     * instead of waiting for other pages to finish. Fetches go through the per-host politeness scheduler
+     * and the non-blocking page fetcher, so neither waiting for a host nor the download itself holds a thread.
+     * While the start page is fetched, the host's robots.txt is read: pages disallowed by it are skipped before
+     * they are fetched. The start page itself is always crawled. The host's sitemaps are read in the background,
+     * and pages from them are added one level below the start page once they are in, those listing images first.
      *
      * @param startUrl the starting URL for the crawl
      * @return a list of CrawlerPageResult containing the results of the crawl
@@ -37,186 +191,445 @@ public class WebCrawler {
      * @throws MalformedURLException if the provided URL is not properly formatted
      */
     public List<CrawlerPageResult> crawl(String startUrl) throws InterruptedException, MalformedURLException {
-        this.startUrl = startUrl;
-        this.originHost = new URL(startUrl).getHost();
-        // Initialize a queue to manage URLs for BFS
-        final Queue<String> urlQueue = new ConcurrentLinkedQueue<>();
-        urlQueue.add(startUrl);
         List<CrawlerPageResult> results = new ArrayList<>();
+        crawl(startUrl, result -> {
+            synchronized (results) {
+                results.add(result);
+            }
+        });
+        return results;
+    }
 
-        // Loop through each depth level up to MAX_DEPTH and until maximum images are collected
-        for (int depth = 0; depth <= MAX_DEPTH && collectImages.size() < maxImages && !urlQueue.isEmpty(); depth++) {
-            System.out.println("Crawling depth " + depth + " with " + urlQueue.size() + " urls");  // Log the current depth and URL count
-
-            int queueSize = urlQueue.size();
-            CountDownLatch latch = new CountDownLatch(queueSize);  // Latch to wait for all threads to complete in this layer
-
-            // Process each URL in the current layer
-            for (int i = 0; i < queueSize; i++) {
-                String url = urlQueue.poll();
-                executor.submit(() -> {
-                    try {
-                        List<CrawlerResult> imagesFound = processPage(url, urlQueue);  // Process the page and collect results
-                        if (imagesFound != null && !imagesFound.isEmpty()) {
-                            synchronized (results) {
-                                results.add(new CrawlerPageResult(url, imagesFound));  // Store page results if images were found
-                            }
+    /**
+     * Performs the same crawl as {@link #crawl(String)}, but hands every page result to the listener as soon as
+     * the page has been processed instead of collecting them. The listener is called from crawl pool threads,
+     * possibly concurrently, and the crawl itself keeps no reference to the results.
+     *
+     * @param startUrl the starting URL for the crawl
+     * @param onPage   called with each page on which images were found
+     * @throws InterruptedException  if the thread execution is interrupted
+     * @throws MalformedURLException if the provided URL is not properly formatted
+     */
+    public void crawl(String startUrl, Consumer<CrawlerPageResult> onPage) throws InterruptedException, MalformedURLException {
+        String canonicalStartUrl = UrlCanonicalizer.canonicalize(startUrl);
+        if (canonicalStartUrl == null) {
+            throw new MalformedURLException("Not an http(s) URL: " + startUrl);
+        }
+        this.startUrl = canonicalStartUrl;
+        this.originHost = new URL(canonicalStartUrl).getHost();
+        final CrawlFrontier frontier = this.frontier;
+        if (checkpoint != null) {
+            resume(frontier, onPage);
+        }
+        enqueue(frontier, canonicalStartUrl, 0, 0);
+        long startTime = System.nanoTime();
+        FairShareExecutor.Tenant workers = executors.getCrawlExecutor().newTenant(startUrl);
+
+        try {
+            synchronized (dispatchLock) {
+                dispatch(frontier, onPage, workers);  // Starts the start page right away
+            }
+            loadHostMetadata(canonicalStartUrl, frontier);
+            synchronized (dispatchLock) {
+                dispatching = true;
+                while (true) {
+                    dispatch(frontier, onPage, workers);
+                    long sitemapWaitNanos = sitemapsPending ? sitemapDeadlineNanos - System.nanoTime() : 0;
+                    // Finished when nothing is running and nothing more will be dispatched
+                    if (inFlight == 0 && (cancelled || (frontier.isEmpty() && !keepAlive && sitemapWaitNanos <= 0)
+                            || collectImages.size() >= maxImages)) {
+                        break;
+                    }
+                    // Woken up whenever a worker finishes a page or the sitemap seeds are in
+                    if (sitemapWaitNanos > 0) {
+                        dispatchLock.wait(Math.max(1, TimeUnit.NANOSECONDS.toMillis(sitemapWaitNanos)));
+                    } else {
+                        dispatchLock.wait();
+                    }
+                }
+            }
+        } finally {
+            synchronized (dispatchLock) {
+                finished = true;  // Sitemap seeds arriving from now on are dropped
+            }
+            elapsedNanos = System.nanoTime() - startTime;
+            workers.close();
+            frontier.close();
+            if (ownsExecutors) {
+                executors.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Keeps up to MAX_PAGES_IN_FLIGHT pages of this crawl going while there is work left and the image budget
+     * isn't spent. Must hold the dispatch lock.
+     */
+    private void dispatch(CrawlFrontier frontier, Consumer<CrawlerPageResult> onPage, Executor workers) {
+        while (!cancelled && inFlight < MAX_PAGES_IN_FLIGHT && collectImages.size() < maxImages && !frontier.isEmpty()) {
+            CrawlTask task = frontier.poll();  // Already deduplicated when it was offered
+            if (task.getDepth() > 0 && !robots.isAllowed(task.getUrl())) {
+                robotsSkipped.incrementAndGet();
+                continue;
+            }
+            inFlight++;
+            executors.getPoliteness().submit(hostOf(task.getUrl()), () -> startTask(task, frontier, onPage, workers));
+        }
+    }
+
+    /**
+     * Reads the robots rules of the start page's host, waiting at most ROBOTS_WAIT_MILLIS, and starts seeding the
+     * frontier from its sitemaps in the background. If robots.txt takes longer, the crawl goes on as if the host had
+     * none, like when it can't be fetched, and applies the rules once they arrive. A crawl whose frontier runs empty
+     * waits at most SITEMAP_WAIT_MILLIS for the sitemap seeds.
+     * ROBOTS_ENABLED=false ignores robots.txt, SITEMAP_MAX_SEEDS=0 skips sitemaps.
+     */
+    private void loadHostMetadata(String canonicalStartUrl, CrawlFrontier frontier) throws MalformedURLException, InterruptedException {
+        URL start = new URL(canonicalStartUrl);
+        String origin = start.getProtocol() + "://" + start.getAuthority();
+        HostMetadataCache hostMetadata = executors.getHostMetadata();
+        CompletableFuture<RobotsRules> rules = AppConfig.getBoolean("ROBOTS_ENABLED", true)
+                ? hostMetadata.getRobotsAsync(origin) : CompletableFuture.completedFuture(RobotsRules.ALLOW_ALL);
+        int maxSeeds = AppConfig.getInt("SITEMAP_MAX_SEEDS", SITEMAP_MAX_SEEDS);
+        if (maxSeeds > 0 && !cancelled) {
+            synchronized (dispatchLock) {
+                sitemapsPending = true;
+                sitemapDeadlineNanos = System.nanoTime()
+                        + TimeUnit.MILLISECONDS.toNanos(AppConfig.getLong("SITEMAP_WAIT_MILLIS", SITEMAP_WAIT_MILLIS));
+            }
+            rules.thenCompose(robotsRules -> hostMetadata.getSeedPagesAsync(origin, robotsRules, maxSeeds, this::isSameHost))
+                    .whenComplete((seeds, error) -> {
+                        if (error != null) {
+                            System.out.println("Couldn't read the sitemaps of " + origin + ": " + error.getMessage());
                         }
-                    } finally {
-                        latch.countDown();
+                        addSitemapSeeds(origin, frontier, seeds);
+                    });
+        }
+        try {
+            robots = rules.get(AppConfig.getLong("ROBOTS_WAIT_MILLIS", ROBOTS_WAIT_MILLIS), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            System.out.println("No robots.txt from " + origin + " yet, crawling without its rules until it arrives");
+            rules.thenAccept(late -> robots = late);
+        } catch (ExecutionException e) {
+            System.out.println("Couldn't read robots.txt of " + origin + ": " + e.getCause().getMessage());
+        }
+    }
+
+    /**
+     * Adds the pages read from the host's sitemaps to the frontier, unless the crawl is over.
+     *
+     * @param seeds the pages, or null if the sitemaps couldn't be read.
+     */
+    private void addSitemapSeeds(String origin, CrawlFrontier frontier, List<SitemapParser.Entry> seeds) {
+        synchronized (dispatchLock) {
+            sitemapsPending = false;
+            if (seeds != null && !finished && !cancelled) {
+                for (SitemapParser.Entry seed : seeds) {
+                    // The images a sitemap lists for a page stand in for the density of the page linking to it
+                    double priority = executors.getLinkScorer().score(seed.getLoc(), null, seed.getImages());
+                    if (enqueue(frontier, seed.getLoc(), 1, priority)) {
+                        sitemapSeeds++;
                     }
-                });
+                }
             }
-            latch.await(); // Wait for the entire layer to process, so we can accommodate both BFS and multi-threading
+            dispatchLock.notifyAll();
         }
+        System.out.println("Seeded " + sitemapSeeds + " pages from the sitemaps of " + origin);
+    }
 
-        executor.shutdown();
-        // Wait for remaining tasks to finish
-        if (!executor.awaitTermination(15, TimeUnit.SECONDS)) {
-            executor.shutdownNow();
+    /**
+     * Fetches a single page without blocking and parses it on the crawl pool once the body has arrived.
+     * The dispatcher is signalled when the page is done, whether it succeeded or not.
+     *
+     * @param task     the task to process
+     * @param frontier the frontier that newly discovered links are added to
+     * @param onPage   the listener receiving the page result
+     * @param workers  this crawl's share of the crawl pool, used for parsing
+     * @return a future that completes once the page has been processed
+     */
+    private CompletableFuture<Void> startTask(CrawlTask task, CrawlFrontier frontier, Consumer<CrawlerPageResult> onPage, Executor workers) {
+        CompletableFuture<Void> done;
+        if (cancelled || collectImages.size() >= maxImages) {
+            done = CompletableFuture.completedFuture(null);  // Cancelled or the image budget ran out while this task waited
+        } else {
+            System.out.println("visiting: " + task.getUrl() + " (depth " + task.getDepth() + ")");
+            pagesVisited.incrementAndGet();
+            done = executors.getPageFetcher().fetch(task.getUrl())
+                    .thenAcceptAsync(page -> {
+                        long parseStart = System.nanoTime();
+                        try {
+                            List<CrawlerResult> imagesFound = processPage(task, page, frontier);  // Parse the page and collect results
+                            for (CrawlObserver observer : observers) {
+                                observer.pageDone(task.getUrl(), imagesFound);
+                            }
+                            if (!imagesFound.isEmpty()) {
+                                onPage.accept(new CrawlerPageResult(task.getUrl(), imagesFound));  // Report page results if images were found
+                            }
+                        } finally {
+                            busyNanos.addAndGet(System.nanoTime() - parseStart);
+                        }
+                    }, workers);
         }
-        return results;
+        return done.whenComplete((ignored, error) -> {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                System.out.println("Error retrieving " + task.getUrl() + ": " + cause.getMessage());
+                for (CrawlObserver observer : observers) {
+                    observer.pageDone(task.getUrl(), Collections.<CrawlerResult>emptyList());  // Not worth fetching again
+                }
+            }
+            synchronized (dispatchLock) {
+                inFlight--;
+                dispatchLock.notifyAll();
+            }
+        });
     }
 
     /**
-     * Processes a single page, and enqueues valid URLs for further BFS crawling.
-     * This method is part of a BFS where each visited page can add new URLs to the queue.
-     * It incorporates random sleep intervals to avoid triggering anti-scraping mechanisms.
+     * Parses a fetched page, and enqueues valid URLs for further crawling.
+     * Links found on the page are added to the frontier one level deeper than the page itself, scored from their
+     * URL, their context and the number of images on this page. The page's own yield is taught to the scorer.
+     * The politeness delay has already passed by the time this runs, see {@link HostPolitenessScheduler}.
      *
-     * @param url the URL of the page to process
-     * @param urlQueue the queue of URLs to be processed in future BFS layers
+     * @param task     the task holding the URL of the page and its depth
+     * @param page     the fetched page
+     * @param frontier the frontier that newly discovered links are added to
      * @return a list of CrawlerResult objects containing the images found on the page
+     * @throws UncheckedIOException if the page couldn't be fetched or isn't an HTML page
      */
-    private List<CrawlerResult> processPage(String url, Queue<String> urlQueue) {
+    private List<CrawlerResult> processPage(CrawlTask task, FetchedPage page, CrawlFrontier frontier) {
+        String url = task.getUrl();
+        if (page.getStatusCode() < 200 || page.getStatusCode() >= 300) {
+            throw new UncheckedIOException(new IOException("HTTP error fetching URL. Status=" + page.getStatusCode()));
+        }
+        if (!page.isParseable()) {
+            throw new UncheckedIOException(new IOException("Unhandled content type " + page.getMimeType()));
+        }
         // Images crawled on this page
         List<CrawlerResult> imageResults = new ArrayList<>();
-        if (collectImages.size() < maxImages && visited.add(url)) {
-            System.out.println("visiting: " + url);
+        if (collectImages.size() < maxImages) {
             try {
-                // Random sleep to mimic human browsing and avoid being blocked by the server
-                int sleepTime = ThreadLocalRandom.current().nextInt(1000, 5001);
-                System.out.println("Wait for " + sleepTime + " ms...");
-                Thread.sleep(sleepTime);
-
-                Document document = Jsoup.connect(url).get();
+                ExtractedPage extracted = new ExtractedPage();
+                pageExtractor.extract(page, imageDeduplicator.getInputSize(), extracted);
 
+                LinkScorer scorer = executors.getLinkScorer();
                 try {
                     // Crawl for images on the page and add results to imageResults list
-                    crawlImages(url.equals(startUrl), true, true, document, imageResults);
+                    crawlImages(url.equals(startUrl), true, true, extracted, imageResults);
                 } catch (MaxImagesReachedException e) {
                     // If max images limit is reached during crawl, return the results gathered so far
+                    scorer.recordYield(url, imageResults.size());
                     return imageResults;
                 }
+                scorer.recordYield(url, imageResults.size());
 
-                // Select all hyperlink elements and enqueue valid links for further crawling
-                Elements links = document.select("a[href]");
-                for (Element link : links) {
-                    String nextLink = link.absUrl("href");
+                // Enqueue valid links for further crawling
+                int pageImages = extracted.getImages().size();
+                for (ExtractedPage.Link link : extracted.getLinks()) {
+                    String nextLink = UrlCanonicalizer.canonicalize(link.getUrl());
+                    if (nextLink == null) continue;
+                    double priority = scorer.score(nextLink, link.getContext(), pageImages);
                     if (isValidLink(nextLink)) {
-                        urlQueue.offer(nextLink);  // BFS
+                        enqueue(frontier, nextLink, task.getDepth() + 1, priority);  // Duplicates are dropped by the frontier
+                    } else {
+                        for (CrawlObserver observer : observers) {
+                            observer.foreignLinkFound(nextLink, task.getDepth() + 1, priority);
+                        }
                     }
                 }
-            } catch (Exception e) {
-                System.out.println("Error retrieving " + url + ": " + e.getMessage());
+            } catch (IOException e) {
+                System.out.println("Error parsing " + url + ": " + e.getMessage());
             }
         }
         return imageResults;  // Return the list of image results from this page
     }
 
     /**
-     * Crawls a given document for images based on specified criteria.
+     * Adds a URL to the frontier and tells the observers if it was new.
+     *
+     * @return true if the URL was added.
+     */
+    private boolean enqueue(CrawlFrontier frontier, String url, int depth, double priority) {
+        boolean added = frontier.offer(url, depth, priority);
+        if (added) {
+            for (CrawlObserver observer : observers) {
+                observer.linkAdded(url, depth, priority);
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Restores the progress logged to the checkpoint by an earlier run. If the log can't be read the crawl starts
+     * over.
+     */
+    private void resume(CrawlFrontier frontier, Consumer<CrawlerPageResult> onPage) {
+        CrawlCheckpoint.Recovered recovered;
+        try {
+            recovered = checkpoint.recover(imageDeduplicator);
+        } catch (IOException e) {
+            System.out.println("Couldn't resume crawl " + checkpoint.getId() + ", starting over: " + e.getMessage());
+            return;
+        }
+        for (String url : recovered.getDonePages()) {
+            frontier.markSeen(url);
+        }
+        for (CrawlerPageResult page : recovered.getPages()) {
+            for (CrawlerResult result : page.getCrawlerResults()) {
+                collectImages.add(result instanceof CrawlerImgResult
+                        ? ((CrawlerImgResult) result).getImgUrl() : ((CrawlerLogoResult) result).getImageData());
+            }
+            onPage.accept(page);
+        }
+        for (CrawlTask task : recovered.getPendingTasks()) {
+            frontier.offer(task.getUrl(), task.getDepth(), task.getPriority());  // Already in the log
+        }
+        resumedPages = recovered.getDonePages().size();
+        System.out.println("Resumed crawl " + checkpoint.getId() + ": " + resumedPages + " pages done, "
+                + recovered.getPendingTasks().size() + " waiting");
+    }
+
+    /**
+     * @return the number of pages crawled by an earlier run that this crawl resumed, see
+     * {@link #setCheckpoint(CrawlCheckpoint)}.
+     */
+    public int getResumedPages() {
+        return resumedPages;
+    }
+
+    /**
+     * Stops the crawl: no new page is dispatched and pages still waiting for their politeness delay are skipped.
+     * Pages already being fetched are finished, then {@link #crawl(String, Consumer)} returns normally with
+     * what was found so far. Can be called from any thread.
+     */
+    public void cancel() {
+        cancelled = true;
+        synchronized (dispatchLock) {
+            dispatchLock.notifyAll();
+        }
+    }
+
+    /**
+     * @return true if {@link #cancel()} was called.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return the number of pages that were not fetched because robots.txt disallows them.
+     */
+    public int getRobotsSkipped() {
+        return robotsSkipped.get();
+    }
+
+    /**
+     * @return the number of pages added to the frontier from the host's sitemaps.
+     */
+    public int getSitemapSeeds() {
+        synchronized (dispatchLock) {
+            return sitemapSeeds;
+        }
+    }
+
+    /**
+     * @return the number of pages fetched by this crawler.
+     */
+    public int getPagesVisited() {
+        return pagesVisited.get();
+    }
+
+    /**
+     * @return the deduplicator shared by the images of this crawl, whose stats hold the dedupe ratio.
+     */
+    public ImageDeduplicator getImageDeduplicator() {
+        return imageDeduplicator;
+    }
+
+    /**
+     * @return the wall-clock duration of the last crawl in nanoseconds.
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Computes how much of the available worker time was spent processing pages during the last crawl.
      *
-     * @param fetchFavicon Whether to fetch favicons from the document.
-     * @param fetchLogo    Whether to fetch logo images from the document.
-     * @param fetchImages  Whether to fetch general images from the document.
-     * @param document     The document to crawl.
-     * @param imageResults The list where extracted CrawlerResults are stored.
+     * @return a value between 0 and 1, where 1 means every worker was busy for the whole crawl.
+     */
+    public double getWorkerUtilization() {
+        if (elapsedNanos == 0) return 0;
+        return busyNanos.get() / ((double) elapsedNanos * executors.getCrawlExecutor().getThreads());
+    }
+
+    /**
+     * Collects images from what was extracted from a page, based on specified criteria.
+     *
+     * @param fetchFavicon Whether to collect favicons.
+     * @param fetchLogo    Whether to collect logo images.
+     * @param fetchImages  Whether to collect general images.
+     * @param page         What was extracted from the page.
+     * @param imageResults The list where CrawlerResults are stored.
      * @throws MaxImagesReachedException if the maximum number of images to be collected is reached.
      */
-    private void crawlImages(boolean fetchFavicon, boolean fetchLogo, boolean fetchImages, Document document, List<CrawlerResult> imageResults) throws MaxImagesReachedException {
-        if (fetchFavicon) getFavicon(document, imageResults);
-        if (fetchLogo) getLogoImages(document, imageResults);
-        if (fetchImages) getImages(document, imageResults);
+    private void crawlImages(boolean fetchFavicon, boolean fetchLogo, boolean fetchImages, ExtractedPage page, List<CrawlerResult> imageResults) throws MaxImagesReachedException {
+        if (fetchFavicon) getFavicon(page, imageResults);
+        if (fetchLogo) getLogoImages(page, imageResults);
+        if (fetchImages) getImages(page, imageResults);
     }
 
     /**
-     * Extracts logo images from the provided document and adds them to the specified list of image results.
+     * Adds the logo images found on a page to the specified list of image results.
      *
-     * @param document     The document from which logo images are to be extracted.
-     * @param imageResults The list to which extracted logo images are added as CrawlerLogoResult objects.
+     * @param page         What was extracted from the page.
+     * @param imageResults The list to which logo images are added as CrawlerLogoResult objects.
      * @throws MaxImagesReachedException if the maximum number of images to be collected is reached.
      */
-    private void getLogoImages(Document document, List<CrawlerResult> imageResults) throws MaxImagesReachedException {
-        // CSS selector string to find elements that might contain logos
-        String selector = "img[class*='logo'], img[id*='logo'], img[data-testid*='logo'], img[aria-label*='logo'], img[data-link-name*='logo'], " + "a[class*='logo'], a[id*='logo'], a[data-testid*='logo'], a[aria-label*='logo'], a[data-link-name*='logo'], " + "div[class*='logo'], div[id*='logo'], div[data-testid*='logo'], div[aria-label*='logo'], div[data-link-name*='logo']";
-
-        Elements logoElements = document.select(selector);
-
-        for (Element logoElement : logoElements) {
-            // Select SVG elements within the current logo element
-            Elements svgs = logoElement.select("svg");
-            for (Element svg : svgs) {
-                // Check if the maximum number of images has been reached, if so, throw an exception
-                if (collectImages.size() >= maxImages) throw new MaxImagesReachedException("Max image reached.");
-                // Get the outer HTML of the SVG, which is the SVG element itself
-                String svgXml = svg.outerHtml();
-                // Add the SVG to collectImages if it's not already there and add a new CrawlerLogoResult to imageResults
-                if (collectImages.add(svgXml)) {
-                    imageResults.add(new CrawlerLogoResult(svgXml, true));
+    private void getLogoImages(ExtractedPage page, List<CrawlerResult> imageResults) throws MaxImagesReachedException {
+        for (ExtractedPage.Logo logo : page.getLogos()) {
+            // Check if the maximum number of images has been reached, if so, throw an exception
+            if (collectImages.size() >= maxImages) throw new MaxImagesReachedException("Max image reached.");
+            if (logo.isSvg()) {
+                // Add the SVG markup to collectImages if it's not already there and add a new CrawlerLogoResult to imageResults
+                if (collectImages.add(logo.getData())) {
+                    imageResults.add(new CrawlerLogoResult(logo.getData(), true));
                 }
-            }
-
-            // Select IMG elements within the current logo element
-            Elements imgs = logoElement.select("img");
-            for (Element img : imgs) {
-                // Again, check if the maximum number of images has been reached, if so, throw an exception
-                if (collectImages.size() >= maxImages) throw new MaxImagesReachedException("Max image reached.");
-                // Get the absolute URL of the image, prioritizing the "src" attribute, but falling back to "data-src" if "src" is empty
-                String src = img.attr("abs:src").isEmpty() ? img.attr("abs:data-src") : img.attr("abs:src");
+            } else {
                 // Add the URL to collectImages if it's not already there, the URL is not empty, and add a new CrawlerLogoResult to imageResults
-                if (collectImages.add(src) && !src.isEmpty()) {
-                    imageResults.add(new CrawlerLogoResult(src, false));
+                if (collectImages.add(logo.getData()) && !logo.getData().isEmpty()) {
+                    imageResults.add(new CrawlerLogoResult(logo.getData(), false));
                 }
             }
         }
     }
 
     /**
-     * Extracts images from the provided document and adds them to the specified list of image results.
+     * Adds the images found on a page to the specified list of image results.
      *
-     * @param document     The document from which images are to be extracted.
-     * @param imageResults The list to which extracted images are added as CrawlerImgResult objects.
+     * @param page         What was extracted from the page.
+     * @param imageResults The list to which images are added as CrawlerImgResult objects.
      * @throws MaxImagesReachedException if the maximum number of images to be collected is reached.
      */
-    private void getImages(Document document, List<CrawlerResult> imageResults) throws MaxImagesReachedException {
-        Elements images = document.select("img[src], img[data-src]");
-
-        for (Element img : images) {
+    private void getImages(ExtractedPage page, List<CrawlerResult> imageResults) throws MaxImagesReachedException {
+        for (ExtractedPage.Image image : page.getImages()) {
             // Check if the maximum number of images has been reached, if so, throw an exception
             if (collectImages.size() >= maxImages) throw new MaxImagesReachedException("Max image reached.");
-            // Get the absolute URL of the image, choosing "data-src" if "src" is empty
-            String src = img.attr("abs:src").isEmpty() ? img.attr("abs:data-src") : img.attr("abs:src");
             // Add the URL to collectImages to track images collected; if successful, add new CrawlerImgResult to imageResults
-            if (collectImages.add(src)) {
-                imageResults.add(new CrawlerImgResult(src));
+            if (collectImages.add(image.getUrl())) {
+                imageResults.add(new CrawlerImgResult(image.getUrl(), image.getDetectionUrl(), imageDeduplicator));
             }
         }
     }
 
     /**
-     * Extracts favicon links from the provided document and adds them to the specified list of image results.
+     * Adds the favicons found on a page to the specified list of image results.
      *
-     * @param document     The document from which favicons are to be extracted.
-     * @param imageResults The list to which extracted favicons are added as CrawlerLogoResult objects.
+     * @param page         What was extracted from the page.
+     * @param imageResults The list to which favicons are added as CrawlerLogoResult objects.
      */
-    private void getFavicon(Document document, List<CrawlerResult> imageResults) {
-        // Select all link elements that define a favicon
-        Elements faviconLinks = document.select("link[rel='icon'], link[rel='shortcut icon']");
-
-        for (Element link : faviconLinks) {
-            // Retrieve the absolute URL of the favicon from the "href" attribute
-            String faviconUrl = link.absUrl("href");
-
+    private void getFavicon(ExtractedPage page, List<CrawlerResult> imageResults) {
+        for (String faviconUrl : page.getFavicons()) {
             // If the URL is not empty, add a new CrawlerLogoResult to the imageResults list
             if (!faviconUrl.isEmpty()) {
                 imageResults.add(new CrawlerLogoResult(faviconUrl, false));
@@ -225,25 +638,41 @@ public class WebCrawler {
     }
 
     /**
-     * Determines if a given link is valid for further crawling based on domain and fragment considerations.
+     * Extracts the host of a URL for politeness bookkeeping.
      *
-     * @param nextLink The hyperlink being evaluated.
-     * @return true if the link is on the same host as the origin host and is not an anchor link.
+     * @param url the URL.
+     * @return the host, or an empty string if the URL can't be parsed.
+     */
+    private static String hostOf(String url) {
+        try {
+            return new URL(url).getHost();
+        } catch (MalformedURLException e) {
+            return "";
+        }
+    }
+
+    /**
+     * Determines if a given link is valid for further crawling based on its domain.
+     * Anchor links such as '/#About' need no special handling, canonicalization already strips the fragment.
+     *
+     * @param nextLink The canonical hyperlink being evaluated.
+     * @return true if the link is on the same host as the origin host.
      * @throws MalformedURLException if the provided URLs are not properly formatted.
      */
     private boolean isValidLink(String nextLink) throws MalformedURLException {
-        if (!new URL(nextLink).getHost().equals(originHost)) {
-            return false;
-        }
+        return new URL(nextLink).getHost().equals(originHost);
+    }
 
-        // Filter out anchor links where there is a '#' after '/', such as '/#About'.
-        int lastSlashIndex = nextLink.lastIndexOf('/');
-        if (lastSlashIndex == -1) return true;
+    /**
+     * @param url an absolute URL, e.g. from a sitemap.
+     * @return true if the URL is an http(s) URL on the origin host.
+     */
+    private boolean isSameHost(String url) {
+        String canonicalUrl = UrlCanonicalizer.canonicalize(url);
         try {
-            return nextLink.charAt(lastSlashIndex + 1) != '#';
-        } catch (StringIndexOutOfBoundsException e) {
-            // If there is no character after '/', it's still considered a valid link
-            return true;
+            return canonicalUrl != null && isValidLink(canonicalUrl);
+        } catch (MalformedURLException e) {
+            return false;
         }
     }
 
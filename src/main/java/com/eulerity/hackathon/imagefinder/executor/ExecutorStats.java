@@ -0,0 +1,37 @@
+package com.eulerity.hackathon.imagefinder.executor;
+
+import lombok.Getter;
+
+/**
+ * A point-in-time view of a {@link FairShareExecutor}.
+ */
+@Getter
+public class ExecutorStats {
+    private final String name;
+    private final int poolSize;
+    private final int activeThreads;
+    private final int queueDepth;
+    private final int tenants;
+    private final long completedTasks;
+
+    public ExecutorStats(String name, int poolSize, int activeThreads, int queueDepth, int tenants, long completedTasks) {
+        this.name = name;
+        this.poolSize = poolSize;
+        this.activeThreads = activeThreads;
+        this.queueDepth = queueDepth;
+        this.tenants = tenants;
+        this.completedTasks = completedTasks;
+    }
+
+    @Override
+    public String toString() {
+        return "ExecutorStats{" +
+                "name='" + name + '\'' +
+                ", poolSize=" + poolSize +
+                ", activeThreads=" + activeThreads +
+                ", queueDepth=" + queueDepth +
+                ", tenants=" + tenants +
+                ", completedTasks=" + completedTasks +
+                '}';
+    }
+}
@@ -0,0 +1,182 @@
+package com.eulerity.hackathon.imagefinder.executor;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded thread pool shared by many independent clients ("tenants"), e.g. one per crawl request.
+ * Each tenant has its own queue and free threads are handed to tenants in round-robin order, so a tenant
+ * with thousands of queued tasks can't starve a tenant that only has a few.
+ */
+public class FairShareExecutor {
+    private final String name;
+    private final int threads;
+    private final ExecutorService pool;
+    // Tenants that have queued tasks, in the order they get their next thread
+    private final Queue<Tenant> rotation = new ArrayDeque<>();
+    private int running;
+    private int tenantCount;
+    private long completedTasks;
+
+    /**
+     * @param name    the name used for the worker threads and in stats.
+     * @param threads the number of worker threads.
+     */
+    public FairShareExecutor(String name, int threads) {
+        this.name = name;
+        this.threads = threads;
+        this.pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), namedDaemonThreads(name));
+    }
+
+    /**
+     * Registers a new tenant. Close it when done so its leftover tasks are dropped.
+     *
+     * @param tenantName a name for logging, e.g. the crawled URL.
+     * @return an executor whose tasks share the pool fairly with the other tenants.
+     */
+    public synchronized Tenant newTenant(String tenantName) {
+        tenantCount++;
+        return new Tenant(tenantName);
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * @return a snapshot of the pool's queue depth and thread usage.
+     */
+    public synchronized ExecutorStats getStats() {
+        int queueDepth = 0;
+        for (Tenant tenant : rotation) {
+            queueDepth += tenant.pending.size();
+        }
+        return new ExecutorStats(name, threads, running, queueDepth, tenantCount, completedTasks);
+    }
+
+    /**
+     * Stops the pool. Queued tasks are dropped and running tasks are interrupted.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            for (Tenant tenant : rotation) {
+                tenant.pending.clear();
+                tenant.closed = true;
+            }
+            rotation.clear();
+        }
+        pool.shutdownNow();
+    }
+
+    /**
+     * Starts queued tasks while there are free threads, taking one task per tenant in turn.
+     * Must hold the lock.
+     */
+    private void dispatch() {
+        while (running < threads && !rotation.isEmpty()) {
+            Tenant tenant = rotation.poll();
+            Runnable task = tenant.pending.poll();
+            if (tenant.pending.isEmpty()) {
+                tenant.inRotation = false;
+            } else {
+                rotation.add(tenant);  // Back of the line until every other tenant had a turn
+            }
+            running++;
+            try {
+                pool.execute(() -> {
+                    try {
+                        task.run();
+                    } finally {
+                        finished();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                running--;  // The pool is shut down, nothing more will run
+                return;
+            }
+        }
+    }
+
+    private synchronized void finished() {
+        running--;
+        completedTasks++;
+        dispatch();
+    }
+
+    /**
+     * Creates a thread factory for daemon threads named after the given pool name.
+     *
+     * @param name the prefix of the thread names.
+     * @return the thread factory.
+     */
+    public static ThreadFactory namedDaemonThreads(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * One client's view of the shared pool.
+     */
+    public class Tenant implements Executor, AutoCloseable {
+        private final String tenantName;
+        private final Queue<Runnable> pending = new ArrayDeque<>();
+        private boolean inRotation;
+        private boolean closed;
+
+        private Tenant(String tenantName) {
+            this.tenantName = tenantName;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            synchronized (FairShareExecutor.this) {
+                if (closed) {
+                    throw new RejectedExecutionException(name + " tenant '" + tenantName + "' is closed");
+                }
+                pending.add(task);
+                if (!inRotation) {
+                    inRotation = true;
+                    rotation.add(this);
+                }
+                dispatch();
+            }
+        }
+
+        /**
+         * @return the number of this tenant's tasks waiting for a thread.
+         */
+        public int getQueueDepth() {
+            synchronized (FairShareExecutor.this) {
+                return pending.size();
+            }
+        }
+
+        /**
+         * Drops the tenant's queued tasks and rejects new ones. Running tasks are left to finish.
+         */
+        @Override
+        public void close() {
+            synchronized (FairShareExecutor.this) {
+                if (closed) return;
+                closed = true;
+                pending.clear();
+                rotation.remove(this);
+                inRotation = false;
+                tenantCount--;
+            }
+        }
+    }
+}
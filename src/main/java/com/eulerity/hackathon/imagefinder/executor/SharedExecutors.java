@@ -0,0 +1,103 @@
+package com.eulerity.hackathon.imagefinder.executor;
+
+import com.eulerity.hackathon.imagefinder.AppConfig;
+import com.eulerity.hackathon.imagefinder.crawler.CheckpointStore;
+import com.eulerity.hackathon.imagefinder.crawler.HostMetadataCache;
+import com.eulerity.hackathon.imagefinder.crawler.HostPolitenessScheduler;
+import com.eulerity.hackathon.imagefinder.crawler.LinkScorer;
+import com.eulerity.hackathon.imagefinder.crawler.PageCache;
+import com.eulerity.hackathon.imagefinder.crawler.PageFetcher;
+import lombok.Getter;
+
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The thread pools shared by every request handled by this process.
+ * Crawls and AI processing each get a bounded {@link FairShareExecutor}, and all crawls share one
+ * {@link HostPolitenessScheduler} so a host is treated politely even when several requests crawl it at once.
+ * Page downloads run on the non-blocking {@link PageFetcher}, so the crawl pool only parses pages and is
+ * sized to the number of cores. Fetched pages are revalidated against the process-wide {@link PageCache}, which
+ * outlives the pools: every set of pools in the process uses the same one. The robots.txt rules and sitemaps of crawled
+ * hosts are kept in a {@link HostMetadataCache} configured with SITEMAP_DIR and SITEMAP_MAX_AGE_MINUTES.
+ * The {@link LinkScorer} is shared too, so what one crawl learns about a site's yield helps the next one.
+ * Crawl checkpoints are written by a {@link CheckpointStore} configured with CHECKPOINT_DIR,
+ * CHECKPOINT_FLUSH_MILLIS and CHECKPOINT_FSYNC.
+ */
+@Getter
+public class SharedExecutors {
+    public static final int CRAWL_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    public static final int AI_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    // Politeness: at most this many fetches per host, each preceded by a random 1-5 second delay
+    public static final int SLOTS_PER_HOST = 10;
+    public static final int MIN_DELAY_MILLIS = 1000;
+    public static final int MAX_DELAY_MILLIS = 5000;
+    public static final long SITEMAP_MAX_AGE_MINUTES = 60;
+    public static final long CHECKPOINT_FLUSH_MILLIS = 500;
+
+    private final FairShareExecutor crawlExecutor;
+    private final FairShareExecutor aiExecutor;
+    private final HostPolitenessScheduler politeness;
+    private final PageCache pageCache;
+    private final PageFetcher pageFetcher;
+    private final HostMetadataCache hostMetadata;
+    private final LinkScorer linkScorer = new LinkScorer();
+    private final CheckpointStore checkpoints;
+
+    public SharedExecutors() {
+        this(CRAWL_THREADS, AI_THREADS, MIN_DELAY_MILLIS, MAX_DELAY_MILLIS);
+    }
+
+    public SharedExecutors(int crawlThreads, int aiThreads, int minDelayMillis, int maxDelayMillis) {
+        this(crawlThreads, aiThreads, minDelayMillis, maxDelayMillis, PageCache.getInstance());
+    }
+
+    /**
+     * @param pageCache the cache fetched pages are revalidated against, or null for none. It isn't closed with
+     *                  the pools.
+     */
+    public SharedExecutors(int crawlThreads, int aiThreads, int minDelayMillis, int maxDelayMillis, PageCache pageCache) {
+        this.crawlExecutor = new FairShareExecutor("crawl", crawlThreads);
+        this.aiExecutor = new FairShareExecutor("ai", aiThreads);
+        this.politeness = new HostPolitenessScheduler(SLOTS_PER_HOST, minDelayMillis, maxDelayMillis);
+        this.pageCache = pageCache;
+        this.pageFetcher = new PageFetcher(PageFetcher.MAX_BODY_BYTES, pageCache);
+        this.hostMetadata = new HostMetadataCache(
+                Paths.get(AppConfig.getString("SITEMAP_DIR", Paths.get(System.getProperty("java.io.tmpdir"), "imagefinder", "sitemaps").toString())),
+                TimeUnit.MINUTES.toMillis(AppConfig.getLong("SITEMAP_MAX_AGE_MINUTES", SITEMAP_MAX_AGE_MINUTES)));
+        this.checkpoints = new CheckpointStore(
+                Paths.get(AppConfig.getString("CHECKPOINT_DIR", Paths.get(System.getProperty("java.io.tmpdir"), "imagefinder", "checkpoints").toString())),
+                AppConfig.getLong("CHECKPOINT_FLUSH_MILLIS", CHECKPOINT_FLUSH_MILLIS), AppConfig.getBoolean("CHECKPOINT_FSYNC", true));
+    }
+
+    /**
+     * @return queue depth and thread usage of every shared pool, keyed by pool name.
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("crawl", crawlExecutor.getStats());
+        stats.put("ai", aiExecutor.getStats());
+        stats.put("fetch", pageFetcher.getStats());
+        stats.put("politenessPendingFetches", politeness.getPendingCount());
+        stats.put("hostMetadata", hostMetadata.getStats());
+        stats.put("checkpoints", checkpoints.getStats());
+        if (pageCache != null) {
+            stats.put("pageCache", pageCache.getStats());
+        }
+        return stats;
+    }
+
+    /**
+     * Stops all pools. Queued work is dropped and running work is interrupted.
+     */
+    public void shutdown() {
+        politeness.shutdown();
+        pageFetcher.close();
+        crawlExecutor.shutdown();
+        aiExecutor.shutdown();
+        checkpoints.shutdown();
+        hostMetadata.shutdown();
+    }
+}
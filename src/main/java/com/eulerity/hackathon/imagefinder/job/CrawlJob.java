@@ -0,0 +1,284 @@
+package com.eulerity.hackathon.imagefinder.job;
+
+import com.eulerity.hackathon.imagefinder.crawler.CheckpointStore;
+import com.eulerity.hackathon.imagefinder.crawler.CrawlCheckpoint;
+import com.eulerity.hackathon.imagefinder.crawler.CrawlerPageResult;
+import com.eulerity.hackathon.imagefinder.crawler.WebCrawler;
+import com.eulerity.hackathon.imagefinder.executor.FairShareExecutor;
+import com.eulerity.hackathon.imagefinder.executor.SharedExecutors;
+import lombok.AccessLevel;
+import lombok.Getter;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * A crawl submitted through the job API, running in the background while clients poll or subscribe to it.
+ * The job keeps every page result as soon as it has been crawled. If AI processing was asked for, the pages are
+ * enriched one after another once the crawl is over, in the order they were crawled, so the first
+ * {@link #getEnrichedPages()} pages are the enriched ones.
+ * All state changes notify the job's monitor, which {@link #awaitChange(int, int, long)} waits on.
+ * The crawl's progress is logged to a {@link CrawlCheckpoint} named after the job ID, so the job can be resumed
+ * if the process stops before it is done. The checkpoint is deleted once the job is done or was cancelled.
+ */
+@Getter
+public class CrawlJob {
+    public enum Status {
+        QUEUED, RUNNING, DONE, FAILED, CANCELLED;
+
+        public boolean isFinished() {
+            return this == DONE || this == FAILED || this == CANCELLED;
+        }
+    }
+
+    private final String id;
+    private final String url;
+    private final int maxImages;
+    private final boolean useAI;
+    // True if the job picks up a crawl from its checkpoint
+    private final boolean resumed;
+    private final long submittedMillis = System.currentTimeMillis();
+    private volatile Status status = Status.QUEUED;
+    private volatile long finishedMillis;
+    private volatile String error;
+    @Getter(AccessLevel.NONE)
+    private final List<CrawlerPageResult> pages = new ArrayList<>();
+    @Getter(AccessLevel.NONE)
+    private int enrichedPages;
+    @Getter(AccessLevel.NONE)
+    private Map<String, Object> dedupe;
+    @Getter(AccessLevel.NONE)
+    private volatile WebCrawler crawler;
+    @Getter(AccessLevel.NONE)
+    private volatile int pagesVisited;
+    @Getter(AccessLevel.NONE)
+    private volatile boolean cancelRequested;
+    @Getter(AccessLevel.NONE)
+    private volatile boolean suspended;
+    @Getter(AccessLevel.NONE)
+    private volatile Future<?> future;
+
+    CrawlJob(String id, String url, int maxImages, boolean useAI) {
+        this(id, url, maxImages, useAI, false);
+    }
+
+    CrawlJob(String id, String url, int maxImages, boolean useAI, boolean resumed) {
+        this.id = id;
+        this.url = url;
+        this.maxImages = maxImages;
+        this.useAI = useAI;
+        this.resumed = resumed;
+    }
+
+    /**
+     * Crawls the job's URL and then runs AI processing if asked for. Does nothing if the job was cancelled while
+     * it was queued.
+     *
+     * @param executors the shared thread pools the crawl and AI processing run on.
+     */
+    void run(SharedExecutors executors) {
+        WebCrawler webCrawler = new WebCrawler(maxImages, executors);
+        synchronized (this) {
+            if (status != Status.QUEUED) return;
+            status = Status.RUNNING;
+            crawler = webCrawler;
+            notifyAll();
+        }
+        CrawlCheckpoint checkpoint = openCheckpoint(executors.getCheckpoints());
+        webCrawler.setCheckpoint(checkpoint);
+        try {
+            webCrawler.crawl(url, this::addPage);
+            if (useAI && !cancelRequested) {
+                try (FairShareExecutor.Tenant aiWorkers = executors.getAiExecutor().newTenant(url)) {
+                    for (CrawlerPageResult page : getPages(0)) {
+                        if (cancelRequested) break;
+                        page.useAI(aiWorkers);
+                        synchronized (this) {
+                            enrichedPages++;
+                            notifyAll();
+                        }
+                    }
+                }
+                synchronized (this) {
+                    dedupe = webCrawler.getImageDeduplicator().getStats();
+                }
+            }
+            finish(cancelRequested ? Status.CANCELLED : Status.DONE, null);
+        } catch (MalformedURLException e) {
+            finish(Status.FAILED, "URL is malformed.");
+        } catch (InterruptedException e) {
+            finish(Status.CANCELLED, null);
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            e.printStackTrace();
+            finish(Status.FAILED, "Something went wrong, please try again later.");
+        } finally {
+            if (checkpoint != null) {
+                if (status == Status.DONE || (status == Status.CANCELLED && !suspended)) {
+                    checkpoint.delete();
+                } else {
+                    checkpoint.close();  // Kept to resume from
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the job's checkpoint, or null if it can't be opened, in which case the job runs without one.
+     */
+    private CrawlCheckpoint openCheckpoint(CheckpointStore checkpoints) {
+        try {
+            CrawlCheckpoint checkpoint = checkpoints.open(id);
+            if (checkpoint.getHeader() == null) {
+                checkpoint.writeHeader(url, maxImages, useAI);
+            }
+            return checkpoint;
+        } catch (IOException e) {
+            System.out.println("Job " + id + " runs without a checkpoint: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Cancels the job. A queued job is cancelled right away; a running crawl stops dispatching new pages and the
+     * job ends as cancelled once the pages being fetched are done, keeping the results found so far.
+     *
+     * @return false if the job had already finished.
+     */
+    synchronized boolean cancel() {
+        if (status.isFinished()) return false;
+        cancelRequested = true;
+        if (status == Status.QUEUED) {
+            finish(Status.CANCELLED, null);
+            if (future != null) {
+                future.cancel(false);  // Lets the job manager purge it from the job queue
+            }
+        } else if (crawler != null) {
+            crawler.cancel();
+        }
+        return true;
+    }
+
+    /**
+     * Cancels the job like {@link #cancel()}, but keeps its checkpoint so it can be resumed, e.g. when the
+     * process shuts down.
+     *
+     * @return false if the job had already finished.
+     */
+    synchronized boolean suspend() {
+        if (status.isFinished()) return false;
+        suspended = true;
+        return cancel();
+    }
+
+    /**
+     * Waits until a page was added or enriched, or the job finished, whichever comes first.
+     *
+     * @param seenPages     the number of pages the caller already knows about.
+     * @param seenEnriched  the number of enriched pages the caller already knows about.
+     * @param timeoutMillis the maximum time to wait.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    public synchronized void awaitChange(int seenPages, int seenEnriched, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long remaining = timeoutMillis;
+        while (pages.size() == seenPages && enrichedPages == seenEnriched && !status.isFinished() && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @param fromIndex the index of the first page to return.
+     * @return the pages crawled so far, starting at fromIndex.
+     */
+    public synchronized List<CrawlerPageResult> getPages(int fromIndex) {
+        return new ArrayList<>(pages.subList(Math.min(Math.max(0, fromIndex), pages.size()), pages.size()));
+    }
+
+    public synchronized int getPageCount() {
+        return pages.size();
+    }
+
+    /**
+     * @return the number of pages that went through AI processing, always the first ones of {@link #getPages(int)}.
+     */
+    public synchronized int getEnrichedPages() {
+        return enrichedPages;
+    }
+
+    /**
+     * @return the image dedupe stats of the crawl once AI processing is over, otherwise null.
+     */
+    public synchronized Map<String, Object> getDedupe() {
+        return dedupe;
+    }
+
+    /**
+     * @return the number of pages fetched so far.
+     */
+    public int getPagesVisited() {
+        WebCrawler webCrawler = crawler;
+        return webCrawler == null ? pagesVisited : webCrawler.getPagesVisited();
+    }
+
+    /**
+     * Describes the job for the API.
+     *
+     * @param fromPage the index of the first page result to include, or -1 to leave the pages out.
+     * @return the job's status, progress and the requested page results.
+     */
+    public synchronized Map<String, Object> describe(int fromPage) {
+        Map<String, Object> description = new LinkedHashMap<>();
+        description.put("id", id);
+        description.put("url", url);
+        description.put("status", status);
+        if (resumed) {
+            description.put("resumed", true);
+        }
+        description.put("submittedMillis", submittedMillis);
+        if (status.isFinished()) {
+            description.put("finishedMillis", finishedMillis);
+        }
+        description.put("pagesVisited", getPagesVisited());
+        description.put("pageCount", pages.size());
+        description.put("enrichedPages", enrichedPages);
+        if (error != null) {
+            description.put("error", error);
+        }
+        if (dedupe != null) {
+            description.put("dedupe", dedupe);
+        }
+        if (fromPage >= 0) {
+            description.put("fromPage", fromPage);
+            description.put("pages", getPages(fromPage));
+        }
+        return description;
+    }
+
+    void setFuture(Future<?> future) {
+        this.future = future;
+    }
+
+    private synchronized void addPage(CrawlerPageResult page) {
+        pages.add(page);
+        notifyAll();
+    }
+
+    private synchronized void finish(Status finalStatus, String message) {
+        status = finalStatus;
+        error = message;
+        finishedMillis = System.currentTimeMillis();
+        if (crawler != null) {
+            // Keep the count, but let go of the crawler's image set and deduplicator
+            pagesVisited = crawler.getPagesVisited();
+            crawler = null;
+        }
+        notifyAll();
+    }
+}
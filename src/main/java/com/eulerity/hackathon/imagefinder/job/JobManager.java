@@ -0,0 +1,144 @@
+package com.eulerity.hackathon.imagefinder.job;
+
+import com.eulerity.hackathon.imagefinder.AppConfig;
+import com.eulerity.hackathon.imagefinder.crawler.CrawlCheckpoint;
+import com.eulerity.hackathon.imagefinder.crawler.UrlCanonicalizer;
+import com.eulerity.hackathon.imagefinder.executor.FairShareExecutor;
+import com.eulerity.hackathon.imagefinder.executor.SharedExecutors;
+
+import java.net.MalformedURLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs crawl jobs in the background with admission control.
+ * At most JOB_MAX_RUNNING jobs run at once and at most JOB_MAX_QUEUED more wait for a turn; anything beyond
+ * that is rejected so a saturated node sheds load instead of piling up work. A job thread only dispatches pages
+ * and waits, the actual work runs on the shared crawl and AI pools. Finished jobs stay in a {@link JobStore}
+ * bounded by JOB_MAX_FINISHED and JOB_TTL_MINUTES. Jobs that didn't finish, e.g. because the process was
+ * restarted, can be resumed by ID from their checkpoints.
+ */
+public class JobManager {
+    public static final int MAX_RUNNING_JOBS = 4;
+    public static final int MAX_QUEUED_JOBS = 16;
+    public static final int MAX_FINISHED_JOBS = 100;
+    public static final long JOB_TTL_MINUTES = 30;
+
+    private final SharedExecutors executors;
+    private final ThreadPoolExecutor runner;
+    private final JobStore store;
+
+    public JobManager(SharedExecutors executors) {
+        this(executors, AppConfig.getInt("JOB_MAX_RUNNING", MAX_RUNNING_JOBS), AppConfig.getInt("JOB_MAX_QUEUED", MAX_QUEUED_JOBS),
+                new JobStore(AppConfig.getInt("JOB_MAX_FINISHED", MAX_FINISHED_JOBS),
+                        TimeUnit.MINUTES.toMillis(AppConfig.getLong("JOB_TTL_MINUTES", JOB_TTL_MINUTES))));
+    }
+
+    /**
+     * @param executors  the shared thread pools the jobs run on.
+     * @param maxRunning the maximum number of jobs running at once.
+     * @param maxQueued  the maximum number of jobs waiting for a turn.
+     * @param store      where jobs are kept.
+     */
+    public JobManager(SharedExecutors executors, int maxRunning, int maxQueued, JobStore store) {
+        this.executors = executors;
+        this.store = store;
+        BlockingQueue<Runnable> queue = maxQueued > 0 ? new ArrayBlockingQueue<>(maxQueued) : new SynchronousQueue<>();
+        this.runner = new ThreadPoolExecutor(maxRunning, maxRunning, 0, TimeUnit.MILLISECONDS, queue,
+                FairShareExecutor.namedDaemonThreads("job"), new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Queues a crawl job.
+     *
+     * @param url       the URL to start crawling from.
+     * @param maxImages the maximum number of images to collect.
+     * @param useAI     whether to run AI processing on the results.
+     * @return the queued job.
+     * @throws MalformedURLException      if the URL is not an http(s) URL.
+     * @throws RejectedExecutionException if the job queue is full.
+     */
+    public CrawlJob submit(String url, int maxImages, boolean useAI) throws MalformedURLException {
+        if (UrlCanonicalizer.canonicalize(url) == null) {
+            throw new MalformedURLException("Not an http(s) URL: " + url);
+        }
+        return schedule(new CrawlJob(UUID.randomUUID().toString(), url, maxImages, useAI));
+    }
+
+    /**
+     * Queues a job that picks up a crawl from its checkpoint: pages crawled before aren't fetched again and
+     * their results come first. A job that is still queued or running is returned as is.
+     *
+     * @param id the job ID.
+     * @return the job, or null if there is no checkpoint for the ID.
+     * @throws RejectedExecutionException if the job queue is full.
+     */
+    public synchronized CrawlJob resume(String id) {
+        CrawlJob existing = store.get(id);
+        if (existing != null && !existing.getStatus().isFinished()) {
+            return existing;
+        }
+        CrawlCheckpoint.Header header = executors.getCheckpoints().readHeader(id);
+        if (header == null) {
+            return null;
+        }
+        return schedule(new CrawlJob(id, header.getUrl(), header.getMaxImages(), header.isUseAI(), true));
+    }
+
+    private CrawlJob schedule(CrawlJob job) {
+        job.setFuture(runner.submit(() -> job.run(executors)));
+        store.add(job);
+        return job;
+    }
+
+    /**
+     * @param id the job ID.
+     * @return the job, or null if it is unknown or was evicted.
+     */
+    public CrawlJob get(String id) {
+        return store.get(id);
+    }
+
+    /**
+     * Cancels a job, see {@link CrawlJob#cancel()}. A queued job gives its place in the job queue back right away.
+     *
+     * @param id the job ID.
+     * @return the job, or null if it is unknown or was evicted.
+     */
+    public CrawlJob cancel(String id) {
+        CrawlJob job = store.get(id);
+        if (job != null && job.cancel()) {
+            runner.purge();
+        }
+        return job;
+    }
+
+    /**
+     * @return the number of jobs per status, plus the number of job slots and queued jobs of the runner.
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>(store.getStats());
+        stats.put("maxRunning", runner.getMaximumPoolSize());
+        stats.put("queueDepth", runner.getQueue().size());
+        stats.put("queueCapacity", runner.getQueue().size() + runner.getQueue().remainingCapacity());
+        return stats;
+    }
+
+    /**
+     * Stops all queued and running jobs, keeping their checkpoints so they can be resumed, and stops the job
+     * threads.
+     */
+    public void shutdown() {
+        for (CrawlJob job : store.getActiveJobs()) {
+            job.suspend();
+        }
+        runner.shutdownNow();
+    }
+}
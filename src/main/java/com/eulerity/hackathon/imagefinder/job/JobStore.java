@@ -0,0 +1,99 @@
+package com.eulerity.hackathon.imagefinder.job;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the jobs known to this process by ID. Queued and running jobs are always kept; finished jobs are evicted
+ * once they have been finished for longer than the TTL, and the oldest finished jobs are evicted first whenever
+ * there are more of them than the store may hold. Eviction happens lazily on every access, so no timer is needed.
+ */
+public class JobStore {
+    private final int maxFinishedJobs;
+    private final long ttlMillis;
+    // In submission order, so the first finished jobs found are the oldest ones
+    private final Map<String, CrawlJob> jobs = new LinkedHashMap<>();
+    private long evicted;
+
+    /**
+     * @param maxFinishedJobs the maximum number of finished jobs to keep.
+     * @param ttlMillis       how long a finished job is kept after it finished.
+     */
+    public JobStore(int maxFinishedJobs, long ttlMillis) {
+        this.maxFinishedJobs = maxFinishedJobs;
+        this.ttlMillis = ttlMillis;
+    }
+
+    public synchronized void add(CrawlJob job) {
+        evict();
+        jobs.put(job.getId(), job);
+    }
+
+    /**
+     * @param id the job ID.
+     * @return the job, or null if it is unknown or was evicted.
+     */
+    public synchronized CrawlJob get(String id) {
+        evict();
+        return jobs.get(id);
+    }
+
+    /**
+     * @return the jobs that are queued or running.
+     */
+    public synchronized List<CrawlJob> getActiveJobs() {
+        List<CrawlJob> active = new ArrayList<>();
+        for (CrawlJob job : jobs.values()) {
+            if (!job.getStatus().isFinished()) {
+                active.add(job);
+            }
+        }
+        return active;
+    }
+
+    /**
+     * @return the number of jobs per status and the number of evicted jobs.
+     */
+    public synchronized Map<String, Object> getStats() {
+        evict();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        for (CrawlJob.Status status : CrawlJob.Status.values()) {
+            stats.put(status.name().toLowerCase(), 0);
+        }
+        for (CrawlJob job : jobs.values()) {
+            String key = job.getStatus().name().toLowerCase();
+            stats.put(key, (Integer) stats.get(key) + 1);
+        }
+        stats.put("evicted", evicted);
+        return stats;
+    }
+
+    /**
+     * Removes expired finished jobs, then the oldest finished jobs beyond the size bound. Must hold the lock.
+     */
+    private void evict() {
+        long now = System.currentTimeMillis();
+        int finished = 0;
+        for (Iterator<CrawlJob> iterator = jobs.values().iterator(); iterator.hasNext(); ) {
+            CrawlJob job = iterator.next();
+            if (job.getStatus().isFinished()) {
+                if (now - job.getFinishedMillis() > ttlMillis) {
+                    iterator.remove();
+                    evicted++;
+                } else {
+                    finished++;
+                }
+            }
+        }
+        for (Iterator<CrawlJob> iterator = jobs.values().iterator(); finished > maxFinishedJobs && iterator.hasNext(); ) {
+            if (iterator.next().getStatus().isFinished()) {
+                iterator.remove();
+                evicted++;
+                finished--;
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.eulerity.hackathon.imagefinder.objectDetector;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Finds values by 64 bit hashes that differ in at most a given number of bits, without comparing against every
+ * value. The hash is split into maxDistance + 1 bands of consecutive bits; two hashes at most maxDistance bits apart
+ * can't differ in every band, so they share at least one band exactly. Each band has a map from its bits to the
+ * values, and a lookup only compares against the values in its own buckets.
+ * Not thread-safe.
+ *
+ * @param <T> the type of the values.
+ */
+public class HammingIndex<T> {
+    private final int maxDistance;
+    private final int[] bandShifts;
+    private final long[] bandMasks;
+    // One map per band, from the bits of the band to the entries having them
+    private final List<Map<Long, List<Entry<T>>>> bands = new ArrayList<>();
+    private int size;
+
+    /**
+     * @param maxDistance the largest number of differing bits for two hashes to match, 0 to 63.
+     */
+    public HammingIndex(int maxDistance) {
+        if (maxDistance < 0 || maxDistance >= Long.SIZE) {
+            throw new IllegalArgumentException("maxDistance must be between 0 and 63: " + maxDistance);
+        }
+        this.maxDistance = maxDistance;
+        int count = maxDistance + 1;
+        bandShifts = new int[count];
+        bandMasks = new long[count];
+        int shift = 0;
+        for (int i = 0; i < count; i++) {
+            // Spread the remainder over the first bands
+            int bits = Long.SIZE / count + (i < Long.SIZE % count ? 1 : 0);
+            bandShifts[i] = shift;
+            bandMasks[i] = bits == Long.SIZE ? -1L : (1L << bits) - 1;
+            shift += bits;
+            bands.add(new HashMap<>());
+        }
+    }
+
+    /**
+     * @param hash  the hash of the value.
+     * @param value the value.
+     */
+    public void add(long hash, T value) {
+        Entry<T> entry = new Entry<>(hash, value, size++);
+        for (int i = 0; i < bandShifts.length; i++) {
+            bands.get(i).computeIfAbsent(band(hash, i), key -> new ArrayList<>(1)).add(entry);
+        }
+    }
+
+    /**
+     * @param hash   the hash to look up.
+     * @param filter further condition a value must meet.
+     * @return the value added first among those whose hash is at most maxDistance bits from hash and that pass the
+     * filter, or null if there is none.
+     */
+    public T findFirst(long hash, Predicate<? super T> filter) {
+        Entry<T> first = null;
+        for (int i = 0; i < bandShifts.length; i++) {
+            List<Entry<T>> bucket = bands.get(i).get(band(hash, i));
+            if (bucket == null) continue;
+            for (Entry<T> entry : bucket) {
+                if ((first == null || entry.order < first.order)
+                        && Long.bitCount(entry.hash ^ hash) <= maxDistance && filter.test(entry.value)) {
+                    first = entry;
+                }
+            }
+        }
+        return first == null ? null : first.value;
+    }
+
+    /**
+     * @return the number of values added.
+     */
+    public int size() {
+        return size;
+    }
+
+    private long band(long hash, int i) {
+        return (hash >>> bandShifts[i]) & bandMasks[i];
+    }
+
+    private static class Entry<T> {
+        private final long hash;
+        private final T value;
+        private final int order;
+
+        private Entry(long hash, T value, int order) {
+            this.hash = hash;
+            this.value = value;
+            this.order = order;
+        }
+    }
+}
@@ -1,12 +1,6 @@
 package com.eulerity.hackathon.imagefinder.objectDetector;
 
-import org.apache.hc.client5.http.classic.methods.HttpGet;
-import org.apache.hc.client5.http.fluent.Request;
-import org.apache.hc.client5.http.fluent.Response;
-import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
-import org.apache.hc.client5.http.impl.classic.CloseableHttpResponse;
-import org.apache.hc.client5.http.impl.classic.HttpClients;
-import org.apache.hc.core5.http.io.entity.EntityUtils;
+import com.eulerity.hackathon.imagefinder.crawler.ImageCache;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfByte;
 import org.opencv.core.Rect2d;
@@ -30,7 +24,7 @@ public class ImageAnnotator {
      *
      * @param image      The image to annotate as an OpenCV Mat object.
      * @param detections A list of Detection objects.
-     * @return An annotated image as an OpenCV Mat object.
+     * @return The same Mat, drawn on.
      */
     public static Mat annotateImage(Mat image, List<Detection> detections) {
         if (detections == null) {
@@ -58,30 +52,54 @@ public class ImageAnnotator {
      * Converts an image from a URL to an OpenCV Mat object.
      *
      * @param url The URL from which to load the image.
-     * @return A Mat object representing the loaded and decoded image. If the image cannot be loaded, returns an empty Mat object.
+     * @return A Mat object representing the loaded and decoded image, for the caller to release. If the image cannot
+     * be loaded, returns an empty Mat object.
      */
     public static Mat urlToImage(URL url) {
-        try (CloseableHttpClient client = HttpClients.createDefault()) {
-            Response response = Request.get(url.toString()).setHeader("User-Agent", "Mozilla/5.0").execute();
-            byte[] imageData = response.returnContent().asBytes();
-            return Imgcodecs.imdecode(new MatOfByte(imageData), Imgcodecs.IMREAD_COLOR);
-//            HttpGet request = new HttpGet(url.toURI());
-//            request.setHeader("User-Agent", "Mozilla/5.0");
-//            try (CloseableHttpResponse response = client.execute(request)) {
-//                byte[] imageData = EntityUtils.toByteArray(response.getEntity());
-//                return Imgcodecs.imdecode(new MatOfByte(imageData), Imgcodecs.IMREAD_COLOR);
-//            }
-        } catch (Exception e) {
-            System.out.println("Couldn't load image from url: " + url);
-            return new Mat();
+        byte[] imageData = urlToBytes(url);
+        if (imageData == null) {
+            return NativeMats.track(new Mat());
+        }
+        MatOfByte encoded = NativeMats.track(new MatOfByte(imageData));
+        try {
+            return NativeMats.track(Imgcodecs.imdecode(encoded, Imgcodecs.IMREAD_COLOR));
+        } finally {
+            NativeMats.release(encoded);
+        }
+    }
+
+    /**
+     * Loads the encoded bytes of an image through the image cache, so they can be decoded more than once without
+     * another download.
+     *
+     * @param url The URL from which to load the image.
+     * @return The raw image bytes, or null if the image cannot be loaded.
+     */
+    public static byte[] urlToBytes(URL url) {
+        try {
+            return ImageCache.getInstance().get(url.toString()).getBody();
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Couldn't load image from url: " + url + ": " + e.getMessage());
+            return null;
         }
     }
 
+    /**
+     * Tells the size of an image if the image cache already downloaded it, without a request.
+     *
+     * @param url The URL of the image.
+     * @return The size of the image, or -1 if it isn't in the image cache.
+     */
+    public static long cachedSize(URL url) {
+        return ImageCache.getInstance().cachedSize(url.toString());
+    }
+
     /**
      * Converts an image from a URL string to an OpenCV Mat object.
      *
      * @param urlString The string representation of the URL from which to load the image.
-     * @return A Mat object representing the loaded and decoded image. Returns an empty Mat object if errors occur.
+     * @return A Mat object representing the loaded and decoded image, for the caller to release. Returns an empty Mat
+     * object if errors occur.
      */
     public static Mat urlToImage(String urlString) {
         try {
@@ -93,7 +111,7 @@ public class ImageAnnotator {
             return urlToImage(url);
         } catch (IOException e) {
             System.err.println("Error encoding or loading image from URL string: " + e.getMessage());
-            return new Mat();
+            return NativeMats.track(new Mat());
         }
     }
 
@@ -110,13 +128,16 @@ public class ImageAnnotator {
             throw new IllegalArgumentException("Provided Mat object is empty or null.");
         }
 
-        MatOfByte buffer = new MatOfByte();
-
-        boolean result = Imgcodecs.imencode(".jpg", image, buffer);
-        if (!result) {
-            throw new IOException("Failed to encode image.");
+        MatOfByte buffer = NativeMats.track(new MatOfByte());
+        try {
+            boolean result = Imgcodecs.imencode(".jpg", image, buffer);
+            if (!result) {
+                throw new IOException("Failed to encode image.");
+            }
+
+            return buffer.toArray();
+        } finally {
+            NativeMats.release(buffer);
         }
-
-        return buffer.toArray();
     }
 }
@@ -0,0 +1,308 @@
+package com.eulerity.hackathon.imagefinder.objectDetector;
+
+import com.eulerity.hackathon.imagefinder.crawler.AiResultCache;
+import com.eulerity.hackathon.imagefinder.crawler.ImageCache;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.Rect2d;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Runs object detection once per group of near-duplicate images within a crawl.
+ * The same photo is often served under several URLs, e.g. with different CDN resize parameters. Each image is
+ * fingerprinted with a difference hash (dHash) computed from a reduced grayscale decode; images whose hashes
+ * differ in only a few bits and whose aspect ratios match join the group of the first such image. Only that
+ * first image is fully decoded and run through the detector, and its detections are scaled to the size of
+ * every other image in the group.
+ * It also keeps the download statistics of the crawl's detection images. The bytes saved by downloading a smaller
+ * srcset rendition instead of the displayed image are counted only when the displayed image's size is known
+ * without a request, i.e. the image cache downloaded it before, so they are a lower bound.
+ * The detector gets the encoded image and the crawl's network input size, so it can decode large JPEGs at a reduced
+ * scale. Only results of the default input size are stored in the result cache, which keeps one version of each
+ * kind of result; crawls of any input size read them.
+ */
+public class ImageDeduplicator {
+    // Two hashes at most this many bits apart are considered the same picture
+    private static final int MAX_HAMMING_DISTANCE = 5;
+    private static final double MAX_ASPECT_RATIO_DIFFERENCE = 0.05;
+
+    // Takes the encoded image and the network input size
+    private final BiFunction<byte[], Integer, List<Detection>> detector;
+    // The input size whose results are stored in the result cache, DETECTOR_INPUT_SIZE
+    private final int defaultInputSize = ObjectDetector.defaultInputSize();
+    private volatile int inputSize = defaultInputSize;
+    // Null if results aren't cached across crawls
+    private final AiResultCache cache;
+    private final Supplier<String> modelVersion;
+    // Indexed by dHash, so finding a near-duplicate doesn't compare against every group
+    private final HammingIndex<Group> groups = new HammingIndex<>(MAX_HAMMING_DISTANCE);
+    private int images;
+    private final AtomicInteger cachedResults = new AtomicInteger();
+    private final AtomicLong bytesDownloaded = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+    private final AtomicInteger smallerSources = new AtomicInteger();
+
+    public ImageDeduplicator() {
+        this((imageData, inputSize) -> ObjectDetector.getInstance().detect(imageData, inputSize), AiResultCache.getInstance(),
+                ObjectDetector::modelVersion);
+    }
+
+    /**
+     * @param detector runs object detection on a decoded image.
+     */
+    public ImageDeduplicator(Function<Mat, List<Detection>> detector) {
+        this(detector, null, null);
+    }
+
+    /**
+     * @param detector     runs object detection on a decoded image.
+     * @param cache        the results of earlier crawls, looked up by the hash of the image bytes before decoding, or
+     *                     null to always run the detector.
+     * @param modelVersion the version of the detector's model the cached results must come from.
+     */
+    public ImageDeduplicator(Function<Mat, List<Detection>> detector, AiResultCache cache, Supplier<String> modelVersion) {
+        this((imageData, inputSize) -> {
+            MatOfByte encoded = NativeMats.track(new MatOfByte(imageData));
+            Mat image = NativeMats.track(Imgcodecs.imdecode(encoded, Imgcodecs.IMREAD_COLOR));
+            try {
+                return detector.apply(image);
+            } finally {
+                NativeMats.release(image);
+                NativeMats.release(encoded);
+            }
+        }, cache, modelVersion);
+    }
+
+    /**
+     * @param detector     runs object detection on an encoded image with a network input size, reporting boxes in
+     *                     the coordinates of the original image.
+     * @param cache        the results of earlier crawls, or null to always run the detector.
+     * @param modelVersion the version of the detector's model the cached results must come from.
+     */
+    public ImageDeduplicator(BiFunction<byte[], Integer, List<Detection>> detector, AiResultCache cache, Supplier<String> modelVersion) {
+        this.detector = detector;
+        this.cache = cache;
+        this.modelVersion = modelVersion;
+    }
+
+    /**
+     * @param inputSize the network input size for this crawl's images, one of ObjectDetector.INPUT_SIZES; smaller is
+     *                  faster but finds fewer small objects.
+     */
+    public void setInputSize(int inputSize) {
+        this.inputSize = inputSize;
+    }
+
+    /**
+     * @return the network input size for this crawl's images.
+     */
+    public int getInputSize() {
+        return inputSize;
+    }
+
+    /**
+     * Downloads an image and returns its detections, running the detector only if no near-duplicate has been seen.
+     *
+     * @param imageUrl the URL of the image.
+     * @return a list of Detection objects in the coordinates of this image.
+     */
+    public List<Detection> detect(URL imageUrl) {
+        return detect(imageUrl, imageUrl);
+    }
+
+    /**
+     * Downloads a smaller rendition of a displayed image and returns its detections. The bytes saved compared to the
+     * displayed image are counted if the image cache knows its size.
+     *
+     * @param imageUrl   the URL of the image to run detection on.
+     * @param displayUrl the URL of the image shown to the user.
+     * @return a list of Detection objects in the coordinates of the image at imageUrl.
+     */
+    public List<Detection> detect(URL imageUrl, URL displayUrl) {
+        byte[] imageData = ImageAnnotator.urlToBytes(imageUrl);
+        if (imageData == null) {
+            return new ArrayList<>();
+        }
+        bytesDownloaded.addAndGet(imageData.length);
+        if (!imageUrl.toString().equals(displayUrl.toString())) {
+            smallerSources.incrementAndGet();
+            long displayBytes = ImageAnnotator.cachedSize(displayUrl);
+            if (displayBytes >= 0) {
+                bytesSaved.addAndGet(displayBytes - imageData.length);
+            }
+        }
+        return detect(imageData);
+    }
+
+    /**
+     * Returns the detections for an encoded image, running the detector only if the same bytes weren't run through
+     * the same model before and no near-duplicate has been seen.
+     * If a near-duplicate is still being processed on another thread, this waits for its result.
+     *
+     * @param imageData the encoded image, e.g. JPEG or PNG bytes.
+     * @return a list of Detection objects in the coordinates of this image.
+     */
+    public List<Detection> detect(byte[] imageData) {
+        String contentHash = null;
+        String version = null;
+        if (cache != null) {
+            contentHash = ImageCache.contentHash(imageData);
+            version = modelVersion.get();
+            List<Detection> cached = cache.getDetections(contentHash, version);
+            if (cached != null) {
+                cachedResults.incrementAndGet();
+                return cached;
+            }
+        }
+
+        MatOfByte encoded = NativeMats.track(new MatOfByte(imageData));
+        Mat thumbnail = null;
+        try {
+            // A 1/4 scale decode is all the hash needs and skips most of the decoding work
+            thumbnail = NativeMats.track(Imgcodecs.imdecode(encoded, Imgcodecs.IMREAD_REDUCED_GRAYSCALE_4));
+            if (thumbnail.empty()) {
+                return new ArrayList<>();
+            }
+            long hash = differenceHash(thumbnail);
+            Group group;
+            boolean leader;
+            synchronized (groups) {
+                images++;
+                group = findGroup(hash, thumbnail.cols(), thumbnail.rows());
+                leader = group == null;
+                if (leader) {
+                    group = new Group(thumbnail.cols(), thumbnail.rows());
+                    groups.add(hash, group);
+                }
+            }
+
+            if (leader) {
+                List<Detection> detections = new ArrayList<>();
+                try {
+                    detections = detector.apply(imageData, inputSize);
+                    store(contentHash, version, detections);
+                } finally {
+                    // Complete even on failure so duplicates waiting on this group don't hang
+                    group.detections.complete(detections);
+                }
+                return detections;
+            }
+
+            try {
+                List<Detection> detections = scale(group.detections.get(), (double) thumbnail.cols() / group.width,
+                        (double) thumbnail.rows() / group.height);
+                store(contentHash, version, detections);
+                return detections;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new ArrayList<>();
+            } catch (ExecutionException e) {
+                return new ArrayList<>();
+            }
+        } finally {
+            NativeMats.release(thumbnail);
+            NativeMats.release(encoded);
+        }
+    }
+
+    private void store(String contentHash, String version, List<Detection> detections) {
+        // Skipped if the model was reloaded while the detector ran, the detections may come from either one
+        if (cache != null && inputSize == defaultInputSize && version.equals(modelVersion.get())) {
+            cache.putDetections(contentHash, version, detections);
+        }
+    }
+
+    /**
+     * @return the network input size, the number of images seen, the number of distinct groups the detector ran
+     * on, and the dedupe ratio, i.e. the fraction of images whose detection was skipped, plus the number of images
+     * answered from the result cache without being counted as seen, the bytes downloaded for detection, the number
+     * of images detected on a smaller rendition and a lower bound of the bytes that saved.
+     */
+    public Map<String, Object> getStats() {
+        synchronized (groups) {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("inputSize", inputSize);
+            stats.put("images", images);
+            stats.put("groups", groups.size());
+            stats.put("dedupeRatio", images == 0 ? 0.0 : (double) (images - groups.size()) / images);
+            stats.put("cachedResults", cachedResults.get());
+            stats.put("bytesDownloaded", bytesDownloaded.get());
+            stats.put("smallerSources", smallerSources.get());
+            stats.put("bytesSaved", bytesSaved.get());
+            return stats;
+        }
+    }
+
+    /**
+     * Computes a 64 bit dHash: the image is shrunk to 9x8 pixels and every bit tells whether a pixel is brighter
+     * than its right neighbour. Resizing and recompression barely change it, unlike a hash of the bytes.
+     *
+     * @param grayscale a single channel image.
+     * @return the hash.
+     */
+    static long differenceHash(Mat grayscale) {
+        Mat small = NativeMats.track(new Mat());
+        Imgproc.resize(grayscale, small, new Size(9, 8), 0, 0, Imgproc.INTER_AREA);
+        byte[] pixels = new byte[9 * 8];
+        small.get(0, 0, pixels);
+        NativeMats.release(small);
+        long hash = 0;
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 8; x++) {
+                hash <<= 1;
+                if ((pixels[y * 9 + x] & 0xff) > (pixels[y * 9 + x + 1] & 0xff)) {
+                    hash |= 1;
+                }
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Finds the first group with a close enough hash and aspect ratio. Must hold the groups lock.
+     */
+    private Group findGroup(long hash, int width, int height) {
+        double aspectRatio = (double) width / height;
+        return groups.findFirst(hash, group -> {
+            double groupAspectRatio = (double) group.width / group.height;
+            return Math.abs(aspectRatio - groupAspectRatio) <= MAX_ASPECT_RATIO_DIFFERENCE * groupAspectRatio;
+        });
+    }
+
+    private static List<Detection> scale(List<Detection> detections, double scaleX, double scaleY) {
+        List<Detection> scaled = new ArrayList<>(detections.size());
+        for (Detection detection : detections) {
+            Rect2d box = detection.getBbox();
+            scaled.add(new Detection(new Rect2d(box.x * scaleX, box.y * scaleY, box.width * scaleX, box.height * scaleY),
+                    detection.getScore(), detection.getClassName()));
+        }
+        return scaled;
+    }
+
+    private static class Group {
+        // Size of the reduced decode of the image the detector ran on
+        private final int width;
+        private final int height;
+        private final CompletableFuture<List<Detection>> detections = new CompletableFuture<>();
+
+        private Group(int width, int height) {
+            this.width = width;
+            this.height = height;
+        }
+    }
+}
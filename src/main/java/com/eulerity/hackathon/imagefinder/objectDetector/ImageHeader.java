@@ -0,0 +1,58 @@
+package com.eulerity.hackathon.imagefinder.objectDetector;
+
+import lombok.Getter;
+
+/**
+ * The stored size of a JPEG image, read from its frame header without decoding it. EXIF orientation isn't applied,
+ * so a turned photo decodes with width and height swapped.
+ */
+@Getter
+public class ImageHeader {
+    private final int width;
+    private final int height;
+
+    public ImageHeader(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * @param bytes the encoded image.
+     * @return the size of a JPEG image, or null if the bytes aren't a JPEG or its header is cut short.
+     */
+    public static ImageHeader read(byte[] bytes) {
+        if (bytes.length < 4 || (bytes[0] & 0xFF) != 0xFF || (bytes[1] & 0xFF) != 0xD8) {
+            return null;
+        }
+        int offset = 2;
+        while (offset + 4 <= bytes.length) {
+            if ((bytes[offset] & 0xFF) != 0xFF) {
+                return null;
+            }
+            int marker = bytes[offset + 1] & 0xFF;
+            if (marker == 0xFF) {
+                offset++;  // Fill byte
+                continue;
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                offset += 2;  // No length
+                continue;
+            }
+            if (marker == 0xD9 || marker == 0xDA) {
+                return null;  // The image data starts before any frame header
+            }
+            int length = (bytes[offset + 2] & 0xFF) << 8 | bytes[offset + 3] & 0xFF;
+            // SOF0 to SOF15, except DHT, JPG and DAC which share the range
+            if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                if (offset + 9 > bytes.length) {
+                    return null;
+                }
+                int height = (bytes[offset + 5] & 0xFF) << 8 | bytes[offset + 6] & 0xFF;
+                int width = (bytes[offset + 7] & 0xFF) << 8 | bytes[offset + 8] & 0xFF;
+                return width > 0 && height > 0 ? new ImageHeader(width, height) : null;
+            }
+            offset += 2 + length;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,79 @@
+package com.eulerity.hackathon.imagefinder.objectDetector;
+
+import org.opencv.core.Mat;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the Mats the detection code allocates and releases. A Mat's pixels live in native memory, which the
+ * garbage collector neither sees nor hurries to free, so every Mat is released explicitly by its owner once it is
+ * done with it: the method that created it, or whoever a method's doc comment hands it to. Allocations go through
+ * {@link #track} and releases through {@link #release}, so a leak shows up as a live count that keeps growing.
+ * Thread-local buffers that are reused for every image are counted separately, as they live as long as their
+ * thread.
+ */
+public final class NativeMats {
+    private static final AtomicLong allocated = new AtomicLong();
+    private static final AtomicLong released = new AtomicLong();
+    private static final AtomicLong allocatedBytes = new AtomicLong();
+    private static final AtomicLong bufferBytes = new AtomicLong();
+
+    private NativeMats() {
+    }
+
+    /**
+     * Counts a newly allocated Mat, which its owner must pass to {@link #release} once done with it.
+     *
+     * @param mat the Mat.
+     * @return the same Mat.
+     */
+    public static <T extends Mat> T track(T mat) {
+        allocated.incrementAndGet();
+        allocatedBytes.addAndGet(mat.total() * mat.elemSize());
+        return mat;
+    }
+
+    /**
+     * Frees the native memory of a tracked Mat. Does nothing for null.
+     *
+     * @param mat the Mat, which can't be used afterwards.
+     */
+    public static void release(Mat mat) {
+        if (mat != null) {
+            mat.release();
+            released.incrementAndGet();
+        }
+    }
+
+    /**
+     * Counts a change in the size of a reusable buffer, which is not tracked as a Mat.
+     *
+     * @param bytes the bytes the buffer grew by.
+     */
+    static void bufferResized(long bytes) {
+        bufferBytes.addAndGet(bytes);
+    }
+
+    /**
+     * @return the Mats allocated and not released yet.
+     */
+    public static long live() {
+        return allocated.get() - released.get();
+    }
+
+    /**
+     * @return the Mats allocated, released and still live, the bytes allocated for them in total, and the bytes
+     * held by the reusable buffers of all threads.
+     */
+    public static Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("allocated", allocated.get());
+        stats.put("released", released.get());
+        stats.put("live", live());
+        stats.put("allocatedBytes", allocatedBytes.get());
+        stats.put("bufferBytes", bufferBytes.get());
+        return stats;
+    }
+}
@@ -1,31 +1,154 @@
 package com.eulerity.hackathon.imagefinder.objectDetector;
 
+import com.eulerity.hackathon.imagefinder.AppConfig;
+import com.eulerity.hackathon.imagefinder.crawler.ImageCache;
+import com.eulerity.hackathon.imagefinder.executor.FairShareExecutor;
 import org.opencv.core.*;
 import org.opencv.dnn.Dnn;
+import org.opencv.dnn.Image2BlobParams;
 import org.opencv.dnn.Net;
 import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 // ref: https://blog.csdn.net/taoli188/article/details/134720614
 
 /**
  * This class is a singleton that provides an interface to perform object detection using a neural network model.
+ * A Net can't run two inferences at once, so the detector keeps a pool of them: each detection checks one out for
+ * the forward pass and returns it, and as many images as there are nets are processed in parallel. Nets are
+ * loaded when first needed, up to DETECTOR_POOL_SIZE (the number of cores by default). OpenCV's thread count is
+ * process-wide, so it is set to DETECTOR_THREADS_PER_NET, by default the cores divided by the pool size, to keep
+ * parallel inferences from oversubscribing the cores.
+ * With DETECTOR_BATCH_SIZE above 1, images from every crawl are queued instead and one worker per net groups them
+ * into batches of up to that size, run in a single forward pass. DETECTOR_BATCH_WAIT_MILLIS bounds how long a
+ * batch waits to fill after its first image was queued; it doesn't bound the time images queue while every worker
+ * is busy, which shows in p99QueueWaitMillis of the stats. Models that don't accept batches fall back to one image
+ * per pass. {@link #close()} stops the workers.
+ * Nets are loaded from the model bytes read when the detector starts, and the model version is the hash of those
+ * bytes. When the model file changes, the next version lookup reads it again: once a net loads from the new bytes,
+ * the version changes and nets of the old model are dropped as they come back to the pool.
+ * Images are resized into per-thread buffers and laid out in a per-thread input blob, both reused for every image,
+ * and every other Mat is released as soon as it is used; {@link NativeMats} counts them.
+ * The network input is 640x640 unless a smaller size of INPUT_SIZES is asked for, e.g. 320 for a fast bulk crawl
+ * (DETECTOR_INPUT_SIZE sets the default). Other sizes need a model exported with a dynamic input shape; a model
+ * that rejects one falls back to 640. JPEG images given as bytes are decoded at 1/2, 1/4 or 1/8 scale when their
+ * header shows that still covers the input size, which skips most of the decoding work for large photos. Boxes are
+ * always reported in the coordinates of the original image.
  */
-public class ObjectDetector {
+public class ObjectDetector implements AutoCloseable {
+    public static final String MODEL_FILE = "yolov8n.onnx";
+    public static final int POOL_SIZE = Runtime.getRuntime().availableProcessors();
+    public static final int BATCH_SIZE = 4;
+    public static final long BATCH_WAIT_MILLIS = 5;
+    public static final int DEFAULT_INPUT_SIZE = 640;
+    public static final List<Integer> INPUT_SIZES = Collections.unmodifiableList(Arrays.asList(320, 480, 640));
+    // One set of buffers per input size used on the thread
+    private static final ThreadLocal<Map<Integer, InputBuffers>> inputBuffers = ThreadLocal.withInitial(HashMap::new);
     private static ObjectDetector instance;
-    private final Net net;
+    private final String modelFile;
+    // The model new nets are loaded from; replaced when the file changes, guarded by this for writes
+    private volatile Model model;
+    private final int poolSize;
+    private final int threadsPerNet;
+    private final BlockingQueue<PooledNet> idleNets = new LinkedBlockingQueue<>();
+    // Guarded by idleNets
+    private int netsLoaded;
+    private final AtomicLong inferences = new AtomicLong();
+    private final AtomicLong inferenceNanos = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final int batchSize;
+    private final long maxBatchWaitNanos;
+    private final BlockingQueue<BatchRequest> batchQueue = new LinkedBlockingQueue<>();
+    private final List<Thread> batchWorkers = new ArrayList<>();
+    private volatile boolean closed;
+    // Cleared if the model turns out to have a fixed batch size of 1
+    private volatile boolean batchingSupported = true;
+    private volatile boolean batchedForwardWorked;
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong batchedImages = new AtomicLong();
+    // Queue waits of the most recent images, for the percentile in the stats. Guarded by itself
+    private final long[] recentQueueWaits = new long[1024];
+    private long queueWaitCount;
     private Map<Integer, String> classIdToNameMap;
+    private final YoloDecoder decoder;
+    // Whether the model accepts each input size, once tried
+    private final Map<Integer, Boolean> supportedSizes = new ConcurrentHashMap<>();
+    private final Map<Integer, SizeStats> sizeStats = new ConcurrentHashMap<>();
 
     private ObjectDetector() {
-        this.net = Dnn.readNetFromONNX("yolov8n.onnx");
+        this(MODEL_FILE, AppConfig.getInt("DETECTOR_POOL_SIZE", POOL_SIZE), AppConfig.getInt("DETECTOR_THREADS_PER_NET", 0),
+                AppConfig.getInt("DETECTOR_BATCH_SIZE", BATCH_SIZE), AppConfig.getLong("DETECTOR_BATCH_WAIT_MILLIS", BATCH_WAIT_MILLIS));
+    }
+
+    /**
+     * Builds a detector that runs one image per forward pass.
+     *
+     * @param modelFile     the ONNX model.
+     * @param poolSize      the most nets, and so parallel inferences, to load.
+     * @param threadsPerNet the OpenCV threads for each inference, or 0 for the cores divided by the pool size.
+     */
+    public ObjectDetector(String modelFile, int poolSize, int threadsPerNet) {
+        this(modelFile, poolSize, threadsPerNet, 1, 0);
+    }
+
+    /**
+     * Loads the first net of the pool, so a missing or broken model fails here, and starts the batch workers.
+     *
+     * @param modelFile          the ONNX model.
+     * @param poolSize           the most nets, and so parallel inferences, to load.
+     * @param threadsPerNet      the OpenCV threads for each inference, or 0 for the cores divided by the pool size.
+     * @param batchSize          the most images run in one forward pass; 1 runs each on the caller's thread.
+     * @param maxBatchWaitMillis how long the first image of a batch waits for others to fill it, not counting the time
+     *                           it queued before a worker took it.
+     */
+    public ObjectDetector(String modelFile, int poolSize, int threadsPerNet, int batchSize, long maxBatchWaitMillis) {
+        this.modelFile = modelFile;
+        this.poolSize = Math.max(1, poolSize);
+        this.threadsPerNet = threadsPerNet > 0 ? threadsPerNet
+                : Math.max(1, Runtime.getRuntime().availableProcessors() / this.poolSize);
+        this.batchSize = Math.max(1, batchSize);
+        this.maxBatchWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxBatchWaitMillis);
+        Core.setNumThreads(this.threadsPerNet);
+        try {
+            model = Model.read(Paths.get(modelFile));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't read model " + modelFile, e);
+        }
+        idleNets.add(new PooledNet(model.load(), model));
+        netsLoaded = 1;
         initializeClassIdToNameMap();
+        decoder = new YoloDecoder(classIdToNameMap, YoloDecoder.SCORE_THRESHOLD, YoloDecoder.NMS_THRESHOLD);
+        if (this.batchSize > 1) {
+            ThreadFactory threads = FairShareExecutor.namedDaemonThreads("detector-batch");
+            for (int i = 0; i < this.poolSize; i++) {
+                Thread worker = threads.newThread(this::runBatches);
+                batchWorkers.add(worker);
+                worker.start();
+            }
+        }
     }
 
     public static synchronized ObjectDetector getInstance() {
@@ -35,6 +158,83 @@ public class ObjectDetector {
         return instance;
     }
 
+    /**
+     * Identifies the model the process-wide detector runs by the hash of the bytes its nets were loaded from, so
+     * results cached for one model are never served for another. See {@link #getModelVersion()}.
+     *
+     * @return the model file name followed by the start of its SHA-256, or followed by "missing" if the detector
+     * can't be loaded.
+     */
+    public static String modelVersion() {
+        try {
+            return getInstance().getModelVersion();
+        } catch (RuntimeException | LinkageError e) {
+            return MODEL_FILE + ":missing";
+        }
+    }
+
+    /**
+     * Returns the version of the model new inferences run on. If the model file changed since it was read, it is
+     * read again first; the file isn't read unless its size or modification time changed. If the new bytes differ
+     * and a net loads from them, they become the model, and nets of the old one are dropped from the pool.
+     * A broken or unreadable file leaves the loaded model in use, and a broken one isn't read again until it changes.
+     *
+     * @return the model file name followed by the start of the SHA-256 of its bytes.
+     */
+    public String getModelVersion() {
+        Model current = model;
+        Path file = Paths.get(modelFile);
+        try {
+            if (current.isStale(file)) {
+                synchronized (this) {
+                    current = model;
+                    if (current.isStale(file)) {
+                        Model read = Model.read(file);
+                        // Touched, or broken and read again only once the file changes again
+                        current.stamp(read);
+                        if (!read.version.equals(current.version)) {
+                            Net net = read.load();
+                            model = read;
+                            current = read;
+                            synchronized (idleNets) {
+                                netsLoaded -= dropStaleNets();
+                                netsLoaded++;
+                            }
+                            idleNets.add(new PooledNet(net, read));
+                            System.out.println("Model " + modelFile + " changed, now running " + read.version);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // Gone or being replaced, keep running the loaded model
+        } catch (RuntimeException e) {
+            System.out.println("Couldn't load model " + modelFile + ", still running " + current.version + ": " + e.getMessage());
+        }
+        return current.version;
+    }
+
+    /**
+     * Removes the idle nets of an older model. Must hold the idleNets lock.
+     *
+     * @return the number of nets removed.
+     */
+    private int dropStaleNets() {
+        int dropped = 0;
+        for (PooledNet pooled : idleNets) {
+            if (pooled.model != model && idleNets.remove(pooled)) dropped++;
+        }
+        return dropped;
+    }
+
+    /**
+     * @return the input size set by DETECTOR_INPUT_SIZE, or 640 if it isn't one of INPUT_SIZES.
+     */
+    public static int defaultInputSize() {
+        int inputSize = AppConfig.getInt("DETECTOR_INPUT_SIZE", DEFAULT_INPUT_SIZE);
+        return INPUT_SIZES.contains(inputSize) ? inputSize : DEFAULT_INPUT_SIZE;
+    }
+
     /**
      * Predicts the objects in an image retrieved from a specified URL.
      *
@@ -42,14 +242,8 @@ public class ObjectDetector {
      * @return A list of Detection objects.
      */
     public List<Detection> detect(URL imageUrl) {
-        Mat mat = ImageAnnotator.urlToImage(imageUrl);
-
-        if (mat.empty()) {
-            System.out.println("Failed to decode image from URL: " + imageUrl);
-            return new ArrayList<>();
-        }
-
-        return processImage(mat);
+        byte[] imageData = ImageAnnotator.urlToBytes(imageUrl);
+        return imageData == null ? new ArrayList<>() : detect(imageData, defaultInputSize());
     }
 
     /**
@@ -59,79 +253,496 @@ public class ObjectDetector {
      * @return a list of Detection objects.
      */
     public List<Detection> detect(Path imagePath) {
-        Mat mat = Imgcodecs.imread(imagePath.toString());
-        if (mat.empty()) {
+        try {
+            return detect(Files.readAllBytes(imagePath), defaultInputSize());
+        } catch (IOException e) {
             System.out.println("Failed to load image from path: " + imagePath);
             return new ArrayList<>();
         }
+    }
 
-        return processImage(mat);
+    /**
+     * Detects the objects in an already decoded image.
+     *
+     * @param image the image to be analyzed, still owned by the caller.
+     * @return a list of Detection objects.
+     */
+    public List<Detection> detect(Mat image) {
+        return detect(image, defaultInputSize());
     }
 
     /**
-     * Processes an image using a deep learning model to generate detections.
+     * Detects the objects in an already decoded image.
      *
-     * @param image the image to be processed, encapsulated in a Mat object.
+     * @param image     the image to be analyzed, still owned by the caller.
+     * @param inputSize the width and height of the network input, one of INPUT_SIZES.
      * @return a list of Detection objects.
      */
-    private List<Detection> processImage(Mat image) {
+    public List<Detection> detect(Mat image, int inputSize) {
+        if (image.empty()) {
+            return new ArrayList<>();
+        }
+        return processImage(image, supportedSize(inputSize), image.cols(), image.rows());
+    }
+
+    /**
+     * Decodes an image and detects its objects. A JPEG much larger than the network input is decoded at a reduced
+     * scale picked from its header.
+     *
+     * @param imageData the encoded image, e.g. JPEG or PNG bytes.
+     * @param inputSize the width and height of the network input, one of INPUT_SIZES.
+     * @return a list of Detection objects in the coordinates of the original image.
+     */
+    public List<Detection> detect(byte[] imageData, int inputSize) {
+        int size = supportedSize(inputSize);
+        ImageHeader header = ImageHeader.read(imageData);
+        int flag = decodeFlag(header, size);
+        SizeStats stats = statsFor(size);
+        long start = System.nanoTime();
+        MatOfByte encoded = NativeMats.track(new MatOfByte(imageData));
+        Mat image = NativeMats.track(Imgcodecs.imdecode(encoded, flag));
+        NativeMats.release(encoded);
+        stats.decodeNanos.addAndGet(System.nanoTime() - start);
+        stats.decodes.incrementAndGet();
+        try {
+            if (image.empty()) {
+                System.out.println("Failed to decode image of " + imageData.length + " bytes");
+                return new ArrayList<>();
+            }
+            double width = image.cols();
+            double height = image.rows();
+            if (flag != Imgcodecs.IMREAD_COLOR) {
+                stats.reducedDecodes.incrementAndGet();
+                // EXIF orientation may have turned the decoded image, the header has the stored size
+                boolean turned = (header.getWidth() > header.getHeight()) != (image.cols() > image.rows());
+                width = turned ? header.getHeight() : header.getWidth();
+                height = turned ? header.getWidth() : header.getHeight();
+            }
+            return processImage(image, size, width, height);
+        } finally {
+            NativeMats.release(image);
+        }
+    }
+
+    /**
+     * Picks the smallest JPEG decode that still has the input size on its shorter side, as the network sees every
+     * image stretched to a square of that size.
+     *
+     * @param header    the size of the JPEG, or null for other formats, which OpenCV would decode in full anyway.
+     * @param inputSize the width and height of the network input.
+     * @return the imdecode flag.
+     */
+    static int decodeFlag(ImageHeader header, int inputSize) {
+        if (header == null) {
+            return Imgcodecs.IMREAD_COLOR;
+        }
+        int shorterSide = Math.min(header.getWidth(), header.getHeight());
+        if (shorterSide >= 8 * inputSize) return Imgcodecs.IMREAD_REDUCED_COLOR_8;
+        if (shorterSide >= 4 * inputSize) return Imgcodecs.IMREAD_REDUCED_COLOR_4;
+        if (shorterSide >= 2 * inputSize) return Imgcodecs.IMREAD_REDUCED_COLOR_2;
+        return Imgcodecs.IMREAD_COLOR;
+    }
+
+    /**
+     * Processes an image using a deep learning model to generate detections.
+     *
+     * @param image     the image to be processed, encapsulated in a Mat object.
+     * @param inputSize the width and height of the network input.
+     * @param width     the width of the original image, which the image may be a reduced decode of.
+     * @param height    the height of the original image.
+     * @return a list of Detection objects in the coordinates of the original image.
+     */
+    private List<Detection> processImage(Mat image, int inputSize, double width, double height) {
+        Mat prediction;
+        try {
+            prediction = batchSize > 1 && batchingSupported ? forwardInBatch(image, inputSize) : forward(image, inputSize);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new ArrayList<>();
+        }
+        statsFor(inputSize).images.incrementAndGet();
+        try {
+            return processPredictions(prediction, width, height, inputSize);
+        } finally {
+            NativeMats.release(prediction);
+        }
+    }
+
+    /**
+     * @return the input size if the model accepts it, trying it once with a blank image the first time, or else 640.
+     */
+    private int supportedSize(int inputSize) {
+        if (inputSize == DEFAULT_INPUT_SIZE || !INPUT_SIZES.contains(inputSize)) {
+            return DEFAULT_INPUT_SIZE;
+        }
+        Boolean supported = supportedSizes.get(inputSize);
+        if (supported == null) {
+            Mat blank = NativeMats.track(new Mat(inputSize, inputSize, CvType.CV_8UC3, Scalar.all(0)));
+            try {
+                NativeMats.release(forward(blank, inputSize));
+                supported = true;
+            } catch (RuntimeException e) {
+                System.out.println("Model doesn't accept a " + inputSize + " input, using " + DEFAULT_INPUT_SIZE + ": " + e.getMessage());
+                supported = false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return DEFAULT_INPUT_SIZE;
+            } finally {
+                NativeMats.release(blank);
+            }
+            supportedSizes.put(inputSize, supported);
+            statsFor(inputSize);  // Listed in the stats even if the model rejected it
+        }
+        return supported ? inputSize : DEFAULT_INPUT_SIZE;
+    }
+
+    private SizeStats statsFor(int inputSize) {
+        return sizeStats.computeIfAbsent(inputSize, size -> new SizeStats());
+    }
+
+    /**
+     * Runs one image through a net of the pool on the calling thread.
+     *
+     * @return the prediction for the image, one row per output (box and class scores) and one column per anchor,
+     * for the caller to release.
+     */
+    private Mat forward(Mat image, int inputSize) throws InterruptedException {
         // Preprocess the image to create a blob that can be fed into the neural network.
-        Mat blob = Dnn.blobFromImage(image, 1 / 255.0, new Size(640, 640), new Scalar(0), true, false);
-        net.setInput(blob);
-        Mat predict = net.forward();
-        return processPredictions(predict, image);
+        Mat blob = toBlob(Collections.singletonList(image), inputSize);
+        PooledNet net = checkout();
+        try {
+            return forward(net.net, blob, 1).get(0);
+        } finally {
+            checkin(net);
+        }
     }
 
+    /**
+     * Resizes images into this thread's buffers for the input size and lays them out in its input blob.
+     *
+     * @return a view of the first images.size() images of this thread's blob, valid until its next call.
+     */
+    private static Mat toBlob(List<Mat> images, int inputSize) {
+        InputBuffers buffers = inputBuffers.get().computeIfAbsent(inputSize, InputBuffers::new);
+        int count = images.size();
+        while (buffers.resized.size() < count) {
+            buffers.resized.add(new Mat(inputSize, inputSize, CvType.CV_8UC3));
+            NativeMats.bufferResized(inputSize * inputSize * 3);
+        }
+        if (buffers.views.length <= count) {
+            long before = buffers.blob == null ? 0 : buffers.blob.total() * buffers.blob.elemSize();
+            for (Mat view : buffers.views) {
+                if (view != null) view.release();
+            }
+            if (buffers.blob != null) buffers.blob.release();
+            buffers.blob = new Mat(new int[]{count, 3, inputSize, inputSize}, CvType.CV_32F);
+            // Batches smaller than the blob use a view of its first images, which blobFromImages fills in place
+            buffers.views = new Mat[count + 1];
+            for (int i = 1; i <= count; i++) {
+                buffers.views[i] = buffers.blob.rowRange(0, i);
+            }
+            NativeMats.bufferResized(buffers.blob.total() * buffers.blob.elemSize() - before);
+        }
+        Size size = new Size(inputSize, inputSize);
+        for (int i = 0; i < count; i++) {
+            Imgproc.resize(images.get(i), buffers.resized.get(i), size, 0, 0, Imgproc.INTER_LINEAR);
+        }
+        Mat blob = buffers.views[count];
+        if (count == 1) {
+            Dnn.blobFromImageWithParams(buffers.resized.get(0), blob, buffers.params);
+        } else {
+            Dnn.blobFromImagesWithParams(buffers.resized.subList(0, count), blob, buffers.params);
+        }
+        return blob;
+    }
 
     /**
-     * Processes the predictions obtained from the deep learning model and converts the results into a list of Prediction objects.
+     * Queues an image for the batch workers and waits for its prediction.
      *
-     * @param predict the raw prediction data from the neural network.
-     * @param mat     the original image Mat used for scaling bounding box dimensions.
-     * @return a list of Detection objects.
+     * @return the prediction, for the caller to release.
      */
-    private List<Detection> processPredictions(Mat predict, Mat mat) {
-        Mat mask = predict.reshape(0, 1).reshape(0, predict.size(1));
-        // Calculate scaling factors to map detections back to the original image size
-        double width = mat.cols() / 640.0;
-        double height = mat.rows() / 640.0;
+    private Mat forwardInBatch(Mat image, int inputSize) throws InterruptedException {
+        if (closed) throw new IllegalStateException("Detector closed");
+        BatchRequest request = new BatchRequest(image, inputSize);
+        batchQueue.add(request);
+        // Closed while queuing: the workers may be gone before taking it
+        if (closed && batchQueue.remove(request)) throw new IllegalStateException("Detector closed");
+        try {
+            return request.prediction.get();
+        } catch (InterruptedException e) {
+            // Nobody will take the prediction once it arrives
+            request.prediction.thenAccept(NativeMats::release);
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+    }
 
-        // Prepare arrays to store the decoded detections
-        Rect2d[] rect2d = new Rect2d[mask.cols()];
-        float[] scoref = new float[mask.cols()];
-        int[] classId = new int[mask.cols()];
+    /**
+     * The loop of a batch worker: waits for a request, then gathers more until the batch is full or the first
+     * request has waited the maximum time, and runs them in one forward pass.
+     */
+    private void runBatches() {
+        List<BatchRequest> batch = new ArrayList<>(batchSize);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.add(batchQueue.take());
+                long deadline = batch.get(0).queuedAt + maxBatchWaitNanos;
+                while (batch.size() < batchSize) {
+                    BatchRequest next = batchQueue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                }
+                // Images of different input sizes can't share a blob
+                Map<Integer, List<BatchRequest>> bySize = new LinkedHashMap<>();
+                for (BatchRequest request : batch) {
+                    bySize.computeIfAbsent(request.inputSize, size -> new ArrayList<>()).add(request);
+                }
+                for (List<BatchRequest> sameSize : bySize.values()) {
+                    runBatch(sameSize);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (BatchRequest request : batch) {
+                    request.prediction.completeExceptionally(new IllegalStateException("Detector stopped"));
+                }
+            } catch (RuntimeException e) {
+                for (BatchRequest request : batch) {
+                    request.prediction.completeExceptionally(e);
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void runBatch(List<BatchRequest> batch) throws InterruptedException {
+        long now = System.nanoTime();
+        for (BatchRequest request : batch) {
+            recordQueueWait(now - request.queuedAt);
+        }
+        int inputSize = batch.get(0).inputSize;
+        PooledNet net = checkout();
+        try {
+            List<Mat> predictions = null;
+            if (batch.size() > 1 && batchingSupported) {
+                List<Mat> images = new ArrayList<>(batch.size());
+                for (BatchRequest request : batch) {
+                    images.add(request.image);
+                }
+                Mat blob = toBlob(images, inputSize);
+                try {
+                    predictions = forward(net.net, blob, batch.size());
+                    batchedForwardWorked = true;
+                } catch (RuntimeException e) {
+                    // A model exported with a fixed batch size of 1 can't take more; run it one image at a time
+                    if (batchedForwardWorked) throw e;
+                    batchingSupported = false;
+                    System.out.println("Model doesn't accept batches, detecting one image at a time: " + e.getMessage());
+                }
+            }
+            if (predictions == null) {
+                predictions = new ArrayList<>(batch.size());
+                try {
+                    for (BatchRequest request : batch) {
+                        predictions.add(forward(net.net, toBlob(Collections.singletonList(request.image), inputSize), 1).get(0));
+                    }
+                } catch (RuntimeException e) {
+                    predictions.forEach(NativeMats::release);
+                    throw e;
+                }
+            }
+            batches.incrementAndGet();
+            batchedImages.addAndGet(batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).prediction.complete(predictions.get(i));
+            }
+        } finally {
+            checkin(net);
+        }
+    }
+
+    /**
+     * Runs a blob of images through a net.
+     *
+     * @param count the number of images in the blob.
+     * @return the prediction of each image, copied out of the net's buffers, which the next inference overwrites,
+     * for the caller to release.
+     */
+    private List<Mat> forward(Net net, Mat blob, int count) {
+        long start = System.nanoTime();
+        net.setInput(blob);
+        Mat output = net.forward();
+        long nanos = System.nanoTime() - start;
+        inferenceNanos.addAndGet(nanos);
+        inferences.incrementAndGet();
+        SizeStats stats = statsFor(blob.size(2));
+        stats.inferenceNanos.addAndGet(nanos);
+        stats.inferredImages.addAndGet(count);
+        if (output.size(0) != count) {
+            output.release();
+            throw new IllegalStateException("Expected predictions for " + count + " images, got " + output.size(0));
+        }
+        // One row per output and one column per anchor for every image. OpenCV runs a model exported for one image
+        // on a batch by putting the batch axis in front of the model's own, e.g. [N, 1, 84, 8400]
+        int axis = 1;
+        while (axis < output.dims() - 1 && output.size(axis) == 1) axis++;
+        int outputs = output.size(axis);
+        Mat rows = output.reshape(0, count);
+        List<Mat> predictions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Mat row = rows.row(i);
+            Mat prediction = row.reshape(0, outputs);
+            predictions.add(NativeMats.track(prediction.clone()));
+            prediction.release();
+            row.release();
+        }
+        rows.release();
+        output.release();
+        return predictions;
+    }
 
-        // Decode bounding boxes and class IDs from the prediction mask
-        for (int i = 0; i < mask.cols(); i++) {
-            double[] x = mask.col(i).get(0, 0);
-            double[] y = mask.col(i).get(1, 0);
-            double[] w = mask.col(i).get(2, 0);
-            double[] h = mask.col(i).get(3, 0);
-            rect2d[i] = new Rect2d((x[0] - w[0] / 2) * width, (y[0] - h[0] / 2) * height, w[0] * width, h[0] * height);
+    private void recordQueueWait(long nanos) {
+        synchronized (recentQueueWaits) {
+            recentQueueWaits[(int) (queueWaitCount++ % recentQueueWaits.length)] = nanos;
+        }
+    }
 
-            // Extract scores and find the maximum score indicating the most likely class
-            Mat score = mask.col(i).submat(4, predict.size(1) - 1, 0, 1);
-            Core.MinMaxLocResult mmr = Core.minMaxLoc(score);
-            scoref[i] = (float) mmr.maxVal;
-            classId[i] = (int) mmr.maxLoc.y;
+    /**
+     * Takes an idle net of the current model, loading another one if the pool isn't full, or waits for one to be
+     * returned. Nets of an older model are dropped on the way.
+     */
+    private PooledNet checkout() throws InterruptedException {
+        while (true) {
+            if (closed) throw new IllegalStateException("Detector closed");
+            PooledNet net = idleNets.poll();
+            if (net == null) {
+                boolean load;
+                synchronized (idleNets) {
+                    load = netsLoaded < poolSize;
+                    if (load) netsLoaded++;
+                }
+                if (load) {
+                    Model current = model;
+                    try {
+                        return new PooledNet(current.load(), current);
+                    } catch (RuntimeException e) {
+                        synchronized (idleNets) {
+                            netsLoaded--;
+                        }
+                        throw e;
+                    }
+                }
+                waits.incrementAndGet();
+                net = idleNets.take();
+            }
+            if (net.model == model) {
+                return net;
+            }
+            synchronized (idleNets) {
+                netsLoaded--;
+            }
         }
+    }
 
-        // Apply non-maximum suppression to reduce overlapping bounding boxes
-        MatOfRect2d bboxes = new MatOfRect2d(rect2d);
-        MatOfFloat scores = new MatOfFloat(scoref);
-        MatOfInt indices = new MatOfInt();
-        Dnn.NMSBoxes(bboxes, scores, 0.3f, 0.5f, indices);
+    /**
+     * Returns a net to the pool, or drops it if the model changed while it was in use.
+     */
+    private void checkin(PooledNet net) {
+        if (net.model == model && !closed) {
+            idleNets.add(net);
+        } else {
+            synchronized (idleNets) {
+                netsLoaded--;
+            }
+        }
+    }
 
-        // Construct Detection objects for each filtered index
-        List<Detection> detections = new ArrayList<>();
-        if (!indices.empty()) {
-            for (int index : indices.toArray()) {
-                // Add the new Detection object, converting class ID to a readable name using a mapping
-                detections.add(new Detection(rect2d[index], scoref[index], classIdToNameMap.get(classId[index])));
+    /**
+     * Stops the batch workers, waiting for the batches they are running, fails the images still queued and drops
+     * the idle nets, for the garbage collector to free. Detecting afterwards throws an IllegalStateException.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Thread worker : batchWorkers) {
+            worker.interrupt();
+        }
+        try {
+            for (Thread worker : batchWorkers) {
+                worker.join();
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        BatchRequest request;
+        while ((request = batchQueue.poll()) != null) {
+            request.prediction.completeExceptionally(new IllegalStateException("Detector closed"));
         }
+        synchronized (idleNets) {
+            netsLoaded -= idleNets.size();
+            idleNets.clear();
+        }
+    }
 
-        return detections;
+    /**
+     * @return the pool size, nets loaded and idle, OpenCV threads per net, forward passes run, how many of them had
+     * to wait for a net and their average time, and when batching, the batches run, their average size and the
+     * 99th percentile of the time recent images waited in the queue. Then for each input size used, whether the
+     * model accepts it, the images detected, how many were decoded at a reduced scale, and the average decode and
+     * inference time of an image.
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("poolSize", poolSize);
+        synchronized (idleNets) {
+            stats.put("netsLoaded", netsLoaded);
+        }
+        stats.put("idleNets", idleNets.size());
+        stats.put("threadsPerNet", threadsPerNet);
+        stats.put("inferences", inferences.get());
+        stats.put("waits", waits.get());
+        stats.put("averageInferenceMillis", inferences.get() == 0 ? 0.0 : inferenceNanos.get() / 1e6 / inferences.get());
+        stats.put("batchSize", batchingSupported ? batchSize : 1);
+        stats.put("batches", batches.get());
+        stats.put("averageBatchSize", batches.get() == 0 ? 0.0 : (double) batchedImages.get() / batches.get());
+        long[] waits;
+        synchronized (recentQueueWaits) {
+            waits = Arrays.copyOf(recentQueueWaits, (int) Math.min(queueWaitCount, recentQueueWaits.length));
+        }
+        Arrays.sort(waits);
+        stats.put("p99QueueWaitMillis", waits.length == 0 ? 0.0 : waits[(int) Math.ceil(waits.length * 0.99) - 1] / 1e6);
+        Map<String, Object> inputSizes = new LinkedHashMap<>();
+        for (int inputSize : INPUT_SIZES) {
+            SizeStats sizeStat = sizeStats.get(inputSize);
+            if (sizeStat == null) continue;
+            Map<String, Object> tier = new LinkedHashMap<>();
+            tier.put("supported", supportedSizes.getOrDefault(inputSize, inputSize == DEFAULT_INPUT_SIZE));
+            tier.put("images", sizeStat.images.get());
+            tier.put("reducedDecodes", sizeStat.reducedDecodes.get());
+            tier.put("averageDecodeMillis", sizeStat.decodes.get() == 0 ? 0.0 : sizeStat.decodeNanos.get() / 1e6 / sizeStat.decodes.get());
+            tier.put("averageInferenceMillis", sizeStat.inferredImages.get() == 0 ? 0.0
+                    : sizeStat.inferenceNanos.get() / 1e6 / sizeStat.inferredImages.get());
+            inputSizes.put(String.valueOf(inputSize), tier);
+        }
+        stats.put("inputSizes", inputSizes);
+        return stats;
+    }
+
+
+    /**
+     * Processes the predictions obtained from the deep learning model and converts the results into a list of Prediction objects.
+     *
+     * @param mask      the raw prediction of the neural network for the image, one row per output and one column per anchor.
+     * @param width     the width of the original image, for scaling bounding box dimensions.
+     * @param height    the height of the original image.
+     * @param inputSize the width and height of the network input.
+     * @return a list of Detection objects.
+     */
+    private List<Detection> processPredictions(Mat mask, double width, double height, int inputSize) {
+        // Scaling factors to map detections back to the original image size
+        return decoder.decode(mask, width / inputSize, height / inputSize);
     }
 
     private void initializeClassIdToNameMap() {
@@ -218,6 +829,58 @@ public class ObjectDetector {
         classIdToNameMap.put(79, "toothbrush");
     }
 
+    /**
+     * The bytes of a model file, which every net of it is loaded from, and when the file was read.
+     */
+    private static class Model {
+        private final byte[] bytes;
+        private final String version;
+        private volatile long size;
+        private volatile long modified;
+
+        private Model(byte[] bytes, String version, long size, long modified) {
+            this.bytes = bytes;
+            this.version = version;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        static Model read(Path file) throws IOException {
+            long modified = Files.getLastModifiedTime(file).toMillis();
+            byte[] bytes = Files.readAllBytes(file);
+            return new Model(bytes, file + ":" + ImageCache.contentHash(bytes).substring(0, 16), bytes.length, modified);
+        }
+
+        boolean isStale(Path file) throws IOException {
+            return Files.size(file) != size || Files.getLastModifiedTime(file).toMillis() != modified;
+        }
+
+        void stamp(Model read) {
+            size = read.size;
+            modified = read.modified;
+        }
+
+        Net load() {
+            MatOfByte buffer = NativeMats.track(new MatOfByte(bytes));
+            try {
+                return Dnn.readNetFromONNX(buffer);
+            } finally {
+                NativeMats.release(buffer);
+            }
+        }
+    }
+
+    private static class PooledNet {
+        private final Net net;
+        // The model the net was loaded from
+        private final Model model;
+
+        PooledNet(Net net, Model model) {
+            this.net = net;
+            this.model = model;
+        }
+    }
+
     public static void main(String[] args) throws MalformedURLException {
         nu.pattern.OpenCV.loadShared();
         List<Detection> detections = ObjectDetector.getInstance().detect(new URL("https://i.guim.co.uk/img/media/fea5eccc6183240a3f6e910de9541dd24fb1f7d2/141_395_3671_2202/master/3671.jpg?width=445&dpr=1&s=none"));
@@ -225,6 +888,42 @@ public class ObjectDetector {
             System.out.println(detection);
         }
     }
-}
 
+    /**
+     * A thread's preprocessing buffers for one input size: an image resized to that size for each image of a batch,
+     * and a blob for the largest batch so far with a view of its first 1, 2... images. They live as long as the
+     * thread.
+     */
+    private static class InputBuffers {
+        private final Image2BlobParams params;
+        private final List<Mat> resized = new ArrayList<>();
+        private Mat blob;
+        private Mat[] views = new Mat[0];
+
+        private InputBuffers(int inputSize) {
+            // Scaled to 0..1 and RGB, as blobFromImage(image, 1 / 255.0, size, 0, true, false) does
+            params = new Image2BlobParams(Scalar.all(1 / 255.0), new Size(inputSize, inputSize), new Scalar(0), true, CvType.CV_32F);
+        }
+    }
 
+    private static class SizeStats {
+        private final AtomicLong images = new AtomicLong();
+        private final AtomicLong decodes = new AtomicLong();
+        private final AtomicLong reducedDecodes = new AtomicLong();
+        private final AtomicLong decodeNanos = new AtomicLong();
+        private final AtomicLong inferredImages = new AtomicLong();
+        private final AtomicLong inferenceNanos = new AtomicLong();
+    }
+
+    private static class BatchRequest {
+        private final Mat image;
+        private final int inputSize;
+        private final long queuedAt = System.nanoTime();
+        private final CompletableFuture<Mat> prediction = new CompletableFuture<>();
+
+        private BatchRequest(Mat image, int inputSize) {
+            this.image = image;
+            this.inputSize = inputSize;
+        }
+    }
+}
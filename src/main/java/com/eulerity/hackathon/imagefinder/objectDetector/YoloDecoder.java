@@ -0,0 +1,147 @@
+package com.eulerity.hackathon.imagefinder.objectDetector;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.MatOfRect2d;
+import org.opencv.core.Rect2d;
+import org.opencv.dnn.Dnn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns the raw YOLOv8 prediction of an image into detections.
+ * The prediction has one row per output, the box centre, width and height followed by the score of each class,
+ * and one column per anchor. It is copied out of the Mat in one call into a per-thread buffer and decoded in
+ * primitive loops that walk each row in order. Only anchors whose best class scores above the threshold get a box
+ * and go to non-maximum suppression, which is most of the work otherwise. Thread-safe.
+ */
+public class YoloDecoder {
+    public static final float SCORE_THRESHOLD = 0.3f;
+    public static final float NMS_THRESHOLD = 0.5f;
+    private static final int BOX_ROWS = 4;
+
+    private final Map<Integer, String> classNames;
+    private final float scoreThreshold;
+    private final float nmsThreshold;
+    // Reused across images, they only grow
+    private final ThreadLocal<Buffers> buffers = ThreadLocal.withInitial(Buffers::new);
+
+    /**
+     * @param classNames     the readable name of every class ID.
+     * @param scoreThreshold the score a detection must exceed.
+     * @param nmsThreshold   the overlap above which the lower scoring of two boxes is suppressed.
+     */
+    public YoloDecoder(Map<Integer, String> classNames, float scoreThreshold, float nmsThreshold) {
+        this.classNames = classNames;
+        this.scoreThreshold = scoreThreshold;
+        this.nmsThreshold = nmsThreshold;
+    }
+
+    /**
+     * @param prediction the prediction for one image, a continuous CV_32F Mat with one row per output and one
+     *                   column per anchor.
+     * @param scaleX     the image width divided by the network input width, to map boxes back to the image.
+     * @param scaleY     the image height divided by the network input height.
+     * @return the detections left after non-maximum suppression, in image coordinates.
+     */
+    public List<Detection> decode(Mat prediction, double scaleX, double scaleY) {
+        if (prediction.type() != CvType.CV_32F || !prediction.isContinuous()) {
+            throw new IllegalArgumentException("Expected a continuous CV_32F prediction, got " + prediction);
+        }
+        int rows = prediction.rows();
+        int anchors = prediction.cols();
+        int classes = rows - BOX_ROWS;
+        Buffers buffers = this.buffers.get();
+        float[] data = buffers.data(rows * anchors);
+        float[] bestScores = buffers.bestScores(anchors);
+        int[] bestClasses = buffers.bestClasses(anchors);
+        prediction.get(0, 0, data);
+
+        // Best class per anchor, one class row at a time so the reads are sequential
+        System.arraycopy(data, BOX_ROWS * anchors, bestScores, 0, anchors);
+        Arrays.fill(bestClasses, 0, anchors, 0);
+        for (int c = 1; c < classes; c++) {
+            int row = (BOX_ROWS + c) * anchors;
+            for (int i = 0; i < anchors; i++) {
+                float score = data[row + i];
+                if (score > bestScores[i]) {
+                    bestScores[i] = score;
+                    bestClasses[i] = c;
+                }
+            }
+        }
+
+        // Boxes only for the anchors that can survive NMS, which drops every score not above the threshold anyway
+        int[] candidates = buffers.candidates(anchors);
+        int count = 0;
+        for (int i = 0; i < anchors; i++) {
+            if (bestScores[i] > scoreThreshold) {
+                candidates[count++] = i;
+            }
+        }
+        List<Detection> detections = new ArrayList<>();
+        if (count == 0) {
+            return detections;
+        }
+        Rect2d[] boxes = new Rect2d[count];
+        float[] scores = new float[count];
+        for (int k = 0; k < count; k++) {
+            int i = candidates[k];
+            double x = data[i];
+            double y = data[anchors + i];
+            double w = data[2 * anchors + i];
+            double h = data[3 * anchors + i];
+            boxes[k] = new Rect2d((x - w / 2) * scaleX, (y - h / 2) * scaleY, w * scaleX, h * scaleY);
+            scores[k] = bestScores[i];
+        }
+
+        MatOfRect2d boxMat = NativeMats.track(new MatOfRect2d(boxes));
+        MatOfFloat scoreMat = NativeMats.track(new MatOfFloat(scores));
+        MatOfInt indices = NativeMats.track(new MatOfInt());
+        try {
+            Dnn.NMSBoxes(boxMat, scoreMat, scoreThreshold, nmsThreshold, indices);
+            if (!indices.empty()) {
+                for (int k : indices.toArray()) {
+                    detections.add(new Detection(boxes[k], scores[k], classNames.get(bestClasses[candidates[k]])));
+                }
+            }
+        } finally {
+            NativeMats.release(boxMat);
+            NativeMats.release(scoreMat);
+            NativeMats.release(indices);
+        }
+        return detections;
+    }
+
+    private static class Buffers {
+        private float[] data = new float[0];
+        private float[] bestScores = new float[0];
+        private int[] bestClasses = new int[0];
+        private int[] candidates = new int[0];
+
+        float[] data(int length) {
+            if (data.length < length) data = new float[length];
+            return data;
+        }
+
+        float[] bestScores(int length) {
+            if (bestScores.length < length) bestScores = new float[length];
+            return bestScores;
+        }
+
+        int[] bestClasses(int length) {
+            if (bestClasses.length < length) bestClasses = new int[length];
+            return bestClasses;
+        }
+
+        int[] candidates(int length) {
+            if (candidates.length < length) candidates = new int[length];
+            return candidates;
+        }
+    }
+}
@@ -1,13 +1,15 @@
 package com.eulerity.hackathon.imagefinder.ocr;
 
+import com.eulerity.hackathon.imagefinder.AppConfig;
+import com.eulerity.hackathon.imagefinder.crawler.AiResultCache;
+import com.eulerity.hackathon.imagefinder.crawler.ImageCache;
+import com.eulerity.hackathon.imagefinder.crawler.ImageHttpClient;
 import com.google.gson.Gson;
 import lombok.Data;
 import org.apache.batik.transcoder.TranscoderException;
 import org.apache.batik.transcoder.TranscoderInput;
 import org.apache.batik.transcoder.TranscoderOutput;
 import org.apache.batik.transcoder.image.PNGTranscoder;
-import org.apache.hc.client5.http.fluent.Request;
-import org.apache.hc.client5.http.fluent.Response;
 import org.apache.hc.core5.http.NameValuePair;
 import org.apache.hc.core5.http.message.BasicNameValuePair;
 
@@ -15,7 +17,7 @@ import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.*;
-import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.List;
 
@@ -24,6 +26,7 @@ import java.util.List;
  */
 public class OCRApi {
     private static final Properties config = new Properties();
+    // The OCR.space endpoint, OCR_URL overrides it, e.g. for a self-hosted instance or a test stub
     private static final String OCR_URL = "https://api.ocr.space/parse/image";
     private static final Gson gson = new Gson();
 
@@ -41,56 +44,126 @@ public class OCRApi {
 
     /**
      * Performs OCR on an image located at a given URL based on its MIME type.
+     * The image is downloaded once, its type is read from its first bytes (the declared Content-Type is only the
+     * fallback), and every later step works on those bytes: SVGs are transcoded locally, other images are uploaded
+     * to the OCR service instead of having it fetch the URL again, and PNGs are composited on solid backgrounds
+     * from the same bytes if the service finds no text. The text found is cached by the hash of the bytes, so the
+     * same logo isn't sent to the service again, whatever URL it is served from.
      *
      * @param imageUrl The URL of the image to be processed.
      * @return The text detected from the image or an empty string if an error occurs.
-     * @throws IOException         If there is an I/O error during image fetching or MIME type determination.
+     * @throws IOException         If there is an I/O error during image fetching, or the OCR service can't be reached
+     *                             or couldn't process the image.
      * @throws TranscoderException If there is an error in converting SVG images.
      */
     public static String performOCROnImageUrl(String imageUrl) throws IOException, TranscoderException {
-        Map<String, String> parameters = new HashMap<>();
-        parameters.put("apikey", config.getProperty("OCR_API_KEY")); // API key for the OCR service
-        parameters.put("url", imageUrl); // URL of the image
-
-        String mimeType = getMimeType(imageUrl); // Determine the MIME type of the image
+        ImageHttpClient.Download download = ImageCache.getInstance().get(imageUrl);
+        byte[] imageBytes = download.getBody();
+        String contentHash = ImageCache.contentHash(imageBytes);
+        String cached = AiResultCache.getInstance().getText(contentHash, engineVersion());
+        if (cached != null) {
+            return cached;
+        }
+        String mimeType = detectMimeType(imageBytes, download.getMimeType());
 
+        String result;
         try {
             switch (mimeType) {
                 case "image/svg+xml":
-                    return performOCROnSvg(imageUrl, true);
+                    result = performOCROnSvg(new TranscoderInput(new ByteArrayInputStream(imageBytes)), imageUrl);
+                    break;
                 case "image/png":
-                    String result = sendPostRequest(parameters);
-                    if (!result.isEmpty()) return result;
-                    URL url = new URL(imageUrl);
-                    BufferedImage image = ImageIO.read(url);
-                    return performOCROnPng(image);
+                    result = sendImage(imageBytes, mimeType);
+                    if (result.isEmpty()) {
+                        BufferedImage image = ImageIO.read(new ByteArrayInputStream(imageBytes));
+                        result = image == null ? "" : performOCROnPng(image);
+                    }
+                    break;
                 case "image/x-icon":
-                    return "";
+                    result = "";
+                    break;
                 default:
-                    return sendPostRequest(parameters);
+                    result = sendImage(imageBytes, mimeType);
             }
         } catch (IllegalArgumentException e) {
             System.err.println("Error processing OCR for the image at URL: " + imageUrl);
             e.printStackTrace();
+            return "";
+        }
+        AiResultCache.getInstance().putText(contentHash, engineVersion(), result);
+        return result;
+    }
+
+    /**
+     * @return the OCR engine and endpoint results come from, so cached text is never served for another one.
+     */
+    public static String engineVersion() {
+        return "ocr.space-engine1@" + AppConfig.getString("OCR_URL", OCR_URL);
+    }
+
+    /**
+     * Tells the type of an image from its magic bytes, since servers often send logos with a generic or wrong
+     * Content-Type.
+     *
+     * @param bytes    The start of the image, or all of it.
+     * @param declared The MIME type the server declared, or null.
+     * @return The detected MIME type, the declared one if the bytes aren't recognized, or an empty string.
+     */
+    public static String detectMimeType(byte[] bytes, String declared) {
+        if (startsWith(bytes, 0, 0x89, 'P', 'N', 'G')) return "image/png";
+        if (startsWith(bytes, 0, 0xFF, 0xD8, 0xFF)) return "image/jpeg";
+        if (startsWith(bytes, 0, 'G', 'I', 'F', '8')) return "image/gif";
+        if (startsWith(bytes, 0, 'R', 'I', 'F', 'F') && startsWith(bytes, 8, 'W', 'E', 'B', 'P')) return "image/webp";
+        if (startsWith(bytes, 0, 'B', 'M')) return "image/bmp";
+        if (startsWith(bytes, 0, 0, 0, 1, 0)) return "image/x-icon";
+        // SVG is text: look for the root element near the start, after any XML declaration, doctype or comments
+        String head = new String(bytes, 0, Math.min(bytes.length, 1024), StandardCharsets.UTF_8).trim();
+        if (head.startsWith("<") && head.contains("<svg")) return "image/svg+xml";
+        return declared != null ? declared : "";
+    }
+
+    private static boolean startsWith(byte[] bytes, int offset, int... magic) {
+        if (bytes.length < offset + magic.length) return false;
+        for (int i = 0; i < magic.length; i++) {
+            if ((bytes[offset + i] & 0xFF) != magic[i]) return false;
         }
-        return "";
+        return true;
     }
 
     /**
      * This method supports both SVG content provided directly as a string and SVG content accessible via a URL.
+     * The text found in inline SVG is cached by the hash of the SVG, so a logo repeated on every page of a site is
+     * transcoded and sent to the service once.
      *
      * @param svgString The SVG content or URL to the SVG.
      * @param isUrl     Indicates whether the svgString parameter is a URL.
      * @return The text detected from the OCR process, or an empty string if no text is detected.
-     * @throws IOException         If an I/O error occurs during image handling.
+     * @throws IOException         If an I/O error occurs during image handling or the OCR service can't be reached.
      * @throws TranscoderException If an error occurs during SVG to PNG transcoding.
      */
     public static String performOCROnSvg(String svgString, boolean isUrl) throws IOException, TranscoderException {
-        TranscoderInput input;
         if (isUrl) {
-            input = new TranscoderInput(svgString);
-        } else {
-            input = new TranscoderInput(new StringReader(svgString));
+            return performOCROnImageUrl(svgString);
+        }
+        String contentHash = ImageCache.contentHash(svgString.getBytes(StandardCharsets.UTF_8));
+        String cached = AiResultCache.getInstance().getText(contentHash, engineVersion());
+        if (cached != null) {
+            return cached;
+        }
+        String result = performOCROnSvg(new TranscoderInput(new StringReader(svgString)), null);
+        AiResultCache.getInstance().putText(contentHash, engineVersion(), result);
+        return result;
+    }
+
+    /**
+     * Transcodes an SVG to PNG and performs OCR on the result.
+     *
+     * @param input   The SVG content.
+     * @param baseUrl The URL the SVG came from, to resolve relative references, or null.
+     */
+    private static String performOCROnSvg(TranscoderInput input, String baseUrl) throws IOException, TranscoderException {
+        if (baseUrl != null) {
+            input.setURI(baseUrl);
         }
 
         // Prepare a ByteArrayOutputStream to catch the transcoder's output
@@ -132,7 +205,7 @@ public class OCRApi {
     }
 
     /**
-     * Fetches the MIME type of the content at the specified URL.
+     * Fetches the content at the specified URL and tells its MIME type from its bytes.
      *
      * @param url The URL of the content for which the MIME type is to be determined.
      * @return The MIME type of the content, or an empty string if an error occurs or the MIME type is not available.
@@ -140,9 +213,9 @@ public class OCRApi {
     public static String getMimeType(String url) {
         String result = "";
         try {
-            Response response = Request.get(url).execute();
-            result = response.returnContent().getType().getMimeType();
-        } catch (IOException e) {
+            ImageHttpClient.Download download = ImageCache.getInstance().get(url);
+            result = detectMimeType(download.getBody(), download.getMimeType());
+        } catch (IOException | IllegalArgumentException e) {
             System.out.println(url);
             e.printStackTrace();
         }
@@ -155,9 +228,10 @@ public class OCRApi {
      *
      * @param image           The original BufferedImage on which background color change is performed.
      * @param backgroundColor The new background color to be set.
-     * @return The OCR extracted text or an empty string if an error occurs.
+     * @return The OCR extracted text or an empty string if the image can't be encoded.
+     * @throws IOException if the OCR service can't be reached or couldn't process the image.
      */
-    private static String changeBgAndPerformOCR(BufferedImage image, Color backgroundColor) {
+    private static String changeBgAndPerformOCR(BufferedImage image, Color backgroundColor) throws IOException {
         // Create a new BufferedImage with the same dimensions as the original but with specified background color.
         BufferedImage background = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
         Graphics2D g2d = background.createGraphics();
@@ -192,38 +266,50 @@ public class OCRApi {
         return sendPostRequest(parameters);
     }
 
+    /**
+     * Uploads an already downloaded image to the OCR service.
+     *
+     * @param imageBytes The encoded image.
+     * @param mimeType   Its MIME type.
+     * @return The OCR extracted text or an empty string if the service couldn't process the image.
+     * @throws IOException if the OCR service can't be reached.
+     */
+    private static String sendImage(byte[] imageBytes, String mimeType) throws IOException {
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("apikey", config.getProperty("OCR_API_KEY"));
+        parameters.put("base64Image", "data:" + (mimeType.isEmpty() ? "image/png" : mimeType) + ";base64,"
+                + Base64.getEncoder().encodeToString(imageBytes));
+        return sendPostRequest(parameters);
+    }
+
     /**
      * Sends a POST request to the COR URL with the given parameters.
+     * Failing to reach the service, or the service failing to process the image, throws rather than returning an
+     * empty string, so it isn't mistaken, and cached, as an image without text.
      *
      * @param postDataParams A map containing the POST data parameters.
-     * @return The parsed text from the OCR response if successful, otherwise an error message.
+     * @return The parsed text from the OCR response.
+     * @throws IOException if the OCR service can't be reached, doesn't answer with 200 or couldn't process the image.
      */
-    private static String sendPostRequest(Map<String, String> postDataParams) {
-        String result = null;
-        Request request = Request.post(OCRApi.OCR_URL);
+    private static String sendPostRequest(Map<String, String> postDataParams) throws IOException {
+        String result;
         List<NameValuePair> paramsList = new ArrayList<>();
         // Prepare the POST body parameters
         for (Map.Entry<String, String> entry : postDataParams.entrySet()) {
             paramsList.add(new BasicNameValuePair(entry.getKey(), entry.getValue()));
         }
-        request.bodyForm(paramsList);
 
-        try {
-            // Execute the POST request and get the response as a string
-            result = request.execute().returnContent().asString();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        // Execute the POST request on the shared client and get the response as a string
+        result = ImageHttpClient.getInstance().postForm(AppConfig.getString("OCR_URL", OCR_URL), paramsList);
 
         // Parse the JSON response using Gson
         OCRApiResponse response = gson.fromJson(result, OCRApiResponse.class);
-        if (!response.isIsErroredOnProcessing()) {
-            // Since we are not sending a multi-page PDF, we only process the first result.
-            return response.getParsedResults().get(0).getParsedText();
-        } else {
-            System.out.println("Errored when processing ocr: " + result);
-            return "";
+        if (response == null || response.isIsErroredOnProcessing()
+                || response.getParsedResults() == null || response.getParsedResults().isEmpty()) {
+            throw new IOException("Errored when processing ocr: " + result);
         }
+        // Since we are not sending a multi-page PDF, we only process the first result.
+        return response.getParsedResults().get(0).getParsedText();
     }
 
     public static void main(String[] args) {
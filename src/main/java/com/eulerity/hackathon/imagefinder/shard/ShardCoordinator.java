@@ -0,0 +1,356 @@
+package com.eulerity.hackathon.imagefinder.shard;
+
+import com.eulerity.hackathon.imagefinder.AppConfig;
+import com.eulerity.hackathon.imagefinder.crawler.CrawlerPageResult;
+import com.eulerity.hackathon.imagefinder.crawler.CrawlerResult;
+import com.eulerity.hackathon.imagefinder.crawler.UrlCanonicalizer;
+import com.eulerity.hackathon.imagefinder.objectDetector.ImageDeduplicator;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.apache.hc.client5.http.fluent.Request;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.apache.hc.core5.util.Timeout;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Runs one crawl across several {@link ShardWorker}s. The frontier is partitioned by host: every host of the
+ * crawl is owned by one worker, picked by rendezvous hashing over the live workers, so per-host politeness stays
+ * local to one node and losing a worker only moves the hosts it owned. The coordinator polls the workers, merges
+ * the pages they report into one stream with every image handed out once, and forwards links between hosts to
+ * their owners.
+ * <p>
+ * It also keeps, per worker, the URLs added to its frontiers that it hasn't reported done yet. A worker that
+ * fails MAX_FAILURES polls or sends in a row is dropped, and those URLs are sent to the new owners of its hosts
+ * together with the host's pages already done, so the crawl goes on without fetching reported pages again. Only
+ * pages the lost worker finished after its last poll are fetched twice.
+ */
+public class ShardCoordinator {
+    public static final long POLL_MILLIS = 100;
+    public static final int MAX_FAILURES = 3;
+    private static final Timeout CONNECT_TIMEOUT = Timeout.ofSeconds(2);
+    private static final Timeout READ_TIMEOUT = Timeout.ofSeconds(10);
+    private static final Gson GSON = new Gson();
+
+    private final List<String> workers;
+    private final long pollMillis = AppConfig.getLong("SHARD_POLL_MILLIS", POLL_MILLIS);
+    private final Map<String, String> owners = new ConcurrentHashMap<>();
+    private final AtomicLong failedWorkers = new AtomicLong();
+    private final AtomicLong reassignedTasks = new AtomicLong();
+    private final AtomicLong forwardedLinks = new AtomicLong();
+
+    /**
+     * @param workerUrls the base URLs of the workers, e.g. http://10.0.0.2:8090.
+     */
+    public ShardCoordinator(List<String> workerUrls) {
+        if (workerUrls.isEmpty()) {
+            throw new IllegalArgumentException("No shard workers");
+        }
+        this.workers = new CopyOnWriteArrayList<>();
+        for (String url : workerUrls) {
+            workers.add(url.endsWith("/") ? url.substring(0, url.length() - 1) : url);
+        }
+    }
+
+    /**
+     * Crawls the hosts of the start URLs until the workers run out of pages or the image budget is spent. Links
+     * to other hosts are not followed.
+     *
+     * @param startUrls the start URLs.
+     * @param maxImages the maximum number of images to collect over all workers.
+     * @param onPage    called with each page on which new images were found, from the calling thread.
+     * @throws IOException          if every worker failed.
+     * @throws InterruptedException if the thread is interrupted.
+     */
+    public void crawl(List<String> startUrls, int maxImages, Consumer<CrawlerPageResult> onPage) throws IOException, InterruptedException {
+        new ShardedCrawl(UUID.randomUUID().toString(), startUrls, maxImages, onPage).run();
+    }
+
+    /**
+     * @param host a host.
+     * @return the base URL of the live worker that owns the host.
+     */
+    public String ownerOf(String host) {
+        String owner = owners.get(host);
+        if (owner != null && workers.contains(owner)) {
+            return owner;
+        }
+        // Rendezvous hashing: the worker scoring highest for the host wins, so a host only moves when its owner is lost
+        long bestScore = 0;
+        for (String worker : workers) {
+            long score = UrlCanonicalizer.fingerprint(host + "@" + worker);
+            if (owner == null || Long.compareUnsigned(score, bestScore) > 0) {
+                owner = worker;
+                bestScore = score;
+            }
+        }
+        if (owner == null) {
+            throw new IllegalStateException("No shard workers left");
+        }
+        owners.put(host, owner);
+        return owner;
+    }
+
+    /**
+     * @return the workers still in use.
+     */
+    public List<String> getLiveWorkers() {
+        return new ArrayList<>(workers);
+    }
+
+    /**
+     * @return the number of live and failed workers, tasks moved off failed workers and links forwarded between
+     * workers.
+     */
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("liveWorkers", (long) workers.size());
+        stats.put("failedWorkers", failedWorkers.get());
+        stats.put("reassignedTasks", reassignedTasks.get());
+        stats.put("forwardedLinks", forwardedLinks.get());
+        return stats;
+    }
+
+    private static String hostOf(String url) {
+        try {
+            return new URL(url).getHost();
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The state of one crawl, only touched by the thread running it.
+     */
+    private class ShardedCrawl {
+        private final String id;
+        private final int maxImages;
+        private final Consumer<CrawlerPageResult> onPage;
+        private final List<String> hosts = new ArrayList<>();
+        private final ImageDeduplicator deduplicator = new ImageDeduplicator();
+        // Per worker, the URLs added to its frontiers and not done yet
+        private final Map<String, Map<String, ShardMessages.Task>> outstanding = new HashMap<>();
+        private final Set<String> done = new HashSet<>();
+        private final Set<String> forwarded = new HashSet<>();
+        private final Set<String> images = new HashSet<>();
+        // Task batches waiting to be sent, per worker
+        private final Map<String, ShardMessages.TaskBatch> outbox = new LinkedHashMap<>();
+        private final Map<String, Integer> failures = new HashMap<>();
+        // Workers that were sent tasks, only they know the crawl
+        private final Set<String> joined = new LinkedHashSet<>();
+        private int collected;
+
+        ShardedCrawl(String id, List<String> startUrls, int maxImages, Consumer<CrawlerPageResult> onPage) throws MalformedURLException {
+            this.id = id;
+            this.maxImages = maxImages;
+            this.onPage = onPage;
+            for (String startUrl : startUrls) {
+                String url = UrlCanonicalizer.canonicalize(startUrl);
+                if (url == null) {
+                    throw new MalformedURLException("Not an http(s) URL: " + startUrl);
+                }
+                String host = hostOf(url);
+                if (!hosts.contains(host)) {
+                    hosts.add(host);
+                }
+                if (forwarded.add(url)) {
+                    batchFor(ownerOf(host)).tasks.add(new ShardMessages.Task(url, 0, 0));
+                }
+            }
+        }
+
+        void run() throws IOException, InterruptedException {
+            try {
+                while (collected < maxImages) {
+                    boolean sent = sendAll();
+                    boolean idle = true;
+                    for (String worker : new ArrayList<>(joined)) {
+                        ShardMessages.PollResult result;
+                        try {
+                            result = GSON.fromJson(call(Request.get(worker + "/crawls/" + id + "/poll")), ShardMessages.PollResult.class);
+                        } catch (IOException | JsonParseException e) {
+                            failed(worker, e);
+                            idle = false;
+                            continue;
+                        }
+                        failures.remove(worker);
+                        idle &= result.idle && result.isEmpty();
+                        merge(worker, result);
+                        if (collected >= maxImages) break;
+                    }
+                    if (workers.isEmpty()) {
+                        throw new IOException("Every shard worker failed");
+                    }
+                    // Done once every worker was idle with nothing new, and nothing was sent that could wake one up
+                    if (idle && !sent && outbox.isEmpty()) break;
+                    Thread.sleep(pollMillis);
+                }
+            } finally {
+                for (String worker : joined) {
+                    try {
+                        call(Request.delete(worker + "/crawls/" + id));
+                    } catch (IOException e) {
+                        System.out.println("Couldn't stop shard crawl " + id + " on " + worker + ": " + e.getMessage());
+                    }
+                }
+            }
+        }
+
+        /**
+         * Sends every waiting batch.
+         *
+         * @return true if any batch was sent.
+         */
+        private boolean sendAll() {
+            boolean sent = false;
+            for (String worker : new ArrayList<>(outbox.keySet())) {
+                ShardMessages.TaskBatch batch = outbox.get(worker);
+                if (batch == null) continue;  // Moved to another worker by a failure
+                batch.hosts = hosts;
+                try {
+                    call(Request.post(worker + "/crawls/" + id + "/tasks").bodyString(GSON.toJson(batch), ContentType.APPLICATION_JSON));
+                } catch (IOException e) {
+                    failed(worker, e);
+                    continue;
+                }
+                outbox.remove(worker);
+                joined.add(worker);
+                Map<String, ShardMessages.Task> pending = outstandingOf(worker);
+                for (ShardMessages.Task task : batch.tasks) {
+                    pending.put(task.url, task);
+                }
+                sent = true;
+            }
+            return sent;
+        }
+
+        private void merge(String worker, ShardMessages.PollResult result) {
+            Map<String, ShardMessages.Task> pending = outstandingOf(worker);
+            for (ShardMessages.Task task : result.added) {
+                if (!done.contains(task.url)) {
+                    pending.put(task.url, task);
+                }
+            }
+            for (String url : result.done) {
+                done.add(url);
+                pending.remove(url);
+            }
+            for (ShardMessages.Page page : result.pages) {
+                List<CrawlerResult> newImages = new ArrayList<>();
+                for (ShardMessages.Image image : page.images) {
+                    if (collected + newImages.size() < maxImages && images.add(image.key())) {
+                        newImages.add(image.toResult(deduplicator));
+                    }
+                }
+                if (!newImages.isEmpty()) {
+                    collected += newImages.size();
+                    onPage.accept(new CrawlerPageResult(page.url, newImages));
+                }
+            }
+            for (ShardMessages.Task task : result.foreign) {
+                String host = hostOf(task.url);
+                if (hosts.contains(host) && !done.contains(task.url) && forwarded.add(task.url)) {
+                    batchFor(ownerOf(host)).tasks.add(task);
+                    forwardedLinks.incrementAndGet();
+                }
+            }
+        }
+
+        /**
+         * Counts a failed call, and drops the worker after MAX_FAILURES in a row: its unsent batch and its
+         * outstanding URLs go to the new owners of its hosts, with the pages of those hosts already done.
+         */
+        private void failed(String worker, Exception e) {
+            int count = failures.merge(worker, 1, Integer::sum);
+            System.out.println("Shard worker " + worker + " failed (" + count + "): " + e.getMessage());
+            if (count < MAX_FAILURES) return;
+            workers.remove(worker);
+            joined.remove(worker);
+            failures.remove(worker);
+            failedWorkers.incrementAndGet();
+            if (workers.isEmpty()) return;
+            List<ShardMessages.Task> orphans = new ArrayList<>();
+            Map<String, ShardMessages.Task> pending = outstanding.remove(worker);
+            if (pending != null) {
+                orphans.addAll(pending.values());
+            }
+            ShardMessages.TaskBatch unsent = outbox.remove(worker);
+            if (unsent != null) {
+                orphans.addAll(unsent.tasks);
+            }
+            Set<String> movedHosts = new HashSet<>();
+            for (ShardMessages.Task task : orphans) {
+                String host = hostOf(task.url);
+                batchFor(ownerOf(host)).tasks.add(task);
+                movedHosts.add(host);
+            }
+            for (String url : done) {
+                String host = hostOf(url);
+                if (movedHosts.contains(host)) {
+                    batchFor(ownerOf(host)).done.add(url);
+                }
+            }
+            reassignedTasks.addAndGet(orphans.size());
+            System.out.println("Shard worker " + worker + " dropped, " + orphans.size() + " tasks of " + movedHosts + " moved to " + workers);
+        }
+
+        private ShardMessages.TaskBatch batchFor(String worker) {
+            return outbox.computeIfAbsent(worker, key -> {
+                ShardMessages.TaskBatch batch = new ShardMessages.TaskBatch();
+                batch.maxImages = maxImages;
+                return batch;
+            });
+        }
+
+        private Map<String, ShardMessages.Task> outstandingOf(String worker) {
+            return outstanding.computeIfAbsent(worker, key -> new HashMap<>());
+        }
+    }
+
+    private static String call(Request request) throws IOException {
+        return request.connectTimeout(CONNECT_TIMEOUT).responseTimeout(READ_TIMEOUT)
+                .execute().handleResponse(response -> {
+                    String body = response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity());
+                    if (response.getCode() != 200) {
+                        throw new IOException("HTTP " + response.getCode() + ": " + body);
+                    }
+                    return body;
+                });
+    }
+
+    /**
+     * Runs a sharded crawl and prints the image URLs found.
+     *
+     * @param args a comma-separated list of worker URLs, the maximum number of images, then the start URLs.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 3) {
+            System.out.println("Usage: ShardCoordinator <worker-url>[,<worker-url>...] <max-images> <start-url>...");
+            return;
+        }
+        ShardCoordinator coordinator = new ShardCoordinator(Arrays.asList(args[0].split(",")));
+        coordinator.crawl(Arrays.asList(args).subList(2, args.length), Integer.parseInt(args[1]), page -> {
+            for (CrawlerResult result : page.getCrawlerResults()) {
+                System.out.println(page.getPageUrl() + " " + GSON.toJson(result));
+            }
+        });
+        System.out.println(coordinator.getStats());
+    }
+}
@@ -0,0 +1,111 @@
+package com.eulerity.hackathon.imagefinder.shard;
+
+import com.eulerity.hackathon.imagefinder.crawler.CrawlerImgResult;
+import com.eulerity.hackathon.imagefinder.crawler.CrawlerLogoResult;
+import com.eulerity.hackathon.imagefinder.crawler.CrawlerResult;
+import com.eulerity.hackathon.imagefinder.objectDetector.ImageDeduplicator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The JSON messages exchanged by the {@link ShardCoordinator} and its {@link ShardWorker}s.
+ */
+final class ShardMessages {
+    private ShardMessages() {
+    }
+
+    /**
+     * A URL to crawl, or one that was added to a worker's frontier.
+     */
+    static class Task {
+        String url;
+        int depth;
+        double priority;
+
+        Task(String url, int depth, double priority) {
+            this.url = url;
+            this.depth = depth;
+            this.priority = priority;
+        }
+    }
+
+    /**
+     * Sent to a worker: URLs to crawl on the hosts it owns, and pages it must not fetch because another worker
+     * already crawled them.
+     */
+    static class TaskBatch {
+        int maxImages;
+        // Every host of the crawl, links to them are reported back
+        List<String> hosts = new ArrayList<>();
+        List<Task> tasks = new ArrayList<>();
+        List<String> done = new ArrayList<>();
+
+        boolean isEmpty() {
+            return tasks.isEmpty() && done.isEmpty();
+        }
+    }
+
+    /**
+     * A worker's answer to a poll: what happened since the last one.
+     */
+    static class PollResult {
+        // True if nothing is being crawled or waiting on the worker
+        boolean idle;
+        int pagesVisited;
+        // URLs added to the worker's frontiers
+        List<Task> added = new ArrayList<>();
+        // Pages crawled, successfully or not
+        List<String> done = new ArrayList<>();
+        // Links to crawl hosts the worker may not own
+        List<Task> foreign = new ArrayList<>();
+        // Pages on which images were found
+        List<Page> pages = new ArrayList<>();
+
+        boolean isEmpty() {
+            return added.isEmpty() && done.isEmpty() && foreign.isEmpty() && pages.isEmpty();
+        }
+    }
+
+    static class Page {
+        String url;
+        List<Image> images = new ArrayList<>();
+
+        static Page of(String url, List<CrawlerResult> results) {
+            Page page = new Page();
+            page.url = url;
+            for (CrawlerResult result : results) {
+                Image image = new Image();
+                if (result instanceof CrawlerImgResult) {
+                    image.url = ((CrawlerImgResult) result).getImgUrl();
+                    image.detectionUrl = ((CrawlerImgResult) result).getDetectionUrl();
+                } else {
+                    image.logo = true;
+                    image.url = ((CrawlerLogoResult) result).getImageData();
+                    image.svg = ((CrawlerLogoResult) result).isSvg();
+                }
+                page.images.add(image);
+            }
+            return page;
+        }
+    }
+
+    static class Image {
+        // The image URL, or a logo's data
+        String url;
+        String detectionUrl;
+        boolean logo;
+        boolean svg;
+
+        CrawlerResult toResult(ImageDeduplicator deduplicator) {
+            return logo ? new CrawlerLogoResult(url, svg) : new CrawlerImgResult(url, detectionUrl, deduplicator);
+        }
+
+        /**
+         * @return what identifies the image across pages.
+         */
+        String key() {
+            return (logo ? "logo:" : "img:") + url;
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package com.eulerity.hackathon.imagefinder.shard;
+
+import com.eulerity.hackathon.imagefinder.AppConfig;
+import com.eulerity.hackathon.imagefinder.crawler.CrawlObserver;
+import com.eulerity.hackathon.imagefinder.crawler.CrawlerResult;
+import com.eulerity.hackathon.imagefinder.crawler.WebCrawler;
+import com.eulerity.hackathon.imagefinder.executor.FairShareExecutor;
+import com.eulerity.hackathon.imagefinder.executor.SharedExecutors;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A node of a sharded crawl. The {@link ShardCoordinator} assigns every host of a crawl to one worker, so all
+ * pages of a host are fetched by the same process and its per-host politeness limits hold across the cluster.
+ * The worker runs one keep-alive {@link WebCrawler} per host it owns and reports what they did whenever the
+ * coordinator polls: pages with their images, URLs added to its frontiers, pages done, and links to other hosts
+ * of the crawl, which the coordinator forwards to their owners.
+ * <p>
+ * Workers speak JSON over HTTP, served by the JDK's built-in server so a worker needs no servlet container:
+ * <ul>
+ *     <li>POST /crawls/{id}/tasks with a task batch; the first batch starts the crawl on this worker</li>
+ *     <li>GET /crawls/{id}/poll</li>
+ *     <li>DELETE /crawls/{id} stops the crawl</li>
+ *     <li>GET /health</li>
+ * </ul>
+ * A crawl the coordinator hasn't polled for the lease time, SHARD_LEASE_SECONDS, is stopped as if it had been
+ * deleted, so crawls of a coordinator that died don't run forever. The server has no authentication, so it listens
+ * on the loopback address unless SHARD_WORKER_BIND_ADDRESS names another one, e.g. 0.0.0.0 for all interfaces.
+ */
+public class ShardWorker implements AutoCloseable {
+    public static final int DEFAULT_PORT = 8090;
+    public static final String DEFAULT_BIND_ADDRESS = "127.0.0.1";
+    public static final long LEASE_SECONDS = 60;
+    private static final Gson GSON = new Gson();
+
+    private final SharedExecutors executors;
+    private final HttpServer server;
+    private final ExecutorService serverThreads = Executors.newFixedThreadPool(4, FairShareExecutor.namedDaemonThreads("shard-http"));
+    private final ExecutorService crawlThreads = Executors.newCachedThreadPool(FairShareExecutor.namedDaemonThreads("shard-crawl"));
+    private final ScheduledExecutorService leaseChecks = Executors.newSingleThreadScheduledExecutor(
+            FairShareExecutor.namedDaemonThreads("shard-lease"));
+    private final Map<String, ShardCrawl> crawls = new ConcurrentHashMap<>();
+    private final long leaseNanos;
+
+    /**
+     * Starts serving on the loopback address with the default lease.
+     *
+     * @param port      the port to listen on, 0 for any free one.
+     * @param executors the thread pools the crawls run on.
+     * @throws IOException if the port can't be bound.
+     */
+    public ShardWorker(int port, SharedExecutors executors) throws IOException {
+        this(DEFAULT_BIND_ADDRESS, port, TimeUnit.SECONDS.toMillis(LEASE_SECONDS), executors);
+    }
+
+    /**
+     * Starts serving.
+     *
+     * @param bindAddress the address to listen on, e.g. "127.0.0.1" or "0.0.0.0".
+     * @param port        the port to listen on, 0 for any free one.
+     * @param leaseMillis how long a crawl keeps running without being polled.
+     * @param executors   the thread pools the crawls run on.
+     * @throws IOException if the port can't be bound.
+     */
+    public ShardWorker(String bindAddress, int port, long leaseMillis, SharedExecutors executors) throws IOException {
+        this.executors = executors;
+        this.leaseNanos = TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+        this.server = HttpServer.create(new InetSocketAddress(bindAddress, port), 0);
+        this.server.createContext("/", this::handle);
+        this.server.setExecutor(serverThreads);
+        this.server.start();
+        long checkMillis = Math.max(10, Math.min(1000, leaseMillis / 4));
+        leaseChecks.scheduleWithFixedDelay(this::stopExpiredCrawls, checkMillis, checkMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the port the worker listens on.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stops serving and cancels every crawl.
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        leaseChecks.shutdownNow();
+        for (ShardCrawl crawl : crawls.values()) {
+            crawl.stop();
+        }
+        crawls.clear();
+        serverThreads.shutdownNow();
+        crawlThreads.shutdownNow();
+    }
+
+    /**
+     * Stops the crawls whose lease ran out.
+     */
+    private void stopExpiredCrawls() {
+        long now = System.nanoTime();
+        for (ShardCrawl crawl : crawls.values()) {
+            if (now - crawl.lastPolledNanos > leaseNanos && crawls.remove(crawl.id, crawl)) {
+                System.out.println("Shard crawl " + crawl.id + " wasn't polled for " + TimeUnit.NANOSECONDS.toMillis(leaseNanos)
+                        + " ms, stopping it");
+                crawl.stop();
+            }
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            String[] parts = exchange.getRequestURI().getPath().split("/");  // "", "crawls", id, action
+            if (parts.length == 2 && "health".equals(parts[1])) {
+                respond(exchange, 200, "{\"status\":\"ok\"}");
+            } else if (parts.length == 4 && "crawls".equals(parts[1]) && "tasks".equals(parts[3]) && "POST".equals(method)) {
+                ShardMessages.TaskBatch batch;
+                try (Reader reader = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)) {
+                    batch = GSON.fromJson(reader, ShardMessages.TaskBatch.class);
+                }
+                if (batch == null) {
+                    respond(exchange, 400, "{\"error\":\"Missing task batch\"}");
+                    return;
+                }
+                crawls.computeIfAbsent(parts[2], id -> new ShardCrawl(id, batch.maxImages)).add(batch);
+                respond(exchange, 200, "{}");
+            } else if (parts.length == 4 && "crawls".equals(parts[1]) && "poll".equals(parts[3]) && "GET".equals(method)) {
+                ShardCrawl crawl = crawls.get(parts[2]);
+                if (crawl == null) {
+                    // E.g. this worker restarted and lost the crawl, the coordinator must move its hosts
+                    respond(exchange, 404, "{\"error\":\"Unknown crawl\"}");
+                } else {
+                    respond(exchange, 200, GSON.toJson(crawl.poll()));
+                }
+            } else if (parts.length == 3 && "crawls".equals(parts[1]) && "DELETE".equals(method)) {
+                ShardCrawl crawl = crawls.remove(parts[2]);
+                if (crawl != null) {
+                    crawl.stop();
+                }
+                respond(exchange, 200, "{}");
+            } else {
+                respond(exchange, 404, "{\"error\":\"Not found\"}");
+            }
+        } catch (JsonParseException e) {
+            respond(exchange, 400, "{\"error\":\"Invalid JSON\"}");
+        } catch (RuntimeException e) {
+            System.out.println("Shard request " + exchange.getRequestURI() + " failed: " + e);
+            respond(exchange, 500, "{\"error\":\"Internal error\"}");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static String hostOf(String url) {
+        try {
+            return new URL(url).getHost();
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+    /**
+     * This worker's part of one crawl: a crawler per owned host, and what they reported since the last poll.
+     * Crawlers report from their own threads, so the report buffer has its own lock, never held while calling
+     * into a crawler.
+     */
+    private class ShardCrawl implements CrawlObserver {
+        private final String id;
+        private final int maxImages;
+        private final Set<String> crawlHosts = ConcurrentHashMap.newKeySet();
+        // Guarded by this
+        private final Map<String, HostCrawl> hostCrawls = new LinkedHashMap<>();
+        private boolean stopped;
+        // Guarded by reportLock
+        private final Object reportLock = new Object();
+        private ShardMessages.PollResult report = new ShardMessages.PollResult();
+        // Renews the lease; starts when the first batch arrives
+        private volatile long lastPolledNanos = System.nanoTime();
+
+        ShardCrawl(String id, int maxImages) {
+            this.id = id;
+            this.maxImages = maxImages;
+        }
+
+        synchronized void add(ShardMessages.TaskBatch batch) {
+            if (stopped) return;
+            crawlHosts.addAll(batch.hosts);
+            // Skips first, so pages another worker crawled aren't fetched again when they are offered
+            for (String url : batch.done) {
+                HostCrawl hostCrawl = hostCrawlFor(url);
+                if (hostCrawl != null) {
+                    hostCrawl.crawler.skip(url);
+                }
+            }
+            for (ShardMessages.Task task : batch.tasks) {
+                HostCrawl hostCrawl = hostCrawlFor(task.url);
+                if (hostCrawl == null) continue;
+                hostCrawl.crawler.offer(task.url, task.depth, task.priority);
+                if (hostCrawl.startUrl == null) {
+                    hostCrawl.startUrl = task.url;
+                    start(hostCrawl);
+                }
+            }
+        }
+
+        ShardMessages.PollResult poll() {
+            lastPolledNanos = System.nanoTime();
+            // Decided before the report is taken: a crawler that is idle now can't add to it anymore
+            boolean idle = true;
+            int pagesVisited = 0;
+            synchronized (this) {
+                for (HostCrawl hostCrawl : hostCrawls.values()) {
+                    idle &= hostCrawl.startUrl == null || hostCrawl.over || hostCrawl.crawler.isIdle();
+                    pagesVisited += hostCrawl.crawler.getPagesVisited();
+                }
+            }
+            ShardMessages.PollResult result;
+            synchronized (reportLock) {
+                result = report;
+                report = new ShardMessages.PollResult();
+            }
+            result.idle = idle;
+            result.pagesVisited = pagesVisited;
+            return result;
+        }
+
+        synchronized void stop() {
+            stopped = true;
+            for (HostCrawl hostCrawl : hostCrawls.values()) {
+                hostCrawl.crawler.cancel();
+            }
+        }
+
+        @Override
+        public void linkAdded(String url, int depth, double priority) {
+            synchronized (reportLock) {
+                report.added.add(new ShardMessages.Task(url, depth, priority));
+            }
+        }
+
+        @Override
+        public void pageDone(String url, List<CrawlerResult> results) {
+            synchronized (reportLock) {
+                report.done.add(url);
+                if (!results.isEmpty()) {
+                    report.pages.add(ShardMessages.Page.of(url, results));
+                }
+            }
+        }
+
+        @Override
+        public void foreignLinkFound(String url, int depth, double priority) {
+            if (!crawlHosts.contains(hostOf(url))) return;  // Off the crawl
+            synchronized (reportLock) {
+                report.foreign.add(new ShardMessages.Task(url, depth, priority));
+            }
+        }
+
+        /**
+         * @return the crawl of the URL's host, created but not started if it is new, or null for a bad URL.
+         */
+        private HostCrawl hostCrawlFor(String url) {
+            String host = hostOf(url);
+            if (host == null) return null;
+            return hostCrawls.computeIfAbsent(host, key -> {
+                WebCrawler crawler = new WebCrawler(maxImages, executors);
+                crawler.setKeepAlive(true);
+                crawler.addObserver(this);
+                return new HostCrawl(crawler);
+            });
+        }
+
+        private void start(HostCrawl hostCrawl) {
+            crawlThreads.execute(() -> {
+                try {
+                    hostCrawl.crawler.crawl(hostCrawl.startUrl, page -> {
+                    });  // Results are reported through pageDone
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (MalformedURLException | RuntimeException e) {
+                    System.out.println("Shard crawl " + id + " of " + hostCrawl.startUrl + " failed: " + e.getMessage());
+                } finally {
+                    hostCrawl.over = true;
+                }
+            });
+        }
+    }
+
+    private static class HostCrawl {
+        private final WebCrawler crawler;
+        // The first URL offered, null until the crawl is started
+        private String startUrl;
+        private volatile boolean over;
+
+        HostCrawl(WebCrawler crawler) {
+            this.crawler = crawler;
+        }
+    }
+
+    /**
+     * Runs a worker until the process is killed.
+     *
+     * @param args optionally the port, SHARD_WORKER_PORT or 8090 otherwise. SHARD_WORKER_BIND_ADDRESS sets the
+     *             address to listen on and SHARD_LEASE_SECONDS the lease of crawls.
+     */
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : AppConfig.getInt("SHARD_WORKER_PORT", DEFAULT_PORT);
+        SharedExecutors executors = new SharedExecutors(SharedExecutors.CRAWL_THREADS, SharedExecutors.AI_THREADS,
+                AppConfig.getInt("POLITENESS_MIN_DELAY_MILLIS", SharedExecutors.MIN_DELAY_MILLIS),
+                AppConfig.getInt("POLITENESS_MAX_DELAY_MILLIS", SharedExecutors.MAX_DELAY_MILLIS));
+        String bindAddress = AppConfig.getString("SHARD_WORKER_BIND_ADDRESS", DEFAULT_BIND_ADDRESS);
+        ShardWorker worker = new ShardWorker(bindAddress, port,
+                TimeUnit.SECONDS.toMillis(AppConfig.getLong("SHARD_LEASE_SECONDS", LEASE_SECONDS)), executors);
+        System.out.println("Shard worker on " + bindAddress + " listening on port " + worker.getPort());
+    }
+}
@@ -0,0 +1,141 @@
+package com.eulerity.hackathon.imagefinder;
+
+import com.eulerity.hackathon.imagefinder.crawler.AiResultCache;
+import com.eulerity.hackathon.imagefinder.crawler.ImageCache;
+import com.eulerity.hackathon.imagefinder.objectDetector.Detection;
+import com.eulerity.hackathon.imagefinder.objectDetector.ImageDeduplicator;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.Point;
+import org.opencv.core.Rect2d;
+import org.opencv.core.Scalar;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AiResultCacheTest {
+    private static final String LOGO = ImageCache.contentHash("<svg>ACME</svg>".getBytes(StandardCharsets.UTF_8));
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        nu.pattern.OpenCV.loadShared();
+    }
+
+    @Test
+    public void testResultsSurviveARestartUntilTheModelChanges() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("ai-results.bin");
+        String photo = ImageCache.contentHash(new byte[]{1, 2, 3});
+        List<Detection> detections = Arrays.asList(new Detection(new Rect2d(10, 20, 30, 40), 0.75f, "dog"),
+                new Detection(new Rect2d(1.5, 2.5, 3, 4), 0.5f, "cat"));
+        try (AiResultCache cache = new AiResultCache(file, 100)) {
+            Assert.assertNull(cache.getDetections(photo, "model-a"));
+            cache.putDetections(photo, "model-a", detections);
+            cache.putText(LOGO, "ocr-1", "ACME");
+            Assert.assertEquals("ACME", cache.getText(LOGO, "ocr-1"));
+            Assert.assertEquals(1L, cache.getStats().get("memoryHits"));
+        }
+
+        try (AiResultCache cache = new AiResultCache(file, 100)) {
+            List<Detection> cached = cache.getDetections(photo, "model-a");
+            Assert.assertEquals(2, cached.size());
+            Assert.assertEquals("cat", cached.get(1).getClassName());
+            Assert.assertEquals(1.5, cached.get(1).getBbox().x, 0.001);
+            Assert.assertEquals(40, cached.get(0).getBbox().height, 0.001);
+            Assert.assertEquals(0.75f, cached.get(0).getScore(), 0.0001f);
+            Assert.assertEquals("ACME", cache.getText(LOGO, "ocr-1"));
+            Assert.assertEquals(2L, cache.getStats().get("diskHits"));
+
+            // A new model doesn't see the old model's results, which are dropped, but OCR results are kept
+            Assert.assertNull(cache.getDetections(photo, "model-b"));
+            Assert.assertEquals(1L, cache.getStats().get("invalidated"));
+            cache.putDetections(photo, "model-b", Collections.emptyList());
+            Assert.assertEquals("ACME", cache.getText(LOGO, "ocr-1"));
+        }
+        long size = Files.size(file);
+
+        // The old model's record is gone from the file once reopened
+        try (AiResultCache cache = new AiResultCache(file, 100)) {
+            Assert.assertTrue(Files.size(file) < size);
+            Assert.assertEquals(2, cache.getStats().get("diskEntries"));
+            Assert.assertEquals(Collections.emptyList(), cache.getDetections(photo, "model-b"));
+        }
+    }
+
+    @Test
+    public void testTornRecordIsDropped() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("ai-results.bin");
+        try (AiResultCache cache = new AiResultCache(file, 0)) {
+            cache.putText(LOGO, "ocr-1", "ACME");
+        }
+        byte[] bytes = Files.readAllBytes(file);
+        byte[] torn = Arrays.copyOf(bytes, bytes.length * 2 - 3);
+        System.arraycopy(bytes, 0, torn, bytes.length, bytes.length - 3);
+        Files.write(file, torn);
+
+        try (AiResultCache cache = new AiResultCache(file, 0)) {
+            Assert.assertEquals(bytes.length, Files.size(file));
+            Assert.assertEquals("ACME", cache.getText(LOGO, "ocr-1"));
+        }
+    }
+
+    @Test
+    public void testDetectorRunsOncePerImageAcrossCrawls() throws Exception {
+        AtomicInteger detectorRuns = new AtomicInteger();
+        Mat image = new Mat(200, 300, CvType.CV_8UC3, new Scalar(40, 120, 200));
+        Imgproc.circle(image, new Point(150, 100), 60, new Scalar(255, 255, 255), -1);
+        MatOfByte encoded = new MatOfByte();
+        Imgcodecs.imencode(".jpg", image, encoded);
+        try (AiResultCache cache = new AiResultCache(folder.getRoot().toPath().resolve("ai-results.bin"), 100)) {
+            for (int crawl = 0; crawl < 3; crawl++) {
+                // Every crawl has a deduplicator of its own
+                ImageDeduplicator deduplicator = new ImageDeduplicator(mat -> {
+                    detectorRuns.incrementAndGet();
+                    return Collections.singletonList(new Detection(new Rect2d(90, 40, 120, 120), 0.9f, "sports ball"));
+                }, cache, () -> "model-a");
+                List<Detection> detections = deduplicator.detect(encoded.toArray());
+                Assert.assertEquals("sports ball", detections.get(0).getClassName());
+            }
+        }
+        Assert.assertEquals(1, detectorRuns.get());
+    }
+
+    @Test
+    public void testOnlyResultsOfTheConfiguredInputSizeAreCached() throws Exception {
+        AtomicInteger detectorRuns = new AtomicInteger();
+        Mat image = new Mat(200, 300, CvType.CV_8UC3, new Scalar(40, 120, 200));
+        MatOfByte encoded = new MatOfByte();
+        Imgcodecs.imencode(".jpg", image, encoded);
+        System.setProperty("DETECTOR_INPUT_SIZE", "320");
+        try (AiResultCache cache = new AiResultCache(folder.getRoot().toPath().resolve("ai-results.bin"), 100)) {
+            for (int inputSize : new int[]{640, 640, 320, 640}) {
+                ImageDeduplicator deduplicator = new ImageDeduplicator((imageData, size) -> {
+                    detectorRuns.incrementAndGet();
+                    return Collections.singletonList(new Detection(new Rect2d(0, 0, 10, 10), 0.9f, "size " + size));
+                }, cache, () -> "model-a");
+                deduplicator.setInputSize(inputSize);
+                deduplicator.detect(encoded.toArray());
+            }
+            // 640 isn't the default here, so only the 320 run was stored, and the last crawl read it
+            Assert.assertEquals(3, detectorRuns.get());
+            Assert.assertEquals("size 320", cache.getDetections(ImageCache.contentHash(encoded.toArray()), "model-a").get(0).getClassName());
+        } finally {
+            System.clearProperty("DETECTOR_INPUT_SIZE");
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.eulerity.hackathon.imagefinder;
+
+import com.eulerity.hackathon.imagefinder.crawler.CrawlerPageResult;
+import com.eulerity.hackathon.imagefinder.crawler.WebCrawler;
+
+import java.util.List;
+
+/**
+ * Crawls a local stub site with a few slow pages and reports throughput and worker utilization.
+ * Run its main method from the IDE or the test classpath; it is not part of the unit test run.
+ */
+public class CrawlBenchmark {
+    public static void main(String[] args) throws Exception {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 60;
+        int slowMillis = args.length > 1 ? Integer.parseInt(args[1]) : 4000;
+
+        try (StubSite site = new StubSite(pages, 3, 2, 7, slowMillis)) {
+            WebCrawler crawler = new WebCrawler(1000);
+            List<CrawlerPageResult> results = crawler.crawl(site.rootUrl());
+
+            double seconds = crawler.getElapsedNanos() / 1e9;
+            System.out.println("---------------- Crawl benchmark ----------------");
+            System.out.println("Pages fetched:      " + site.getPageFetches());
+            System.out.println("Pages with images:  " + results.size());
+            System.out.printf("Elapsed:            %.2f s%n", seconds);
+            System.out.printf("Throughput:         %.2f pages/s%n", crawler.getPagesVisited() / seconds);
+            System.out.printf("Worker utilization: %.1f %%%n", crawler.getWorkerUtilization() * 100);
+        }
+    }
+}
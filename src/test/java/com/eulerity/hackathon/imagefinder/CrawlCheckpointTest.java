@@ -0,0 +1,139 @@
+package com.eulerity.hackathon.imagefinder;
+
+import com.eulerity.hackathon.imagefinder.crawler.CheckpointStore;
+import com.eulerity.hackathon.imagefinder.crawler.CrawlCheckpoint;
+import com.eulerity.hackathon.imagefinder.crawler.CrawlerImgResult;
+import com.eulerity.hackathon.imagefinder.crawler.CrawlerLogoResult;
+import com.eulerity.hackathon.imagefinder.crawler.CrawlerPageResult;
+import com.eulerity.hackathon.imagefinder.crawler.CrawlerResult;
+import com.eulerity.hackathon.imagefinder.crawler.WebCrawler;
+import com.eulerity.hackathon.imagefinder.executor.SharedExecutors;
+import com.eulerity.hackathon.imagefinder.objectDetector.ImageDeduplicator;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+public class CrawlCheckpointTest {
+    private static final int PAGES = 150;
+    private static final String CRAWL_ID = "killed-crawl";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Crawls with a checkpoint in a separate JVM, so the test can kill it mid-crawl.
+     *
+     * @param args the start URL and the checkpoint directory.
+     */
+    public static void main(String[] args) throws Exception {
+        CheckpointStore checkpoints = new CheckpointStore(new File(args[1]).toPath(), 20, true);
+        SharedExecutors executors = new SharedExecutors(2, 2, 0, 0);
+        WebCrawler crawler = new WebCrawler(1000, executors);
+        crawler.setCheckpoint(checkpoints.open(CRAWL_ID));
+        crawler.crawl(args[0]);
+    }
+
+    @Test
+    public void testTornRecordIsCutOff() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        CheckpointStore checkpoints = new CheckpointStore(directory, 60_000, false);
+        try {
+            CrawlCheckpoint checkpoint = checkpoints.open("torn");
+            checkpoint.writeHeader("https://example.com/", 10, true);
+            checkpoint.linkAdded("https://example.com/a", 1, 2.5);
+            checkpoint.linkAdded("https://example.com/b", 1, 0);
+            List<CrawlerResult> results = Arrays.<CrawlerResult>asList(
+                    new CrawlerImgResult("https://example.com/a.jpg"), new CrawlerLogoResult("<svg/>", true));
+            checkpoint.pageDone("https://example.com/a", results);
+            checkpoint.close();
+            try (FileOutputStream out = new FileOutputStream(directory.resolve("torn.checkpoint").toFile(), true)) {
+                out.write(new byte[]{0, 0, 0, 40, 'L', 1, 2});  // A record cut short by a crash
+            }
+
+            checkpoint = checkpoints.open("torn");
+            Assert.assertEquals("https://example.com/", checkpoint.getHeader().getUrl());
+            Assert.assertTrue(checkpoint.getHeader().isUseAI());
+            checkpoint.linkAdded("https://example.com/c", 2, 1);  // Appended after the cut
+            CrawlCheckpoint.Recovered recovered = checkpoint.recover(new ImageDeduplicator());
+            Assert.assertEquals(new HashSet<>(Arrays.asList("https://example.com/a")), recovered.getDonePages());
+            Assert.assertEquals(2, recovered.getPendingTasks().size());
+            Assert.assertEquals("https://example.com/c", recovered.getPendingTasks().get(1).getUrl());
+            Assert.assertEquals(2, recovered.getPages().get(0).getCrawlerResults().size());
+            checkpoint.delete();
+            Assert.assertNull(checkpoints.readHeader("torn"));
+        } finally {
+            checkpoints.shutdown();
+        }
+    }
+
+    @Test
+    public void testKilledCrawlResumesWithoutRefetchingPages() throws Exception {
+        File directory = folder.newFolder("checkpoints");
+        System.setProperty("PAGE_CACHE_ENABLED", "false");
+        // Every page is slow, so the crawl is still running when it is killed
+        try (StubSite site = new StubSite(PAGES, 3, 1, 1, 200)) {
+            Process child = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+                    "-DPAGE_CACHE_ENABLED=false", "-cp", System.getProperty("java.class.path"),
+                    CrawlCheckpointTest.class.getName(), site.rootUrl(), directory.getPath())
+                    .redirectErrorStream(true).redirectOutput(folder.newFile("child.log")).start();
+            long deadline = System.currentTimeMillis() + 30_000;
+            while (site.getPageFetches() < 40 && System.currentTimeMillis() < deadline && child.isAlive()) {
+                Thread.sleep(5);
+            }
+            child.destroyForcibly();
+            Assert.assertTrue(child.waitFor(10, TimeUnit.SECONDS));
+            int fetchedBeforeKill = site.getPageFetches();
+            Assert.assertTrue(fetchedBeforeKill >= 40 && fetchedBeforeKill < PAGES);
+
+            Map<String, Integer> hitsBeforeResume = new HashMap<>();
+            for (int page = 0; page < PAGES; page++) {
+                String path = new URI(site.pageUrl(page)).getPath();
+                hitsBeforeResume.put(path, site.hitsFor(path));
+            }
+            CheckpointStore checkpoints = new CheckpointStore(directory.toPath(), 20, true);
+            SharedExecutors executors = new SharedExecutors(2, 2, 0, 0);
+            try {
+                CrawlCheckpoint checkpoint = checkpoints.open(CRAWL_ID);
+                Set<String> donePages = checkpoint.recover(new ImageDeduplicator()).getDonePages();
+                Assert.assertTrue(donePages.size() > 10);
+
+                WebCrawler crawler = new WebCrawler(1000, executors);
+                crawler.setCheckpoint(checkpoint);
+                List<CrawlerPageResult> results = crawler.crawl(site.rootUrl());
+                checkpoint.close();
+
+                Assert.assertEquals(donePages.size(), crawler.getResumedPages());
+                for (String donePage : donePages) {
+                    String path = new URI(donePage).getPath();
+                    Assert.assertEquals(path, hitsBeforeResume.get(path), (Integer) site.hitsFor(path));
+                }
+                // Every page was crawled by one run or the other, and every page's image was found once
+                List<String> pageUrls = new ArrayList<>();
+                for (CrawlerPageResult result : results) {
+                    pageUrls.add(result.getPageUrl());
+                }
+                Assert.assertEquals(PAGES, new HashSet<>(pageUrls).size());
+                Assert.assertEquals(PAGES, pageUrls.size());
+                Assert.assertEquals(PAGES - donePages.size(), crawler.getPagesVisited());
+            } finally {
+                executors.shutdown();
+                checkpoints.shutdown();
+                System.clearProperty("PAGE_CACHE_ENABLED");
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.eulerity.hackathon.imagefinder;
+
+import com.eulerity.hackathon.imagefinder.crawler.CrawlFrontier;
+import com.eulerity.hackathon.imagefinder.crawler.CrawlTask;
+import com.eulerity.hackathon.imagefinder.crawler.WebCrawler;
+import com.eulerity.hackathon.imagefinder.executor.SharedExecutors;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Random;
+
+public class CrawlFrontierTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSpillingKeepsOrderAndBoundsTheHeap() {
+        for (boolean bestFirst : new boolean[]{false, true}) {
+            CrawlFrontier inMemory = new CrawlFrontier(5, 16, bestFirst);
+            CrawlFrontier spilling = new CrawlFrontier(5, 16, bestFirst, 64, folder.getRoot().toPath());
+            Random random = new Random(7);
+            long maxSpilled = 0;
+            for (int i = 0; i < 20_000; i++) {
+                // Mostly offers, with polls in between like a running crawl
+                if (random.nextInt(4) == 0) {
+                    assertSameTask(inMemory.poll(), spilling.poll());
+                } else {
+                    String url = "https://example.com/page/" + i;
+                    int depth = random.nextInt(6);
+                    double priority = random.nextInt(10) / 2.0;
+                    Assert.assertEquals(inMemory.offer(url, depth, priority), spilling.offer(url, depth, priority));
+                }
+                Assert.assertTrue(spilling.inMemorySize() <= 64);
+                maxSpilled = Math.max(maxSpilled, spilling.spilledSize());
+            }
+            Assert.assertTrue(maxSpilled > 1000);
+            Assert.assertEquals(inMemory.size(), spilling.size());
+            while (!inMemory.isEmpty()) {
+                assertSameTask(inMemory.poll(), spilling.poll());
+            }
+            Assert.assertTrue(spilling.isEmpty());
+            spilling.close();
+            Assert.assertEquals(0, folder.getRoot().list().length);
+        }
+    }
+
+    @Test
+    public void testCrawlWithTinyFrontierVisitsEveryPage() throws Exception {
+        File spillDirectory = folder.newFolder("frontier");
+        System.setProperty("FRONTIER_MAX_IN_MEMORY", "4");
+        System.setProperty("FRONTIER_SPILL_DIR", spillDirectory.getPath());
+        try (StubSite site = new StubSite(120, 4, 1, 0, 0)) {
+            SharedExecutors executors = new SharedExecutors(2, 2, 0, 0);
+            try {
+                new WebCrawler(1000, executors).crawl(site.rootUrl());
+                Assert.assertEquals(120, site.getPageFetches());
+                Assert.assertEquals(0, spillDirectory.list().length);
+            } finally {
+                executors.shutdown();
+            }
+        } finally {
+            System.clearProperty("FRONTIER_MAX_IN_MEMORY");
+            System.clearProperty("FRONTIER_SPILL_DIR");
+        }
+    }
+
+    private static void assertSameTask(CrawlTask expected, CrawlTask actual) {
+        if (expected == null) {
+            Assert.assertNull(actual);
+            return;
+        }
+        Assert.assertEquals(expected.getUrl(), actual.getUrl());
+        Assert.assertEquals(expected.getDepth(), actual.getDepth());
+        Assert.assertEquals(expected.getPriority(), actual.getPriority(), 0);
+    }
+}
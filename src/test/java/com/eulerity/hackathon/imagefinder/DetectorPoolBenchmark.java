@@ -0,0 +1,158 @@
+package com.eulerity.hackathon.imagefinder;
+
+import com.eulerity.hackathon.imagefinder.objectDetector.ObjectDetector;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Runs object detection on a set of images with 1, 2, 4... nets in the detector's pool, up to the number of
+ * cores, and reports the images per second of each. Then, with a full pool, it does the same for batch sizes of
+ * 1, 2, 4 and 8 and reports the 99th percentile latency of an image too. Last, it detects the images from JPEG
+ * bytes at each input size and reports the average decode and inference time of an image; photos larger than the
+ * synthetic ones show what the reduced decode saves. The images are submitted from four threads per core, as
+ * concurrent crawls do, so every net stays busy and batches can fill.
+ * Arguments: the ONNX model (yolov8n.onnx by default) and a directory of JPEG or PNG fixtures; without one, 32
+ * synthetic 1280x720 photos are drawn. Run its main method from the IDE or the test classpath; it is not part of
+ * the unit test run.
+ */
+public class DetectorPoolBenchmark {
+    private static final int ROUNDS = 3;
+    private static final long BATCH_WAIT_MILLIS = 5;
+
+    @SuppressWarnings("unchecked")
+    public static void main(String[] args) throws Exception {
+        nu.pattern.OpenCV.loadShared();
+        String model = args.length > 0 ? args[0] : ObjectDetector.MODEL_FILE;
+        List<Mat> images = args.length > 1 ? readFixtures(new File(args[1])) : drawFixtures(32);
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        System.out.println("---------------- Detector pool benchmark ----------------");
+        System.out.println(images.size() + " images, " + cores + " cores");
+        ExecutorService callers = Executors.newFixedThreadPool(4 * cores);
+        try {
+            List<Integer> poolSizes = new ArrayList<>();
+            for (int poolSize = 1; poolSize < cores; poolSize *= 2) {
+                poolSizes.add(poolSize);
+            }
+            poolSizes.add(cores);
+            for (int poolSize : poolSizes) {
+                ObjectDetector detector = new ObjectDetector(model, poolSize, 0);
+                run(images, detector::detect, callers);  // Warm up, and load every net of the pool
+                long start = System.nanoTime();
+                for (int round = 0; round < ROUNDS; round++) {
+                    run(images, detector::detect, callers);
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf("pool %2d  threads per net %2d  %7.2f images/s  waits %5d  %6.1f ms per inference%n",
+                        poolSize, (int) detector.getStats().get("threadsPerNet"), ROUNDS * images.size() / seconds,
+                        (long) detector.getStats().get("waits"), (double) detector.getStats().get("averageInferenceMillis"));
+            }
+
+            for (int batchSize : new int[]{1, 2, 4, 8}) {
+                ObjectDetector detector = new ObjectDetector(model, cores, 0, batchSize, BATCH_WAIT_MILLIS);
+                run(images, detector::detect, callers);
+                List<Long> latencies = new ArrayList<>();
+                long start = System.nanoTime();
+                for (int round = 0; round < ROUNDS; round++) {
+                    latencies.addAll(run(images, detector::detect, callers));
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+                Collections.sort(latencies);
+                System.out.printf("batch %d  %7.2f images/s  p99 %7.1f ms  average batch %.1f  p99 queue wait %.1f ms%n",
+                        (int) detector.getStats().get("batchSize"), ROUNDS * images.size() / seconds,
+                        latencies.get((int) Math.ceil(latencies.size() * 0.99) - 1) / 1e6,
+                        (double) detector.getStats().get("averageBatchSize"), (double) detector.getStats().get("p99QueueWaitMillis"));
+                detector.close();
+            }
+
+            List<byte[]> jpegs = new ArrayList<>();
+            for (Mat image : images) {
+                MatOfByte encoded = new MatOfByte();
+                Imgcodecs.imencode(".jpg", image, encoded);
+                jpegs.add(encoded.toArray());
+            }
+            for (int inputSize : ObjectDetector.INPUT_SIZES) {
+                ObjectDetector detector = new ObjectDetector(model, cores, 0, ObjectDetector.BATCH_SIZE, BATCH_WAIT_MILLIS);
+                Consumer<byte[]> detect = jpeg -> detector.detect(jpeg, inputSize);
+                run(jpegs, detect, callers);
+                long start = System.nanoTime();
+                for (int round = 0; round < ROUNDS; round++) {
+                    run(jpegs, detect, callers);
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+                detector.close();
+                Map<String, Object> tier = (Map<String, Object>) ((Map<String, Object>) detector.getStats().get("inputSizes")).get(String.valueOf(inputSize));
+                if (tier == null || !(boolean) tier.get("supported")) {
+                    System.out.printf("input %d  not accepted by the model%n", inputSize);
+                    continue;
+                }
+                System.out.printf("input %d  %7.2f images/s  decode %6.1f ms  inference %6.1f ms  reduced decodes %d%n",
+                        inputSize, ROUNDS * jpegs.size() / seconds, (double) tier.get("averageDecodeMillis"),
+                        (double) tier.get("averageInferenceMillis"), (long) tier.get("reducedDecodes"));
+            }
+        } finally {
+            callers.shutdown();
+        }
+    }
+
+    /**
+     * @return the time each detection took, in nanoseconds.
+     */
+    private static <T> List<Long> run(List<T> images, Consumer<T> detect, ExecutorService callers) throws Exception {
+        List<Future<Long>> detections = new ArrayList<>();
+        for (T image : images) {
+            detections.add(callers.submit(() -> {
+                long start = System.nanoTime();
+                detect.accept(image);
+                return System.nanoTime() - start;
+            }));
+        }
+        List<Long> latencies = new ArrayList<>();
+        for (Future<Long> detection : detections) {
+            latencies.add(detection.get());
+        }
+        return latencies;
+    }
+
+    private static List<Mat> readFixtures(File directory) {
+        List<Mat> images = new ArrayList<>();
+        File[] files = directory.listFiles((dir, name) -> name.matches("(?i).*\\.(jpe?g|png)"));
+        if (files != null) {
+            for (File file : files) {
+                Mat image = Imgcodecs.imread(file.getPath());
+                if (!image.empty()) images.add(image);
+            }
+        }
+        return images;
+    }
+
+    private static List<Mat> drawFixtures(int count) {
+        Random random = new Random(42);
+        List<Mat> images = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Mat image = new Mat(720, 1280, CvType.CV_8UC3, new Scalar(random.nextInt(256), random.nextInt(256), random.nextInt(256)));
+            for (int j = 0; j < 20; j++) {
+                Imgproc.circle(image, new Point(random.nextInt(1280), random.nextInt(720)), 20 + random.nextInt(150),
+                        new Scalar(random.nextInt(256), random.nextInt(256), random.nextInt(256)), -1);
+            }
+            images.add(image);
+        }
+        return images;
+    }
+}
@@ -0,0 +1,106 @@
+package com.eulerity.hackathon.imagefinder;
+
+import com.eulerity.hackathon.imagefinder.objectDetector.Detection;
+import com.eulerity.hackathon.imagefinder.objectDetector.ImageAnnotator;
+import com.eulerity.hackathon.imagefinder.objectDetector.ImageDeduplicator;
+import com.eulerity.hackathon.imagefinder.objectDetector.NativeMats;
+import com.eulerity.hackathon.imagefinder.objectDetector.ObjectDetector;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class DetectorSoakTest {
+    private static final int CALLERS = 8;
+    private static final int IMAGES = 400;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        nu.pattern.OpenCV.loadShared();
+    }
+
+    @Test
+    public void testNoMatOutlivesItsDetection() throws Exception {
+        Path model = folder.getRoot().toPath().resolve("tiny.onnx");
+        Files.write(model, TinyYoloModel.bytes());
+        List<byte[]> images = new ArrayList<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 40; i++) {
+            Mat image = new Mat(200 + random.nextInt(600), 200 + random.nextInt(600), CvType.CV_8UC3,
+                    new Scalar(random.nextInt(256), random.nextInt(256), random.nextInt(256)));
+            Imgproc.circle(image, new Point(100, 100), 20 + random.nextInt(80), new Scalar(255, 255, 255), -1);
+            MatOfByte encoded = new MatOfByte();
+            Imgcodecs.imencode(".jpg", image, encoded);
+            images.add(encoded.toArray());
+            image.release();
+            encoded.release();
+        }
+
+        ExecutorService callers = Executors.newFixedThreadPool(CALLERS);
+        try {
+            for (int batchSize : new int[]{1, 4}) {
+                try (ObjectDetector detector = new ObjectDetector(model.toString(), 2, 1, batchSize, 2)) {
+                    soak(detector, images, callers, 2 * CALLERS);  // Warm up every thread's buffers
+                    long live = NativeMats.live();
+                    long bufferBytes = (long) NativeMats.getStats().get("bufferBytes");
+
+                    soak(detector, images, callers, IMAGES);
+                    Assert.assertEquals("Mats leaked with batch size " + batchSize, live, NativeMats.live());
+                    Assert.assertTrue((long) detector.getStats().get("inferences") > 0);
+                    // Only a larger batch than seen in the warm up makes a batch worker's buffers grow
+                    long perThread = 4L * 640 * 640 * 3 + 4L * 3 * 640 * 640 * 4;
+                    Assert.assertTrue((long) NativeMats.getStats().get("bufferBytes") - bufferBytes <= 2 * perThread);
+                }
+            }
+        } finally {
+            callers.shutdown();
+        }
+    }
+
+    private static void soak(ObjectDetector detector, List<byte[]> images, ExecutorService callers, int count) throws Exception {
+        ImageDeduplicator deduplicator = new ImageDeduplicator(detector::detect);
+        List<Future<?>> detections = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            byte[] image = images.get(i % images.size());
+            boolean annotate = i % 10 == 0;
+            detections.add(callers.submit(() -> {
+                ImageDeduplicator crawl = deduplicator;
+                if (annotate) {
+                    // Another crawl, which hands the detector the encoded image and a smaller input size
+                    crawl = new ImageDeduplicator((imageData, inputSize) -> detector.detect(imageData, inputSize), null, null);
+                    crawl.setInputSize(320);
+                }
+                List<Detection> found = crawl.detect(image);
+                if (annotate) {
+                    Mat decoded = Imgcodecs.imdecode(new MatOfByte(image), Imgcodecs.IMREAD_COLOR);
+                    ImageAnnotator.matToBytes(ImageAnnotator.annotateImage(decoded, found));
+                    decoded.release();
+                }
+                return null;
+            }));
+        }
+        for (Future<?> detection : detections) {
+            detection.get();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.eulerity.hackathon.imagefinder;
+
+import com.eulerity.hackathon.imagefinder.executor.FairShareExecutor;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class FairShareExecutorTest {
+    private FairShareExecutor executor;
+
+    @Before
+    public void setUp() {
+        executor = new FairShareExecutor("test", 2);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void testSmallTenantIsNotStarvedByLargeTenant() throws InterruptedException {
+        FairShareExecutor.Tenant large = executor.newTenant("large");
+        FairShareExecutor.Tenant small = executor.newTenant("small");
+        AtomicInteger largeDone = new AtomicInteger();
+        CountDownLatch smallDone = new CountDownLatch(1);
+
+        for (int i = 0; i < 50; i++) {
+            large.execute(() -> {
+                sleepQuietly(20);
+                largeDone.incrementAndGet();
+            });
+        }
+        small.execute(smallDone::countDown);
+
+        Assert.assertTrue(smallDone.await(5, TimeUnit.SECONDS));
+        // The small tenant got the next free thread instead of waiting behind all 50 tasks
+        Assert.assertTrue(largeDone.get() < 10);
+        large.close();
+        small.close();
+    }
+
+    @Test
+    public void testStatsReportQueueDepthAndActiveThreads() throws InterruptedException {
+        FairShareExecutor.Tenant tenant = executor.newTenant("tenant");
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(2);
+        for (int i = 0; i < 5; i++) {
+            tenant.execute(() -> {
+                started.countDown();
+                awaitQuietly(release);
+            });
+        }
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        Assert.assertEquals(2, executor.getStats().getActiveThreads());
+        Assert.assertEquals(3, executor.getStats().getQueueDepth());
+        Assert.assertEquals(3, tenant.getQueueDepth());
+
+        tenant.close();
+        Assert.assertEquals(0, executor.getStats().getQueueDepth());
+        release.countDown();
+    }
+
+    private static void sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
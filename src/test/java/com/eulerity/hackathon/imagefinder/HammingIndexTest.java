@@ -0,0 +1,43 @@
+package com.eulerity.hackathon.imagefinder;
+
+import com.eulerity.hackathon.imagefinder.objectDetector.HammingIndex;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class HammingIndexTest {
+
+    @Test
+    public void testFindsTheSameValueAsComparingAgainstEveryHash() {
+        for (int maxDistance : new int[]{0, 5, 9}) {
+            Random random = new Random(maxDistance);
+            HammingIndex<Integer> index = new HammingIndex<>(maxDistance);
+            List<Long> hashes = new ArrayList<>();
+            for (int i = 0; i < 2000; i++) {
+                // Half near-duplicates of an earlier hash, half new pictures
+                long hash = hashes.isEmpty() || random.nextBoolean() ? random.nextLong()
+                        : flipBits(hashes.get(random.nextInt(hashes.size())), random.nextInt(2 * maxDistance + 2), random);
+                Integer expected = null;
+                for (int j = 0; j < hashes.size() && expected == null; j++) {
+                    if (Long.bitCount(hashes.get(j) ^ hash) <= maxDistance && j % 3 != 0) {
+                        expected = j;
+                    }
+                }
+                Assert.assertEquals(expected, index.findFirst(hash, value -> value % 3 != 0));
+                index.add(hash, hashes.size());
+                hashes.add(hash);
+            }
+            Assert.assertEquals(hashes.size(), index.size());
+        }
+    }
+
+    private static long flipBits(long hash, int bits, Random random) {
+        for (int i = 0; i < bits; i++) {
+            hash ^= 1L << random.nextInt(Long.SIZE);
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,98 @@
+package com.eulerity.hackathon.imagefinder;
+
+import com.eulerity.hackathon.imagefinder.crawler.DomPageExtractor;
+import com.eulerity.hackathon.imagefinder.crawler.ExtractionListener;
+import com.eulerity.hackathon.imagefinder.crawler.FetchedPage;
+import com.eulerity.hackathon.imagefinder.crawler.PageExtractor;
+import com.eulerity.hackathon.imagefinder.crawler.StreamingPageExtractor;
+import com.eulerity.hackathon.imagefinder.objectDetector.ObjectDetector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the Jsoup DOM extractor with the streaming extractor on the HTML fixtures in src/test/resources.
+ * Run its main method from the test classpath; the GC profiler reports the allocation per page as
+ * gc.alloc.rate.norm. It is not part of the unit test run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HtmlExtractorBenchmark {
+    @Param({"news-article.html", "shop-listing.html", "landing-page.html"})
+    public String fixture;
+
+    private FetchedPage page;
+    private final PageExtractor dom = new DomPageExtractor();
+    private final PageExtractor streaming = new StreamingPageExtractor();
+
+    @Setup
+    public void loadFixture() throws IOException {
+        page = new FetchedPage(PageExtractorTest.PAGE_URL, 200, "text/html", null, PageExtractorTest.loadFixture(fixture), false);
+    }
+
+    @Benchmark
+    public void dom(Blackhole blackhole) throws IOException {
+        dom.extract(page, ObjectDetector.defaultInputSize(), new BlackholeListener(blackhole));
+    }
+
+    @Benchmark
+    public void streaming(Blackhole blackhole) throws IOException {
+        streaming.extract(page, ObjectDetector.defaultInputSize(), new BlackholeListener(blackhole));
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .include(HtmlExtractorBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+
+    private static class BlackholeListener implements ExtractionListener {
+        private final Blackhole blackhole;
+
+        private BlackholeListener(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void onFavicon(String url) {
+            blackhole.consume(url);
+        }
+
+        @Override
+        public void onLogo(String data, boolean isSvg) {
+            blackhole.consume(data);
+        }
+
+        @Override
+        public void onImage(String url, String detectionUrl) {
+            blackhole.consume(url);
+            blackhole.consume(detectionUrl);
+        }
+
+        @Override
+        public void onLink(String url, String context) {
+            blackhole.consume(url);
+            blackhole.consume(context);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.eulerity.hackathon.imagefinder;
+
+import com.eulerity.hackathon.imagefinder.crawler.ImageCache;
+import com.eulerity.hackathon.imagefinder.crawler.ImageHttpClient;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+
+public class ImageCacheTest {
+    private static final long TTL_MILLIS = 60_000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testImagesAreDownloadedOnceAcrossTiersAndRestarts() throws Exception {
+        byte[] photo = bytes(1000, 1);
+        byte[] banner = bytes(1000, 2);
+        Path directory = folder.getRoot().toPath();
+        try (StubSite site = new StubSite(1, 1, 1, 0, 0);
+             ImageHttpClient client = new ImageHttpClient(4, 2, 1000, 1000, 1 << 20, 60)) {
+            String base = site.rootUrl().replace("/page/0", "");
+            site.addFile("/photo.jpg", "image/jpeg", photo);
+            site.addFile("/copy-of-photo.jpg", "image/jpeg", photo);
+            site.addFile("/banner.png", "image/png", banner);
+
+            // Room for one image in memory
+            try (ImageCache cache = new ImageCache(client, directory, 1500, 1 << 20, TTL_MILLIS)) {
+                Assert.assertArrayEquals(photo, cache.get(base + "/photo.jpg").getBody());
+                Assert.assertEquals("image/jpeg", cache.get(base + "/photo.jpg").getMimeType());
+                // Another URL with the same bytes is stored once
+                cache.get(base + "/copy-of-photo.jpg");
+                // Pushes the photo out of memory, it is then read back from disk
+                cache.get(base + "/banner.png");
+                Assert.assertArrayEquals(photo, cache.get(base + "/photo.jpg").getBody());
+
+                Map<String, Object> stats = cache.getStats();
+                Assert.assertEquals(1L, stats.get("memoryHits"));
+                Assert.assertEquals(1L, stats.get("diskHits"));
+                Assert.assertEquals(3L, stats.get("misses"));
+                Assert.assertEquals(1L, stats.get("sharedContent"));
+                Assert.assertEquals(2, stats.get("diskEntries"));
+                Assert.assertEquals(2000L, stats.get("diskBytes"));
+                Assert.assertEquals(1, stats.get("memoryEntries"));
+                // The banner made room for the photo in turn
+                Assert.assertEquals(2L, stats.get("memoryEvictions"));
+                Assert.assertEquals(0.4, (double) stats.get("hitRatio"), 0.001);
+                Assert.assertArrayEquals(banner, cache.getByHash(ImageCache.contentHash(banner)));
+                // Sizes are known without a request, only for URLs downloaded before
+                Assert.assertEquals(1000L, cache.cachedSize(base + "/copy-of-photo.jpg"));
+                Assert.assertEquals(-1L, cache.cachedSize(base + "/never-downloaded.jpg"));
+            }
+
+            // A repeat run finds every URL on disk
+            try (ImageCache cache = new ImageCache(client, directory, 1500, 1 << 20, TTL_MILLIS)) {
+                Assert.assertEquals(1000L, cache.cachedSize(base + "/banner.png"));
+                Assert.assertEquals("image/png", cache.get(base + "/banner.png").getMimeType());
+                Assert.assertArrayEquals(photo, cache.get(base + "/copy-of-photo.jpg").getBody());
+                Assert.assertEquals(2L, cache.getStats().get("diskHits"));
+                Assert.assertEquals(0L, cache.getStats().get("misses"));
+            }
+            Assert.assertEquals(1, site.hitsFor("/photo.jpg"));
+            Assert.assertEquals(1, site.hitsFor("/copy-of-photo.jpg"));
+            Assert.assertEquals(1, site.hitsFor("/banner.png"));
+        }
+    }
+
+    @Test
+    public void testLeastRecentlyUsedImagesAreEvictedFromDisk() throws Exception {
+        try (StubSite site = new StubSite(1, 1, 1, 0, 0);
+             ImageHttpClient client = new ImageHttpClient(4, 2, 1000, 1000, 1 << 20, 60);
+             ImageCache cache = new ImageCache(client, folder.getRoot().toPath(), 0, 4000, TTL_MILLIS)) {
+            String base = site.rootUrl().replace("/page/0", "");
+            for (int i = 0; i < 5; i++) {
+                site.addFile("/img/" + i + ".jpg", "image/jpeg", bytes(1000, i));
+                cache.get(base + "/img/" + i + ".jpg");
+                Thread.sleep(5);
+            }
+            Map<String, Object> stats = cache.getStats();
+            Assert.assertTrue((long) stats.get("diskBytes") <= 4000);
+            Assert.assertEquals(2L, stats.get("diskEvictions"));
+            // The oldest image is downloaded again
+            cache.get(base + "/img/0.jpg");
+            Assert.assertEquals(2, site.hitsFor("/img/0.jpg"));
+            cache.get(base + "/img/4.jpg");
+            Assert.assertEquals(1, site.hitsFor("/img/4.jpg"));
+        }
+    }
+
+    @Test
+    public void testConcurrentMissesShareOneDownload() throws Exception {
+        try (StubSite site = new StubSite(1, 1, 1, 0, 0);
+             ImageHttpClient client = new ImageHttpClient(4, 2, 1000, 1000, 1 << 20, 60);
+             ImageCache cache = new ImageCache(client, folder.getRoot().toPath(), 1 << 20, 1 << 20, TTL_MILLIS)) {
+            String url = site.rootUrl().replace("/page/0", "") + "/slow.jpg";
+            site.addFile("/slow.jpg", "image/jpeg", bytes(1000, 1), 500);
+            Thread other = new Thread(() -> {
+                try {
+                    cache.get(url);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            other.start();
+            cache.get(url);
+            other.join();
+
+            Map<String, Object> stats = cache.getStats();
+            Assert.assertEquals(1, site.hitsFor("/slow.jpg"));
+            Assert.assertEquals(1L, stats.get("misses"));
+            Assert.assertEquals(1L, stats.get("inFlightJoins"));
+            // Waiting for the download isn't a memory hit
+            Assert.assertEquals(0L, stats.get("memoryHits"));
+            Assert.assertEquals(0.5, (double) stats.get("hitRatio"), 0.001);
+        }
+    }
+
+    private static byte[] bytes(int length, int seed) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) seed);
+        return bytes;
+    }
+}
@@ -0,0 +1,109 @@
+package com.eulerity.hackathon.imagefinder;
+
+import com.eulerity.hackathon.imagefinder.crawler.ImageCache;
+import com.eulerity.hackathon.imagefinder.crawler.ImageHttpClient;
+import com.eulerity.hackathon.imagefinder.objectDetector.Detection;
+import com.eulerity.hackathon.imagefinder.objectDetector.ImageDeduplicator;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.Point;
+import org.opencv.core.Rect2d;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ImageDeduplicatorTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        nu.pattern.OpenCV.loadShared();
+    }
+
+    @Test
+    public void testResizedCopyReusesDetectionsScaledToItsSize() {
+        AtomicInteger detectorRuns = new AtomicInteger();
+        ImageDeduplicator deduplicator = new ImageDeduplicator(image -> {
+            detectorRuns.incrementAndGet();
+            return Collections.singletonList(new Detection(new Rect2d(100, 80, 200, 120), 0.9f, "dog"));
+        });
+        Mat photo = drawPhoto(1, 800, 600);
+        Mat resized = new Mat();
+        Imgproc.resize(photo, resized, new Size(400, 300), 0, 0, Imgproc.INTER_AREA);
+
+        List<Detection> original = deduplicator.detect(encode(photo, 90));
+        List<Detection> copy = deduplicator.detect(encode(resized, 70));
+        deduplicator.detect(encode(drawPhoto(2, 800, 600), 90));
+
+        Assert.assertEquals(2, detectorRuns.get());
+        Assert.assertEquals(100, original.get(0).getBbox().x, 0.001);
+        Assert.assertEquals("dog", copy.get(0).getClassName());
+        Assert.assertEquals(50, copy.get(0).getBbox().x, 1);
+        Assert.assertEquals(100, copy.get(0).getBbox().width, 1);
+        Assert.assertEquals(3, deduplicator.getStats().get("images"));
+        Assert.assertEquals(2, deduplicator.getStats().get("groups"));
+        Assert.assertEquals(1 / 3.0, (double) deduplicator.getStats().get("dedupeRatio"), 0.001);
+    }
+
+    @Test
+    public void testBytesSavedCountsDisplayedImagesOfKnownSize() throws Exception {
+        byte[] small = encode(drawPhoto(1, 640, 480), 90);
+        byte[] large = encode(drawPhoto(1, 1600, 1200), 90);
+        ImageCache previous = ImageCache.getInstance();
+        try (StubSite site = new StubSite(1, 1, 1, 0, 0);
+             ImageCache images = new ImageCache(ImageHttpClient.getInstance(), folder.getRoot().toPath(), 1 << 20, 1 << 22, 60_000)) {
+            ImageCache.setInstance(images);
+            String base = site.rootUrl().replace("/page/0", "");
+            for (String name : new String[]{"a", "b"}) {
+                site.addFile("/" + name + "-640.jpg", "image/jpeg", small);
+                site.addFile("/" + name + ".jpg", "image/jpeg", large);
+            }
+            // Downloaded before, e.g. by an annotation
+            images.get(base + "/a.jpg");
+
+            ImageDeduplicator deduplicator = new ImageDeduplicator(image -> Collections.emptyList());
+            deduplicator.detect(new URL(base + "/a-640.jpg"), new URL(base + "/a.jpg"));
+            deduplicator.detect(new URL(base + "/b-640.jpg"), new URL(base + "/b.jpg"));
+
+            Assert.assertEquals(2, deduplicator.getStats().get("smallerSources"));
+            // Only the cached image's size is known, the other one isn't fetched to find out
+            Assert.assertEquals((long) large.length - small.length, deduplicator.getStats().get("bytesSaved"));
+            Assert.assertEquals(1, site.hitsFor("/a.jpg"));
+            Assert.assertEquals(0, site.hitsFor("/b.jpg"));
+        } finally {
+            ImageCache.setInstance(previous);
+        }
+    }
+
+    private static Mat drawPhoto(long seed, int width, int height) {
+        Random random = new Random(seed);
+        Mat image = new Mat(height, width, CvType.CV_8UC3, new Scalar(random.nextInt(256), random.nextInt(256), random.nextInt(256)));
+        for (int i = 0; i < 12; i++) {
+            Point center = new Point(random.nextInt(width), random.nextInt(height));
+            Scalar color = new Scalar(random.nextInt(256), random.nextInt(256), random.nextInt(256));
+            Imgproc.circle(image, center, 40 + random.nextInt(160), color, -1);
+        }
+        return image;
+    }
+
+    private static byte[] encode(Mat image, int quality) {
+        MatOfByte encoded = new MatOfByte();
+        Imgcodecs.imencode(".jpg", image, encoded, new MatOfInt(Imgcodecs.IMWRITE_JPEG_QUALITY, quality));
+        return encoded.toArray();
+    }
+}
@@ -62,6 +62,40 @@ public class ImageFinderTest {
         Mockito.verify(response).setStatus(HttpServletResponse.SC_OK);
     }
 
+    @Test
+    public void testFindImagesStreamsEachPageAsNdjson() throws IOException {
+        try (StubSite site = new StubSite(4, 3, 1, 0, 0)) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            Mockito.when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void setWriteListener(javax.servlet.WriteListener writeListener) {
+                }
+
+                @Override
+                public void write(int b) {
+                    body.write(b);
+                }
+            });
+            Mockito.when(request.getServletPath()).thenReturn("/main");
+            Mockito.when(request.getParameter("url")).thenReturn(site.rootUrl());
+            Mockito.when(request.getParameter("maxImages")).thenReturn("10");
+            Mockito.when(request.getParameter("stream")).thenReturn("true");
+
+            new ImageFinder().doPost(request, response);
+
+            Mockito.verify(response).setStatus(HttpServletResponse.SC_OK);
+            Mockito.verify(response).setContentType("application/x-ndjson");
+            String[] lines = body.toString("UTF-8").trim().split("\n");
+            Assert.assertEquals(5, lines.length);  // One event per page plus "done"
+            Assert.assertTrue(lines[0].startsWith("{\"event\":\"page\""));
+            Assert.assertEquals("{\"event\":\"done\"}", lines[4]);
+        }
+    }
 
     @Test
     public void testAnnotateImageReturnsHttpOk() throws IOException {
@@ -0,0 +1,49 @@
+package com.eulerity.hackathon.imagefinder;
+
+import com.eulerity.hackathon.imagefinder.crawler.ImageHttpClient;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Map;
+
+public class ImageHttpClientTest {
+
+    @Test
+    public void testConnectionsAndLookupsAreReused() throws Exception {
+        try (StubSite site = new StubSite(1, 1, 1, 0, 0);
+             ImageHttpClient client = new ImageHttpClient(4, 2, 1000, 1000, 1024, 60)) {
+            site.addFile("/logo.png", "image/png", new byte[512]);
+            String url = site.rootUrl().replace("/page/0", "/logo.png");
+            for (int i = 0; i < 5; i++) {
+                ImageHttpClient.Download download = client.get(url);
+                Assert.assertEquals(512, download.getBody().length);
+                Assert.assertEquals("image/png", download.getMimeType());
+            }
+
+            Map<String, Object> stats = client.getStats();
+            Assert.assertEquals(5L, stats.get("requests"));
+            Assert.assertEquals(5 * 512L, stats.get("bytesDownloaded"));
+            // One kept-alive connection served every request, so the host was looked up once
+            Assert.assertEquals(1, stats.get("availableConnections"));
+            Assert.assertEquals(0, stats.get("leasedConnections"));
+            Assert.assertEquals(1L, stats.get("dnsLookups"));
+        }
+    }
+
+    @Test
+    public void testBodyOverTheLimitIsRefused() throws Exception {
+        try (StubSite site = new StubSite(1, 1, 1, 0, 0);
+             ImageHttpClient client = new ImageHttpClient(4, 2, 1000, 1000, 1024, 60)) {
+            site.addFile("/huge.jpg", "image/jpeg", new byte[4096]);
+            try {
+                client.get(site.rootUrl().replace("/page/0", "/huge.jpg"));
+                Assert.fail("A body over the limit was read");
+            } catch (IOException expected) {
+                // Refused
+            }
+            Assert.assertEquals(1L, client.getStats().get("tooLarge"));
+            Assert.assertEquals(0L, client.getStats().get("bytesDownloaded"));
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.eulerity.hackathon.imagefinder;
+
+import com.eulerity.hackathon.imagefinder.objectDetector.Detection;
+import com.eulerity.hackathon.imagefinder.objectDetector.ImageHeader;
+import com.eulerity.hackathon.imagefinder.objectDetector.ObjectDetector;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.Scalar;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+public class InputSizeTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        nu.pattern.OpenCV.loadShared();
+    }
+
+    @Test
+    public void testJpegSizeIsReadFromTheHeader() {
+        Mat image = new Mat(1400, 2600, CvType.CV_8UC3, new Scalar(10, 20, 30));
+        ImageHeader header = ImageHeader.read(encode(".jpg", image));
+        Assert.assertEquals(2600, header.getWidth());
+        Assert.assertEquals(1400, header.getHeight());
+        Assert.assertNull(ImageHeader.read(encode(".png", image)));
+        Assert.assertNull(ImageHeader.read(new byte[]{(byte) 0xFF, (byte) 0xD8, (byte) 0xFF}));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testReducedDecodeReportsBoxesInOriginalCoordinates() throws Exception {
+        Path model = folder.getRoot().toPath().resolve("tiny.onnx");
+        Files.write(model, TinyYoloModel.bytes());
+        ObjectDetector detector = new ObjectDetector(model.toString(), 1, 1);
+        // Every anchor of the tiny model sees the same pixels in a plain image, so any decode scale gives one box
+        Mat image = new Mat(1400, 2600, CvType.CV_8UC3, new Scalar(90, 160, 220));
+        List<Detection> full = detector.detect(image, 640);
+        List<Detection> reduced = detector.detect(encode(".jpg", image), 640);
+        Assert.assertFalse(full.isEmpty());
+        Assert.assertEquals(full.get(0).getClassName(), reduced.get(0).getClassName());
+        Assert.assertEquals(full.get(0).getBbox().x, reduced.get(0).getBbox().x, 2600 * 0.01);
+        Assert.assertEquals(full.get(0).getBbox().height, reduced.get(0).getBbox().height, 1400 * 0.01);
+
+        // 1400 pixels cover a 640 input at half scale and a 320 one at a quarter
+        detector.detect(encode(".jpg", image), 320);
+        detector.detect(encode(".png", image), 320);
+        Map<String, Object> sizes = (Map<String, Object>) detector.getStats().get("inputSizes");
+        Map<String, Object> small = (Map<String, Object>) sizes.get("320");
+        Assert.assertEquals(true, small.get("supported"));
+        Assert.assertEquals(2L, small.get("images"));
+        Assert.assertEquals(1L, small.get("reducedDecodes"));
+        Assert.assertTrue((double) small.get("averageDecodeMillis") > 0);
+        Assert.assertEquals(1L, ((Map<String, Object>) sizes.get("640")).get("reducedDecodes"));
+
+        // Sizes that aren't offered run at the default
+        detector.detect(image, 500);
+        Assert.assertEquals(3L, ((Map<String, Object>) ((Map<String, Object>) detector.getStats().get("inputSizes")).get("640")).get("images"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testFixedShapeModelRunsEverySizeAt640() throws Exception {
+        Path model = folder.getRoot().toPath().resolve("fixed.onnx");
+        Files.write(model, TinyYoloModel.fixedShapeBytes());
+        try (ObjectDetector detector = new ObjectDetector(model.toString(), 1, 1)) {
+            Mat image = new Mat(1400, 2600, CvType.CV_8UC3, new Scalar(90, 160, 220));
+            byte[] jpeg = encode(".jpg", image);
+            List<Detection> full = detector.detect(jpeg, 640);
+            Assert.assertFalse(full.isEmpty());
+            Assert.assertEquals(full.toString(), detector.detect(jpeg, 320).toString());
+            Assert.assertEquals(full.toString(), detector.detect(jpeg, 480).toString());
+
+            Map<String, Object> sizes = (Map<String, Object>) detector.getStats().get("inputSizes");
+            Assert.assertEquals(false, ((Map<String, Object>) sizes.get("320")).get("supported"));
+            Assert.assertEquals(false, ((Map<String, Object>) sizes.get("480")).get("supported"));
+            Assert.assertEquals(3L, ((Map<String, Object>) sizes.get("640")).get("images"));
+        }
+    }
+
+    private static byte[] encode(String extension, Mat image) {
+        MatOfByte encoded = new MatOfByte();
+        Imgcodecs.imencode(extension, image, encoded);
+        return encoded.toArray();
+    }
+}
@@ -0,0 +1,118 @@
+package com.eulerity.hackathon.imagefinder;
+
+import com.eulerity.hackathon.imagefinder.executor.SharedExecutors;
+import com.eulerity.hackathon.imagefinder.job.CrawlJob;
+import com.eulerity.hackathon.imagefinder.job.JobManager;
+import com.eulerity.hackathon.imagefinder.job.JobStore;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.RejectedExecutionException;
+
+public class JobManagerTest {
+    private SharedExecutors executors;
+
+    @Before
+    public void setUp() {
+        // No politeness delay, the stub site is local
+        executors = new SharedExecutors(2, 2, 0, 0);
+    }
+
+    @After
+    public void tearDown() {
+        executors.shutdown();
+    }
+
+    @Test
+    public void testJobRunsInBackgroundAndKeepsResults() throws Exception {
+        JobManager jobs = new JobManager(executors, 1, 1, new JobStore(10, 60_000));
+        try (StubSite site = new StubSite(4, 3, 1, 0, 0)) {
+            CrawlJob job = jobs.submit(site.rootUrl(), 10, false);
+            Assert.assertFalse(job.getStatus().isFinished());
+
+            awaitFinished(job);
+            Assert.assertEquals(CrawlJob.Status.DONE, job.getStatus());
+            Assert.assertSame(job, jobs.get(job.getId()));
+            Assert.assertEquals(4, job.getPageCount());
+            Assert.assertEquals(1, job.getPages(3).size());
+        } finally {
+            jobs.shutdown();
+        }
+    }
+
+    @Test
+    public void testCancelStopsTheCrawl() throws Exception {
+        JobManager jobs = new JobManager(executors, 1, 1, new JobStore(10, 60_000));
+        try (StubSite site = new StubSite(200, 3, 1, 1, 500)) {
+            CrawlJob job = jobs.submit(site.rootUrl(), 100, false);
+            job.awaitChange(0, 0, 10_000);  // The root page, every other page is slow
+            Assert.assertSame(job, jobs.cancel(job.getId()));
+
+            awaitFinished(job);
+            Assert.assertEquals(CrawlJob.Status.CANCELLED, job.getStatus());
+            Assert.assertTrue(job.getPageCount() >= 1);
+            Assert.assertTrue(site.getPageFetches() < 40);
+        } finally {
+            jobs.shutdown();
+        }
+    }
+
+    @Test
+    public void testFullQueueRejectsJobs() throws Exception {
+        JobManager jobs = new JobManager(executors, 1, 1, new JobStore(10, 60_000));
+        try (StubSite site = new StubSite(200, 3, 1, 1, 500)) {
+            CrawlJob running = jobs.submit(site.rootUrl(), 100, false);
+            CrawlJob queued = jobs.submit(site.rootUrl(), 100, false);
+            try {
+                jobs.submit(site.rootUrl(), 100, false);
+                Assert.fail("The third job should not fit");
+            } catch (RejectedExecutionException e) {
+                // Expected, one job runs and one waits
+            }
+
+            // Cancelling the queued job makes room for another one
+            jobs.cancel(queued.getId());
+            Assert.assertEquals(CrawlJob.Status.CANCELLED, queued.getStatus());
+            Assert.assertFalse(jobs.submit(site.rootUrl(), 100, false).getStatus().isFinished());
+            Assert.assertFalse(running.getStatus().isFinished());
+        } finally {
+            jobs.shutdown();
+        }
+    }
+
+    @Test
+    public void testFinishedJobsAreEvicted() throws Exception {
+        JobManager jobs = new JobManager(executors, 2, 2, new JobStore(1, 60_000));
+        try (StubSite site = new StubSite(1, 3, 1, 0, 0)) {
+            CrawlJob first = jobs.submit(site.rootUrl(), 10, false);
+            awaitFinished(first);
+            CrawlJob second = jobs.submit(site.rootUrl(), 10, false);
+            awaitFinished(second);
+
+            // Only one finished job is kept, the oldest goes first
+            Assert.assertNull(jobs.get(first.getId()));
+            Assert.assertSame(second, jobs.get(second.getId()));
+        } finally {
+            jobs.shutdown();
+        }
+
+        JobManager expiring = new JobManager(executors, 1, 1, new JobStore(10, 0));
+        try (StubSite site = new StubSite(1, 3, 1, 0, 0)) {
+            CrawlJob job = expiring.submit(site.rootUrl(), 10, false);
+            awaitFinished(job);
+            Thread.sleep(5);
+            Assert.assertNull(expiring.get(job.getId()));
+        } finally {
+            expiring.shutdown();
+        }
+    }
+
+    private static void awaitFinished(CrawlJob job) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (!job.getStatus().isFinished() && System.currentTimeMillis() < deadline) {
+            job.awaitChange(job.getPageCount(), job.getEnrichedPages(), 1000);
+        }
+    }
+}
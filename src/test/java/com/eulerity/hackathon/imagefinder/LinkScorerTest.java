@@ -0,0 +1,78 @@
+package com.eulerity.hackathon.imagefinder;
+
+import com.eulerity.hackathon.imagefinder.crawler.CrawlFrontier;
+import com.eulerity.hackathon.imagefinder.crawler.LinkScorer;
+import com.eulerity.hackathon.imagefinder.crawler.WebCrawler;
+import com.eulerity.hackathon.imagefinder.executor.SharedExecutors;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LinkScorerTest {
+    private static final String HOST = "https://www.example.com";
+
+    @Test
+    public void testScoresFromUrlContextAndParent() {
+        LinkScorer scorer = new LinkScorer();
+        double gallery = scorer.score(HOST + "/culture/gallery/2020/sep/05/in-pictures-the-summer-festival", "", 0);
+        double article = scorer.score(HOST + "/news/2020/sep/05/city-council-plans-new-park", "", 0);
+        double plain = scorer.score(HOST + "/page/3", "", 0);
+        double login = scorer.score(HOST + "/account/login", "", 0);
+        double pdf = scorer.score(HOST + "/files/report.pdf", "", 0);
+        Assert.assertTrue(gallery > article);
+        Assert.assertTrue(article > plain);
+        Assert.assertTrue(plain > login);
+        Assert.assertTrue(plain > pdf);
+
+        // The link's attributes and the density of the linking page count too
+        Assert.assertTrue(scorer.score(HOST + "/a", "story-link photo gallery", 0) > scorer.score(HOST + "/a", "", 0));
+        Assert.assertTrue(scorer.score(HOST + "/a", "nav nofollow", 0) < scorer.score(HOST + "/a", "nav", 0));
+        Assert.assertTrue(scorer.score(HOST + "/a", "", 12) > scorer.score(HOST + "/a", "", 0));
+    }
+
+    @Test
+    public void testLearnsYieldPerSection() {
+        LinkScorer scorer = new LinkScorer();
+        double before = scorer.score(HOST + "/shop/item-1", "", 0);
+        for (int i = 0; i < 5; i++) {
+            scorer.recordYield(HOST + "/shop/item-" + i, 10);
+            scorer.recordYield(HOST + "/forum/thread-" + i, 0);
+        }
+        Assert.assertTrue(scorer.score(HOST + "/shop/item-9", "", 0) > before);
+        Assert.assertTrue(scorer.score(HOST + "/forum/thread-9", "", 0) < before);
+    }
+
+    @Test
+    public void testBestFirstFrontierOrder() {
+        CrawlFrontier frontier = new CrawlFrontier(5, 16, true);
+        frontier.offer(HOST + "/shallow", 1, 0);
+        frontier.offer(HOST + "/deep", 3, 2.5);
+        frontier.offer(HOST + "/tie", 2, 2.5);
+        Assert.assertEquals(HOST + "/tie", frontier.poll().getUrl());
+        Assert.assertEquals(HOST + "/deep", frontier.poll().getUrl());
+        Assert.assertEquals(HOST + "/shallow", frontier.poll().getUrl());
+    }
+
+    @Test
+    public void testBestFirstFetchesFewerPagesPerImage() throws Exception {
+        try (StubSite site = new StubSite(0, 0, 0, 0, 0)) {
+            LinkYieldBenchmark.populate(site, 42);
+            String rootUrl = site.rootUrl().substring(0, site.rootUrl().indexOf("/page/")) + "/";
+            int bfsPages = crawlPages(rootUrl, "bfs");
+            int bestFirstPages = crawlPages(rootUrl, "best-first");
+            Assert.assertTrue("best-first " + bestFirstPages + " vs bfs " + bfsPages, bestFirstPages < bfsPages);
+        }
+    }
+
+    private static int crawlPages(String rootUrl, String order) throws Exception {
+        System.setProperty("CRAWL_ORDER", order);
+        SharedExecutors executors = new SharedExecutors(2, 2, 0, 0);
+        try {
+            WebCrawler crawler = new WebCrawler(100, executors);
+            Assert.assertEquals(100, LinkYieldBenchmark.countImages(crawler.crawl(rootUrl)));
+            return crawler.getPagesVisited();
+        } finally {
+            System.clearProperty("CRAWL_ORDER");
+            executors.shutdown();
+        }
+    }
+}
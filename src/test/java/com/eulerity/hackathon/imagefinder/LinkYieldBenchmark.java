@@ -0,0 +1,190 @@
+package com.eulerity.hackathon.imagefinder;
+
+import com.eulerity.hackathon.imagefinder.crawler.CrawlerPageResult;
+import com.eulerity.hackathon.imagefinder.crawler.WebCrawler;
+import com.eulerity.hackathon.imagefinder.executor.SharedExecutors;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Crawls a synthetic news site in BFS and in best-first order and reports how many pages each fetched per image.
+ * The site mixes pages without images (navigation, tags, login and legal pages) with articles holding a few
+ * images and galleries holding many, and links them the way news sites do: every page leads to tags and
+ * utility pages, only some lead to galleries.
+ * Run its main method from the IDE or the test classpath; it is not part of the unit test run.
+ */
+public class LinkYieldBenchmark {
+    private static final String[] SECTIONS = {"news", "sport", "culture", "travel"};
+    private static final String[] UTILITY = {"about", "contact", "login", "signup", "privacy", "terms", "help", "subscribe", "account"};
+    private static final String[] WORDS = {"city", "council", "plans", "new", "park", "team", "wins", "final", "summer",
+            "festival", "review", "best", "beaches", "in", "europe", "election", "results", "what", "we", "know"};
+    private static final int TAGS = 30;
+    private static final int ARTICLES_PER_SECTION = 30;
+    private static final int GALLERIES_PER_SECTION = 4;
+
+    public static void main(String[] args) throws Exception {
+        int maxImages = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+
+        try (StubSite site = new StubSite(0, 0, 0, 0, 0)) {
+            populate(site, 42);
+            String rootUrl = site.rootUrl().substring(0, site.rootUrl().indexOf("/page/")) + "/";
+            System.out.println("---------------- Link yield benchmark ----------------");
+            for (String order : new String[]{"bfs", "best-first"}) {
+                System.setProperty("CRAWL_ORDER", order);
+                // Fresh executors, so the best-first run doesn't learn from the BFS run
+                SharedExecutors executors = new SharedExecutors(2, 2, 0, 0);
+                try {
+                    WebCrawler crawler = new WebCrawler(maxImages, executors);
+                    List<CrawlerPageResult> results = crawler.crawl(rootUrl);
+                    int images = countImages(results);
+                    System.out.printf("%-11s pages fetched: %4d  images: %4d  pages per image: %.2f%n",
+                            order, crawler.getPagesVisited(), images, crawler.getPagesVisited() / (double) Math.max(1, images));
+                } finally {
+                    executors.shutdown();
+                }
+            }
+            System.clearProperty("CRAWL_ORDER");
+        }
+    }
+
+    static int countImages(List<CrawlerPageResult> results) {
+        int images = 0;
+        for (CrawlerPageResult result : results) {
+            images += result.getCrawlerResults().size();
+        }
+        return images;
+    }
+
+    /**
+     * Adds the pages of the synthetic news site to a stub site, rooted at "/". The same seed builds the same site.
+     *
+     * @param site the stub site to add the pages to.
+     * @param seed the seed of the random layout.
+     */
+    static void populate(StubSite site, long seed) {
+        Random random = new Random(seed);
+        List<String> articles = new ArrayList<>();
+        List<String> galleries = new ArrayList<>();
+        for (String section : SECTIONS) {
+            for (int i = 0; i < ARTICLES_PER_SECTION; i++) {
+                articles.add("/" + section + "/2020/sep/" + (1 + random.nextInt(28)) + "/" + slug(random) + "-" + i);
+            }
+            for (int i = 0; i < GALLERIES_PER_SECTION; i++) {
+                galleries.add("/" + section + "/gallery/2020/sep/" + (1 + random.nextInt(28)) + "/in-pictures-" + slug(random) + "-" + i);
+            }
+        }
+        List<String> tags = new ArrayList<>();
+        for (int i = 0; i < TAGS; i++) {
+            tags.add("/tag/" + WORDS[i % WORDS.length] + "-" + i);
+        }
+        int[] imageIds = {0};
+
+        StringBuilder home = page(0, imageIds);
+        navigation(home);
+        for (String tag : tags.subList(0, 20)) {
+            link(home, tag, "class='tag'");
+        }
+        for (int i = 0; i < 10; i++) {
+            link(home, pick(random, articles), "class='story-link' data-link-name='article'");
+        }
+        for (int i = 0; i < 2; i++) {
+            link(home, pick(random, galleries), "class='story-link' title='Photo gallery'");
+        }
+        add(site, "/", home);
+
+        for (String section : SECTIONS) {
+            StringBuilder index = page(random.nextInt(2), imageIds);
+            navigation(index);
+            for (String article : articles) {
+                if (article.startsWith("/" + section + "/")) link(index, article, "class='story-link'");
+            }
+            for (int i = 0; i < 5; i++) {
+                link(index, pick(random, tags), "class='tag'");
+            }
+            add(site, "/" + section, index);
+        }
+        for (String utility : UTILITY) {
+            StringBuilder page = page(0, imageIds);
+            navigation(page);
+            add(site, "/" + utility, page);
+        }
+        for (String tag : tags) {
+            StringBuilder page = page(0, imageIds);
+            navigation(page);
+            for (int i = 0; i < 8; i++) {
+                link(page, pick(random, articles), "class='story-link'");
+            }
+            for (int i = 0; i < 5; i++) {
+                link(page, pick(random, tags), "class='tag'");
+            }
+            add(site, tag, page);
+        }
+        for (String article : articles) {
+            StringBuilder page = page(1 + random.nextInt(3), imageIds);
+            navigation(page);
+            for (int i = 0; i < 3; i++) {
+                link(page, pick(random, tags), "class='tag'");
+            }
+            for (int i = 0; i < 4; i++) {
+                link(page, pick(random, articles), "class='related story-link'");
+            }
+            if (random.nextInt(10) < 3) {
+                link(page, pick(random, galleries), "class='related story-link' title='Photo gallery'");
+            }
+            add(site, article, page);
+        }
+        for (String gallery : galleries) {
+            StringBuilder page = page(8 + random.nextInt(5), imageIds);
+            navigation(page);
+            for (int i = 0; i < 2; i++) {
+                link(page, pick(random, galleries), "class='more-galleries'");
+            }
+            for (int i = 0; i < 3; i++) {
+                link(page, pick(random, articles), "class='story-link'");
+            }
+            add(site, gallery, page);
+        }
+    }
+
+    private static StringBuilder page(int images, int[] imageIds) {
+        StringBuilder html = new StringBuilder("<html><head><title>Page</title></head><body>");
+        for (int i = 0; i < images; i++) {
+            html.append("<img src=\"/img/").append(imageIds[0]++).append(".jpg\">");
+        }
+        return html;
+    }
+
+    private static void navigation(StringBuilder html) {
+        link(html, "/", "class='nav'");
+        for (String section : SECTIONS) {
+            link(html, "/" + section, "class='nav'");
+        }
+        for (String utility : UTILITY) {
+            link(html, "/" + utility, "class='nav' rel='nofollow'");
+        }
+    }
+
+    private static void link(StringBuilder html, String path, String attributes) {
+        html.append("<a href=\"").append(path).append("\" ").append(attributes).append(">link</a>");
+    }
+
+    private static void add(StubSite site, String path, StringBuilder html) {
+        site.addFile(path, "text/html; charset=utf-8", html.append("</body></html>").toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String pick(Random random, List<String> paths) {
+        return paths.get(random.nextInt(paths.size()));
+    }
+
+    private static String slug(Random random) {
+        StringBuilder slug = new StringBuilder();
+        for (int i = 0; i < 5; i++) {
+            if (i > 0) slug.append('-');
+            slug.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return slug.toString();
+    }
+}
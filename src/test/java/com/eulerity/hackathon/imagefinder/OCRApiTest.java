@@ -0,0 +1,134 @@
+package com.eulerity.hackathon.imagefinder;
+
+import com.eulerity.hackathon.imagefinder.crawler.AiResultCache;
+import com.eulerity.hackathon.imagefinder.crawler.ImageCache;
+import com.eulerity.hackathon.imagefinder.crawler.ImageHttpClient;
+import com.eulerity.hackathon.imagefinder.ocr.OCRApi;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+public class OCRApiTest {
+    // The stub OCR service never finds text, so every fallback runs
+    private static final String NO_TEXT = "{\"ParsedResults\":[{\"ParsedText\":\"\"}],\"IsErroredOnProcessing\":false}";
+    private static final String SVG = "<?xml version=\"1.0\"?><svg xmlns=\"http://www.w3.org/2000/svg\" width=\"40\" height=\"20\">"
+            + "<rect width=\"20\" height=\"20\" fill=\"red\"/></svg>";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private ImageCache previousImages;
+    private AiResultCache previousResults;
+    private ImageCache images;
+    private AiResultCache results;
+
+    /**
+     * Gives every test empty caches, so nothing from earlier tests or runs answers for the stub site.
+     */
+    @Before
+    public void useEmptyCaches() throws Exception {
+        previousImages = ImageCache.getInstance();
+        previousResults = AiResultCache.getInstance();
+        images = new ImageCache(ImageHttpClient.getInstance(), folder.newFolder("images").toPath(), 1 << 20, 1 << 20, 60_000);
+        results = new AiResultCache(folder.getRoot().toPath().resolve("ai-results.bin"), 100);
+        ImageCache.setInstance(images);
+        AiResultCache.setInstance(results);
+    }
+
+    @After
+    public void restore() {
+        System.clearProperty("OCR_URL");
+        ImageCache.setInstance(previousImages);
+        AiResultCache.setInstance(previousResults);
+        images.close();
+        results.close();
+    }
+
+    @Test
+    public void testTypeIsDetectedFromBytes() throws Exception {
+        Assert.assertEquals("image/png", OCRApi.detectMimeType(transparentPng(), "application/octet-stream"));
+        Assert.assertEquals("image/jpeg", OCRApi.detectMimeType(new byte[]{(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, 0}, "text/html"));
+        Assert.assertEquals("image/x-icon", OCRApi.detectMimeType(new byte[]{0, 0, 1, 0, 1, 0}, null));
+        Assert.assertEquals("image/svg+xml", OCRApi.detectMimeType(SVG.getBytes(StandardCharsets.UTF_8), "text/plain"));
+        Assert.assertEquals("image/webp", OCRApi.detectMimeType("RIFF\0\0\0\0WEBPVP8 ".getBytes(StandardCharsets.US_ASCII), null));
+        Assert.assertEquals("image/avif", OCRApi.detectMimeType(new byte[]{1, 2, 3}, "image/avif"));
+    }
+
+    @Test
+    public void testEachLogoIsDownloadedOnce() throws Exception {
+        byte[] png = transparentPng();
+        byte[] svg = SVG.getBytes(StandardCharsets.UTF_8);
+        try (StubSite site = new StubSite(1, 1, 1, 0, 0)) {
+            String base = site.rootUrl().replace("/page/0", "");
+            String pngPath = "/logo.png";
+            String svgPath = "/logo.svg";
+            // Served with useless types, the bytes tell what they are
+            site.addFile(pngPath, "application/octet-stream", png);
+            site.addFile(svgPath, "text/plain", svg);
+            site.addFile("/copy" + pngPath, "image/png", png);
+            site.addFile("/ocr", "application/json", NO_TEXT.getBytes(StandardCharsets.UTF_8));
+            System.setProperty("OCR_URL", base + "/ocr");
+
+            // Uploaded as is, then on a white and on a black background since the PNG is transparent
+            Assert.assertEquals("", OCRApi.performOCROnImageUrl(base + pngPath));
+            Assert.assertEquals(1, site.hitsFor(pngPath));
+            Assert.assertEquals(png.length, site.bytesServed(pngPath));
+            Assert.assertEquals(3, site.hitsFor("/ocr"));
+
+            // Transcoded locally, then OCR on a white and on a black background
+            Assert.assertEquals("", OCRApi.performOCROnImageUrl(base + svgPath));
+            Assert.assertEquals(1, site.hitsFor(svgPath));
+            Assert.assertEquals(svg.length, site.bytesServed(svgPath));
+            Assert.assertEquals(5, site.hitsFor("/ocr"));
+
+            // The same logo under another URL is downloaded, but its text comes from the result cache
+            Assert.assertEquals("", OCRApi.performOCROnImageUrl(base + "/copy" + pngPath));
+            Assert.assertEquals(1, site.hitsFor("/copy" + pngPath));
+            Assert.assertEquals(5, site.hitsFor("/ocr"));
+        }
+    }
+
+    @Test
+    public void testProcessingErrorsAreNotCached() throws Exception {
+        byte[] svg = SVG.getBytes(StandardCharsets.UTF_8);
+        try (StubSite site = new StubSite(1, 1, 1, 0, 0)) {
+            String base = site.rootUrl().replace("/page/0", "");
+            site.addFile("/logo.svg", "image/svg+xml", svg);
+            site.addFile("/ocr", "application/json",
+                    "{\"ErrorMessage\":[\"Timed out\"],\"IsErroredOnProcessing\":true}".getBytes(StandardCharsets.UTF_8));
+            System.setProperty("OCR_URL", base + "/ocr");
+            try {
+                OCRApi.performOCROnImageUrl(base + "/logo.svg");
+                Assert.fail("a processing error must not pass for an image without text");
+            } catch (IOException expected) {
+            }
+
+            // Once the service recovers, the logo is sent again rather than answered from the cache
+            site.addFile("/ocr", "application/json",
+                    "{\"ParsedResults\":[{\"ParsedText\":\"Acme\"}],\"IsErroredOnProcessing\":false}".getBytes(StandardCharsets.UTF_8));
+            Assert.assertEquals("Acme", OCRApi.performOCROnImageUrl(base + "/logo.svg"));
+            Assert.assertEquals(2, site.hitsFor("/ocr"));
+        }
+    }
+
+    private static byte[] transparentPng() throws Exception {
+        BufferedImage image = new BufferedImage(40, 20, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.BLUE);
+        g.fillRect(5, 5, 10, 10);
+        g.dispose();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "PNG", out);
+        return out.toByteArray();
+    }
+}
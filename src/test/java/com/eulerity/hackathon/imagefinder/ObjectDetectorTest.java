@@ -0,0 +1,167 @@
+package com.eulerity.hackathon.imagefinder;
+
+import com.eulerity.hackathon.imagefinder.objectDetector.ObjectDetector;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class ObjectDetectorTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        nu.pattern.OpenCV.loadShared();
+    }
+
+    @Test
+    public void testBatchedPredictionsMatchOneByOne() throws Exception {
+        Path model = folder.getRoot().toPath().resolve("tiny.onnx");
+        Files.write(model, TinyYoloModel.bytes());
+        Assert.assertEquals(detectOneByOne(model), detectInBatches(model, 4));
+        // Output laid out as [N, 1, 84, 400] in a batch
+        Files.write(model, TinyYoloModel.reshapedBytes());
+        Assert.assertEquals(detectOneByOne(model), detectInBatches(model, 4));
+    }
+
+    @Test
+    public void testFixedBatchModelFallsBackToOneImagePerPass() throws Exception {
+        Path model = folder.getRoot().toPath().resolve("fixed.onnx");
+        Files.write(model, TinyYoloModel.fixedShapeBytes());
+        Assert.assertEquals(detectOneByOne(model), detectInBatches(model, 1));
+    }
+
+    @Test
+    public void testCloseStopsTheBatchWorkers() throws Exception {
+        Path model = folder.getRoot().toPath().resolve("tiny.onnx");
+        Files.write(model, TinyYoloModel.bytes());
+        int workers = batchWorkers();
+        ObjectDetector detector = new ObjectDetector(model.toString(), 2, 1, 4, 5);
+        Assert.assertEquals(workers + 2, batchWorkers());
+        Mat image = new Mat(480, 640, CvType.CV_8UC3, new Scalar(90, 160, 220));
+        Assert.assertFalse(detector.detect(image, 640).isEmpty());
+
+        detector.close();
+        Assert.assertEquals(workers, batchWorkers());
+        Assert.assertEquals(0, detector.getStats().get("netsLoaded"));
+        try {
+            detector.detect(image, 640);
+            Assert.fail("a closed detector must not detect");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    /**
+     * Detects on the images of {@link #images()} from as many threads at once, on one batch worker that waits long
+     * enough for every batch to fill.
+     *
+     * @param expectedBatchSize the batch size the detector must settle on.
+     * @return the detections of each image.
+     */
+    private static List<String> detectInBatches(Path model, int expectedBatchSize) throws Exception {
+        List<Mat> images = images();
+        ExecutorService callers = Executors.newFixedThreadPool(images.size());
+        try (ObjectDetector detector = new ObjectDetector(model.toString(), 1, 1, 4, 1000)) {
+            List<Future<String>> detections = new ArrayList<>();
+            for (Mat image : images) {
+                detections.add(callers.submit(() -> detector.detect(image, 640).toString()));
+            }
+            List<String> found = new ArrayList<>();
+            for (Future<String> detection : detections) {
+                found.add(detection.get());
+            }
+            Assert.assertEquals(expectedBatchSize, detector.getStats().get("batchSize"));
+            if (expectedBatchSize > 1) {
+                Assert.assertTrue((double) detector.getStats().get("averageBatchSize") > 1);
+            }
+            return found;
+        } finally {
+            callers.shutdown();
+        }
+    }
+
+    private static List<String> detectOneByOne(Path model) {
+        List<String> found = new ArrayList<>();
+        try (ObjectDetector detector = new ObjectDetector(model.toString(), 1, 1)) {
+            for (Mat image : images()) {
+                found.add(detector.detect(image, 640).toString());
+            }
+        }
+        Assert.assertNotEquals(Collections.nCopies(found.size(), "[]"), found);
+        return found;
+    }
+
+    // Eight images of different sizes and colours, each with a white disc in another place
+    private static List<Mat> images() {
+        Random random = new Random(3);
+        List<Mat> images = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Mat image = new Mat(300 + random.nextInt(500), 300 + random.nextInt(500), CvType.CV_8UC3,
+                    new Scalar(random.nextInt(256), random.nextInt(256), random.nextInt(256)));
+            Imgproc.circle(image, new Point(random.nextInt(300), random.nextInt(300)), 40 + random.nextInt(80),
+                    new Scalar(255, 255, 255), -1);
+            images.add(image);
+        }
+        return images;
+    }
+
+    private static int batchWorkers() {
+        int workers = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("detector-batch-") && thread.isAlive()) workers++;
+        }
+        return workers;
+    }
+
+    @Test
+    public void testVersionFollowsTheBytesTheNetsRun() throws Exception {
+        Path model = folder.getRoot().toPath().resolve("tiny.onnx");
+        Files.write(model, TinyYoloModel.bytes(1));
+        ObjectDetector detector = new ObjectDetector(model.toString(), 2, 1);
+        Mat image = new Mat(480, 640, CvType.CV_8UC3, new Scalar(90, 160, 220));
+        String version = detector.getModelVersion();
+        String detections = detector.detect(image, 640).toString();
+
+        // Touched but the same bytes: same version, same nets
+        Files.setLastModifiedTime(model, FileTime.fromMillis(Files.getLastModifiedTime(model).toMillis() + 1000));
+        Assert.assertEquals(version, detector.getModelVersion());
+
+        // Half written: the loaded model keeps running
+        byte[] replacement = TinyYoloModel.bytes(2);
+        Files.write(model, Arrays.copyOf(replacement, replacement.length / 2));
+        Assert.assertEquals(version, detector.getModelVersion());
+        Assert.assertEquals(detections, detector.detect(image, 640).toString());
+
+        // Replaced: the version changes along with what the nets find
+        Files.write(model, replacement);
+        Files.setLastModifiedTime(model, FileTime.fromMillis(Files.getLastModifiedTime(model).toMillis() + 2000));
+        String reloaded = detector.getModelVersion();
+        Assert.assertNotEquals(version, reloaded);
+        String after = detector.detect(image, 640).toString();
+        Assert.assertNotEquals(detections, after);
+
+        // A new detector on the same file agrees with the reloaded nets
+        ObjectDetector fresh = new ObjectDetector(model.toString(), 1, 1);
+        Assert.assertEquals(reloaded, fresh.getModelVersion());
+        Assert.assertEquals(after, fresh.detect(image, 640).toString());
+    }
+}
@@ -0,0 +1,60 @@
+package com.eulerity.hackathon.imagefinder;
+
+import com.eulerity.hackathon.imagefinder.crawler.FetchedPage;
+import com.eulerity.hackathon.imagefinder.crawler.PageCache;
+import com.eulerity.hackathon.imagefinder.crawler.PageFetcher;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.Map;
+
+public class PageCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSecondFetchIsRevalidatedAndServedFromCache() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        PageCache cache = new PageCache(directory, 1024 * 1024);
+        try (StubSite site = new StubSite(1, 1, 2, 0, 0);
+             PageFetcher fetcher = new PageFetcher(PageFetcher.MAX_BODY_BYTES, cache)) {
+            FetchedPage first = fetcher.fetch(site.rootUrl()).get();
+            Assert.assertFalse(first.isFromCache());
+            awaitStores(cache, 1);
+
+            FetchedPage second = fetcher.fetch(site.rootUrl()).get();
+            Assert.assertTrue(second.isFromCache());
+            Assert.assertEquals(200, second.getStatusCode());
+            Assert.assertArrayEquals(first.getBody(), second.getBody());
+            Assert.assertEquals(first.getCharset(), second.getCharset());
+            Assert.assertEquals(1, site.getPageFetches());
+            Assert.assertEquals(1, site.getNotModified());
+
+            Map<String, Long> stats = cache.getStats();
+            Assert.assertEquals(1L, (long) stats.get("misses"));
+            Assert.assertEquals(1L, (long) stats.get("revalidations"));
+            Assert.assertEquals(1L, (long) stats.get("hits"));
+        } finally {
+            cache.close();
+        }
+
+        // The entry survives a restart and can be evicted by size
+        PageCache reopened = new PageCache(directory, 1024 * 1024);
+        Assert.assertEquals(1L, (long) reopened.getStats().get("entries"));
+        Assert.assertEquals(1, reopened.evictToSize(0));
+        Assert.assertEquals(0L, (long) reopened.getStats().get("bytes"));
+        Assert.assertEquals(0, directory.toFile().list().length);
+        reopened.close();
+    }
+
+    private static void awaitStores(PageCache cache, long stores) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cache.getStats().get("stores") < stores && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(stores, (long) cache.getStats().get("stores"));
+    }
+}
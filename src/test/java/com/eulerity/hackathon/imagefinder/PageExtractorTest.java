@@ -0,0 +1,145 @@
+package com.eulerity.hackathon.imagefinder;
+
+import com.eulerity.hackathon.imagefinder.crawler.DomPageExtractor;
+import com.eulerity.hackathon.imagefinder.crawler.ExtractedPage;
+import com.eulerity.hackathon.imagefinder.crawler.FetchedPage;
+import com.eulerity.hackathon.imagefinder.crawler.StreamingPageExtractor;
+import com.eulerity.hackathon.imagefinder.objectDetector.ObjectDetector;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+public class PageExtractorTest {
+    static final String[] FIXTURES = {"news-article.html", "shop-listing.html", "landing-page.html"};
+    static final String PAGE_URL = "https://www.example.com/lifestyle/2020/sep/05/story";
+
+    @Test
+    public void testStreamingExtractorMatchesDomOnFixtures() throws IOException {
+        for (String fixture : FIXTURES) {
+            assertSameExtraction(fixture, loadFixture(fixture));
+        }
+    }
+
+    @Test
+    public void testStreamingExtractorMatchesDomOnEdgeCases() throws IOException {
+        String[] snippets = {
+                "<img src=a src=b><img data-src=lazy.jpg src=''><img src=''><img alt=none>",
+                "<div class=LOGO><svg><svg id=inner></svg></svg><img src=logo.png></div><img src=after.png>",
+                "<a class='logo' href=/home><img src=a.png></div><img src=b.png></a><img src=c.png>",
+                "<div id=site-logo><div class=logo><img src=nested.png></div></div>",
+                "<div class=\"logo/\"><img src=x.png></div><div class=logo/><img src=y.png>",
+                "<image src=converted.png><svg><image href=kept.png></image></svg>",
+                "<a href=1>one<a href=2>two</a><A HREF='3'>three</A>",
+                "<script>document.write('<img src=no.png>')</script><style>img{}</style><title><img src=no2.png></title>",
+                "<!-- <img src=comment.png> --><!--><img src=after-empty-comment.png>",
+                "<head><base href='https://cdn.example.org/base/'></head><img src=relative.png><a href=''>self</a>",
+                "<link rel=' Icon ' href=favicon.ico><link rel='shortcut icon'><link rel=icon href=''>",
+                "<a href='/caf&eacute;?a=1&amp;b=2'>x</a><img src='/x&y.png'>",
+                "<a href='/a?x=1&amp;y=2&#38;z=&#x41;&copy;&notin;&amp'>x</a><a href='/b?q=&#0;&#x80;&#xD800;&lang=en'>y</a>",
+                "<div aria-label='Company logo'><svg viewBox='0 0 1 1'><path d='M0 0'/></svg><svg/></div>",
+                "<div class=logo><svg><rect></div><img src=outside.png>",
+                "<img class=logo src=self.png><a data-link-name='nav : logo'></a>",
+                "<img src=a.jpg srcset='a-320.jpg 320w, a-640.jpg 640w, a-1280.jpg 1280w' sizes='(max-width: 600px) 100vw, 800px'>",
+                "<img src=b.jpg width=400 srcset='b-1x.jpg, b-2x.jpg 2x'><img src=c.jpg srcset='c-small.jpg 300w'>",
+                "<picture><source srcset='d.avif 700w' type=image/avif><source srcset='d.webp 700w' type=image/webp><img src=d.jpg srcset='d-900.jpg 900w'></picture>",
+                "<picture><img src=e.jpg><source srcset='e-after.jpg 700w'></picture><source srcset=f.jpg><img src=f.jpg width=900>",
+                "<a href=/g REL=nofollow title=' Photo Gallery ' class='nav gallery' id=g1 aria-label=Pics data-link-name='nav : gallery'>g</a><a href=/x title=''>x</a>",
+                // Implied end tags
+                "<ul><li><div class=logo><li><img src=x.png></ul>",
+                "<dl><dt><div class=logo><dd><img src=x.png></dl><dl><dd><div><dt><img src=y.png></div></dl>",
+                "<ul><li><div><ul><li><div class=logo><img src=a.png></ul><li><img src=b.png></ul>",
+                "<div class=logo><td><img src=x.png></td><th><img src=y.png></th><tr><caption><img src=z.png></div>",
+                "<button><div class=logo><button><img src=x.png></button><img src=y.png>",
+                "<p><div class=logo><img src=a.png></p><img src=b.png></div>",
+                "<div class=logo><p><img src=a.png><h2><img src=b.png></div><img src=c.png>",
+                "<div class=logo><span></div><img src=after.png></span><p><a class=logo><b></p><img src=in-b.png>",
+                "<form><div class=logo></form><img src=a.png></div><form><img src=b.png>",
+                "<div class=logo><object></div><img src=a.png></object><img src=b.png></div><img src=c.png>",
+                // Select elements only hold options
+                "<select><div class=logo><img src=d.png></div></select><img src=e.png>",
+                "<select><option><a href=1><img src=f.png></a><select><img src=g.png><select><textarea></textarea><a href=2>",
+                // Formatting elements the adoption agency algorithm splits or reopens
+                "<a class=logo href=1><p><img src=h.png></a><img src=i.png>",
+                "<p><a href=1><b>x</p><img src=j.png>",
+                "<b><div class=logo><img src=k.png></b><img src=l.png></div>",
+                "<a href=1><object><a href=2></object></a><img src=m.png>",
+                "<div class=logo><table><img src=n.png><tr><td><img src=o.png></table></div>",
+        };
+        for (String snippet : snippets) {
+            assertSameExtraction(snippet, snippet.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testDetectionSourceSelection() {
+        ExtractedPage page = extract("<img src=a.jpg width=1000 srcset='a-320.jpg 320w, a-640.jpg 640w, a-1280.jpg 1280w'>"
+                + "<img src=b.jpg width=400 srcset='b-1x.jpg, b-2x.jpg 2x, b-3x.jpg 3x'>"
+                + "<img src=c.jpg srcset='c-small.jpg 300w, c-large.jpg 1600w'>"
+                + "<img src=/img/w_1400,h_800/d.jpg srcset='/img/w_700,h_400/d.jpg 700w, /img/w_1400,h_800/d.jpg 1400w'>"
+                + "<picture><source srcset='e.avif 700w' type='image/avif'><img src=e.jpg width=1200 srcset='e-1000.jpg 1000w'></picture>"
+                + "<img src=f-800.jpg srcset='f-800.jpg 800w, f-1600.jpg 1600w'>", ObjectDetector.DEFAULT_INPUT_SIZE);
+
+        Assert.assertEquals(6, page.getImages().size());
+        Assert.assertEquals("https://www.example.com/lifestyle/2020/sep/05/a-640.jpg", page.getImages().get(0).getDetectionUrl());
+        Assert.assertEquals("https://www.example.com/lifestyle/2020/sep/05/a.jpg", page.getImages().get(0).getUrl());
+        // Every wide enough candidate is larger than the 400 pixel src
+        Assert.assertNull(page.getImages().get(1).getDetectionUrl());
+        // The width of the src is unknown, so any candidate could be larger
+        Assert.assertNull(page.getImages().get(2).getDetectionUrl());
+        // The src's own srcset entry tells its width
+        Assert.assertEquals("https://www.example.com/img/w_700,h_400/d.jpg", page.getImages().get(3).getDetectionUrl());
+        // OpenCV can't decode AVIF
+        Assert.assertEquals("https://www.example.com/lifestyle/2020/sep/05/e-1000.jpg", page.getImages().get(4).getDetectionUrl());
+        Assert.assertNull(page.getImages().get(5).getDetectionUrl());
+    }
+
+    @Test
+    public void testDetectionSourceSelectionFollowsInputSize() throws IOException {
+        String html = "<img src=a.jpg width=1000 srcset='a-320.jpg 320w, a-640.jpg 640w, a-1280.jpg 1280w'>"
+                + "<img src=b.jpg width=400 srcset='b-1x.jpg, b-2x.jpg 2x'>";
+        ExtractedPage page = extract(html, 320);
+        Assert.assertEquals("https://www.example.com/lifestyle/2020/sep/05/a-320.jpg", page.getImages().get(0).getDetectionUrl());
+        // A 400 pixel src is wide enough for a 320 input, and every candidate is larger
+        Assert.assertNull(page.getImages().get(1).getDetectionUrl());
+
+        FetchedPage fetched = new FetchedPage(PAGE_URL, 200, "text/html", null, html.getBytes(StandardCharsets.UTF_8), false);
+        ExtractedPage dom = new ExtractedPage();
+        new DomPageExtractor().extract(fetched, 320, dom);
+        Assert.assertEquals(dom.getImages(), page.getImages());
+    }
+
+    private static ExtractedPage extract(String html, int inputSize) {
+        FetchedPage page = new FetchedPage(PAGE_URL, 200, "text/html", null, html.getBytes(StandardCharsets.UTF_8), false);
+        ExtractedPage extracted = new ExtractedPage();
+        new StreamingPageExtractor().extract(page, inputSize, extracted);
+        return extracted;
+    }
+
+    private static void assertSameExtraction(String name, byte[] body) throws IOException {
+        FetchedPage page = new FetchedPage(PAGE_URL, 200, "text/html", null, body, false);
+        ExtractedPage dom = new ExtractedPage();
+        new DomPageExtractor().extract(page, ObjectDetector.DEFAULT_INPUT_SIZE, dom);
+        ExtractedPage streaming = new ExtractedPage();
+        new StreamingPageExtractor().extract(page, ObjectDetector.DEFAULT_INPUT_SIZE, streaming);
+
+        Assert.assertEquals(name, dom.getFavicons(), streaming.getFavicons());
+        Assert.assertEquals(name, dom.getLogos(), streaming.getLogos());
+        Assert.assertEquals(name, dom.getImages(), streaming.getImages());
+        Assert.assertEquals(name, dom.getLinks(), streaming.getLinks());
+    }
+
+    static byte[] loadFixture(String fixture) throws IOException {
+        try (InputStream input = PageExtractorTest.class.getResourceAsStream("/fixtures/" + fixture)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int read; (read = input.read(buffer)) > 0; ) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.eulerity.hackathon.imagefinder;
+
+import com.eulerity.hackathon.imagefinder.crawler.CrawlerPageResult;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringWriter;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Streams crawls of a {@link StubSite} from the servlet running in an embedded Jetty, as a client would.
+ */
+public class ResultStreamTest {
+    private static StubSite site;
+    private static Server server;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        site = new StubSite(3, 2, 1, 0, 0);
+        server = new Server(new InetSocketAddress("127.0.0.1", 0));
+        ServletContextHandler context = new ServletContextHandler();
+        context.addServlet(ImageFinder.class, "/main");
+        server.setHandler(context);
+        server.start();
+    }
+
+    @AfterClass
+    public static void stopServer() throws Exception {
+        server.stop();
+        site.close();
+    }
+
+    @Test
+    public void testNdjsonHasOneEventPerPageThenDone() throws IOException {
+        HttpURLConnection connection = post("stream=true", null);
+        Assert.assertEquals(200, connection.getResponseCode());
+        Assert.assertTrue(connection.getContentType().startsWith(ResultStreamWriter.NDJSON_CONTENT_TYPE));
+
+        List<JsonObject> events = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                events.add(new JsonParser().parse(line).getAsJsonObject());
+            }
+        }
+        Set<String> pages = new HashSet<>();
+        for (JsonObject event : events.subList(0, events.size() - 1)) {
+            Assert.assertEquals("page", event.get("event").getAsString());
+            pages.add(event.getAsJsonObject("page").get("pageUrl").getAsString());
+        }
+        Assert.assertEquals(3, pages.size());
+        Assert.assertEquals("done", events.get(events.size() - 1).get("event").getAsString());
+    }
+
+    @Test
+    public void testServerSentEventsCarryEnrichedPages() throws IOException {
+        HttpURLConnection connection = post("useAI=true", ResultStreamWriter.SSE_CONTENT_TYPE);
+        Assert.assertEquals(200, connection.getResponseCode());
+        Assert.assertTrue(connection.getContentType().startsWith(ResultStreamWriter.SSE_CONTENT_TYPE));
+
+        List<JsonObject> events = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) continue;  // Ends an event
+                Assert.assertTrue(line, line.startsWith("data: "));
+                events.add(new JsonParser().parse(line.substring("data: ".length())).getAsJsonObject());
+            }
+        }
+        Set<String> crawled = new HashSet<>();
+        Set<String> enriched = new HashSet<>();
+        for (JsonObject event : events.subList(0, events.size() - 1)) {
+            String pageUrl = event.getAsJsonObject("page").get("pageUrl").getAsString();
+            if ("ai".equals(event.get("event").getAsString())) {
+                Assert.assertTrue("enriched before it was crawled: " + pageUrl, crawled.contains(pageUrl));
+                enriched.add(pageUrl);
+            } else {
+                Assert.assertEquals("page", event.get("event").getAsString());
+                crawled.add(pageUrl);
+            }
+        }
+        Assert.assertEquals(3, crawled.size());
+        Assert.assertEquals(crawled, enriched);
+        JsonObject done = events.get(events.size() - 1);
+        Assert.assertEquals("done", done.get("event").getAsString());
+        Assert.assertTrue(done.has("dedupe"));
+    }
+
+    @Test
+    public void testStreamFailsWhenTheClientFallsBehind() throws InterruptedException {
+        StringWriter out = new StringWriter();
+        ResultStreamWriter writer = new ResultStreamWriter(out, new Gson(), false, 2, 50);
+        for (int i = 0; i < 2; i++) {
+            writer.writePage(new CrawlerPageResult("https://example.com/" + i, new ArrayList<>()));
+        }
+        Assert.assertFalse(writer.hasFailed());
+
+        // Nobody drains the full queue, so the producer gives up on the client
+        writer.writePage(new CrawlerPageResult("https://example.com/2", new ArrayList<>()));
+        Assert.assertTrue(writer.hasFailed());
+        writer.writeDone();
+        writer.drain();  // Returns right away instead of waiting for "done"
+        Assert.assertEquals("", out.toString());
+    }
+
+    private static HttpURLConnection post(String parameters, String accept) throws IOException {
+        int port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+        URL url = new URL("http://localhost:" + port + "/main?maxImages=10&url="
+                + URLEncoder.encode(site.rootUrl(), "UTF-8") + "&" + parameters);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setReadTimeout(60_000);
+        if (accept != null) {
+            connection.setRequestProperty("Accept", accept);
+        }
+        return connection;
+    }
+}
@@ -0,0 +1,163 @@
+package com.eulerity.hackathon.imagefinder;
+
+import com.eulerity.hackathon.imagefinder.crawler.RobotsRules;
+import com.eulerity.hackathon.imagefinder.crawler.SitemapParser;
+import com.eulerity.hackathon.imagefinder.crawler.WebCrawler;
+import com.eulerity.hackathon.imagefinder.executor.SharedExecutors;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+public class RobotsAndSitemapTest {
+    private static final String HOST = "https://www.example.com";
+
+    @Test
+    public void testRobotsRules() {
+        RobotsRules rules = RobotsRules.parse("User-agent: otherbot\n"
+                + "Disallow: /\n"
+                + "\n"
+                + "User-agent: *  # everyone else\n"
+                + "Disallow: /private\n"
+                + "Allow: /private/public\n"
+                + "Disallow: /*.pdf$\n"
+                + "Disallow:\n"
+                + "Sitemap: https://www.example.com/sitemap-index.xml\n");
+
+        Assert.assertTrue(rules.isAllowed(HOST + "/"));
+        Assert.assertFalse(rules.isAllowed(HOST + "/private/page"));
+        Assert.assertTrue(rules.isAllowed(HOST + "/private/public/page"));
+        Assert.assertFalse(rules.isAllowed(HOST + "/files/report.pdf"));
+        Assert.assertTrue(rules.isAllowed(HOST + "/files/report.pdf?download=1"));
+        Assert.assertEquals(1, rules.getSitemaps().size());
+
+        // A group naming this crawler replaces the "*" group
+        RobotsRules own = RobotsRules.parse("User-agent: *\nDisallow: /\n\nUser-agent: ImageFinder\nUser-agent: otherbot\nDisallow: /admin\n");
+        Assert.assertTrue(own.isAllowed(HOST + "/news"));
+        Assert.assertFalse(own.isAllowed(HOST + "/admin/users"));
+
+        // Only the whole product token names this crawler, not a prefix of it
+        RobotsRules prefixes = RobotsRules.parse("User-agent: *\nDisallow: /\n\nUser-agent: i\nUser-agent: image\nAllow: /\n");
+        Assert.assertFalse(prefixes.isAllowed(HOST + "/news"));
+        RobotsRules versioned = RobotsRules.parse("User-agent: *\nDisallow: /\n\nUser-agent: IMAGEFINDER/2.0\nAllow: /\n");
+        Assert.assertTrue(versioned.isAllowed(HOST + "/news"));
+    }
+
+    @Test(timeout = 5000)
+    public void testWildcardRulesMatchInLinearPasses() {
+        StringBuilder pattern = new StringBuilder("Disallow: /");
+        for (int i = 0; i < 30; i++) pattern.append("*a");
+        RobotsRules rules = RobotsRules.parse("User-agent: *\n" + pattern + "b$\nDisallow: /*x*y$\n");
+        StringBuilder path = new StringBuilder(HOST + "/");
+        for (int i = 0; i < 2000; i++) path.append('a');
+
+        // A backtracking matcher tries every split of the path between the wildcards here
+        Assert.assertTrue(rules.isAllowed(path.toString()));
+        Assert.assertFalse(rules.isAllowed(path + "b"));
+        Assert.assertFalse(rules.isAllowed(HOST + "/axbxcy"));
+        Assert.assertTrue(rules.isAllowed(HOST + "/axbxcyz"));
+    }
+
+    @Test
+    public void testSitemapParserReadsIndexesImagesAndGzip() throws IOException {
+        String index = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<sitemapindex xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\">"
+                + "<sitemap><loc>https://www.example.com/sitemap-1.xml</loc><lastmod>2020-09-05</lastmod></sitemap>"
+                + "</sitemapindex>";
+        List<SitemapParser.Entry> entries = new ArrayList<>();
+        SitemapParser.parse(new ByteArrayInputStream(index.getBytes(StandardCharsets.UTF_8)), entries::add);
+        Assert.assertEquals(1, entries.size());
+        Assert.assertTrue(entries.get(0).isSitemap());
+        Assert.assertEquals("2020-09-05", entries.get(0).getLastModified());
+
+        String urlset = "<urlset xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\" "
+                + "xmlns:image=\"http://www.google.com/schemas/sitemap-image/1.1\">"
+                + "<url><loc> https://www.example.com/a </loc>"
+                + "<image:image><image:loc>https://www.example.com/a.jpg</image:loc></image:image>"
+                + "<image:image><image:loc>https://www.example.com/b.jpg</image:loc></image:image></url>"
+                + "<url><loc>https://www.example.com/b</loc></url>"
+                + "</urlset>";
+        entries.clear();
+        SitemapParser.parse(new ByteArrayInputStream(gzip(urlset)), entries::add);
+        Assert.assertEquals(2, entries.size());
+        Assert.assertEquals("https://www.example.com/a", entries.get(0).getLoc());
+        Assert.assertEquals(2, entries.get(0).getImages());
+        Assert.assertFalse(entries.get(1).isSitemap());
+        Assert.assertEquals(0, entries.get(1).getImages());
+    }
+
+    @Test
+    public void testCrawlSkipsDisallowedPagesAndSeedsFromSitemaps() throws Exception {
+        // Page 90 is deeper than the maximum crawl depth and only reachable through the sitemap
+        try (StubSite site = new StubSite(100, 2, 1, 0, 0)) {
+            String root = site.rootUrl().substring(0, site.rootUrl().indexOf("/page/"));
+            site.addFile("/robots.txt", "text/plain", ("User-agent: *\nDisallow: /page/1$\nSitemap: " + root + "/sitemap-index.xml\n")
+                    .getBytes(StandardCharsets.UTF_8));
+            site.addFile("/sitemap-index.xml", "application/xml", ("<sitemapindex><sitemap><loc>" + root + "/sitemap-pages.xml.gz</loc></sitemap></sitemapindex>")
+                    .getBytes(StandardCharsets.UTF_8));
+            site.addFile("/sitemap-pages.xml.gz", "application/gzip", gzip("<urlset>"
+                    + "<url><loc>" + site.pageUrl(90) + "</loc><image:image xmlns:image=\"http://www.google.com/schemas/sitemap-image/1.1\"/></url>"
+                    + "<url><loc>" + site.pageUrl(1) + "</loc></url>"
+                    + "<url><loc>https://elsewhere.example.org/page</loc></url>"
+                    + "</urlset>"));
+
+            SharedExecutors executors = new SharedExecutors(2, 2, 0, 0);
+            try {
+                WebCrawler crawler = new WebCrawler(1000, executors);
+                crawler.crawl(site.rootUrl());
+
+                Assert.assertEquals(1, site.hitsFor("/page/90"));
+                Assert.assertEquals(0, site.hitsFor("/page/1"));
+                Assert.assertEquals(1, crawler.getSitemapSeeds());
+                Assert.assertTrue(crawler.getRobotsSkipped() >= 1);
+
+                // robots.txt and the sitemaps are cached for the next crawl of the host
+                new WebCrawler(1, executors).crawl(site.rootUrl());
+                Assert.assertEquals(1, site.hitsFor("/robots.txt"));
+                Assert.assertEquals(1, site.hitsFor("/sitemap-pages.xml.gz"));
+            } finally {
+                executors.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testCrawlDoesNotWaitForSlowSitemaps() throws Exception {
+        System.setProperty("SITEMAP_WAIT_MILLIS", "500");
+        try (StubSite site = new StubSite(5, 2, 1, 0, 0)) {
+            String root = site.rootUrl().substring(0, site.rootUrl().indexOf("/page/"));
+            site.addFile("/sitemap.xml", "application/xml", ("<urlset><url><loc>" + site.pageUrl(4) + "</loc></url></urlset>")
+                    .getBytes(StandardCharsets.UTF_8), 5000);
+
+            SharedExecutors executors = new SharedExecutors(2, 2, 0, 0);
+            try {
+                WebCrawler crawler = new WebCrawler(1000, executors);
+                long start = System.nanoTime();
+                crawler.crawl(site.rootUrl());
+
+                Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(3));
+                Assert.assertEquals(5, site.getPageFetches());
+                Assert.assertEquals(0, crawler.getSitemapSeeds());
+                Assert.assertEquals(1, site.hitsFor("/sitemap.xml"));
+            } finally {
+                executors.shutdown();
+                System.clearProperty("SITEMAP_WAIT_MILLIS");
+            }
+        }
+    }
+
+    private static byte[] gzip(String text) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,183 @@
+package com.eulerity.hackathon.imagefinder;
+
+import com.eulerity.hackathon.imagefinder.crawler.CrawlerImgResult;
+import com.eulerity.hackathon.imagefinder.crawler.CrawlerPageResult;
+import com.eulerity.hackathon.imagefinder.crawler.CrawlerResult;
+import com.eulerity.hackathon.imagefinder.executor.SharedExecutors;
+import com.eulerity.hackathon.imagefinder.shard.ShardCoordinator;
+import com.eulerity.hackathon.imagefinder.shard.ShardWorker;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class ShardCoordinatorTest {
+    private static final int WORKERS = 3;
+    private static final int A_PAGES = 120;
+    private static final int FETCHES_BEFORE_KILL = 50;
+    private static final int B_PAGES = 30;
+    private static final Pattern LISTENING = Pattern.compile("listening on port (\\d+)");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testCrawlSurvivesLosingAWorker() throws Exception {
+        List<Process> processes = new ArrayList<>();
+        // Every page of site A is slow, so the crawl is still running when a worker is killed
+        try (StubSite siteA = new StubSite(A_PAGES, 3, 1, 1, 200);
+             StubSite siteB = new StubSite(B_PAGES, 3, 1, 0, 0)) {
+            // Site B is another host on the same loopback address. Its seed is a page without links, the rest of
+            // it is only reachable through a link on site A
+            String rootB = siteB.rootUrl().replace("localhost", "127.0.0.1");
+            siteB.addFile("/start", "text/html", "<html><body>Nothing here</body></html>".getBytes(StandardCharsets.UTF_8));
+            siteA.addFile("/page/1", "text/html", ("<html><body><img src=\"/img/1-0.jpg\">"
+                    + "<a href=\"/page/4\">4</a><a href=\"/page/5\">5</a><a href=\"/page/6\">6</a>"
+                    + "<a href=\"" + rootB + "\">B</a></body></html>").getBytes(StandardCharsets.UTF_8));
+
+            Map<String, Process> workers = new HashMap<>();
+            for (int i = 0; i < WORKERS; i++) {
+                File log = folder.newFile("worker-" + i + ".log");
+                Process process = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+                        "-DPAGE_CACHE_ENABLED=false", "-DPOLITENESS_MIN_DELAY_MILLIS=0", "-DPOLITENESS_MAX_DELAY_MILLIS=0",
+                        "-DCHECKPOINT_DIR=" + folder.getRoot(), "-DSITEMAP_DIR=" + folder.getRoot(),
+                        "-cp", System.getProperty("java.class.path"), ShardWorker.class.getName(), "0")
+                        .redirectErrorStream(true).redirectOutput(log).start();
+                processes.add(process);
+                workers.put("http://localhost:" + waitForPort(log, process), process);
+            }
+
+            ShardCoordinator coordinator = new ShardCoordinator(new ArrayList<>(workers.keySet()));
+            List<CrawlerPageResult> results = new ArrayList<>();
+            Exception[] failure = new Exception[1];
+            Thread crawl = new Thread(() -> {
+                try {
+                    coordinator.crawl(Arrays.asList(siteA.rootUrl(), rootB.replace("/page/0", "/start")), 1000, results::add);
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            });
+            crawl.start();
+
+            long deadline = System.currentTimeMillis() + 30_000;
+            while (siteA.getPageFetches() < FETCHES_BEFORE_KILL && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            Process owner = workers.get(coordinator.ownerOf("localhost"));
+            owner.destroyForcibly();
+            Assert.assertTrue(owner.waitFor(10, TimeUnit.SECONDS));
+            int fetchedBeforeKill = siteA.getPageFetches();
+            Assert.assertTrue(fetchedBeforeKill >= FETCHES_BEFORE_KILL && fetchedBeforeKill < A_PAGES - 1);
+
+            crawl.join(60_000);
+            Assert.assertFalse(crawl.isAlive());
+            Assert.assertNull(failure[0]);
+
+            Assert.assertEquals(1L, (long) coordinator.getStats().get("failedWorkers"));
+            Assert.assertTrue(coordinator.getStats().get("reassignedTasks") > 0);
+            Assert.assertTrue(coordinator.getStats().get("forwardedLinks") > 0);
+            Assert.assertEquals(WORKERS - 1, coordinator.getLiveWorkers().size());
+
+            // Every image of both hosts is found, each exactly once
+            List<String> images = new ArrayList<>();
+            for (CrawlerPageResult page : results) {
+                for (CrawlerResult result : page.getCrawlerResults()) {
+                    if (result instanceof CrawlerImgResult) {
+                        images.add(((CrawlerImgResult) result).getImgUrl());
+                    }
+                }
+            }
+            Set<String> distinct = new HashSet<>(images);
+            Assert.assertEquals(images.size(), distinct.size());
+            Assert.assertEquals(A_PAGES + B_PAGES, distinct.size());
+            Assert.assertTrue(distinct.contains(rootB.replace("/page/0", "/img/0-0.jpg")));
+
+            // The new owner picked up where the lost one stopped instead of starting over: only the pages in flight
+            // and those finished since the last poll are fetched again
+            int refetched = 0;
+            for (int page = 0; page < A_PAGES; page++) {
+                if (siteA.hitsFor(new URI(siteA.pageUrl(page)).getPath()) > 1) refetched++;
+            }
+            Assert.assertTrue("refetched " + refetched + " of " + fetchedBeforeKill, refetched <= 2 * SharedExecutors.SLOTS_PER_HOST);
+        } finally {
+            for (Process process : processes) {
+                process.destroyForcibly();
+            }
+        }
+    }
+
+    @Test
+    public void testCrawlNotPolledIsStoppedWhenItsLeaseRunsOut() throws Exception {
+        SharedExecutors executors = new SharedExecutors(2, 2, 0, 0);
+        // Every page is slow, so the crawl is still running when its lease runs out
+        try (StubSite site = new StubSite(A_PAGES, 3, 1, 1, 200);
+             ShardWorker worker = new ShardWorker("127.0.0.1", 0, 500, executors)) {
+            String crawl = "http://127.0.0.1:" + worker.getPort() + "/crawls/lease-test";
+            String batch = "{\"maxImages\":1000,\"hosts\":[\"localhost\"],\"tasks\":[{\"url\":\"" + site.rootUrl()
+                    + "\",\"depth\":0,\"priority\":0}],\"done\":[]}";
+            Assert.assertEquals(200, call("POST", crawl + "/tasks", batch));
+            Assert.assertEquals(200, call("GET", crawl + "/poll", null));
+
+            Thread.sleep(1500);
+            Assert.assertEquals(404, call("GET", crawl + "/poll", null));
+            // Pages that were already being fetched finish, nothing new starts
+            Thread.sleep(500);
+            int fetches = site.getPageFetches();
+            Thread.sleep(1000);
+            Assert.assertEquals(fetches, site.getPageFetches());
+            Assert.assertTrue(fetches < A_PAGES);
+        } finally {
+            executors.shutdown();
+        }
+    }
+
+    /**
+     * @return the status code of the response.
+     */
+    private static int call(String method, String url, String json) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        if (json != null) {
+            connection.setDoOutput(true);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(json.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        int status = connection.getResponseCode();
+        connection.disconnect();
+        return status;
+    }
+
+    /**
+     * @return the port the worker printed once it started listening.
+     */
+    private static int waitForPort(File log, Process process) throws Exception {
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (System.currentTimeMillis() < deadline && process.isAlive()) {
+            Matcher matcher = LISTENING.matcher(new String(Files.readAllBytes(log.toPath()), StandardCharsets.UTF_8));
+            if (matcher.find()) {
+                return Integer.parseInt(matcher.group(1));
+            }
+            Thread.sleep(20);
+        }
+        throw new AssertionError("Worker didn't start: " + new String(Files.readAllBytes(log.toPath()), StandardCharsets.UTF_8));
+    }
+}
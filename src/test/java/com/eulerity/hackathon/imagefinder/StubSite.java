@@ -0,0 +1,201 @@
+package com.eulerity.hackathon.imagefinder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small local web site used by tests and benchmarks so crawls don't depend on the internet.
+ * Pages form a tree: page i links to pages i * fanout + 1 ... i * fanout + fanout, and every page
+ * references a fixed number of images. Every n-th page can be made slow to simulate a lagging server.
+ * Pages carry an ETag and are answered with 304 Not Modified when a request presents it in If-None-Match.
+ * Other files, e.g. robots.txt or sitemaps, can be added with {@link #addFile(String, String, byte[])}.
+ */
+public class StubSite implements AutoCloseable {
+    private final HttpServer server;
+    private final ExecutorService serverExecutor = Executors.newCachedThreadPool();
+    private final int pageCount;
+    private final int fanout;
+    private final int imagesPerPage;
+    private final int slowEvery;
+    private final int slowMillis;
+    private final Map<String, AtomicInteger> hits = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> bytesServed = new ConcurrentHashMap<>();
+    private final AtomicInteger pageFetches = new AtomicInteger();
+    private final AtomicInteger notModified = new AtomicInteger();
+    private final Map<String, String> fileTypes = new ConcurrentHashMap<>();
+    private final Map<String, byte[]> files = new ConcurrentHashMap<>();
+    private final Map<String, Integer> fileDelays = new ConcurrentHashMap<>();
+
+    public StubSite(int pageCount, int fanout, int imagesPerPage, int slowEvery, int slowMillis) throws IOException {
+        this.pageCount = pageCount;
+        this.fanout = fanout;
+        this.imagesPerPage = imagesPerPage;
+        this.slowEvery = slowEvery;
+        this.slowMillis = slowMillis;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.server.createContext("/", this::handle);
+        this.server.setExecutor(serverExecutor);
+        this.server.start();
+    }
+
+    /**
+     * @return the URL of the root page of the site.
+     */
+    public String rootUrl() {
+        return pageUrl(0);
+    }
+
+    public String pageUrl(int page) {
+        return "http://localhost:" + server.getAddress().getPort() + "/page/" + page;
+    }
+
+    public int getPageFetches() {
+        return pageFetches.get();
+    }
+
+    /**
+     * @return how many page requests were answered with 304 Not Modified.
+     */
+    public int getNotModified() {
+        return notModified.get();
+    }
+
+    /**
+     * @param path the request path, e.g. "/page/3".
+     * @return how many times the path was requested.
+     */
+    public int hitsFor(String path) {
+        AtomicInteger count = hits.get(path);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * @param path the path of a file added with {@link #addFile(String, String, byte[])}.
+     * @return how many body bytes were sent for it.
+     */
+    public long bytesServed(String path) {
+        AtomicLong count = bytesServed.get(path);
+        return count == null ? 0 : count.get();
+    }
+
+    public Map<String, AtomicInteger> getHits() {
+        return hits;
+    }
+
+    /**
+     * Serves a file at the given path.
+     *
+     * @param path        the request path, e.g. "/robots.txt".
+     * @param contentType the Content-Type of the response.
+     * @param body        the response body.
+     */
+    public void addFile(String path, String contentType, byte[] body) {
+        fileTypes.put(path, contentType);
+        files.put(path, body);
+    }
+
+    /**
+     * Serves a file at the given path after a delay.
+     *
+     * @param delayMillis how long to wait before answering each request for the file.
+     */
+    public void addFile(String path, String contentType, byte[] body, int delayMillis) {
+        fileDelays.put(path, delayMillis);
+        addFile(path, contentType, body);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        hits.computeIfAbsent(path, key -> new AtomicInteger()).incrementAndGet();
+        byte[] file = files.get(path);
+        if (file != null) {
+            sleep(fileDelays.getOrDefault(path, 0));
+            exchange.getResponseHeaders().set("Content-Type", fileTypes.get(path));
+            exchange.sendResponseHeaders(200, file.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(file);
+            }
+            bytesServed.computeIfAbsent(path, key -> new AtomicLong()).addAndGet(file.length);
+            return;
+        }
+        if (!path.startsWith("/page/")) {
+            reply(exchange, 404, "text/plain", "not found");
+            return;
+        }
+
+        int page;
+        try {
+            page = Integer.parseInt(path.substring("/page/".length()));
+        } catch (NumberFormatException e) {
+            reply(exchange, 404, "text/plain", "not found");
+            return;
+        }
+        if (page < 0 || page >= pageCount) {
+            reply(exchange, 404, "text/plain", "not found");
+            return;
+        }
+
+        String etag = "\"page-" + page + "\"";
+        if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            notModified.incrementAndGet();
+            exchange.getResponseHeaders().set("ETag", etag);
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+
+        pageFetches.incrementAndGet();
+        if (slowEvery > 0 && page > 0 && page % slowEvery == 0) {
+            sleep(slowMillis);
+        }
+        exchange.getResponseHeaders().set("ETag", etag);
+        reply(exchange, 200, "text/html; charset=utf-8", renderPage(page));
+    }
+
+    private String renderPage(int page) {
+        StringBuilder html = new StringBuilder();
+        html.append("<html><head><title>Page ").append(page).append("</title></head><body>");
+        for (int i = 0; i < imagesPerPage; i++) {
+            html.append("<img src=\"/img/").append(page).append('-').append(i).append(".jpg\">");
+        }
+        for (int child = page * fanout + 1; child <= page * fanout + fanout && child < pageCount; child++) {
+            html.append("<a href=\"/page/").append(child).append("\">Page ").append(child).append("</a>");
+        }
+        html.append("</body></html>");
+        return html.toString();
+    }
+
+    private static void sleep(int millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void reply(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,150 @@
+package com.eulerity.hackathon.imagefinder;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * An ONNX model with YOLOv8's input and output layout, for tests that need a real net without the real model: a
+ * 32x32 max pool and a 1x1 convolution to 84 channels turn [N, 3, 640, 640] into [N, 84, 20, 20], i.e. 400
+ * anchors. Its batch size is dynamic and, as it has no fixed-size layers, it runs on other input sizes too.
+ * {@link #reshapedBytes()} and {@link #fixedShapeBytes()} are the same model exported with fixed shapes.
+ * It is written as protobuf by hand, as the tests have no ONNX library.
+ */
+class TinyYoloModel {
+    /**
+     * @return the ONNX model.
+     */
+    static byte[] bytes() {
+        return bytes(1);
+    }
+
+    /**
+     * @param seed the seed of the random weights, another seed gives another model.
+     * @return the ONNX model.
+     */
+    static byte[] bytes(long seed) {
+        return model(seed, false, false);
+    }
+
+    /**
+     * @return the model of {@link #bytes()} with its output reshaped to a constant [1, 84, 400], like YOLOv8's own
+     * output. OpenCV still runs it on a batch, by putting the batch axis in front: [N, 1, 84, 400].
+     */
+    static byte[] reshapedBytes() {
+        return model(1, true, false);
+    }
+
+    /**
+     * @return the model of {@link #bytes()} with a fixed shape, like YOLOv8 exported without dynamic axes: its
+     * output is reshaped to a constant [1, 84, 400] and a constant anchor of zeros, which never scores, is appended.
+     * OpenCV runs a constant reshape on a batch by putting the batch axis in front, but can't append a constant
+     * to it, so the model rejects batches as well as input sizes other than 640.
+     */
+    static byte[] fixedShapeBytes() {
+        return model(1, true, true);
+    }
+
+    private static byte[] model(long seed, boolean reshaped, boolean padded) {
+        Random random = new Random(seed);
+        float[] weights = new float[84 * 3];
+        float[] bias = new float[84];
+        for (int i = 0; i < weights.length; i++) weights[i] = random.nextFloat() * 2 - 1;
+        for (int i = 0; i < bias.length; i++) bias[i] = random.nextFloat();
+        byte[] graph = concat(
+                field(1, node("MaxPool", new String[]{"images"}, "pooled", ints("kernel_shape", 32, 32), ints("strides", 32, 32))),
+                field(1, node("Conv", new String[]{"pooled", "W", "B"}, reshaped ? "scores" : "output0", ints("kernel_shape", 1, 1))),
+                field(2, "tiny"),
+                field(5, tensor("W", weights, 84, 3, 1, 1)),
+                field(5, tensor("B", bias, 84)));
+        if (padded) {
+            graph = concat(graph,
+                    field(1, node("Reshape", new String[]{"scores", "shape"}, "flat")),
+                    field(1, node("Concat", new String[]{"flat", "pad"}, "output0", intAttr("axis", 2))),
+                    field(5, longTensor("shape", 1, 84, 400)),
+                    field(5, tensor("pad", new float[84], 1, 84, 1)),
+                    field(11, valueInfo("images", 1, 3, 640, 640)),
+                    field(12, valueInfo("output0", 1, 84, 401)));
+        } else if (reshaped) {
+            graph = concat(graph,
+                    field(1, node("Reshape", new String[]{"scores", "shape"}, "output0")),
+                    field(5, longTensor("shape", 1, 84, 400)),
+                    field(11, valueInfo("images", 1, 3, 640, 640)),
+                    field(12, valueInfo("output0", 1, 84, 400)));
+        } else {
+            graph = concat(graph,
+                    field(11, valueInfo("images", -1, 3, 640, 640)),
+                    field(12, valueInfo("output0", -1, 84, 20, 20)));
+        }
+        return concat(varint(1, 7), field(2, "test"), field(7, graph), field(8, concat(field(1, ""), varint(2, 13))));
+    }
+
+    private static byte[] node(String op, String[] inputs, String output, byte[]... attributes) {
+        byte[] node = new byte[0];
+        for (String input : inputs) node = concat(node, field(1, input));
+        node = concat(node, field(2, output), field(4, op));
+        for (byte[] attribute : attributes) node = concat(node, field(5, attribute));
+        return node;
+    }
+
+    private static byte[] intAttr(String name, int value) {
+        return concat(field(1, name), varint(3, value), varint(20, 2));  // INT
+    }
+
+    private static byte[] ints(String name, int... values) {
+        byte[] attribute = field(1, name);
+        for (int value : values) attribute = concat(attribute, varint(8, value));
+        return concat(attribute, varint(20, 7));  // INTS
+    }
+
+    private static byte[] tensor(String name, float[] values, int... dims) {
+        ByteBuffer data = ByteBuffer.allocate(values.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+        data.asFloatBuffer().put(values);
+        byte[] shape = new byte[0];
+        for (int dim : dims) shape = concat(shape, varint(1, dim));
+        return concat(shape, varint(2, 1), field(8, name), field(9, data.array()));  // FLOAT
+    }
+
+    private static byte[] longTensor(String name, long... values) {
+        ByteBuffer data = ByteBuffer.allocate(values.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+        data.asLongBuffer().put(values);
+        return concat(varint(1, values.length), varint(2, 7), field(8, name), field(9, data.array()));  // INT64
+    }
+
+    // A float tensor of the given dimensions, -1 being a dynamic batch size "N"
+    private static byte[] valueInfo(String name, int... dims) {
+        byte[] shape = new byte[0];
+        for (int dim : dims) shape = concat(shape, field(1, dim < 0 ? field(2, "N") : varint(1, dim)));
+        return concat(field(1, name), field(2, field(1, concat(varint(1, 1), field(2, shape)))));
+    }
+
+    private static byte[] field(int number, String value) {
+        return field(number, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] field(int number, byte[] value) {
+        return concat(varint(number << 3 | 2), varint(value.length), value);
+    }
+
+    private static byte[] varint(int number, long value) {
+        return concat(varint(number << 3), varint(value));
+    }
+
+    private static byte[] varint(long value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        do {
+            int b = (int) (value & 0x7f);
+            value >>>= 7;
+            out.write(value != 0 ? b | 0x80 : b);
+        } while (value != 0);
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) out.write(part, 0, part.length);
+        return out.toByteArray();
+    }
+}
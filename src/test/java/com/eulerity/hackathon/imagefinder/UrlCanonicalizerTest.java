@@ -0,0 +1,55 @@
+package com.eulerity.hackathon.imagefinder;
+
+import com.eulerity.hackathon.imagefinder.crawler.CrawlFrontier;
+import com.eulerity.hackathon.imagefinder.crawler.SeenUrls;
+import com.eulerity.hackathon.imagefinder.crawler.UrlCanonicalizer;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class UrlCanonicalizerTest {
+
+    @Test
+    public void testCanonicalizeNormalizesEquivalentSpellings() {
+        String canonical = "https://example.com/a/c?a=1&b=2";
+        Assert.assertEquals(canonical, UrlCanonicalizer.canonicalize("HTTPS://Example.COM:443/a/b/../c?b=2&a=1#top"));
+        Assert.assertEquals(canonical, UrlCanonicalizer.canonicalize("https://example.com/a/./c?a=1&b=2&"));
+        Assert.assertEquals("http://example.com/", UrlCanonicalizer.canonicalize("http://example.com:80"));
+        Assert.assertEquals("http://example.com:8080/", UrlCanonicalizer.canonicalize("http://example.com:8080/#About"));
+    }
+
+    @Test
+    public void testCanonicalizeKeepsTheOrderOfRepeatedKeys() {
+        Assert.assertEquals("https://example.com/?a=2&a=1&b=0", UrlCanonicalizer.canonicalize("https://example.com/?b=0&a=2&a=1"));
+        Assert.assertNotEquals(UrlCanonicalizer.canonicalize("https://example.com/?a=2&a=1"),
+                UrlCanonicalizer.canonicalize("https://example.com/?a=1&a=2"));
+        Assert.assertEquals("https://example.com/?a&a=1&ab=2", UrlCanonicalizer.canonicalize("https://example.com/?ab=2&a&a=1"));
+    }
+
+    @Test
+    public void testCanonicalizeRejectsNonHttpUrls() {
+        Assert.assertNull(UrlCanonicalizer.canonicalize("javascript:void(0)"));
+        Assert.assertNull(UrlCanonicalizer.canonicalize("mailto:someone@example.com"));
+        Assert.assertNull(UrlCanonicalizer.canonicalize(""));
+    }
+
+    @Test
+    public void testFrontierDropsDuplicatesOnOffer() {
+        CrawlFrontier frontier = new CrawlFrontier(5, 16);
+        Assert.assertTrue(frontier.offer("https://example.com/page?b=2&a=1", 1));
+        Assert.assertFalse(frontier.offer("https://EXAMPLE.com/page?a=1&b=2#comments", 1));
+        Assert.assertFalse(frontier.offer("https://example.com/other", 6));
+        Assert.assertEquals(1, frontier.size());
+    }
+
+    @Test
+    public void testMillionUrlsFitInAFewTensOfMegabytes() {
+        SeenUrls seen = new SeenUrls(1_000_000, true);
+        for (int i = 0; i < 1_000_000; i++) {
+            Assert.assertTrue(seen.add("https://example.com/article/" + i));
+        }
+        Assert.assertFalse(seen.add("https://example.com/article/42"));
+        Assert.assertTrue(seen.contains("https://example.com/article/999999"));
+        Assert.assertEquals(1_000_000, seen.size());
+        Assert.assertTrue(seen.memoryBytes() < 40L * 1024 * 1024);
+    }
+}
@@ -27,6 +27,19 @@ public class WebCrawlerTest {
         Assert.assertFalse(results.isEmpty()); // Simplified condition
     }
 
+    @Test
+    public void testCrawlStopsAtMaxImages() throws Exception {
+        try (StubSite site = new StubSite(13, 3, 2, 0, 0)) {
+            List<CrawlerPageResult> results = new WebCrawler(5).crawl(site.rootUrl());
+            int images = 0;
+            for (CrawlerPageResult result : results) {
+                images += result.getCrawlerResults().size();
+            }
+            Assert.assertEquals(5, images);
+            Assert.assertEquals(1, site.hitsFor("/page/0"));
+        }
+    }
+
     @Test(expected = MalformedURLException.class)
     public void testCrawlMalformedUrl() throws InterruptedException, MalformedURLException {
         // This should throw MalformedURLException
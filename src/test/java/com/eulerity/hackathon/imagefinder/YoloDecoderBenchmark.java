@@ -0,0 +1,206 @@
+package com.eulerity.hackathon.imagefinder;
+
+import com.eulerity.hackathon.imagefinder.objectDetector.Detection;
+import com.eulerity.hackathon.imagefinder.objectDetector.YoloDecoder;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.MatOfRect2d;
+import org.opencv.core.Rect2d;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.dnn.Dnn;
+import org.opencv.dnn.Net;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the per-anchor post-processing the detector used to run with {@link YoloDecoder} on an 84 x 8400
+ * YOLOv8 prediction. The tensor is either synthetic, a few dozen objects each found by a cluster of anchors over
+ * low background scores, or one recorded from the real model: run main with "record", the ONNX model, an image and
+ * the output file, then pass the file as the tensor parameter (-p tensor=...). Without arguments main runs the
+ * benchmark; the GC profiler reports the allocation per image as gc.alloc.rate.norm. It is not part of the unit
+ * test run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class YoloDecoderBenchmark {
+    static final int OUTPUTS = 84;
+    static final int ANCHORS = 8400;
+    // A 1280x720 image on the 640x640 network input
+    static final double SCALE_X = 2.0;
+    static final double SCALE_Y = 1.125;
+
+    @Param({"synthetic"})
+    public String tensor;
+
+    private Mat prediction;
+    private final Map<Integer, String> classNames = classNames();
+    private final YoloDecoder decoder = new YoloDecoder(classNames, YoloDecoder.SCORE_THRESHOLD, YoloDecoder.NMS_THRESHOLD);
+
+    @Setup
+    public void loadTensor() throws IOException {
+        nu.pattern.OpenCV.loadShared();
+        prediction = "synthetic".equals(tensor) ? syntheticPrediction(42) : readPrediction(tensor);
+    }
+
+    @Benchmark
+    public List<Detection> legacy() {
+        return legacyDecode(prediction, SCALE_X, SCALE_Y, classNames);
+    }
+
+    @Benchmark
+    public List<Detection> bulkRead() {
+        return decoder.decode(prediction, SCALE_X, SCALE_Y);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 4 && "record".equals(args[0])) {
+            nu.pattern.OpenCV.loadShared();
+            record(args[1], args[2], args[3]);
+            return;
+        }
+        new Runner(new OptionsBuilder()
+                .include(YoloDecoderBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+
+    /**
+     * The post-processing as the detector ran it before {@link YoloDecoder}: four JNI reads, a submat and a
+     * minMaxLoc per anchor, and a box for every anchor going into NMS. Its score range stops one row short, so the
+     * last class is never picked.
+     */
+    static List<Detection> legacyDecode(Mat mask, double width, double height, Map<Integer, String> classIdToNameMap) {
+        Rect2d[] rect2d = new Rect2d[mask.cols()];
+        float[] scoref = new float[mask.cols()];
+        int[] classId = new int[mask.cols()];
+
+        for (int i = 0; i < mask.cols(); i++) {
+            double[] x = mask.col(i).get(0, 0);
+            double[] y = mask.col(i).get(1, 0);
+            double[] w = mask.col(i).get(2, 0);
+            double[] h = mask.col(i).get(3, 0);
+            rect2d[i] = new Rect2d((x[0] - w[0] / 2) * width, (y[0] - h[0] / 2) * height, w[0] * width, h[0] * height);
+
+            Mat score = mask.col(i).submat(4, mask.rows() - 1, 0, 1);
+            Core.MinMaxLocResult mmr = Core.minMaxLoc(score);
+            scoref[i] = (float) mmr.maxVal;
+            classId[i] = (int) mmr.maxLoc.y;
+        }
+
+        MatOfRect2d bboxes = new MatOfRect2d(rect2d);
+        MatOfFloat scores = new MatOfFloat(scoref);
+        MatOfInt indices = new MatOfInt();
+        Dnn.NMSBoxes(bboxes, scores, 0.3f, 0.5f, indices);
+
+        List<Detection> detections = new ArrayList<>();
+        if (!indices.empty()) {
+            for (int index : indices.toArray()) {
+                detections.add(new Detection(rect2d[index], scoref[index], classIdToNameMap.get(classId[index])));
+            }
+        }
+        return detections;
+    }
+
+    static Map<Integer, String> classNames() {
+        Map<Integer, String> names = new HashMap<>();
+        for (int i = 0; i < OUTPUTS - 4; i++) {
+            names.put(i, "class-" + i);
+        }
+        return names;
+    }
+
+    /**
+     * @return a prediction with 30 objects, each found by 20 neighbouring anchors with jittered boxes, over
+     * background scores below 0.05. The last class never scores above the background.
+     */
+    static Mat syntheticPrediction(long seed) {
+        Random random = new Random(seed);
+        float[] data = new float[OUTPUTS * ANCHORS];
+        for (int i = 0; i < ANCHORS; i++) {
+            data[i] = random.nextFloat() * 640;
+            data[ANCHORS + i] = random.nextFloat() * 640;
+            data[2 * ANCHORS + i] = 5 + random.nextFloat() * 60;
+            data[3 * ANCHORS + i] = 5 + random.nextFloat() * 60;
+            for (int c = 4; c < OUTPUTS; c++) {
+                data[c * ANCHORS + i] = random.nextFloat() * 0.05f;
+            }
+        }
+        for (int object = 0; object < 30; object++) {
+            float x = 50 + random.nextFloat() * 540;
+            float y = 50 + random.nextFloat() * 540;
+            float w = 20 + random.nextFloat() * 200;
+            float h = 20 + random.nextFloat() * 200;
+            int classId = random.nextInt(OUTPUTS - 5);
+            int first = random.nextInt(ANCHORS - 20);
+            for (int i = first; i < first + 20; i++) {
+                data[i] = x + (random.nextFloat() - 0.5f) * 8;
+                data[ANCHORS + i] = y + (random.nextFloat() - 0.5f) * 8;
+                data[2 * ANCHORS + i] = w * (0.9f + random.nextFloat() * 0.2f);
+                data[3 * ANCHORS + i] = h * (0.9f + random.nextFloat() * 0.2f);
+                data[(4 + classId) * ANCHORS + i] = 0.2f + random.nextFloat() * 0.75f;
+            }
+        }
+        Mat prediction = new Mat(OUTPUTS, ANCHORS, CvType.CV_32F);
+        prediction.put(0, 0, data);
+        return prediction;
+    }
+
+    /**
+     * Runs the model on an image and writes its prediction as little-endian floats, output by output.
+     */
+    private static void record(String model, String image, String file) throws IOException {
+        Net net = Dnn.readNetFromONNX(model);
+        Mat blob = Dnn.blobFromImage(Imgcodecs.imread(image), 1 / 255.0, new Size(640, 640), new Scalar(0), true, false);
+        net.setInput(blob);
+        Mat output = net.forward();
+        Mat prediction = output.reshape(0, OUTPUTS);
+        float[] data = new float[(int) prediction.total()];
+        prediction.get(0, 0, data);
+        ByteBuffer bytes = ByteBuffer.allocate(data.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+        bytes.asFloatBuffer().put(data);
+        Files.write(Paths.get(file), bytes.array());
+        System.out.println("Recorded " + prediction.rows() + " x " + prediction.cols() + " to " + file);
+    }
+
+    private static Mat readPrediction(String file) throws IOException {
+        byte[] bytes = Files.readAllBytes(Paths.get(file));
+        float[] data = new float[bytes.length / 4];
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(data);
+        Mat prediction = new Mat(OUTPUTS, data.length / OUTPUTS, CvType.CV_32F);
+        prediction.put(0, 0, data);
+        return prediction;
+    }
+}
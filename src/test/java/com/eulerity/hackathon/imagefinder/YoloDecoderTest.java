@@ -0,0 +1,51 @@
+package com.eulerity.hackathon.imagefinder;
+
+import com.eulerity.hackathon.imagefinder.objectDetector.Detection;
+import com.eulerity.hackathon.imagefinder.objectDetector.YoloDecoder;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.Mat;
+
+import java.util.List;
+import java.util.Map;
+
+public class YoloDecoderTest {
+    private final Map<Integer, String> classNames = YoloDecoderBenchmark.classNames();
+    private final YoloDecoder decoder = new YoloDecoder(classNames, YoloDecoder.SCORE_THRESHOLD, YoloDecoder.NMS_THRESHOLD);
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        nu.pattern.OpenCV.loadShared();
+    }
+
+    @Test
+    public void testDetectionsMatchThePerAnchorDecoder() {
+        for (long seed = 1; seed <= 3; seed++) {
+            Mat prediction = YoloDecoderBenchmark.syntheticPrediction(seed);
+            List<Detection> expected = YoloDecoderBenchmark.legacyDecode(prediction,
+                    YoloDecoderBenchmark.SCALE_X, YoloDecoderBenchmark.SCALE_Y, classNames);
+            List<Detection> actual = decoder.decode(prediction, YoloDecoderBenchmark.SCALE_X, YoloDecoderBenchmark.SCALE_Y);
+            Assert.assertFalse(expected.isEmpty());
+            Assert.assertEquals(expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                Assert.assertEquals(expected.get(i).getClassName(), actual.get(i).getClassName());
+                Assert.assertEquals(expected.get(i).getScore(), actual.get(i).getScore(), 0f);
+                Assert.assertEquals(expected.get(i).getBbox(), actual.get(i).getBbox());
+            }
+        }
+    }
+
+    @Test
+    public void testLastClassIsDetected() {
+        Mat prediction = YoloDecoderBenchmark.syntheticPrediction(1);
+        prediction.put(0, 100, 320f);
+        prediction.put(1, 100, 320f);
+        prediction.put(2, 100, 40f);
+        prediction.put(3, 100, 20f);
+        prediction.put(prediction.rows() - 1, 100, 0.99f);
+        List<Detection> detections = decoder.decode(prediction, 1, 1);
+        Assert.assertEquals(classNames.get(classNames.size() - 1), detections.get(0).getClassName());
+        Assert.assertEquals(300, detections.get(0).getBbox().x, 0.001);
+    }
+}